@@ -26,6 +26,7 @@ import net.sf.okapi.common.Util;
 import net.sf.okapi.common.ui.Dialogs;
 import net.sf.okapi.common.ui.UIUtil;
 import net.sf.okapi.lib.tmdb.DbUtil;
+import net.sf.okapi.lib.tmdb.FuzzyQuerySpec;
 import net.sf.okapi.lib.tmdb.IIndexAccess;
 import net.sf.okapi.lib.tmdb.IRepository;
 import net.sf.okapi.lib.tmdb.ITm;
@@ -253,21 +254,20 @@ class QueryTMForm implements ISegmentEditorUser {
 			IRepository repo = tm.getRepository();
 			IIndexAccess ia = repo.getIndexAccess();
 
-			int count = ia.search(text, null, tm.getUUID(), cbLocales.getText(), spMaxHits.getSelection(),
-				spThreshold.getSelection(), attributes);
-			if ( count == 0 ) {
+			java.util.List<TmHit> res = ia.search(new FuzzyQuerySpec(text, null, tm.getUUID(), cbLocales.getText(),
+				spMaxHits.getSelection(), spThreshold.getSelection(), attributes));
+			if ( res.isEmpty() ) {
 				stCount.setText("<No match found>");
 				return;
 			}
 			
 			// Else: fill the table
-			java.util.List<TmHit> res = ia.getHits();
 			for ( TmHit hit : res ) {
 				TableItem ti = new TableItem(table, SWT.NONE);
 				ti.setText(hit.getSegKey());
 				ti.setText(1, String.format("%f", hit.getScore()));
-				ti.setText(2, hit.getVariant().getGenericTextField().stringValue());
-				ti.setData(hit.getVariant().getCodesField().stringValue());
+				ti.setText(2, hit.getText());
+				ti.setData(hit.getCodes());
 			}
 			// Select the first match as the current one
 			table.select(0);
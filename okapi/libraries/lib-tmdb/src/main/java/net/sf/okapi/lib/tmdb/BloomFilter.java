@@ -0,0 +1,113 @@
+/*===========================================================================
+  Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+  This library is free software; you can redistribute it and/or modify it
+  under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation; either version 2.1 of the License, or (at
+  your option) any later version.
+
+  This library is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+  General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this library; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb;
+
+/**
+ * Bloom filter of 64-bit hashes.
+ * <p>{@link #mightContain(long)} never returns false for a hash that was added, and returns
+ * true for a hash that was not added with about the probability given at creation
+ * (as long as the number of hashes added stays under the expected number).
+ * <p>The bit positions are derived from the hash itself by double hashing, so the hashes
+ * should already be well distributed (e.g. {@link DbUtil#computeHash(String...)}).
+ */
+public class BloomFilter {
+
+	private final long[] bits;
+	private final long bitCount;
+	private final int hashCount;
+
+	/**
+	 * Creates a new empty filter.
+	 * @param expectedCount the expected number of hashes to add.
+	 * @param falsePositiveRate the expected rate of false positives (e.g. 0.01 for 1%).
+	 */
+	public BloomFilter (long expectedCount,
+		double falsePositiveRate)
+	{
+		if ( expectedCount < 1 ) expectedCount = 1;
+		if (( falsePositiveRate <= 0 ) || ( falsePositiveRate >= 1 )) {
+			throw new IllegalArgumentException("The rate of false positives must be between 0 and 1.");
+		}
+		double ln2 = Math.log(2);
+		long size = (long)Math.ceil(-expectedCount*Math.log(falsePositiveRate)/(ln2*ln2));
+		long words = Math.min(Integer.MAX_VALUE, Math.max(1, (size+63)/64));
+		bits = new long[(int)words];
+		bitCount = words*64;
+		hashCount = (int)Math.max(1, Math.min(16, Math.round((double)bitCount/expectedCount*ln2)));
+	}
+
+	/**
+	 * Adds a hash to this filter.
+	 * @param hash the hash to add.
+	 */
+	public void add (long hash) {
+		long h1 = mix(hash);
+		long h2 = mix(h1) | 1;
+		for ( int i=0; i<hashCount; i++ ) {
+			long bit = ((h1+i*h2) & Long.MAX_VALUE) % bitCount;
+			bits[(int)(bit >>> 6)] |= (1L << bit);
+		}
+	}
+
+	/**
+	 * Indicates if a hash may have been added to this filter.
+	 * @param hash the hash to look for.
+	 * @return false if the hash was certainly not added, true if it may have been added.
+	 */
+	public boolean mightContain (long hash) {
+		long h1 = mix(hash);
+		long h2 = mix(h1) | 1;
+		for ( int i=0; i<hashCount; i++ ) {
+			long bit = ((h1+i*h2) & Long.MAX_VALUE) % bitCount;
+			if (( bits[(int)(bit >>> 6)] & (1L << bit) ) == 0 ) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the number of bits of this filter.
+	 * @return the number of bits.
+	 */
+	public long getBitCount () {
+		return bitCount;
+	}
+
+	/**
+	 * Gets the number of bits set for each hash.
+	 * @return the number of bits set for each hash.
+	 */
+	public int getHashCount () {
+		return hashCount;
+	}
+
+	/**
+	 * Final mix of MurmurHash3: spreads the bits of a value over all the bits of the result.
+	 */
+	private static long mix (long value) {
+		value ^= (value >>> 33);
+		value *= 0xff51afd7ed558ccdL;
+		value ^= (value >>> 33);
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= (value >>> 33);
+		return value;
+	}
+
+}
@@ -20,11 +20,12 @@
 
 package net.sf.okapi.lib.tmdb;
 
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
 
 import net.sf.okapi.common.LocaleId;
 import net.sf.okapi.common.Util;
@@ -38,10 +39,22 @@ public class DbUtil {
 	public static final String SEGKEY_NAME = "SegKey";
 	public static final String FLAG_NAME = "Flag";
 	public static final String TUREF_NAME = "TuRef";
+	/**
+	 * Name of the segment-level field holding the 64-bit hash of the source content
+	 * of the segment (see {@link #computeHash(String...)}).
+	 */
+	public static final String HASH_NAME = "SegHash";
 	
 	public static final String TEXT_PREFIX = ("Text"+LOC_SEP);
 	public static final String CODES_PREFIX = ("Codes"+LOC_SEP);
 
+	/**
+	 * Root names of the attributes that usually have few distinct values (see {@link #isDictionaryField(String)}).
+	 */
+	private static final Set<String> DICTIONARY_FIELDS = new HashSet<String>(Arrays.asList(
+		"creationid", "changeid", "creationtool", "creationtoolversion", "datatype",
+		"segtype", "o-tmf", "o-encoding", "srclang", "adminlang"));
+
 
 	/**
 	 * Page mode for going through the TM.
@@ -104,13 +117,14 @@ public class DbUtil {
 			|| name.equalsIgnoreCase(SEGKEY_NAME)
 			|| name.equalsIgnoreCase(TUREF_NAME)
 			|| name.equalsIgnoreCase(FLAG_NAME)
+			|| name.equalsIgnoreCase(HASH_NAME)
 		); 
 	}
 
 	/**
 	 * Indicates if a given field name is the name of a pre-defined field.
 	 * Pre-defined names are for example: {@link DbUtil#SEGKEY_NAME}, {@link DbUtil#FLAG_NAME},
-	 * {@link DbUtil#TUREF_NAME}, or the prefixes {@link DbUtil#TEXT_PREFIX} and {@link DbUtil#CODES_PREFIX}.
+	 * {@link DbUtil#TUREF_NAME}, {@link DbUtil#HASH_NAME}, or the prefixes {@link DbUtil#TEXT_PREFIX} and {@link DbUtil#CODES_PREFIX}.
 	 * @param name the field name to check.
 	 * @return true if the name is reserved for special fields.
 	 */
@@ -118,10 +132,25 @@ public class DbUtil {
 		return ( name.equals(DbUtil.SEGKEY_NAME)
 			|| name.equals(DbUtil.FLAG_NAME)
 			|| name.equals(DbUtil.TUREF_NAME)
+			|| name.equals(DbUtil.HASH_NAME)
 			|| name.startsWith(DbUtil.TEXT_PREFIX)
 			|| name.startsWith(DbUtil.CODES_PREFIX) );
 	}
 
+	/**
+	 * Indicates if a given field is an attribute with few distinct values, that the repository
+	 * can store as codes of a dictionary.
+	 * <p>Those are the TMX attributes such as <code>creationid</code> or <code>changeid</code>
+	 * (at the unit or the segment level) and the custom properties (names starting with "x-").
+	 * @param name the full name of the field to check.
+	 * @return true if the field can be stored as codes of a dictionary.
+	 */
+	public static boolean isDictionaryField (String name) {
+		if ( isPreDefinedField(name) ) return false;
+		String root = getFieldRoot(name).toLowerCase();
+		return ( DICTIONARY_FIELDS.contains(root) || root.startsWith("x-") );
+	}
+
 	/**
 	 * Gets the locale code of a given field name.
 	 * <p>Note that not all fields without a locale code are text unit level fields.
@@ -168,9 +197,16 @@ public class DbUtil {
 		return name;
 	}
 
-	public static List<LinkedHashMap<String, Object>> resultSetToMaps (IRecordSet rs)
-		throws SQLException
-	{
+	/**
+	 * Gets the SQL string literal for a given text (for example a field name used as a value in a query).
+	 * @param text the text to quote.
+	 * @return the text between single quotes, with its single quotes doubled.
+	 */
+	public static String toSQLString (String text) {
+		return "'"+text.replace("'", "''")+"'";
+	}
+
+	public static List<LinkedHashMap<String, Object>> resultSetToMaps (IRecordSet rs) {
 		List<LinkedHashMap<String, Object>> res = new ArrayList<LinkedHashMap<String, Object>>();
 		
 		LinkedHashMap<String, Object> tuFields = new LinkedHashMap<String, Object>();
@@ -197,6 +233,30 @@ public class DbUtil {
 	    return res;
 	}
 
+	/**
+	 * Computes the 64-bit hash of a list of values (FNV-1a).
+	 * <p>This is used for the {@link #HASH_NAME} field, with the locale code, the text and
+	 * the codes of the source. The value depends on the order of the values, and a null
+	 * value gives the same hash as an empty string.
+	 * @param values the values to hash.
+	 * @return the hash of the values.
+	 */
+	public static long computeHash (String... values) {
+		long hash = 0xcbf29ce484222325L;
+		for ( String value : values ) {
+			if ( value != null ) {
+				for ( int i=0; i<value.length(); i++ ) {
+					hash ^= value.charAt(i);
+					hash *= 0x100000001b3L;
+				}
+			}
+			// Separator, so ("ab", "c") and ("a", "bc") are different
+			hash ^= 0xFFFF;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
 	/**
 	 * Converts the index information stored in the TM from its string format to 
 	 * a list of field names.
@@ -21,7 +21,6 @@
 package net.sf.okapi.lib.tmdb;
 
 import java.io.File;
-import java.sql.SQLException;
 import java.util.List;
 
 import net.sf.okapi.common.LocaleId;
@@ -29,7 +28,6 @@ import net.sf.okapi.common.Util;
 import net.sf.okapi.common.filterwriter.TMXWriter;
 import net.sf.okapi.common.resource.Property;
 import net.sf.okapi.common.resource.TextUnit;
-import net.sf.okapi.lib.tmdb.DbUtil.PageMode;
 
 public class Exporter implements Runnable {
 
@@ -77,10 +75,7 @@ public class Exporter implements Runnable {
 				fields.add(DbUtil.CODES_PREFIX+loc);
 			}
 			
-			tm.setRecordFields(fields);
-			tm.setPageMode(PageMode.ITERATOR);
-		
-			LocaleId srcLoc = DbUtil.fromOlifantLocaleCode(locales.get(0));
+			final LocaleId srcLoc = DbUtil.fromOlifantLocaleCode(locales.get(0));
 			LocaleId trgLoc = srcLoc;
 			
 			//create temporary file
@@ -88,20 +83,18 @@ public class Exporter implements Runnable {
 			
 			writer = new TMXWriter(outFile.getPath());
 			writer.writeStartDocument(srcLoc, trgLoc, getClass().getCanonicalName(), "1", null, null, null);
-			boolean canceled = false;
+			final TMXWriter tmxWriter = writer;
 			
-			IRecordSet rs = tm.getFirstPage();
-			while  (( rs != null ) && !canceled ) {
-				while ( rs.next() && !canceled ) {
+			tm.scan(fields, null, new IRecordConsumer() {
+				@Override
+				public boolean consume (IRecordSet rs) {
 					TextUnit tu = toTextUnit(rs, srcLoc);
 					if ( tu != null ) { // TU is null if the conversion failed
-						writer.writeTUFull(tu);
+						tmxWriter.writeTUFull(tu);
 					}
+					return true;
 				}
-				if ( !canceled ) {
-					rs = tm.getNextPage();
-				}
-			}
+			});
 		}
 		catch ( Throwable e ) {
 			System.out.println("Export failed: "+e);
@@ -131,39 +124,33 @@ public class Exporter implements Runnable {
 				fields.add(DbUtil.CODES_PREFIX+loc);
 			}
 			
-			tm.setRecordFields(fields);
-			tm.setPageMode(PageMode.ITERATOR);
-		
-			LocaleId srcLoc = DbUtil.fromOlifantLocaleCode(locales.get(0));
+			final LocaleId srcLoc = DbUtil.fromOlifantLocaleCode(locales.get(0));
 			LocaleId trgLoc = srcLoc;
 			
 			writer = new TMXWriter(path);
 			writer.writeStartDocument(srcLoc, trgLoc, getClass().getCanonicalName(), "1", null, null, null);
-			boolean canceled = false;
+			final TMXWriter tmxWriter = writer;
 			
-			IRecordSet rs = tm.getFirstPage();
-			while  (( rs != null ) && !canceled ) {
-				while ( rs.next() && !canceled ) {
+			count = tm.scan(fields, null, new IRecordConsumer() {
+				private long count = 0;
+				@Override
+				public boolean consume (IRecordSet rs) {
 					count++;
 					TextUnit tu = toTextUnit(rs, srcLoc);
 					if ( tu != null ) { // TU is null if the conversion failed
-						writer.writeTUFull(tu);
+						tmxWriter.writeTUFull(tu);
 					}
 					// Update UI from time to time
 					if ( (count % 652) == 0 ) {
 						// And check for cancellation
 						if ( !callback.updateProgress(count) ) {
-							if ( !canceled ) {
-								callback.logMessage(1, "Process interrupted by user.");
-								canceled = true;
-							}
+							callback.logMessage(1, "Process interrupted by user.");
+							return false;
 						}
 					}
+					return true;
 				}
-				if ( !canceled ) {
-					rs = tm.getNextPage();
-				}
-			}
+			});
 		}
 		catch ( Throwable e ) {
 			callback.logMessage(IProgressCallback.MSGTYPE_ERROR, e.getMessage());
@@ -179,7 +166,6 @@ public class Exporter implements Runnable {
 
 	private TextUnit toTextUnit (IRecordSet rs,
 		LocaleId srcLoc)
-		throws SQLException 
 	{
 		try {
 			TextUnit tu = new TextUnit(rs.getString(DbUtil.SEGKEY_NAME));
@@ -212,6 +198,9 @@ public class Exporter implements Runnable {
 					else if ( fn.equals(DbUtil.SEGKEY_NAME) ) {
 						// Do nothing
 					}
+					else if ( fn.equals(DbUtil.HASH_NAME) ) {
+						// Do nothing
+					}
 					else if ( fn.startsWith(DbUtil.CODES_PREFIX) || fn.startsWith(DbUtil.TEXT_PREFIX) ) {
 						// Do nothing
 					}
@@ -0,0 +1,102 @@
+/*===========================================================================
+  Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+  This library is free software; you can redistribute it and/or modify it
+  under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation; either version 2.1 of the License, or (at
+  your option) any later version.
+
+  This library is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+  General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this library; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable description of a fuzzy search in a TM index.
+ * <p>A specification can be passed to {@link IIndexAccess#search(FuzzyQuerySpec)} from
+ * several threads at the same time, or run with others by {@link IIndexAccess#searchBatch(java.util.List)}.
+ */
+public final class FuzzyQuerySpec {
+
+	private final String codedText;
+	private final String codesAsString;
+	private final String tmUUID;
+	private final String locale;
+	private final int maxHits;
+	private final int threshold;
+	private final Map<String, String> attributes;
+
+	/**
+	 * Creates a new fuzzy search specification.
+	 * @param codedText the generic text to search for.
+	 * @param codesAsString the codes of the text (can be null).
+	 * @param tmUUID the UUID of the TM to search, or null to search all the TMs of the index.
+	 * @param locale the Olifant locale code of the text.
+	 * @param maxHits the maximum number of hits to return.
+	 * @param threshold the lowest score (between 0 and 100) of the hits.
+	 * @param attributes the attributes the entries must have (can be null).
+	 */
+	public FuzzyQuerySpec (String codedText,
+		String codesAsString,
+		String tmUUID,
+		String locale,
+		int maxHits,
+		int threshold,
+		Map<String, String> attributes)
+	{
+		this.codedText = codedText;
+		this.codesAsString = codesAsString;
+		this.tmUUID = tmUUID;
+		this.locale = locale;
+		this.maxHits = maxHits;
+		this.threshold = threshold;
+		if ( attributes == null ) this.attributes = Collections.emptyMap();
+		else this.attributes = Collections.unmodifiableMap(new HashMap<String, String>(attributes));
+	}
+
+	public String getCodedText () {
+		return codedText;
+	}
+
+	public String getCodesAsString () {
+		return codesAsString;
+	}
+
+	public String getTmUUID () {
+		return tmUUID;
+	}
+
+	public String getLocale () {
+		return locale;
+	}
+
+	public int getMaxHits () {
+		return maxHits;
+	}
+
+	public int getThreshold () {
+		return threshold;
+	}
+
+	/**
+	 * Gets the attributes the entries must have.
+	 * @return the unmodifiable map of the attributes (can be empty).
+	 */
+	public Map<String, String> getAttributes () {
+		return attributes;
+	}
+
+}
@@ -33,6 +33,12 @@ public interface IIndexAccess {
 	
 	public void close ();
 	
+	/**
+	 * Runs a fuzzy search and keeps its hits for {@link #getHits()}.
+	 * <p>The hits are kept per thread.
+	 * @deprecated Use {@link #search(FuzzyQuerySpec)}, which returns the hits.
+	 */
+	@Deprecated
 	public int search (String codedText,
 		String codesAsString,
 		String tmUUID,
@@ -41,8 +47,29 @@ public interface IIndexAccess {
 		int threshold,
 		HashMap<String, String> attributes);
 	
+	/**
+	 * Gets the hits of the last call to {@link #search(String, String, String, String, int, int, HashMap)}
+	 * made by the current thread. The hits are given only once: a second call returns null.
+	 * @deprecated Use {@link #search(FuzzyQuerySpec)}, which returns the hits.
+	 */
+	@Deprecated
 	public List<TmHit> getHits ();
 	
+	/**
+	 * Runs a fuzzy search.
+	 * <p>This method can be called by several threads at the same time.
+	 * @param query the specification of the search.
+	 * @return the list of the hits, best first (can be empty).
+	 */
+	public List<TmHit> search (FuzzyQuerySpec query);
+	
+	/**
+	 * Runs several fuzzy searches in parallel.
+	 * @param queries the specifications of the searches.
+	 * @return the lists of the hits of each search, in the same order as the queries.
+	 */
+	public List<List<TmHit>> searchBatch (List<FuzzyQuerySpec> queries);
+	
 	public Writer getWriter ();
 
 	public void deleteTMIndex (String uuid);
@@ -0,0 +1,44 @@
+/*===========================================================================
+  Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+  This library is free software; you can redistribute it and/or modify it 
+  under the terms of the GNU Lesser General Public License as published by 
+  the Free Software Foundation; either version 2.1 of the License, or (at 
+  your option) any later version.
+
+  This library is distributed in the hope that it will be useful, but 
+  WITHOUT ANY WARRANTY; without even the implied warranty of 
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser 
+  General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License 
+  along with this library; if not, write to the Free Software Foundation, 
+  Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb;
+
+import java.util.List;
+
+import net.sf.okapi.lib.tmdb.filter.FilterNode;
+
+/**
+ * Receives the records read by {@link ITm#scan(List, FilterNode, IRecordConsumer)}.
+ * <p>The sequential scan calls {@link #consume(IRecordSet)} from the calling thread, one record
+ * at a time. The partitioned scan ({@link ITm#scan(List, FilterNode, IRecordConsumer, int)})
+ * calls it from several threads at the same time: a consumer passed to that scan must be
+ * thread-safe.
+ */
+public interface IRecordConsumer {
+
+	/**
+	 * Processes one record.
+	 * @param record the record set positioned on the record to process.
+	 * The cursor must not be moved by this method.
+	 * @return true to continue the scan, false to stop it.
+	 */
+	public boolean consume (IRecordSet record);
+
+}
@@ -59,6 +59,25 @@ public interface IRepository {
 		String description,
 		String localeCode);
 	
+	/**
+	 * Creates a new TM, with the option of storing its text and codes fields compressed.
+	 * <p>Compression makes the TM smaller on disk at the cost of expanding the values
+	 * when they are read, filtered or sorted. The option is set for the life of the TM.
+	 * Repositories that do not support compression ignore it.
+	 * If a TM with the same name already exists, no new TM is created and the existing TM
+	 * is used (with its own option).
+	 * @param tmName the name of the new TM to create.
+	 * @param description the description for the new TM.
+	 * @param localeCode the locale code of the initial language.
+	 * @param compressText true to store the text and codes fields compressed.
+	 * @return the ITm object for the newly created TM or the already existing TM,
+	 * or null if the TM was not created.
+	 */
+	public ITm createTm (String tmName,
+		String description,
+		String localeCode,
+		boolean compressText);
+	
 	/**
 	 * Deletes a given TM from this repository.
 	 * If there is no TM with such name in the repository, nothing happens.
@@ -110,4 +129,12 @@ public interface IRepository {
 	 */
 	public IIndexAccess getIndexAccess ();
 	
+	/**
+	 * Gets the cache of the pages of the TMs in this repository.
+	 * <p>The cache is disabled by default when the repository is shared, as the
+	 * modifications made by other users are not tracked.
+	 * @return the page cache for this repository (never null).
+	 */
+	public PageCache getPageCache ();
+	
 }
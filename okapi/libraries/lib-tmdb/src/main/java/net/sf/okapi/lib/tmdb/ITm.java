@@ -134,6 +134,10 @@ public interface ITm {
 	 * Prepares the system to import a set of new entries.
 	 * This method must be called before calling {@link #addRecord(long, Map, Map)}.
 	 * You must call {@link #finishImport()} to terminate the batch of import.
+	 * <p>An import is not guaranteed to be atomic: depending on the implementation, the
+	 * records can be committed one by one or in several steps (for example when a new field
+	 * requires a change of the tables). If the import fails, the records committed before
+	 * the failure stay in the TM.
 	 * @see #finishImport()
 	 * @see #addRecord(long, Map, Map)
 	 */
@@ -180,8 +184,9 @@ public interface ITm {
 	 * If after this deletion, the TU-level entries that have no more attached segment 
 	 * it are deleted automatically too.
 	 * @param segKeys the keys of the segments to remove.
+	 * @return the number of segments removed.
 	 */
-	public void deleteSegments (List<Long> segKeys);
+	public long deleteSegments (List<Long> segKeys);
 
 	/**
 	 * Sets the number of records a call to a paging method should return.
@@ -371,4 +376,80 @@ public interface ITm {
 	 * @return the repository where this TM is stored.
 	 */
 	public IRepository getRepository ();
+	
+	/**
+	 * Reads sequentially all the records of this TM that match a given filter.
+	 * <p>This is the method to use to process a whole TM (export, indexing, etc.): the records
+	 * are read in a single forward-only pass, in the order of their SegKey values, and independently
+	 * of the current paging, sort order and filter of this TM.
+	 * <p>As in the record sets of the paging methods, the first field is the SegKey and the second
+	 * is the Flag. The requested fields come after those two first fields.
+	 * @param fields the list of the fields to read (can be null).
+	 * @param filter the filter to apply, or null to read all the records.
+	 * @param consumer the object that processes each record.
+	 * @return the number of records passed to the consumer.
+	 */
+	public long scan (List<String> fields,
+		FilterNode filter,
+		IRecordConsumer consumer);
+	
+	/**
+	 * Reads all the records of this TM that match a given filter, using several threads.
+	 * <p>The TM is split into partitions of contiguous SegKey values that are read at the same
+	 * time, each by its own thread. This is meant for the processes that do not need the records
+	 * in a global order (indexing, statistics, etc.).
+	 * <p>The consumer is called from the different threads at the same time: it must be
+	 * thread-safe. Each thread passes its own record set, and the records of a given partition
+	 * come in the order of their SegKey values. If the consumer returns false, the scan stops
+	 * in all the partitions.
+	 * <p>The fields are the same as for {@link #scan(List, FilterNode, IRecordConsumer)}.
+	 * Implementations that cannot read in parallel (or this TM while a transaction is open)
+	 * do a single sequential scan.
+	 * @param fields the list of the fields to read (can be null).
+	 * @param filter the filter to apply, or null to read all the records.
+	 * @param consumer the thread-safe object that processes each record.
+	 * @param partitionCount the maximum number of partitions (and threads) to use,
+	 * or 0 to use the number of available processors.
+	 * @return the number of records passed to the consumer.
+	 */
+	public long scan (List<String> fields,
+		FilterNode filter,
+		IRecordConsumer consumer,
+		int partitionCount);
+	
+	/**
+	 * Gets the distinct values of a given field, for example to let the user pick a value
+	 * for a filter.
+	 * <p>This is meant for attribute fields: the values of the text fields are rarely repeated.
+	 * @param fieldName the full name of the field. It must exist in this TM.
+	 * @return the sorted list of the distinct non-null values of the field (can be empty).
+	 */
+	public List<String> getFieldValues (String fieldName);
+	
+	/**
+	 * Gets the segments that have a given value in their {@link DbUtil#HASH_NAME} field.
+	 * <p>The hash field is indexed: this is meant for the detection of duplicates during imports.
+	 * Segments added without a hash are never returned.
+	 * <p>As in the record sets of the paging methods, the first field is the SegKey and the second
+	 * is the Flag. The requested fields come after those two first fields.
+	 * @param hash the hash to look for.
+	 * @param fields the list of the fields to read (can be null). They must exist in this TM.
+	 * @return the segments found, in the order of their SegKey values (the set can be empty).
+	 */
+	public IRecordSet getSegmentsByHash (long hash,
+		List<String> fields);
+	
+	/**
+	 * Gets one page of the records selected by a given query.
+	 * <p>This method does not use nor change the current paging, sort order and filter of this
+	 * TM: it can be called by several threads at the same time on the same TM object, each with
+	 * its own query. The pages are cut as described in {@link #setPageMode(PageMode)}.
+	 * <p>As in the record sets of the paging methods, the first field is the SegKey and the second
+	 * is the Flag. The fields of the query come after those two first fields.
+	 * @param query the query selecting the records.
+	 * @param pageIndex the 0-based index of the page to get.
+	 * @return the detached records of the page, or null if there is no such page.
+	 */
+	public IRecordSet fetch (TmQuery query,
+		long pageIndex);
 }
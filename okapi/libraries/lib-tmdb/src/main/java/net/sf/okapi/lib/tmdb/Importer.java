@@ -20,10 +20,15 @@
 
 package net.sf.okapi.lib.tmdb;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import net.sf.okapi.common.Event;
 import net.sf.okapi.common.LocaleId;
+import net.sf.okapi.common.Util;
 import net.sf.okapi.common.filters.IFilter;
 import net.sf.okapi.common.filters.IFilterConfigurationMapper;
 import net.sf.okapi.common.resource.ISegments;
@@ -35,11 +40,44 @@ import net.sf.okapi.lib.tmdb.ITm;
 
 public class Importer implements Runnable {
 
+	/**
+	 * How the imported entries that have the same source as an existing segment are processed.
+	 * <p>The duplicates are detected with the {@link DbUtil#HASH_NAME} field: only the
+	 * segments imported with a hash can be found.
+	 */
+	public enum DuplicateMode {
+		/**
+		 * All entries are imported (no check).
+		 */
+		KEEP_ALL,
+		/**
+		 * Entries with the same source and the same targets as an existing segment are skipped.
+		 */
+		SKIP_IDENTICAL,
+		/**
+		 * The targets of the existing segment with the same source are replaced by the new ones.
+		 */
+		OVERWRITE_TARGET,
+		/**
+		 * Same as {@link #OVERWRITE_TARGET} if the new entry has a more recent date
+		 * than the existing segment, otherwise the new entry is skipped.
+		 */
+		KEEP_NEWEST
+	}
+	
+	private static final String CHANGEDATE = "changedate";
+	private static final String CREATIONDATE = "creationdate";
+	private static final double BLOOM_FALSEPOSITIVES = 0.01;
+	
 	private final IProgressCallback callback;
 	private final ITm tm;
 	private final RawDocument rd;
 	private final IFilterConfigurationMapper fcMapper;
 	private final ContentFormat cntFmt = new ContentFormat();
+	private DuplicateMode duplicateMode = DuplicateMode.KEEP_ALL;
+	private BloomFilter hashes;
+	private long skippedCount;
+	private long overwrittenCount;
 	
 	public Importer (IProgressCallback progressCallback,
 		ITm tm,
@@ -52,6 +90,38 @@ public class Importer implements Runnable {
 		this.fcMapper = fcMapper;
 	}
 	
+	/**
+	 * Sets how the entries that have the same source as an existing segment are processed.
+	 * @param duplicateMode the mode to use (the default is {@link DuplicateMode#KEEP_ALL}).
+	 */
+	public void setDuplicateMode (DuplicateMode duplicateMode) {
+		this.duplicateMode = duplicateMode;
+	}
+	
+	/**
+	 * Gets how the entries that have the same source as an existing segment are processed.
+	 * @return the current mode.
+	 */
+	public DuplicateMode getDuplicateMode () {
+		return duplicateMode;
+	}
+	
+	/**
+	 * Gets the number of entries skipped as duplicates by the last import.
+	 * @return the number of entries skipped.
+	 */
+	public long getSkippedCount () {
+		return skippedCount;
+	}
+	
+	/**
+	 * Gets the number of existing segments whose targets were replaced by the last import.
+	 * @return the number of segments overwritten.
+	 */
+	public long getOverwrittenCount () {
+		return overwrittenCount;
+	}
+	
 	/**
 	 * Temporary server-side alternative until we decide on a callback alternative
 	 */
@@ -70,9 +140,8 @@ public class Importer implements Runnable {
 			String[] trgFields;
 			String srcDbLang = DbUtil.toOlifantLocaleCode(rd.getSourceLocale());
 
-//TODO: implement check for duplicates
 //TODO: implement filter for fields
-			tm.startImport();
+			startImport();
 			while ( filter.hasNext() && !canceled ) {
 				Event event = filter.next();
 				if ( !event.isTextUnit() ) continue;
@@ -139,7 +208,7 @@ public class Importer implements Runnable {
 					// Add the record to the database
 					map.putAll(mapSrcProp);
 					map.putAll(mapTrgProp);
-					tuKey = tm.addRecord(tuKey, mapTUProp, map);
+					tuKey = importRecord(tuKey, mapTUProp, map, srcDbLang);
 				}
 			}
 		}
@@ -173,9 +242,8 @@ public class Importer implements Runnable {
 			String[] trgFields;
 			String srcDbLang = DbUtil.toOlifantLocaleCode(rd.getSourceLocale());
 
-//TODO: implement check for duplicates
 //TODO: implement filter for fields
-			tm.startImport();
+			startImport();
 			while ( filter.hasNext() && !canceled ) {
 				Event event = filter.next();
 				if ( !event.isTextUnit() ) continue;
@@ -242,7 +310,7 @@ public class Importer implements Runnable {
 					// Add the record to the database
 					map.putAll(mapSrcProp);
 					map.putAll(mapTrgProp);
-					tuKey = tm.addRecord(tuKey, mapTUProp, map);
+					tuKey = importRecord(tuKey, mapTUProp, map, srcDbLang);
 					// Update UI from time to time
 					if ( (++count % 452) == 0 ) {
 						// And check for cancellation
@@ -262,11 +330,193 @@ public class Importer implements Runnable {
 		finally {
 			// Final update (includes notifying the observers that we are done)
 			tm.finishImport();
+			hashes = null;
 			if ( filter != null ) {
 				filter.close();
 			}
+			if ( duplicateMode != DuplicateMode.KEEP_ALL ) {
+				callback.logMessage(IProgressCallback.MSGTYPE_INFO, String.format(
+					"Duplicates skipped: %d, segments overwritten: %d.", skippedCount, overwrittenCount));
+			}
 			callback.endProcess(count, false);
 		}
 	}
+	
+	/**
+	 * Starts the import in the TM.
+	 * <p>If duplicates are checked, the hashes of the existing segments are loaded into
+	 * a Bloom filter first: most of the new entries are then known to be new without
+	 * any query to the database.
+	 */
+	private void startImport () {
+		skippedCount = overwrittenCount = 0;
+		hashes = null;
+		if ( duplicateMode != DuplicateMode.KEEP_ALL ) {
+			// Room for the existing segments and as many new ones
+			hashes = new BloomFilter(2*tm.getTotalSegmentCount()+10000, BLOOM_FALSEPOSITIVES);
+			if ( tm.getAvailableFields().contains(DbUtil.HASH_NAME) ) {
+				final BloomFilter bloom = hashes;
+				tm.scan(Collections.singletonList(DbUtil.HASH_NAME), null, new IRecordConsumer() {
+					@Override
+					public boolean consume (IRecordSet rs) {
+						Object value = rs.getObject(DbUtil.HASH_NAME);
+						if ( value != null ) bloom.add(((Number)value).longValue());
+						return true;
+					}
+				});
+			}
+		}
+		tm.startImport();
+	}
+	
+	/**
+	 * Imports one record, checking for duplicates if requested.
+	 * <p>The hash of the source is always stored, so the next imports can check for duplicates.
+	 * @param tuKey the TU key (-1 for a new TU).
+	 * @param tuFields the TU-level fields.
+	 * @param segFields the segment-level fields.
+	 * @param srcDbLang the source locale code.
+	 * @return the TU key to use for the next record of the same TU (-1 if none was added yet).
+	 */
+	private long importRecord (long tuKey,
+		Map<String, Object> tuFields,
+		Map<String, Object> segFields,
+		String srcDbLang)
+	{
+		long hash = DbUtil.computeHash(srcDbLang,
+			(String)segFields.get(DbUtil.TEXT_PREFIX+srcDbLang),
+			(String)segFields.get(DbUtil.CODES_PREFIX+srcDbLang));
+		segFields.put(DbUtil.HASH_NAME, hash);
+		if (( hashes != null ) && hashes.mightContain(hash) ) {
+			if ( processDuplicate(hash, tuFields, segFields, srcDbLang) ) return tuKey;
+		}
+		tuKey = tm.addRecord(tuKey, tuFields, segFields);
+		if ( hashes != null ) hashes.add(hash);
+		return tuKey;
+	}
+	
+	/**
+	 * Looks for the existing segments with the same source as a new entry, and processes
+	 * the entry according the duplicate mode.
+	 * @param hash the hash of the source of the new entry.
+	 * @param tuFields the TU-level fields of the new entry.
+	 * @param segFields the segment-level fields of the new entry.
+	 * @param srcDbLang the source locale code.
+	 * @return true if the entry has been processed (skipped or written over an existing segment),
+	 * false if it must be added.
+	 */
+	private boolean processDuplicate (long hash,
+		Map<String, Object> tuFields,
+		Map<String, Object> segFields,
+		String srcDbLang)
+	{
+		List<String> available = tm.getAvailableFields();
+		ArrayList<String> fields = new ArrayList<String>();
+		for ( String fn : segFields.keySet() ) {
+			if ( fn.startsWith(DbUtil.TEXT_PREFIX) || fn.startsWith(DbUtil.CODES_PREFIX) ) {
+				if ( available.contains(fn) ) fields.add(fn);
+			}
+		}
+		if ( duplicateMode == DuplicateMode.KEEP_NEWEST ) {
+			if ( available.contains(CHANGEDATE) ) fields.add(CHANGEDATE);
+			if ( available.contains(CREATIONDATE) ) fields.add(CREATIONDATE);
+		}
+		
+		IRecordSet rs = tm.getSegmentsByHash(hash, fields);
+		while ( rs.next() ) {
+			// Verify the source (different sources can have the same hash)
+			if ( !sameValue(rs, segFields, DbUtil.TEXT_PREFIX+srcDbLang, fields)
+				|| !sameValue(rs, segFields, DbUtil.CODES_PREFIX+srcDbLang, fields) ) continue;
+			
+			switch ( duplicateMode ) {
+			case SKIP_IDENTICAL:
+				boolean identical = true;
+				for ( String fn : segFields.keySet() ) {
+					if ( fn.startsWith(DbUtil.TEXT_PREFIX) || fn.startsWith(DbUtil.CODES_PREFIX) ) {
+						if ( !sameValue(rs, segFields, fn, fields) ) {
+							identical = false;
+							break;
+						}
+					}
+				}
+				if ( identical ) {
+					skippedCount++;
+					return true;
+				}
+				break; // Try the next segment with the same source
+			case KEEP_NEWEST:
+				String newDate = getDate(tuFields);
+				String oldDate = getDate(rs, fields);
+				// Keep the existing segment if the new entry is not known to be more recent
+				if (( newDate == null ) || (( oldDate != null ) && ( newDate.compareTo(oldDate) <= 0 ))) {
+					skippedCount++;
+					return true;
+				}
+				return overwrite(rs.getSegKey(), segFields, srcDbLang, available);
+			case OVERWRITE_TARGET:
+				return overwrite(rs.getSegKey(), segFields, srcDbLang, available);
+			default:
+				return false;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Replaces the targets and the target properties of an existing segment.
+	 * @param segKey the key of the segment to update.
+	 * @param segFields the segment-level fields of the new entry.
+	 * @param srcDbLang the source locale code.
+	 * @param available the fields existing in the TM.
+	 * @return true if the segment was updated, false if it cannot be (the new entry has
+	 * fields that do not exist yet in the TM) and the entry must be added instead.
+	 */
+	private boolean overwrite (long segKey,
+		Map<String, Object> segFields,
+		String srcDbLang,
+		List<String> available)
+	{
+		LinkedHashMap<String, Object> update = new LinkedHashMap<String, Object>();
+		for ( Map.Entry<String, Object> entry : segFields.entrySet() ) {
+			String fn = entry.getKey();
+			if ( srcDbLang.equals(DbUtil.getFieldLocale(fn)) ) continue; // Same source
+			if ( fn.equals(DbUtil.HASH_NAME) || fn.equals(DbUtil.FLAG_NAME) ) continue;
+			// Fields cannot be created by an update
+			if ( !available.contains(fn) ) return false;
+			update.put(fn, entry.getValue());
+		}
+		if ( !update.isEmpty() ) {
+			tm.updateRecord(segKey, null, update);
+		}
+		overwrittenCount++;
+		return true;
+	}
+	
+	private boolean sameValue (IRecordSet rs,
+		Map<String, Object> segFields,
+		String fieldName,
+		List<String> fields)
+	{
+		Object value = segFields.get(fieldName);
+		String oldValue = (fields.contains(fieldName) ? rs.getString(fieldName) : null);
+		// Null and empty are the same (e.g. no codes)
+		if ( Util.isEmpty(oldValue) ) return Util.isEmpty((String)value);
+		return oldValue.equals(value);
+	}
+	
+	private String getDate (Map<String, Object> tuFields) {
+		Object value = tuFields.get(CHANGEDATE);
+		if ( value == null ) value = tuFields.get(CREATIONDATE);
+		return (value == null) ? null : value.toString();
+	}
+	
+	private String getDate (IRecordSet rs,
+		List<String> fields)
+	{
+		String value = null;
+		if ( fields.contains(CHANGEDATE) ) value = rs.getString(CHANGEDATE);
+		if (( value == null ) && fields.contains(CREATIONDATE) ) value = rs.getString(CREATIONDATE);
+		return value;
+	}
 
 }
@@ -21,10 +21,10 @@
 package net.sf.okapi.lib.tmdb;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.sf.okapi.lib.tmdb.IProgressCallback;
 import net.sf.okapi.lib.tmdb.ITm;
-import net.sf.okapi.lib.tmdb.DbUtil.PageMode;
 import net.sf.okapi.lib.tmdb.lucene.TmEntry;
 import net.sf.okapi.lib.tmdb.lucene.Variant;
 import net.sf.okapi.lib.tmdb.lucene.Writer;
@@ -60,7 +60,6 @@ public class Indexer implements Runnable {
 	public void run () {
 		long totalCount = 0;
 		ITm tm = null;
-		boolean canceled = false;
 		IIndexAccess ia = null;
 		
 		try {
@@ -69,19 +68,21 @@ public class Indexer implements Runnable {
 			// Get the original TM and set it for iteration
 			tm = repo.openTm(tmName);
 			
-			// Set the list of the fields to fetch from the database
-			tm.setRecordFields(fields);
-			tm.setPageMode(PageMode.ITERATOR);
-
 			ia = repo.getIndexAccess();
-			Writer writer = ia.getWriter();
+			final Writer writer = ia.getWriter();
+			final String tmUUID = tm.getUUID();
 			
-			IRecordSet rs = tm.getFirstPage();
-			while  (( rs != null ) && !canceled ) {
-				while ( rs.next() && !canceled ) {
-					totalCount++;
+			// Read all the entries with the fields to index
+			// (in parallel: the order of the entries does not matter for the index)
+			// The consumer is called by several threads at the same time: the count is atomic,
+			// the writer is thread-safe, and the callback is used by one thread at a time
+			totalCount = tm.scan(fields, null, new IRecordConsumer() {
+				private final AtomicLong count = new AtomicLong();
+				@Override
+				public boolean consume (IRecordSet rs) {
+					long n = count.incrementAndGet();
 					// Create the entry
-					TmEntry entry = new TmEntry(String.valueOf(rs.getSegKey()), tm.getUUID());
+					TmEntry entry = new TmEntry(String.valueOf(rs.getSegKey()), tmUUID);
 					// Add the fields to index and attributes to store
 					for ( String fn : fields ) {
 						if ( fn.startsWith(DbUtil.TEXT_PREFIX) ) {
@@ -96,20 +97,18 @@ public class Indexer implements Runnable {
 				    writer.index(entry);
 					
 					// Update UI from time to time
-					if ( (totalCount % 652) == 0 ) {
-						// And check for cancellation
-						if ( !callback.updateProgress(totalCount) ) {
-							if ( !canceled ) {
+					if ( (n % 652) == 0 ) {
+						// And check for cancellation (one thread at a time)
+						synchronized ( callback ) {
+							if ( !callback.updateProgress(n) ) {
 								callback.logMessage(1, "Process interrupted by user.");
-								canceled = true;
+								return false;
 							}
 						}
 					}
+					return true;
 				}
-				if ( !canceled ) {
-					rs = tm.getNextPage();
-				}
-			}
+			}, 0);
 			writer.commit();
 			
 			// Now: update the index information in the TM database
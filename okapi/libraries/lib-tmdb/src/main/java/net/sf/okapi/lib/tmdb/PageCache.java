@@ -0,0 +1,235 @@
+/*===========================================================================
+  Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+  This library is free software; you can redistribute it and/or modify it
+  under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation; either version 2.1 of the License, or (at
+  your option) any later version.
+
+  This library is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+  General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this library; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Least-recently-used cache of the pages of the TMs of a repository, bounded by
+ * the estimated memory size of the pages.
+ * <p>Each TM has a modification version that is part of the key of its pages: any
+ * change to the entries of a TM must call {@link #modified(String)}, after that the
+ * pages cached for the previous version are not returned anymore. They are not
+ * removed right away (so the call stays cheap during imports), but as they are not
+ * used anymore they are the first to be evicted.
+ * <p>The version must be read with {@link #getVersion(String)} before running the query
+ * of a page, and given to {@link #put(String, long, String, long, RecordPage)}: a page read
+ * while the TM was modified is not stored.
+ * <p>The methods of this class are thread-safe.
+ */
+public class PageCache {
+
+	/**
+	 * Default maximum size of the cache (in bytes).
+	 */
+	public static final long DEFAULT_MAXSIZE = 16*1024*1024;
+
+	private final LinkedHashMap<String, RecordPage> pages;
+	private final HashMap<String, Long> versions;
+	private long maxSize;
+	private long size;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * Creates a new cache.
+	 * @param maxSize the maximum size of the cache in bytes (0 to disable the cache).
+	 */
+	public PageCache (long maxSize) {
+		pages = new LinkedHashMap<String, RecordPage>(64, 0.75f, true); // Access order
+		versions = new HashMap<String, Long>();
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Sets the maximum size of the cache. Pages are evicted if needed.
+	 * @param maxSize the new maximum size in bytes (0 to disable the cache).
+	 */
+	public synchronized void setMaxSize (long maxSize) {
+		this.maxSize = maxSize;
+		evict();
+	}
+
+	/**
+	 * Gets the maximum size of the cache.
+	 * @return the maximum size of the cache in bytes.
+	 */
+	public synchronized long getMaxSize () {
+		return maxSize;
+	}
+
+	/**
+	 * Indicates if this cache is enabled.
+	 * @return true if pages can be stored in this cache.
+	 */
+	public synchronized boolean isEnabled () {
+		return ( maxSize > 0 );
+	}
+
+	/**
+	 * Gets a page from the cache.
+	 * @param tmId the UUID of the TM.
+	 * @param view the string identifying the fields, filter, sort order, page mode and
+	 * page size of the selection.
+	 * @param pageIndex the index of the page.
+	 * @return a new record set for the cached page, or null if the page is not in the cache.
+	 */
+	public synchronized RecordPage get (String tmId,
+		String view,
+		long pageIndex)
+	{
+		if ( maxSize <= 0 ) return null;
+		RecordPage page = pages.get(makeKey(tmId, getVersion(tmId), view, pageIndex));
+		if ( page == null ) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		return page.duplicate();
+	}
+
+	/**
+	 * Stores a page in the cache, unless the TM was modified since the page was read.
+	 * The page must not be modified after this call.
+	 * @param tmId the UUID of the TM.
+	 * @param version the version of the TM read before the query of the page (see {@link #getVersion(String)}).
+	 * @param view the string identifying the selection (see {@link #get(String, String, long)}).
+	 * @param pageIndex the index of the page.
+	 * @param page the page to store.
+	 */
+	public synchronized void put (String tmId,
+		long version,
+		String view,
+		long pageIndex,
+		RecordPage page)
+	{
+		// The page may miss changes made during its query
+		if ( version != getVersion(tmId) ) return;
+		long pageSize = page.getMemorySize();
+		if ( pageSize > maxSize ) return; // Too big, or cache disabled
+		RecordPage old = pages.put(makeKey(tmId, version, view, pageIndex), page);
+		if ( old != null ) size -= old.getMemorySize();
+		size += pageSize;
+		evict();
+	}
+
+	/**
+	 * Indicates that the entries of a given TM have been modified.
+	 * The pages cached for that TM before this call are not returned anymore.
+	 * @param tmId the UUID of the TM.
+	 */
+	public synchronized void modified (String tmId) {
+		Long version = versions.get(tmId);
+		versions.put(tmId, (version == null) ? 1L : version+1);
+	}
+
+	/**
+	 * Gets the modification version of a given TM.
+	 * @param tmId the UUID of the TM.
+	 * @return the number of times the TM was modified since this cache was created.
+	 */
+	public synchronized long getVersion (String tmId) {
+		Long version = versions.get(tmId);
+		return (version == null) ? 0 : version;
+	}
+
+	/**
+	 * Removes all the pages from the cache. The statistics are not reset.
+	 */
+	public synchronized void clear () {
+		pages.clear();
+		size = 0;
+	}
+
+	/**
+	 * Gets the current estimated size of the pages in the cache.
+	 * @return the size in bytes.
+	 */
+	public synchronized long getSize () {
+		return size;
+	}
+
+	/**
+	 * Gets the number of pages in the cache.
+	 * @return the number of pages in the cache.
+	 */
+	public synchronized int getPageCount () {
+		return pages.size();
+	}
+
+	/**
+	 * Gets the number of calls to {@link #get(String, String, long)} that returned a page.
+	 * @return the number of hits.
+	 */
+	public synchronized long getHitCount () {
+		return hitCount;
+	}
+
+	/**
+	 * Gets the number of calls to {@link #get(String, String, long)} that returned null.
+	 * @return the number of misses.
+	 */
+	public synchronized long getMissCount () {
+		return missCount;
+	}
+
+	/**
+	 * Gets the number of pages removed to keep the cache under its maximum size.
+	 * @return the number of evictions.
+	 */
+	public synchronized long getEvictionCount () {
+		return evictionCount;
+	}
+
+	/**
+	 * Resets the hit, miss and eviction counters.
+	 */
+	public synchronized void resetStatistics () {
+		hitCount = missCount = evictionCount = 0;
+	}
+
+	@Override
+	public synchronized String toString () {
+		return String.format("pages=%d, size=%d/%d, hits=%d, misses=%d, evictions=%d",
+			pages.size(), size, maxSize, hitCount, missCount, evictionCount);
+	}
+
+	private String makeKey (String tmId,
+		long version,
+		String view,
+		long pageIndex)
+	{
+		return tmId+"\n"+version+"\n"+pageIndex+"\n"+view;
+	}
+
+	private void evict () {
+		Iterator<RecordPage> iter = pages.values().iterator();
+		while (( size > maxSize ) && iter.hasNext() ) {
+			size -= iter.next().getMemorySize();
+			iter.remove();
+			evictionCount++;
+		}
+	}
+
+}
@@ -0,0 +1,318 @@
+/*===========================================================================
+  Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+  This library is free software; you can redistribute it and/or modify it
+  under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation; either version 2.1 of the License, or (at
+  your option) any later version.
+
+  This library is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+  General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this library; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+import net.sf.okapi.common.exceptions.OkapiIOException;
+
+/**
+ * Detached page of entries, stored by columns.
+ * <p>The page does not hold any database resource: the values are copied when
+ * the page is filled and the underlying cursor can be closed right away.
+ * The segment keys are stored in a long array, the flags in a bit set and the
+ * other fields in one array per column. The field names are resolved to ordinals
+ * only once per page.
+ * <p>The data of a page are not modified once it is filled, so several cursors
+ * can share them (see {@link #duplicate()}).
+ * <p>A value can be stored encoded (see {@link IEncodedValue}): it is then decoded
+ * only when it is read.
+ */
+public class RecordPage implements IRecordSet {
+
+	/**
+	 * Value stored in an encoded form (e.g. compressed) and decoded when it is read.
+	 */
+	public interface IEncodedValue {
+
+		/**
+		 * Decodes this value.
+		 * @return the decoded value (can be null).
+		 */
+		public Object decode ();
+
+		/**
+		 * Gets the size of the encoded data.
+		 * @return the size of the encoded data in bytes.
+		 */
+		public int getEncodedSize ();
+
+	}
+
+	private final String[] names;
+	private final HashMap<String, Integer> ordinals;
+	private final int tuRefIndex;
+
+	private long[] segKeys;
+	private BitSet flags;
+	private Object[][] columns;
+	private int size;
+	private int row = -1;
+	private long memorySize = -1;
+
+	/**
+	 * Creates a new empty page.
+	 * @param fieldNames the names of all the fields of the page. The first field must be
+	 * the segment key and the second must be the flag.
+	 * @param capacity the expected number of entries.
+	 */
+	public RecordPage (List<String> fieldNames,
+		int capacity)
+	{
+		if ( fieldNames.size() < 2 ) {
+			throw new IllegalArgumentException("The segment key and the flag fields are required.");
+		}
+		if ( capacity < 1 ) capacity = 1;
+		names = fieldNames.toArray(new String[fieldNames.size()]);
+		ordinals = new HashMap<String, Integer>();
+		for ( int i=names.length-1; i>=0; i-- ) {
+			ordinals.put(names[i], i+1); // First occurrence wins
+		}
+		Integer tmp = ordinals.get(DbUtil.TUREF_NAME);
+		tuRefIndex = (tmp == null) ? -1 : tmp;
+
+		segKeys = new long[capacity];
+		flags = new BitSet(capacity);
+		columns = new Object[names.length-2][];
+		for ( int i=0; i<columns.length; i++ ) {
+			columns[i] = new Object[capacity];
+		}
+	}
+
+	/**
+	 * Creates a new cursor on the data of a given page.
+	 * @param source the page to share.
+	 */
+	private RecordPage (RecordPage source) {
+		names = source.names;
+		ordinals = source.ordinals;
+		tuRefIndex = source.tuRefIndex;
+		segKeys = source.segKeys;
+		flags = source.flags;
+		columns = source.columns;
+		size = source.size;
+		memorySize = source.memorySize;
+	}
+
+	/**
+	 * Creates a new record set with its own cursor on the data of this page.
+	 * @return a new record set positioned before its first entry.
+	 */
+	public RecordPage duplicate () {
+		return new RecordPage(this);
+	}
+
+	/**
+	 * Adds a new entry at the end of this page.
+	 * <p>The values of the other fields are set with {@link #setValue(int, Object)}.
+	 * @param segKey the segment key of the entry.
+	 * @param flag the flag of the entry.
+	 */
+	public void addRecord (long segKey,
+		boolean flag)
+	{
+		if ( size == segKeys.length ) {
+			int capacity = size*2;
+			long[] tmp = new long[capacity];
+			System.arraycopy(segKeys, 0, tmp, 0, size);
+			segKeys = tmp;
+			for ( int i=0; i<columns.length; i++ ) {
+				Object[] values = new Object[capacity];
+				System.arraycopy(columns[i], 0, values, 0, size);
+				columns[i] = values;
+			}
+		}
+		segKeys[size] = segKey;
+		if ( flag ) flags.set(size);
+		size++;
+		memorySize = -1;
+	}
+
+	/**
+	 * Sets the value of a field for the last entry added.
+	 * @param index the index of the field: the first field after the flag is 3.
+	 * @param value the value to set (can be null, or an {@link IEncodedValue}).
+	 */
+	public void setValue (int index,
+		Object value)
+	{
+		columns[index-3][size-1] = value;
+	}
+
+	/**
+	 * Gets the number of entries in this page.
+	 * @return the number of entries in this page.
+	 */
+	public int getSize () {
+		return size;
+	}
+
+	/**
+	 * Gets an estimate of the memory used by the data of this page.
+	 * @return the estimated size in bytes.
+	 */
+	public long getMemorySize () {
+		if ( memorySize > -1 ) return memorySize;
+		long total = 64 + (8L*segKeys.length) + (segKeys.length/8);
+		for ( Object[] values : columns ) {
+			total += 16 + (8L*values.length);
+			for ( int i=0; i<size; i++ ) {
+				Object value = values[i];
+				if ( value == null ) continue;
+				if ( value instanceof String ) total += 40 + (2L*((String)value).length());
+				else if ( value instanceof IEncodedValue ) total += 40 + ((IEncodedValue)value).getEncodedSize();
+				else total += 16;
+			}
+		}
+		memorySize = total;
+		return total;
+	}
+
+	/**
+	 * Moves the cursor before the first entry of this page.
+	 */
+	public void beforeFirst () {
+		row = -1;
+	}
+
+	/**
+	 * Gets the value of a field for a given entry, independently of the cursor.
+	 * @param rowIndex the zero-based index of the entry.
+	 * @param index the index of the field: the first column is 1, the second is 2
+	 * @return the value (can be null).
+	 */
+	public Object getValue (int rowIndex,
+		int index)
+	{
+		if (( rowIndex < 0 ) || ( rowIndex >= size )) {
+			throw new OkapiIOException(String.format("Invalid entry index %d.", rowIndex));
+		}
+		switch ( index ) {
+		case ITm.SEGKEY_FIELD:
+			return segKeys[rowIndex];
+		case ITm.FLAG_FIELD:
+			return flags.get(rowIndex);
+		default:
+			if (( index < 1 ) || ( index > names.length )) {
+				throw new OkapiIOException(String.format("Can't read column '%d'.", index));
+			}
+			Object value = columns[index-3][rowIndex];
+			if ( value instanceof IEncodedValue ) return ((IEncodedValue)value).decode();
+			return value;
+		}
+	}
+
+	/**
+	 * Retrieves the value of the designated column in the current entry of this set as an Object.
+	 * @param index the index of the field to retrieve: the first column is 1, the second is 2
+	 * @return the column value; if the value is null, the value returned is null.
+	 */
+	public Object getObject (int index) {
+		return getValue(row, index);
+	}
+
+	@Override
+	public boolean next () {
+		if ( row < size-1 ) {
+			row++;
+			return true;
+		}
+		row = size;
+		return false;
+	}
+
+	@Override
+	public boolean last () {
+		row = size-1;
+		return ( size > 0 );
+	}
+
+	@Override
+	public boolean getBoolean (int index) {
+		Object value = getObject(index);
+		if ( value == null ) return false;
+		if ( value instanceof Boolean ) return (Boolean)value;
+		return Boolean.parseBoolean(value.toString());
+	}
+
+	@Override
+	public String getString (int index) {
+		Object value = getObject(index);
+		return (value == null) ? null : value.toString();
+	}
+
+	@Override
+	public String getString (String name) {
+		return getString(getIndex(name));
+	}
+
+	@Override
+	public Object getObject (String name) {
+		return getObject(getIndex(name));
+	}
+
+	@Override
+	public long getLong (int index) {
+		Object value = getObject(index);
+		if ( value == null ) return 0;
+		if ( value instanceof Number ) return ((Number)value).longValue();
+		return Long.parseLong(value.toString());
+	}
+
+	@Override
+	public boolean getFlag () {
+		return getBoolean(ITm.FLAG_FIELD);
+	}
+
+	@Override
+	public long getSegKey () {
+		return getLong(ITm.SEGKEY_FIELD);
+	}
+
+	@Override
+	public long getTuRef () {
+		if ( tuRefIndex == -1 ) {
+			throw new OkapiIOException("The TU reference is not available in this set.");
+		}
+		return getLong(tuRefIndex);
+	}
+
+	@Override
+	public int getFieldCount () {
+		return names.length;
+	}
+
+	@Override
+	public String getFieldName (int index) {
+		return names[index-1];
+	}
+
+	private int getIndex (String name) {
+		Integer index = ordinals.get(name);
+		if ( index == null ) {
+			throw new OkapiIOException(String.format("Unknown field '%s'.", name));
+		}
+		return index;
+	}
+
+}
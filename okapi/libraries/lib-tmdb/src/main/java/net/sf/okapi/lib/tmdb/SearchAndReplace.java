@@ -26,7 +26,6 @@ import java.util.List;
 
 import net.sf.okapi.lib.tmdb.IProgressCallback;
 import net.sf.okapi.lib.tmdb.ITm;
-import net.sf.okapi.lib.tmdb.DbUtil.PageMode;
 
 public class SearchAndReplace implements Runnable {
 
@@ -51,7 +50,6 @@ public class SearchAndReplace implements Runnable {
 		long totalCount = 0;
 		long changeCount = 0;
 		ITm tm = null;
-		boolean canceled = false;
 		
 		try {
 			switch ( options.getAction() ) {
@@ -67,15 +65,14 @@ public class SearchAndReplace implements Runnable {
 				break;
 			}
 			
-			// Get the original TM and set it for iteration
+			// Get the original TM
 			tm = repo.openTm(tmName);
-			tm.setRecordFields(options.getFields());
-			tm.setPageMode(PageMode.ITERATOR);
 			
-			IRecordSet rs = tm.getFirstPage();
-			while  (( rs != null ) && !canceled ) {
-				while ( rs.next() && !canceled ) {
-					totalCount++;
+			totalCount = tm.scan(options.getFields(), null, new IRecordConsumer() {
+				private long count = 0;
+				@Override
+				public boolean consume (IRecordSet rs) {
+					count++;
 
 					List<LinkedHashMap<String, Object>> res = DbUtil.resultSetToMaps(rs);
 
@@ -90,20 +87,16 @@ public class SearchAndReplace implements Runnable {
 					}
 
 					// Update UI from time to time
-					if ( (totalCount % 652) == 0 ) {
+					if ( (count % 652) == 0 ) {
 						// And check for cancellation
-						if ( !callback.updateProgress(totalCount) ) {
-							if ( !canceled ) {
-								callback.logMessage(1, "Process interrupted by user.");
-								canceled = true;
-							}
+						if ( !callback.updateProgress(count) ) {
+							callback.logMessage(1, "Process interrupted by user.");
+							return false;
 						}
 					}
+					return true;
 				}
-				if ( !canceled ) {
-					rs = tm.getNextPage();
-				}
-			}
+			});
 			
 		}
 		catch ( Throwable e ) {
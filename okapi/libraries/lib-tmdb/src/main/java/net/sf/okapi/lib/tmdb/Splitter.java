@@ -26,7 +26,6 @@ import java.util.List;
 
 import net.sf.okapi.lib.tmdb.IProgressCallback;
 import net.sf.okapi.lib.tmdb.ITm;
-import net.sf.okapi.lib.tmdb.DbUtil.PageMode;
 
 public class Splitter implements Runnable {
 
@@ -37,6 +36,12 @@ public class Splitter implements Runnable {
 	
 	private List<String> tmNames;
 	private List<String> locales;
+	private ITm outTm;
+	private long processedCount;
+	private long currentCount;
+	private int tmCount;
+	private long prevTuKey;
+	private long outTuKey;
 	
 	public Splitter (IProgressCallback progressCallback,
 		IRepository repo,
@@ -53,66 +58,31 @@ public class Splitter implements Runnable {
 	public void run () {
 		long totalCount = 0;
 		ITm tm = null;
-		ITm outTm = null;
-		boolean canceled = false;
+		outTm = null;
 		
 		try {
 			callback.startProcess("Splitting TM...");
 			
 			//=== Split entries
 			
-			// Get the original TM and set it for iteration
+			// Get the original TM
 			tm = repo.openTm(tmName);
-			tm.setRecordFields(tm.getAvailableFields());
-			tm.setPageMode(PageMode.ITERATOR);
-			//tm.setPageSize(5);
 			
 			// Get the list of all initial locales
 			locales = tm.getLocales();
 			
-			long currentCount = -1;
-			int tmCount = 0;
-			long prevTuKey = -1;
-			long outTuKey = -1;
+			processedCount = 0;
+			currentCount = -1;
+			tmCount = 0;
+			prevTuKey = -1;
+			outTuKey = -1;
 			
-			IRecordSet rs = tm.getFirstPage();
-			while  (( rs != null ) && !canceled ) {
-				while ( rs.next() && !canceled ) {
-					totalCount++;
-					currentCount++;
-					
-					// Do we need to start a new TM for this entry?
-					if (( currentCount == 0 ) || ( currentCount > options.getEntriesPerPart() )) {
-						if ( outTm != null ) outTm.finishImport();
-						outTm = createNewTm(++tmCount);
-						outTm.startImport();
-						currentCount = 1;
-						prevTuKey = -1;
-					}
-					
-					// Add the entry to the output TM
-					long tuKey = rs.getTuRef();
-					if ( tuKey != prevTuKey ) outTuKey = -1;
-					
-					List<LinkedHashMap<String, Object>> res = DbUtil.resultSetToMaps(rs);
-					outTuKey = outTm.addRecord(outTuKey, res.get(0), res.get(1));
-
-					// Update UI from time to time
-					if ( (totalCount % 652) == 0 ) {
-						// And check for cancellation
-						if ( !callback.updateProgress(totalCount) ) {
-							if ( !canceled ) {
-								callback.logMessage(1, "Process interrupted by user.");
-								canceled = true;
-							}
-						}
-					}
-				}
-				if ( !canceled ) {
-					rs = tm.getNextPage();
+			totalCount = tm.scan(tm.getAvailableFields(), null, new IRecordConsumer() {
+				@Override
+				public boolean consume (IRecordSet rs) {
+					return splitRecord(rs);
 				}
-			}
-			
+			});
 		}
 		catch ( Throwable e ) {
 			callback.logMessage(IProgressCallback.MSGTYPE_ERROR, e.getMessage());
@@ -122,6 +92,43 @@ public class Splitter implements Runnable {
 			callback.endProcess(totalCount, true);
 		}
 	}
+	
+	/**
+	 * Adds one entry to the current output TM.
+	 * @param rs the record set positioned on the entry.
+	 * @return false if the process has been canceled, true otherwise.
+	 */
+	private boolean splitRecord (IRecordSet rs) {
+		processedCount++;
+		currentCount++;
+		
+		// Do we need to start a new TM for this entry? (not in the middle of a TU)
+		long tuKey = rs.getTuRef();
+		if (( currentCount == 0 ) || (( currentCount > options.getEntriesPerPart() ) && ( tuKey != prevTuKey ))) {
+			if ( outTm != null ) outTm.finishImport();
+			outTm = createNewTm(++tmCount);
+			outTm.startImport();
+			currentCount = 1;
+			prevTuKey = -1;
+		}
+		
+		// Add the entry to the output TM
+		if ( tuKey != prevTuKey ) outTuKey = -1;
+		prevTuKey = tuKey;
+		
+		List<LinkedHashMap<String, Object>> res = DbUtil.resultSetToMaps(rs);
+		outTuKey = outTm.addRecord(outTuKey, res.get(0), res.get(1));
+
+		// Update UI from time to time
+		if ( (processedCount % 652) == 0 ) {
+			// And check for cancellation
+			if ( !callback.updateProgress(processedCount) ) {
+				callback.logMessage(1, "Process interrupted by user.");
+				return false;
+			}
+		}
+		return true;
+	}
 
 	private ITm createNewTm (int tmCount) {
 		ITm tm = null;
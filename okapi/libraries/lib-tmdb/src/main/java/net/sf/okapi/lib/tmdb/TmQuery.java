@@ -0,0 +1,134 @@
+/*===========================================================================
+  Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+  This library is free software; you can redistribute it and/or modify it
+  under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation; either version 2.1 of the License, or (at
+  your option) any later version.
+
+  This library is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+  General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this library; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.okapi.lib.tmdb.DbUtil.PageMode;
+import net.sf.okapi.lib.tmdb.filter.FilterNode;
+
+/**
+ * Immutable description of a selection of records: the fields to read, the filter,
+ * the sort order, the page size and the page mode.
+ * <p>Unlike the paging methods of {@link ITm}, which work on the current selection of a
+ * TM object, a query carries its whole selection: it can be passed to {@link ITm#fetch(TmQuery, long)}
+ * by several threads at the same time, on the same TM object.
+ * <p>The filter tree is not copied: it must not be modified once the query is created.
+ */
+public final class TmQuery {
+
+	private final List<String> fields;
+	private final FilterNode filter;
+	private final Map<String, Boolean> sortOrder;
+	private final long pageSize;
+	private final PageMode pageMode;
+
+	/**
+	 * Creates a new query with the natural order, pages of 500 records and the
+	 * {@link PageMode#ITERATOR} mode.
+	 * @param fields the list of the fields to read (can be null).
+	 * @param filter the filter to apply, or null to read all the records.
+	 */
+	public TmQuery (List<String> fields,
+		FilterNode filter)
+	{
+		this(fields, filter, null, 500, PageMode.ITERATOR);
+	}
+	
+	/**
+	 * Creates a new query.
+	 * @param fields the list of the fields to read (can be null). As in the record sets of the
+	 * paging methods, the SegKey and Flag fields are always returned first.
+	 * @param filter the filter to apply, or null to read all the records.
+	 * @param sortOrder the fields to sort on (the key is the field full name, the value is true for
+	 * ascending order or false for descending order). Use null or an empty map for the natural order.
+	 * @param pageSize the number of records per page (the minimum is 3).
+	 * @param pageMode the type of pages to return (see {@link ITm#setPageMode(PageMode)}).
+	 */
+	public TmQuery (List<String> fields,
+		FilterNode filter,
+		LinkedHashMap<String, Boolean> sortOrder,
+		long pageSize,
+		PageMode pageMode)
+	{
+		if ( fields == null ) this.fields = Collections.emptyList();
+		else this.fields = Collections.unmodifiableList(new ArrayList<String>(fields));
+		this.filter = filter;
+		if ( sortOrder == null ) this.sortOrder = Collections.emptyMap();
+		else this.sortOrder = Collections.unmodifiableMap(new LinkedHashMap<String, Boolean>(sortOrder));
+		this.pageSize = (pageSize < 3 ? 3 : pageSize);
+		this.pageMode = (pageMode == null ? PageMode.ITERATOR : pageMode);
+	}
+
+	/**
+	 * Gets the fields to read.
+	 * @return the unmodifiable list of the fields to read (can be empty).
+	 */
+	public List<String> getFields () {
+		return fields;
+	}
+
+	/**
+	 * Gets the filter of this query.
+	 * @return the root of the filter, or null if all the records are selected.
+	 */
+	public FilterNode getFilter () {
+		return filter;
+	}
+
+	/**
+	 * Gets the sort order of this query.
+	 * @return the unmodifiable map of the fields to sort on, in order (empty for the natural order).
+	 */
+	public Map<String, Boolean> getSortOrder () {
+		return sortOrder;
+	}
+
+	/**
+	 * Gets the number of records per page.
+	 * @return the number of records per page.
+	 */
+	public long getPageSize () {
+		return pageSize;
+	}
+
+	/**
+	 * Gets the type of pages returned for this query.
+	 * @return the page mode.
+	 */
+	public PageMode getPageMode () {
+		return pageMode;
+	}
+
+	/**
+	 * Gets the offset of the first record of a given page.
+	 * @param pageIndex the 0-based index of the page.
+	 * @return the number of records before the first record of the page.
+	 */
+	public long getPageOffset (long pageIndex) {
+		return (pageMode == PageMode.EDITOR ? pageSize-1 : pageSize) * pageIndex;
+	}
+
+}
@@ -0,0 +1,333 @@
+/*===========================================================================
+  Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+  This library is free software; you can redistribute it and/or modify it
+  under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation; either version 2.1 of the License, or (at
+  your option) any later version.
+
+  This library is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+  General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this library; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb.filter;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Compiles the expression tree of a filter into a database query.
+ * <p>For SQL the constants are never put in the text of the condition: they are
+ * replaced by bind parameters. The text of the condition depends only on the
+ * structure of the filter (its shape), so filters that differ only by their values
+ * give the same SQL and can use the same prepared statement.
+ * <p>The comparisons of the fields stored as codes (see {@link IFieldEncoder}) with
+ * constants are done on the codes: the codes of the values equal to or containing a constant
+ * are looked up by a sub-query when the condition is run, so the condition stays valid when
+ * new values are encoded after it was compiled.
+ */
+public class FilterCompiler {
+
+	/**
+	 * Provides the SQL column to use for a given field.
+	 */
+	public interface IColumnMapper {
+
+		/**
+		 * Gets the SQL expression of the column for a given field.
+		 * @param fieldName the name of the field.
+		 * @return the (qualified and quoted) column for the field.
+		 */
+		public String getColumn (String fieldName);
+
+	}
+
+	/**
+	 * Provides the codes of the fields that are stored encoded (e.g. with a dictionary).
+	 */
+	public interface IFieldEncoder {
+		
+		/**
+		 * Indicates if a given field is stored encoded.
+		 * @param fieldName the name of the field.
+		 * @return true if the field is stored encoded.
+		 */
+		public boolean isEncoded (String fieldName);
+		
+		/**
+		 * Gets the SQL column holding the codes of a given encoded field.
+		 * @param fieldName the name of the field.
+		 * @return the (qualified and quoted) column of the codes.
+		 */
+		public String getCodeColumn (String fieldName);
+		
+		/**
+		 * Gets the SQL query selecting the code of the value of a given field that is equal to a string.
+		 * <p>The string is the only parameter of the query, so its text does not depend on the string.
+		 * @param fieldName the name of the field.
+		 * @return the SQL query, with one place-holder for the string to look for.
+		 */
+		public String getEqualsQuery (String fieldName);
+		
+		/**
+		 * Gets the SQL query selecting the codes of the values of a given field that contain a string.
+		 * <p>The string is the only parameter of the query, so its text does not depend on the string.
+		 * @param fieldName the name of the field.
+		 * @return the SQL query, with one place-holder for the string to look for.
+		 */
+		public String getContainsQuery (String fieldName);
+		
+	}
+
+	/**
+	 * SQL condition with its bind parameters.
+	 */
+	public static class SQLCondition {
+
+		private final String condition;
+		private final Object[] parameters;
+
+		SQLCondition (String condition,
+			Object[] parameters)
+		{
+			this.condition = condition;
+			this.parameters = parameters;
+		}
+
+		/**
+		 * Gets the text of the condition, with a place-holder for each parameter.
+		 * @return the text of the condition (empty if there is no filter).
+		 */
+		public String getCondition () {
+			return condition;
+		}
+
+		/**
+		 * Gets the values of the parameters of the condition, in the order of their place-holders.
+		 * @return the values of the parameters (never null).
+		 */
+		public Object[] getParameters () {
+			return parameters;
+		}
+
+		/**
+		 * Indicates if there is no condition.
+		 * @return true if there is no condition.
+		 */
+		public boolean isEmpty () {
+			return condition.length() == 0;
+		}
+
+		/**
+		 * Sets the parameters of the condition in a prepared statement.
+		 * @param pstm the statement to fill.
+		 * @param index the index of the place-holder of the first parameter.
+		 * @return the index of the place-holder after the last parameter.
+		 * @throws SQLException if an error occurs.
+		 */
+		public int bind (PreparedStatement pstm,
+			int index)
+			throws SQLException
+		{
+			for ( Object value : parameters ) {
+				pstm.setObject(index++, value);
+			}
+			return index;
+		}
+
+		@Override
+		public String toString () {
+			return condition+" "+Arrays.toString(parameters);
+		}
+	}
+
+	/**
+	 * Empty SQL condition.
+	 */
+	public static final SQLCondition NO_CONDITION = new SQLCondition("", new Object[0]);
+
+	/**
+	 * Compiles a filter into an SQL condition with bind parameters.
+	 * @param root the root of the filter (can be null).
+	 * @param mapper the object providing the column of each field.
+	 * @return the SQL condition (empty if root is null).
+	 */
+	public static SQLCondition toSQL (FilterNode root,
+		IColumnMapper mapper)
+	{
+		return toSQL(root, mapper, null);
+	}
+
+	/**
+	 * Compiles a filter into an SQL condition with bind parameters, comparing the encoded
+	 * fields on their codes.
+	 * <p>The column given by the mapper for an encoded field is used only where the codes
+	 * cannot be used (e.g. comparison with another field).
+	 * @param root the root of the filter (can be null).
+	 * @param mapper the object providing the column of each field.
+	 * @param encoder the object providing the codes of the encoded fields (can be null).
+	 * @return the SQL condition (empty if root is null).
+	 */
+	public static SQLCondition toSQL (FilterNode root,
+		IColumnMapper mapper,
+		IFieldEncoder encoder)
+	{
+		if ( root == null ) return NO_CONDITION;
+		StringBuilder tmp = new StringBuilder();
+		ArrayList<Object> params = new ArrayList<Object>();
+		toSQL(root, mapper, encoder, tmp, params);
+		return new SQLCondition(tmp.toString(), params.toArray());
+	}
+
+	private static void toSQL (FilterNode node,
+		IColumnMapper mapper,
+		IFieldEncoder encoder,
+		StringBuilder tmp,
+		ArrayList<Object> params)
+	{
+		if ( !node.isOperator() ) {
+			ValueNode vn = (ValueNode)node;
+			if ( vn.isField() ) {
+				tmp.append(mapper.getColumn(vn.getStringValue()));
+			}
+			else {
+				tmp.append("?");
+				params.add(getConstant(vn));
+			}
+			return;
+		}
+
+		OperatorNode on = (OperatorNode)node;
+		Operator.TYPE type = on.getOperator().getType();
+		if ( !on.isBinary() ) {
+			if ( type != Operator.TYPE.NOT ) {
+				throw new IllegalArgumentException(String.format("Invalid unary operator '%s'.", on.getOperator().getName()));
+			}
+			tmp.append("(NOT ");
+			toSQL(on.getRight(), mapper, encoder, tmp, params);
+			tmp.append(")");
+			return;
+		}
+		
+		if (( encoder != null ) && toEncodedSQL(on, type, encoder, tmp, params) ) {
+			return;
+		}
+
+		switch ( type ) {
+		case CONTAINS:
+			tmp.append("(LOCATE(");
+			toSQL(on.getRight(), mapper, encoder, tmp, params);
+			tmp.append(", ");
+			toSQL(on.getLeft(), mapper, encoder, tmp, params);
+			tmp.append(")>0)");
+			break;
+		case EQUALS:
+		case AND:
+		case OR:
+			tmp.append("(");
+			toSQL(on.getLeft(), mapper, encoder, tmp, params);
+			tmp.append(type == Operator.TYPE.EQUALS ? " = " : " "+type.name()+" ");
+			toSQL(on.getRight(), mapper, encoder, tmp, params);
+			tmp.append(")");
+			break;
+		default:
+			throw new IllegalArgumentException(String.format("Invalid binary operator '%s'.", on.getOperator().getName()));
+		}
+	}
+
+	/**
+	 * Compiles a comparison between an encoded field and a constant into a condition on the codes.
+	 * @return true if the comparison was compiled, false if it is not such comparison.
+	 */
+	private static boolean toEncodedSQL (OperatorNode on,
+		Operator.TYPE type,
+		IFieldEncoder encoder,
+		StringBuilder tmp,
+		ArrayList<Object> params)
+	{
+		if (( type != Operator.TYPE.EQUALS ) && ( type != Operator.TYPE.CONTAINS )) return false;
+		if ( on.getLeft().isOperator() || on.getRight().isOperator() ) return false;
+		ValueNode field = (ValueNode)on.getLeft();
+		ValueNode value = (ValueNode)on.getRight();
+		if ( !field.isField() ) { // Constant on the left
+			ValueNode vn = field; field = value; value = vn;
+		}
+		if ( !field.isField() || value.isField() ) return false;
+		String fieldName = field.getStringValue();
+		if ( !encoder.isEncoded(fieldName) ) return false;
+		
+		String column = encoder.getCodeColumn(fieldName);
+		String query;
+		if ( type == Operator.TYPE.EQUALS ) query = encoder.getEqualsQuery(fieldName);
+		else query = encoder.getContainsQuery(fieldName); // Any of the codes of the values that contain the constant
+		tmp.append("("+column+" IN ("+query+"))");
+		params.add(getConstant(value).toString());
+		return true;
+	}
+
+	/**
+	 * Gets the fields that a filter compares to a constant with EQUALS, in the part of
+	 * the filter that is a conjunction (i.e. the comparisons every selected entry must match).
+	 * <p>Comparisons under an OR or a NOT are not included.
+	 * @param root the root of the filter (can be null).
+	 * @return the set of the field names, in the order they appear in the filter (can be empty).
+	 */
+	public static Set<String> getEqualityFields (FilterNode root) {
+		LinkedHashSet<String> fields = new LinkedHashSet<String>();
+		getEqualityFields(root, fields);
+		return fields;
+	}
+
+	private static void getEqualityFields (FilterNode node,
+		Set<String> fields)
+	{
+		if (( node == null ) || !node.isOperator() ) return;
+		OperatorNode on = (OperatorNode)node;
+		if ( !on.isBinary() ) return;
+		switch ( on.getOperator().getType() ) {
+		case AND:
+			getEqualityFields(on.getLeft(), fields);
+			getEqualityFields(on.getRight(), fields);
+			break;
+		case EQUALS:
+			if ( on.getLeft().isOperator() || on.getRight().isOperator() ) break;
+			ValueNode left = (ValueNode)on.getLeft();
+			ValueNode right = (ValueNode)on.getRight();
+			if ( left.isField() && !right.isField() ) fields.add(left.getStringValue());
+			else if ( right.isField() && !left.isField() ) fields.add(right.getStringValue());
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Gets the value of a constant of a filter.
+	 * @param vn the node of the constant.
+	 * @return the value of the constant (a Boolean or a String).
+	 * @throws IllegalArgumentException if the type of the constant is not supported.
+	 */
+	public static Object getConstant (ValueNode vn) {
+		switch ( vn.getType() ) {
+		case BOOLEAN:
+			return vn.getBooleanValue();
+		case STRING:
+			return vn.getStringValue();
+		default:
+			throw new IllegalArgumentException(String.format("Unsupported constant type '%s'.", vn.getType()));
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+/*===========================================================================
+  Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+  This library is free software; you can redistribute it and/or modify it
+  under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation; either version 2.1 of the License, or (at
+  your option) any later version.
+
+  This library is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+  General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this library; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb.h2;
+
+import java.nio.charset.Charset;
+
+import net.sf.okapi.lib.tmdb.RecordPage;
+
+import org.h2.tools.CompressTool;
+
+/**
+ * Compressed value of a text or codes field.
+ * <p>The values are stored as the UTF-8 bytes of the string compressed with the LZF
+ * algorithm, in the same format as the H2 function COMPRESS, so the database can also
+ * expand them (see {@link #toSQL(String)}) for the filters and the sort orders.
+ * <p>In a page the value stays compressed: it is expanded each time it is read.
+ */
+class CompressedValue implements RecordPage.IEncodedValue {
+
+	/**
+	 * SQL type of the compressed columns.
+	 */
+	static final String SQL_TYPE = "VARBINARY";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String ALGORITHM = "LZF";
+
+	private final byte[] data;
+
+	CompressedValue (byte[] data) {
+		this.data = data;
+	}
+
+	@Override
+	public Object decode () {
+		return expand(data);
+	}
+
+	@Override
+	public int getEncodedSize () {
+		return data.length;
+	}
+
+	/**
+	 * Compresses a string.
+	 * @param text the string to compress (can be null).
+	 * @return the compressed data, or null if text is null.
+	 */
+	static byte[] compress (String text) {
+		if ( text == null ) return null;
+		// Each instance has its own buffer: one per call is thread-safe
+		return CompressTool.getInstance().compress(text.getBytes(UTF8), ALGORITHM);
+	}
+
+	/**
+	 * Expands data compressed with {@link #compress(String)}.
+	 * @param data the compressed data (can be null).
+	 * @return the original string, or null if data is null.
+	 */
+	static String expand (byte[] data) {
+		if ( data == null ) return null;
+		return new String(CompressTool.getInstance().expand(data), UTF8);
+	}
+
+	/**
+	 * Gets the SQL expression of the expanded value of a compressed column.
+	 * @param column the qualified and quoted column.
+	 * @return the SQL expression giving the original string.
+	 */
+	static String toSQL (String column) {
+		return "UTF8TOSTRING(EXPAND("+column+"))";
+	}
+
+}
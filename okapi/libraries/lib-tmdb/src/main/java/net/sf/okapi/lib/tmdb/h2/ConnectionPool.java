@@ -0,0 +1,231 @@
+/*===========================================================================
+  Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+  This library is free software; you can redistribute it and/or modify it
+  under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation; either version 2.1 of the License, or (at
+  your option) any later version.
+
+  This library is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+  General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this library; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb.h2;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * Bounded pool of connections to one database, each with its own cache of prepared statements.
+ * <p>The read-only queries borrow a connection for the time of their execution, so the queries
+ * of different threads (or of different Tm objects) do not share a JDBC connection and do not
+ * wait for each other. When all the connections are in use, {@link #borrow()} waits for one
+ * to be released.
+ * <p>The methods of this class are thread-safe.
+ */
+class ConnectionPool {
+
+	/**
+	 * Connection of the pool, with its cache of statements.
+	 * The statements must only be used by the thread that borrowed the connection.
+	 */
+	static class PooledConnection {
+		
+		private final Connection conn;
+		private final StatementCache statements;
+		
+		PooledConnection (Connection conn,
+			int statementCacheSize)
+		{
+			this.conn = conn;
+			statements = new StatementCache(conn, statementCacheSize);
+		}
+		
+		Connection getConnection () {
+			return conn;
+		}
+		
+		StatementCache getStatements () {
+			return statements;
+		}
+		
+		void close ()
+			throws SQLException
+		{
+			try {
+				statements.close();
+			}
+			finally {
+				conn.close();
+			}
+		}
+	}
+	
+	private final String url;
+	private final int statementCacheSize;
+	private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+	private int maxSize;
+	private int size; // Number of connections opened (idle or borrowed)
+	private boolean closed;
+	
+	/**
+	 * Creates a new pool. The connections are opened when they are needed.
+	 * @param url the URL of the database.
+	 * @param maxSize the maximum number of connections.
+	 * @param statementCacheSize the maximum number of statements cached for each connection.
+	 */
+	ConnectionPool (String url,
+		int maxSize,
+		int statementCacheSize)
+	{
+		if ( maxSize < 1 ) {
+			throw new IllegalArgumentException("The pool must have at least one connection.");
+		}
+		this.url = url;
+		this.maxSize = maxSize;
+		this.statementCacheSize = statementCacheSize;
+	}
+	
+	/**
+	 * Borrows a connection of this pool, opening a new one if none is idle and the maximum
+	 * is not reached, or waiting for one to be released.
+	 * <p>The connection must be given back with {@link #release(PooledConnection)}, and
+	 * a thread must not borrow a second connection before releasing the first one.
+	 * @return the connection borrowed.
+	 * @throws SQLException if the pool is closed or if an error occurs.
+	 */
+	PooledConnection borrow ()
+		throws SQLException
+	{
+		synchronized ( this ) {
+			while ( true ) {
+				if ( closed ) throw new SQLException("The connection pool is closed.");
+				if ( !idle.isEmpty() ) return idle.removeFirst();
+				if ( size < maxSize ) break;
+				try {
+					wait();
+				}
+				catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while waiting for a connection.");
+				}
+			}
+			size++; // Reserve the place while the connection is opened
+		}
+		try {
+			return new PooledConnection(DriverManager.getConnection(url, "sa", ""), statementCacheSize);
+		}
+		catch ( SQLException e ) {
+			synchronized ( this ) {
+				size--;
+				notify();
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Gives back a connection borrowed from this pool.
+	 * <p>A transaction left open is rolled back. The connection is closed if the pool
+	 * is closed or has too many connections.
+	 * @param pc the connection to release.
+	 */
+	void release (PooledConnection pc) {
+		boolean keep;
+		try {
+			if ( !pc.getConnection().getAutoCommit() ) {
+				pc.getConnection().rollback();
+				pc.getConnection().setAutoCommit(true);
+			}
+			synchronized ( this ) {
+				keep = !closed && ( size <= maxSize );
+				if ( keep ) idle.addFirst(pc); // Most recently used first: its statements are more likely cached
+				else size--;
+				notify();
+			}
+		}
+		catch ( SQLException e ) {
+			// The connection is not usable anymore
+			synchronized ( this ) {
+				size--;
+				notify();
+			}
+			keep = false;
+		}
+		if ( !keep ) {
+			try {
+				pc.close();
+			}
+			catch ( SQLException e ) {
+				// Nothing more to do with it
+			}
+		}
+	}
+	
+	/**
+	 * Sets the maximum number of connections of this pool.
+	 * If it is lower than the current number, the connections in excess are closed when released.
+	 * @param maxSize the new maximum number of connections.
+	 */
+	void setMaxSize (int maxSize) {
+		if ( maxSize < 1 ) {
+			throw new IllegalArgumentException("The pool must have at least one connection.");
+		}
+		synchronized ( this ) {
+			this.maxSize = maxSize;
+			notifyAll();
+		}
+	}
+	
+	synchronized int getMaxSize () {
+		return maxSize;
+	}
+	
+	/**
+	 * Gets the number of connections currently opened (idle or borrowed).
+	 * @return the number of connections opened.
+	 */
+	synchronized int getSize () {
+		return size;
+	}
+	
+	/**
+	 * Closes the idle connections of this pool. The borrowed connections are closed when
+	 * they are released, and the pool cannot be used anymore.
+	 * @throws SQLException if an error occurs.
+	 */
+	void close ()
+		throws SQLException
+	{
+		ArrayList<PooledConnection> toClose;
+		synchronized ( this ) {
+			closed = true;
+			toClose = new ArrayList<PooledConnection>(idle);
+			size -= idle.size();
+			idle.clear();
+			notifyAll();
+		}
+		SQLException error = null;
+		for ( PooledConnection pc : toClose ) {
+			try {
+				pc.close();
+			}
+			catch ( SQLException e ) {
+				if ( error == null ) error = e;
+			}
+		}
+		if ( error != null ) throw error;
+	}
+
+}
@@ -0,0 +1,385 @@
+/*===========================================================================
+  Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+  This library is free software; you can redistribute it and/or modify it
+  under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation; either version 2.1 of the License, or (at
+  your option) any later version.
+
+  This library is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+  General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this library; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb.h2;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.okapi.lib.tmdb.DbUtil;
+
+/**
+ * Dictionary of the values of the dictionary-encoded fields of a TM.
+ * <p>The columns of those fields hold integer codes instead of the strings. The codes
+ * are numbered separately for each field, and the values are stored in a table
+ * named after the UUID of the TM (so it does not need to be renamed with the TM).
+ * The whole dictionary is kept in memory: the strings are only used to display
+ * the entries and to sort them.
+ * <p>The encoded columns are the columns of type {@link #SQL_TYPE} with the comment
+ * {@link #REMARK} (see {@link net.sf.okapi.lib.tmdb.DbUtil#isDictionaryField(String)}
+ * for the fields that are encoded when created).
+ */
+class Dictionary {
+
+	/**
+	 * SQL type of the encoded columns.
+	 */
+	static final String SQL_TYPE = "INTEGER";
+	
+	/**
+	 * Comment set on the encoded columns.
+	 */
+	static final String REMARK = "dictionary";
+
+	private static final int MAX_TRIES = 3;
+	
+	/**
+	 * Values of one field. The code of a value is its index in the list (0 is not used).
+	 */
+	private static class FieldValues {
+		
+		final HashMap<String, Integer> codes = new HashMap<String, Integer>();
+		final ArrayList<String> values = new ArrayList<String>(Collections.singletonList((String)null));
+		
+		void add (int code,
+			String value)
+		{
+			while ( values.size() <= code ) values.add(null);
+			values.set(code, value);
+			codes.put(value, code);
+		}
+	}
+	
+	private final Connection conn;
+	private final String table;
+	private final HashSet<String> encodedFields = new HashSet<String>();
+	private HashMap<String, FieldValues> fields; // Null if not loaded
+	
+	/**
+	 * Creates a dictionary for a given TM.
+	 * @param conn the connection to use.
+	 * @param uuid the UUID of the TM.
+	 * @param encodedFields the names of the encoded fields.
+	 */
+	Dictionary (Connection conn,
+		String uuid,
+		Collection<String> encodedFields)
+	{
+		this.conn = conn;
+		this.table = getTable(uuid);
+		this.encodedFields.addAll(encodedFields);
+	}
+
+	/**
+	 * Gets the quoted name of the table of the values for a given TM.
+	 * @param uuid the UUID of the TM.
+	 * @return the quoted name of the table.
+	 */
+	static String getTable (String uuid) {
+		return "\"DICT_"+uuid+"\"";
+	}
+
+	/**
+	 * Indicates if a given field is encoded.
+	 * @param fieldName the name of the field.
+	 * @return true if the field is encoded.
+	 */
+	synchronized boolean isEncoded (String fieldName) {
+		return encodedFields.contains(fieldName);
+	}
+	
+	/**
+	 * Indicates if this TM has at least one encoded field.
+	 * @return true if at least one field is encoded.
+	 */
+	synchronized boolean hasEncodedFields () {
+		return !encodedFields.isEmpty();
+	}
+	
+	/**
+	 * Records that new encoded fields have been created.
+	 * @param fieldNames the names of the new fields.
+	 */
+	synchronized void fieldsCreated (Collection<String> fieldNames) {
+		encodedFields.addAll(fieldNames);
+	}
+	
+	/**
+	 * Gets the code of a value, adding the value to the dictionary if needed.
+	 * @param fieldName the name of the field.
+	 * @param value the value (must not be null).
+	 * @return the code of the value.
+	 */
+	synchronized int getOrAddCode (String fieldName,
+		String value)
+	{
+		FieldValues fv = getValues(fieldName);
+		Integer code = fv.codes.get(value);
+		if ( code != null ) return code;
+		
+		PreparedStatement pstm = null;
+		try {
+			pstm = conn.prepareStatement("INSERT INTO "+table+" (\"Field\", \"Code\", \"Value\") VALUES (?, ?, ?)");
+			for ( int i=0; ; i++ ) {
+				int newCode = fv.values.size();
+				try {
+					pstm.setString(1, fieldName);
+					pstm.setInt(2, newCode);
+					pstm.setString(3, value);
+					pstm.executeUpdate();
+					fv.add(newCode, value);
+					return newCode;
+				}
+				catch ( SQLException e ) {
+					// Another client may have added this value or used this code: reload
+					if ( i >= MAX_TRIES ) throw e;
+					fields = null;
+					fv = getValues(fieldName);
+					code = fv.codes.get(value);
+					if ( code != null ) return code;
+				}
+			}
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			try {
+				if ( pstm != null ) {
+					pstm.close();
+					pstm = null;
+				}
+			}
+			catch ( SQLException e ) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the value of a code.
+	 * @param fieldName the name of the field.
+	 * @param code the code.
+	 * @return the value for the code (null if it is unknown).
+	 */
+	synchronized String getValue (String fieldName,
+		int code)
+	{
+		FieldValues fv = getValues(fieldName);
+		if ( code >= fv.values.size() ) {
+			// It may have been added by another client
+			reload();
+			fv = getValues(fieldName);
+			if ( code >= fv.values.size() ) return null;
+		}
+		return fv.values.get(code);
+	}
+	
+	/**
+	 * Gets all the values of a field.
+	 * @param fieldName the name of the field.
+	 * @return the sorted list of the values (can be empty).
+	 */
+	synchronized List<String> getAllValues (String fieldName) {
+		ArrayList<String> list = new ArrayList<String>(getValues(fieldName).codes.keySet());
+		Collections.sort(list);
+		return list;
+	}
+	
+	/**
+	 * Gets the SQL expression of the value of an encoded column.
+	 * @param fieldName the name of the field.
+	 * @param column the qualified and quoted column.
+	 * @return the SQL expression giving the string for the code in the column.
+	 */
+	String toSQL (String fieldName,
+		String column)
+	{
+		return String.format("(SELECT \"Value\" FROM %s WHERE \"Field\"=%s AND \"Code\"=%s)",
+			table, DbUtil.toSQLString(fieldName), column);
+	}
+	
+	/**
+	 * Gets the SQL query selecting the code of the value of a field that is equal to a given string.
+	 * <p>The string is the only parameter of the query, so the same query is used for any string,
+	 * including the values added after the query was built.
+	 * @param fieldName the name of the field.
+	 * @return the SQL query, with one place-holder for the string to look for.
+	 */
+	String toEqualsSQL (String fieldName) {
+		return String.format("SELECT \"Code\" FROM %s WHERE \"Field\"=%s AND \"Value\"=?",
+			table, DbUtil.toSQLString(fieldName));
+	}
+	
+	/**
+	 * Gets the SQL query selecting the codes of the values of a field that contain a given string.
+	 * <p>The string is the only parameter of the query, so the same query is used for any string.
+	 * @param fieldName the name of the field.
+	 * @return the SQL query, with one place-holder for the string to look for.
+	 */
+	String toContainsSQL (String fieldName) {
+		return String.format("SELECT \"Code\" FROM %s WHERE \"Field\"=%s AND LOCATE(?, \"Value\")>0",
+			table, DbUtil.toSQLString(fieldName));
+	}
+	
+	/**
+	 * Updates the dictionary after fields have been renamed.
+	 * @param names the map of the current names and their new names.
+	 * @throws SQLException if an error occurs.
+	 */
+	synchronized void fieldsRenamed (Map<String, String> names)
+		throws SQLException
+	{
+		PreparedStatement pstm = null;
+		try {
+			for ( String fn : names.keySet() ) {
+				if ( !encodedFields.remove(fn) ) continue;
+				encodedFields.add(names.get(fn));
+				if ( pstm == null ) {
+					pstm = conn.prepareStatement("UPDATE "+table+" SET \"Field\"=? WHERE \"Field\"=?");
+				}
+				pstm.setString(1, names.get(fn));
+				pstm.setString(2, fn);
+				pstm.executeUpdate();
+			}
+		}
+		finally {
+			fields = null;
+			if ( pstm != null ) {
+				pstm.close();
+				pstm = null;
+			}
+		}
+	}
+	
+	/**
+	 * Updates the dictionary after fields have been deleted.
+	 * @param names the names of the deleted fields.
+	 * @throws SQLException if an error occurs.
+	 */
+	synchronized void fieldsDeleted (Collection<String> names)
+		throws SQLException
+	{
+		PreparedStatement pstm = null;
+		try {
+			for ( String fn : names ) {
+				if ( !encodedFields.remove(fn) ) continue;
+				if ( pstm == null ) {
+					pstm = conn.prepareStatement("DELETE FROM "+table+" WHERE \"Field\"=?");
+				}
+				pstm.setString(1, fn);
+				pstm.executeUpdate();
+			}
+		}
+		finally {
+			fields = null;
+			if ( pstm != null ) {
+				pstm.close();
+				pstm = null;
+			}
+		}
+	}
+	
+	/**
+	 * Discards the values in memory. They will be re-loaded on next access.
+	 * <p>This must be called when a transaction adding values is rolled back.
+	 */
+	synchronized void reset () {
+		fields = null;
+	}
+	
+	/**
+	 * Creates the table of the values of a given TM, if it does not exist yet.
+	 * @param stm the statement to use.
+	 * @param uuid the UUID of the TM.
+	 * @throws SQLException if an error occurs.
+	 */
+	static void createTable (Statement stm,
+		String uuid)
+		throws SQLException
+	{
+		stm.execute("CREATE TABLE IF NOT EXISTS "+getTable(uuid)+" ("
+			+ "\"Field\" VARCHAR, \"Code\" INTEGER, \"Value\" VARCHAR, "
+			+ "PRIMARY KEY (\"Field\", \"Code\"), UNIQUE (\"Field\", \"Value\"))");
+	}
+	
+	private void reload () {
+		fields = null;
+		getValues(null);
+	}
+	
+	/**
+	 * Gets the values of a field, loading the dictionary if needed.
+	 * @param fieldName the name of the field (can be null to just load the dictionary).
+	 * @return the values of the field (null if fieldName is null).
+	 */
+	private FieldValues getValues (String fieldName) {
+		if ( fields == null ) {
+			HashMap<String, FieldValues> tmp = new HashMap<String, FieldValues>();
+			Statement stm = null;
+			try {
+				stm = conn.createStatement();
+				ResultSet result = stm.executeQuery("SELECT \"Field\", \"Code\", \"Value\" FROM "+table);
+				while ( result.next() ) {
+					String fn = result.getString(1);
+					FieldValues fv = tmp.get(fn);
+					if ( fv == null ) {
+						fv = new FieldValues();
+						tmp.put(fn, fv);
+					}
+					fv.add(result.getInt(2), result.getString(3));
+				}
+				fields = tmp;
+			}
+			catch ( SQLException e ) {
+				throw new RuntimeException(e);
+			}
+			finally {
+				try {
+					if ( stm != null ) {
+						stm.close();
+						stm = null;
+					}
+				}
+				catch ( SQLException e ) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+		if ( fieldName == null ) return null;
+		FieldValues fv = fields.get(fieldName);
+		if ( fv == null ) {
+			fv = new FieldValues();
+			fields.put(fieldName, fv);
+		}
+		return fv;
+	}
+
+}
@@ -22,13 +22,21 @@ package net.sf.okapi.lib.tmdb.h2;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.RAMDirectory;
 
+import net.sf.okapi.lib.tmdb.FuzzyQuerySpec;
 import net.sf.okapi.lib.tmdb.IIndexAccess;
 import net.sf.okapi.lib.tmdb.lucene.Seeker;
 import net.sf.okapi.lib.tmdb.lucene.TmEntry;
@@ -37,11 +45,21 @@ import net.sf.okapi.lib.tmdb.lucene.Writer;
 
 class IndexAccess implements IIndexAccess {
 
+	private static final ThreadFactory searchThreadFactory = new ThreadFactory() {
+		@Override
+		public Thread newThread (Runnable r) {
+			Thread thread = new Thread(r, "TM Index Search");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+	
 	private Writer writer;
-	private Seeker seeker;
+	private volatile Seeker seeker;
 	private boolean inMemory;
-	private List<TmHit> hits;
+	private final ThreadLocal<List<TmHit>> hits = new ThreadLocal<List<TmHit>>();
 	private Repository store;
+	private ExecutorService executor; // Threads of the batch searches, created when needed
 	
 	public IndexAccess (Repository store) {
 		try {
@@ -62,7 +80,7 @@ class IndexAccess implements IIndexAccess {
 			}
 			
 			writer = new Writer(idxDir, false);
-			seeker = new Seeker(writer.getIndexWriter());
+			seeker = new Seeker(writer);
 		}
 		catch (IOException e) {
 			throw new RuntimeException("Error creating the index access object:\n"+e.getMessage(), e);
@@ -84,17 +102,80 @@ class IndexAccess implements IIndexAccess {
 		int threshold,
 		HashMap<String, String> attributes)
 	{
-		hits = seeker.searchFuzzy(codedText, codesAsString, tmUUID, locale, maxHits, threshold, attributes);
-		return hits.size();
+		List<TmHit> list = seeker.searchFuzzy(codedText, codesAsString, tmUUID, locale, maxHits, threshold, attributes);
+		hits.set(list);
+		return list.size();
 	}
 
 	@Override
 	public List<TmHit> getHits () {
-		return hits;
+		List<TmHit> list = hits.get();
+		hits.remove(); // Do not keep the list on the pooled threads
+		return list;
+	}
+
+	@Override
+	public List<TmHit> search (FuzzyQuerySpec query) {
+		return seeker.searchFuzzy(query.getCodedText(), query.getCodesAsString(), query.getTmUUID(),
+			query.getLocale(), query.getMaxHits(), query.getThreshold(), query.getAttributes());
+	}
+
+	@Override
+	public List<List<TmHit>> searchBatch (List<FuzzyQuerySpec> queries) {
+		ArrayList<Future<List<TmHit>>> futures = new ArrayList<Future<List<TmHit>>>(queries.size());
+		ExecutorService exec = getExecutor();
+		for ( final FuzzyQuerySpec query : queries ) {
+			futures.add(exec.submit(new Callable<List<TmHit>>() {
+				@Override
+				public List<TmHit> call () {
+					return search(query);
+				}
+			}));
+		}
+		ArrayList<List<TmHit>> results = new ArrayList<List<TmHit>>(queries.size());
+		try {
+			for ( Future<List<TmHit>> future : futures ) {
+				results.add(future.get());
+			}
+		}
+		catch ( ExecutionException e ) {
+			for ( Future<List<TmHit>> future : futures ) {
+				future.cancel(false);
+			}
+			if ( e.getCause() instanceof RuntimeException ) throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		catch ( InterruptedException e ) {
+			for ( Future<List<TmHit>> future : futures ) {
+				future.cancel(false);
+			}
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		return results;
+	}
+
+	/**
+	 * Gets the threads of the batch searches: one per available processor, shared
+	 * by all the batches.
+	 * @return the executor of the batch searches.
+	 */
+	private synchronized ExecutorService getExecutor () {
+		if ( executor == null ) {
+			executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+				searchThreadFactory);
+		}
+		return executor;
 	}
 
 	@Override
 	public void close () {
+		synchronized ( this ) {
+			if ( executor != null ) {
+				executor.shutdown();
+				executor = null;
+			}
+		}
 		if ( seeker != null ) {
 			seeker.close();
 			seeker = null;
@@ -0,0 +1,666 @@
+/*===========================================================================
+  Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+  This library is free software; you can redistribute it and/or modify it
+  under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation; either version 2.1 of the License, or (at
+  your option) any later version.
+
+  This library is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+  General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this library; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb.h2;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manages secondary indexes on the tables of the TMs of a repository, based on the
+ * columns their queries filter and sort on.
+ * <p>Each TM reports the index that would serve its current selection every time it runs
+ * a query for it (see {@link #recordUsage(String, String, boolean, LinkedHashMap)}).
+ * Once an index has been requested a given number of times it is built by a background
+ * thread. Indexes that are not requested for a given delay are dropped, so they do not
+ * slow down the imports.
+ * <p>The indexes are created on the connection of their TM: no index is built or dropped
+ * while a transaction is open (see {@link #suspend()}), and queries run during a build wait
+ * for its end.
+ * <p>The methods of this class are thread-safe.
+ */
+public class IndexAdvisor {
+
+	/**
+	 * Default number of requests after which an index is built.
+	 */
+	public static final int DEFAULT_THRESHOLD = 3;
+
+	/**
+	 * Default delay (in milliseconds) after which an index that was not requested is dropped.
+	 */
+	public static final long DEFAULT_UNUSEDDELAY = 30*60*1000;
+
+	private static final long SWEEP_INTERVAL = 60*1000;
+	private static final String INDEX_PREFIX = "AUTOIDX_";
+
+	/**
+	 * Build status of a managed index.
+	 */
+	public static enum Status {
+		/**
+		 * Requested less times than the threshold: not scheduled yet.
+		 */
+		CANDIDATE,
+		/**
+		 * Waiting to be built.
+		 */
+		PENDING,
+		/**
+		 * Being built.
+		 */
+		BUILDING,
+		/**
+		 * Built and available.
+		 */
+		BUILT,
+		/**
+		 * The build failed (it is tried again once the index is requested enough times).
+		 */
+		FAILED
+	}
+
+	/**
+	 * Information on a managed index.
+	 */
+	public static class ManagedIndex {
+
+		private final String indexName;
+		private final String tmUuid;
+		private final boolean segmentTable;
+		private final LinkedHashMap<String, Boolean> columns;
+		private Status status = Status.CANDIDATE;
+		private int useCount;
+		private long lastUsed;
+		private String error;
+
+		ManagedIndex (String indexName,
+			String tmUuid,
+			boolean segmentTable,
+			LinkedHashMap<String, Boolean> columns)
+		{
+			this.indexName = indexName;
+			this.tmUuid = tmUuid;
+			this.segmentTable = segmentTable;
+			this.columns = columns;
+		}
+
+		private ManagedIndex (ManagedIndex source) {
+			this(source.indexName, source.tmUuid, source.segmentTable, source.columns);
+			status = source.status;
+			useCount = source.useCount;
+			lastUsed = source.lastUsed;
+			error = source.error;
+		}
+
+		/**
+		 * Gets the name of the index in the database.
+		 * @return the name of the index.
+		 */
+		public String getIndexName () {
+			return indexName;
+		}
+
+		/**
+		 * Indicates if the index is on the segment table or on the TU table.
+		 * @return true for the segment table, false for the TU table.
+		 */
+		public boolean isSegmentTable () {
+			return segmentTable;
+		}
+
+		/**
+		 * Gets the columns of the index.
+		 * @return the map of the field names and their sort direction (true for ascending).
+		 * Do not modify it.
+		 */
+		public LinkedHashMap<String, Boolean> getColumns () {
+			return columns;
+		}
+
+		/**
+		 * Gets the build status of the index.
+		 * @return the status of the index.
+		 */
+		public Status getStatus () {
+			return status;
+		}
+
+		/**
+		 * Gets the number of times the index has been requested since it was last scheduled.
+		 * @return the number of requests.
+		 */
+		public int getUseCount () {
+			return useCount;
+		}
+
+		/**
+		 * Gets the last time the index was requested.
+		 * @return the time in milliseconds (see {@link System#currentTimeMillis()}).
+		 */
+		public long getLastUsed () {
+			return lastUsed;
+		}
+
+		/**
+		 * Gets the message of the last error that occurred when building or dropping the index.
+		 * @return the error message, or null.
+		 */
+		public String getError () {
+			return error;
+		}
+
+		@Override
+		public String toString () {
+			return String.format("%s %s%s: %s", indexName, (segmentTable ? "SEG" : "TU"), columns, status);
+		}
+	}
+
+	private final Repository repository;
+	private final Object buildLock = new Object();
+	private final HashMap<String, ManagedIndex> indexes; // Key: index name
+	private final HashMap<String, String> tmNames; // Key: TM UUID
+	private final HashSet<String> loadedTms; // UUIDs of the TMs with their existing indexes loaded
+	private final ArrayList<Runnable> tasks; // Other schema changes waiting to be run
+	private ScheduledExecutorService executor;
+	private boolean enabled = true;
+	private int threshold = DEFAULT_THRESHOLD;
+	private long unusedDelay = DEFAULT_UNUSEDDELAY;
+	private int suspendCount;
+
+	/**
+	 * Creates a new advisor.
+	 * @param repository the repository of the TMs.
+	 */
+	IndexAdvisor (Repository repository) {
+		this.repository = repository;
+		indexes = new HashMap<String, ManagedIndex>();
+		tmNames = new HashMap<String, String>();
+		loadedTms = new HashSet<String>();
+		tasks = new ArrayList<Runnable>();
+	}
+
+	/**
+	 * Enables or disables this advisor. When disabled no request is recorded and
+	 * no index is built or dropped (the existing indexes are left as they are).
+	 * @param enabled true to enable the advisor.
+	 */
+	public synchronized void setEnabled (boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Indicates if this advisor is enabled.
+	 * @return true if this advisor is enabled.
+	 */
+	public synchronized boolean isEnabled () {
+		return enabled;
+	}
+
+	/**
+	 * Sets the number of requests after which an index is built.
+	 * @param threshold the new threshold (1 to build an index on its first request).
+	 */
+	public synchronized void setThreshold (int threshold) {
+		this.threshold = Math.max(1, threshold);
+	}
+
+	/**
+	 * Gets the number of requests after which an index is built.
+	 * @return the current threshold.
+	 */
+	public synchronized int getThreshold () {
+		return threshold;
+	}
+
+	/**
+	 * Sets the delay after which an index that was not requested is dropped.
+	 * @param unusedDelay the new delay in milliseconds.
+	 */
+	public synchronized void setUnusedDelay (long unusedDelay) {
+		this.unusedDelay = unusedDelay;
+	}
+
+	/**
+	 * Gets the delay after which an index that was not requested is dropped.
+	 * @return the delay in milliseconds.
+	 */
+	public synchronized long getUnusedDelay () {
+		return unusedDelay;
+	}
+
+	/**
+	 * Records that a query of a TM would use a given index.
+	 * @param tmUuid the UUID of the TM.
+	 * @param tmName the current name of the TM.
+	 * @param segmentTable true for an index on the segment table, false for the TU table.
+	 * @param columns the field names and the sort direction (true for ascending) of the columns
+	 * of the index, in the order of the index. The map must not be modified after this call.
+	 */
+	void recordUsage (String tmUuid,
+		String tmName,
+		boolean segmentTable,
+		LinkedHashMap<String, Boolean> columns)
+	{
+		if ( !isEnabled() ) return;
+		loadIndexes(tmUuid);
+		synchronized ( this ) {
+			tmNames.put(tmUuid, tmName);
+			String indexName = makeIndexName(tmUuid, segmentTable, columns);
+			ManagedIndex mi = indexes.get(indexName);
+			if ( mi == null ) {
+				mi = new ManagedIndex(indexName, tmUuid, segmentTable, columns);
+				indexes.put(indexName, mi);
+			}
+			mi.useCount++;
+			mi.lastUsed = System.currentTimeMillis();
+			if ((( mi.status == Status.CANDIDATE ) || ( mi.status == Status.FAILED ))
+				&& ( mi.useCount >= threshold ))
+			{
+				mi.status = Status.PENDING;
+				scheduleBuild(indexName);
+			}
+		}
+	}
+
+	/**
+	 * Gets the managed indexes of a given TM.
+	 * @param tmUuid the UUID of the TM.
+	 * @return a list of copies of the information on each index (can be empty).
+	 */
+	List<ManagedIndex> getIndexes (String tmUuid) {
+		loadIndexes(tmUuid);
+		ArrayList<ManagedIndex> list = new ArrayList<ManagedIndex>();
+		synchronized ( this ) {
+			for ( ManagedIndex mi : indexes.values() ) {
+				if ( mi.tmUuid.equals(tmUuid) ) list.add(new ManagedIndex(mi));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Updates the name of a TM after it has been renamed.
+	 * @param tmUuid the UUID of the TM.
+	 * @param newName the new name of the TM.
+	 */
+	synchronized void tmRenamed (String tmUuid,
+		String newName)
+	{
+		if ( tmNames.containsKey(tmUuid) ) tmNames.put(tmUuid, newName);
+	}
+
+	/**
+	 * Forgets the indexes of a TM after it has been deleted (its indexes are
+	 * dropped with its tables).
+	 * @param tmUuid the UUID of the TM.
+	 */
+	synchronized void tmDeleted (String tmUuid) {
+		Iterator<ManagedIndex> iter = indexes.values().iterator();
+		while ( iter.hasNext() ) {
+			if ( iter.next().tmUuid.equals(tmUuid) ) iter.remove();
+		}
+		tmNames.remove(tmUuid);
+		loadedTms.remove(tmUuid);
+	}
+
+	/**
+	 * Prevents any index from being built or dropped until {@link #resume()} is called.
+	 * <p>This must be called before opening a transaction on the connection of the
+	 * repository, since creating or dropping an index commits it. If a build is in progress
+	 * this call waits for its end.
+	 */
+	void suspend () {
+		synchronized ( buildLock ) {
+			synchronized ( this ) {
+				suspendCount++;
+			}
+		}
+	}
+
+	/**
+	 * Allows again the indexes to be built or dropped after a call to {@link #suspend()}.
+	 */
+	synchronized void resume () {
+		if ( suspendCount == 0 ) return;
+		if ( --suspendCount > 0 ) return;
+		for ( ManagedIndex mi : indexes.values() ) {
+			if ( mi.status == Status.PENDING ) scheduleBuild(mi.indexName);
+		}
+		if ( !tasks.isEmpty() ) scheduleTasks();
+	}
+
+	/**
+	 * Runs another schema change of the TMs (e.g. the promotion of a sparse field) on
+	 * the background thread, with the same rules as the builds of the indexes: it is not run
+	 * while this advisor is suspended, and nothing is run if this advisor is disabled.
+	 * <p>Errors thrown by the task are ignored.
+	 * @param task the task to run.
+	 */
+	synchronized void scheduleTask (Runnable task) {
+		if ( !enabled ) return;
+		tasks.add(task);
+		if ( tasks.size() == 1 ) scheduleTasks();
+	}
+
+	/**
+	 * Waits until the builds scheduled so far are done.
+	 * @throws InterruptedException if the waiting thread is interrupted.
+	 */
+	public void waitForBuilds ()
+		throws InterruptedException
+	{
+		ScheduledExecutorService exec;
+		synchronized ( this ) {
+			exec = executor;
+		}
+		if ( exec == null ) return;
+		try {
+			// The executor has a single thread: this runs after all the tasks submitted before
+			exec.submit(new Runnable() {
+				@Override
+				public void run () {
+					// Nothing to do
+				}
+			}).get();
+		}
+		catch ( ExecutionException e ) {
+			throw new RuntimeException(e);
+		}
+		catch ( RejectedExecutionException e ) {
+			// Closed: nothing to wait for
+		}
+	}
+
+	/**
+	 * Drops the managed indexes that were not requested for the unused delay, and forgets
+	 * the candidates that were not requested for that delay.
+	 * <p>This is done periodically by the background thread.
+	 * @return the number of indexes dropped.
+	 */
+	public int dropUnusedIndexes () {
+		synchronized ( buildLock ) {
+			ArrayList<ManagedIndex> toDrop = new ArrayList<ManagedIndex>();
+			synchronized ( this ) {
+				if ( !enabled || ( suspendCount > 0 )) return 0;
+				long limit = System.currentTimeMillis()-unusedDelay;
+				Iterator<ManagedIndex> iter = indexes.values().iterator();
+				while ( iter.hasNext() ) {
+					ManagedIndex mi = iter.next();
+					if ( mi.lastUsed > limit ) continue;
+					switch ( mi.status ) {
+					case BUILT:
+						toDrop.add(mi);
+						// Fall through
+					case CANDIDATE:
+					case FAILED:
+						iter.remove();
+						break;
+					default: // Pending or building: leave it
+						break;
+					}
+				}
+			}
+			int count = 0;
+			for ( ManagedIndex mi : toDrop ) {
+				try {
+					execute(mi.tmUuid, "DROP INDEX IF EXISTS \""+mi.indexName+"\"");
+					count++;
+				}
+				catch ( SQLException e ) {
+					// Keep track of the index so the drop is tried again later
+					synchronized ( this ) {
+						mi.error = e.getMessage();
+						indexes.put(mi.indexName, mi);
+					}
+				}
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Stops the background thread. A build in progress is completed before this call returns,
+	 * the builds not started yet are cancelled.
+	 */
+	void close () {
+		ScheduledExecutorService exec;
+		synchronized ( this ) {
+			exec = executor;
+			executor = null;
+			enabled = false;
+		}
+		if ( exec != null ) exec.shutdownNow();
+		synchronized ( buildLock ) {
+			// Wait for the end of a build in progress
+		}
+	}
+
+	/**
+	 * Schedules the build of an index. Must be called with the lock on this object.
+	 * @param indexName the name of the index to build.
+	 */
+	private void scheduleBuild (final String indexName) {
+		if ( suspendCount > 0 ) return; // Will be scheduled on resume()
+		getExecutor().execute(new Runnable() {
+			@Override
+			public void run () {
+				build(indexName);
+			}
+		});
+	}
+
+	/**
+	 * Schedules the run of the pending tasks. Must be called with the lock on this object.
+	 */
+	private void scheduleTasks () {
+		if ( suspendCount > 0 ) return; // Will be scheduled on resume()
+		getExecutor().execute(new Runnable() {
+			@Override
+			public void run () {
+				runTasks();
+			}
+		});
+	}
+
+	private void runTasks () {
+		synchronized ( buildLock ) {
+			while ( true ) {
+				Runnable task;
+				synchronized ( this ) {
+					if ( !enabled || ( suspendCount > 0 ) || tasks.isEmpty() ) return; // Re-scheduled on resume()
+					task = tasks.remove(0);
+				}
+				try {
+					task.run();
+				}
+				catch ( Throwable e ) {
+					// The task is not tried again
+				}
+			}
+		}
+	}
+
+	private ScheduledExecutorService getExecutor () {
+		if ( executor == null ) {
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread (Runnable r) {
+					Thread thread = new Thread(r, "TM Index Advisor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run () {
+					// Exceptions would cancel the next runs
+					try {
+						dropUnusedIndexes();
+					}
+					catch ( Throwable e ) {
+						// Tried again on the next run
+					}
+				}
+			}, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+		return executor;
+	}
+
+	private void build (String indexName) {
+		synchronized ( buildLock ) {
+			ManagedIndex mi;
+			String sql;
+			synchronized ( this ) {
+				mi = indexes.get(indexName);
+				if (( mi == null ) || ( mi.status != Status.PENDING )) return;
+				if ( !enabled || ( suspendCount > 0 )) return; // Re-scheduled on resume()
+				mi.status = Status.BUILDING;
+				StringBuilder tmp = new StringBuilder();
+				for ( Map.Entry<String, Boolean> entry : mi.columns.entrySet() ) {
+					if ( tmp.length() > 0 ) tmp.append(", ");
+					tmp.append("\""+entry.getKey()+"\" "+(entry.getValue() ? "ASC" : "DESC"));
+				}
+				sql = String.format("CREATE INDEX IF NOT EXISTS \"%s\" ON \"%s_%s\" (%s)",
+					indexName, tmNames.get(mi.tmUuid), (mi.segmentTable ? "SEG" : "TU"), tmp);
+			}
+			try {
+				execute(mi.tmUuid, sql);
+				synchronized ( this ) {
+					mi.status = Status.BUILT;
+					mi.error = null;
+				}
+			}
+			catch ( SQLException e ) {
+				synchronized ( this ) {
+					mi.status = Status.FAILED;
+					mi.error = e.getMessage();
+					mi.useCount = 0;
+				}
+			}
+		}
+	}
+
+	private void execute (String tmUuid,
+		String sql)
+		throws SQLException
+	{
+		Statement stm = null;
+		try {
+			stm = repository.getConnectionByUuid(tmUuid).createStatement();
+			stm.execute(sql);
+		}
+		finally {
+			if ( stm != null ) {
+				stm.close();
+				stm = null;
+			}
+		}
+	}
+
+	/**
+	 * Loads the managed indexes created for a given TM in previous sessions, if it is not done yet.
+	 * <p>They are considered just used, so they are dropped only if they stay unused
+	 * for the unused delay.
+	 * @param tmUuid the UUID of the TM.
+	 */
+	private void loadIndexes (String tmUuid) {
+		synchronized ( this ) {
+			if ( !loadedTms.add(tmUuid) ) return;
+		}
+		LinkedHashMap<String, ManagedIndex> found = new LinkedHashMap<String, ManagedIndex>();
+		PreparedStatement pstm = null;
+		try {
+			pstm = repository.getConnectionByUuid(tmUuid).prepareStatement("SELECT INDEX_NAME, TABLE_NAME, COLUMN_NAME, ASC_OR_DESC "
+				+ "FROM INFORMATION_SCHEMA.INDEXES WHERE INDEX_NAME LIKE ? ORDER BY INDEX_NAME, ORDINAL_POSITION");
+			pstm.setString(1, INDEX_PREFIX+tmUuid+"%");
+			ResultSet result = pstm.executeQuery();
+			long now = System.currentTimeMillis();
+			while ( result.next() ) {
+				String indexName = result.getString(1);
+				ManagedIndex mi = found.get(indexName);
+				if ( mi == null ) {
+					mi = new ManagedIndex(indexName, tmUuid, result.getString(2).endsWith("_SEG"),
+						new LinkedHashMap<String, Boolean>());
+					mi.status = Status.BUILT;
+					mi.lastUsed = now;
+					found.put(indexName, mi);
+				}
+				mi.columns.put(result.getString(3), !"D".equals(result.getString(4)));
+			}
+		}
+		catch ( SQLException e ) {
+			// The advice must not break the queries: the existing indexes are just not managed
+			found.clear();
+		}
+		finally {
+			try {
+				if ( pstm != null ) {
+					pstm.close();
+					pstm = null;
+				}
+			}
+			catch ( SQLException e ) {
+				throw new RuntimeException(e);
+			}
+		}
+		synchronized ( this ) {
+			for ( ManagedIndex mi : found.values() ) {
+				if ( !indexes.containsKey(mi.indexName) ) indexes.put(mi.indexName, mi);
+			}
+		}
+	}
+
+	/**
+	 * Makes the name of the index for a given list of columns. The same columns always give
+	 * the same name, and the name does not depend on the name of the TM (so it does not change
+	 * when the TM is renamed).
+	 * @param tmUuid the UUID of the TM.
+	 * @param segmentTable true for the segment table, false for the TU table.
+	 * @param columns the columns of the index.
+	 * @return the name of the index.
+	 */
+	static String makeIndexName (String tmUuid,
+		boolean segmentTable,
+		LinkedHashMap<String, Boolean> columns)
+	{
+		StringBuilder tmp = new StringBuilder(segmentTable ? "SEG" : "TU");
+		for ( Map.Entry<String, Boolean> entry : columns.entrySet() ) {
+			tmp.append("|"+entry.getKey()+(entry.getValue() ? "+" : "-"));
+		}
+		return String.format("%s%s_%08X", INDEX_PREFIX, tmUuid, tmp.toString().hashCode());
+	}
+
+}
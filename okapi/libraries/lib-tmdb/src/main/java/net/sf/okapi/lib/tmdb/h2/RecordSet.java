@@ -21,18 +21,94 @@
 package net.sf.okapi.lib.tmdb.h2;
 
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.ArrayList;
 
 import net.sf.okapi.common.exceptions.OkapiIOException;
 import net.sf.okapi.lib.tmdb.DbUtil;
 import net.sf.okapi.lib.tmdb.IRecordSet;
+import net.sf.okapi.lib.tmdb.RecordPage;
 
 public class RecordSet implements IRecordSet {
 
 	private ResultSet rs;
+	private final Dictionary dictionary;
+	private boolean[] encoded; // Dictionary-encoded columns, null if not computed yet
 	
 	public RecordSet (ResultSet rs) {
+		this(rs, null);
+	}
+	
+	/**
+	 * Creates a record set decoding the dictionary-encoded fields.
+	 * @param rs the result set to wrap.
+	 * @param dictionary the dictionary of the TM (can be null).
+	 */
+	RecordSet (ResultSet rs,
+		Dictionary dictionary)
+	{
 		this.rs = rs;
+		this.dictionary = dictionary;
+	}
+	
+	/**
+	 * Copies all the rows of a result set into a detached page, and closes the result set.
+	 * <p>The first column of the result set must be the segment key and the second the flag.
+	 * @param result the result set to copy.
+	 * @param capacity the expected number of rows.
+	 * @return the new page.
+	 * @throws SQLException if an error occurs.
+	 */
+	public static RecordPage detach (ResultSet result,
+		int capacity)
+		throws SQLException
+	{
+		return detach(result, capacity, null);
+	}
+	
+	/**
+	 * Copies all the rows of a result set into a detached page, decoding the
+	 * dictionary-encoded fields, and closes the result set.
+	 * <p>The first column of the result set must be the segment key and the second the flag.
+	 * @param result the result set to copy.
+	 * @param capacity the expected number of rows.
+	 * @param dictionary the dictionary of the TM (can be null).
+	 * @return the new page.
+	 * @throws SQLException if an error occurs.
+	 */
+	static RecordPage detach (ResultSet result,
+		int capacity,
+		Dictionary dictionary)
+		throws SQLException
+	{
+		try {
+			ResultSetMetaData meta = result.getMetaData();
+			int colCount = meta.getColumnCount();
+			ArrayList<String> names = new ArrayList<String>(colCount);
+			boolean[] encoded = new boolean[colCount+1];
+			for ( int i=1; i<=colCount; i++ ) {
+				names.add(meta.getColumnName(i));
+				encoded[i] = (( dictionary != null ) && dictionary.isEncoded(names.get(i-1)));
+			}
+			RecordPage page = new RecordPage(names, capacity);
+			while ( result.next() ) {
+				page.addRecord(result.getLong(1), result.getBoolean(2));
+				for ( int i=3; i<=colCount; i++ ) {
+					Object value = result.getObject(i);
+					// Binary columns are compressed text: keep them compressed in the page
+					if ( value instanceof byte[] ) value = new CompressedValue((byte[])value);
+					else if ( encoded[i] && ( value != null )) {
+						value = dictionary.getValue(names.get(i-1), ((Number)value).intValue());
+					}
+					page.setValue(i, value);
+				}
+			}
+			return page;
+		}
+		finally {
+			result.close();
+		}
 	}
 	
 	@Override
@@ -68,7 +144,10 @@ public class RecordSet implements IRecordSet {
 	@Override
 	public String getString (int index) {
 		try {
-			return rs.getString(index);
+			Object value = rs.getObject(index);
+			if ( value instanceof byte[] ) return CompressedValue.expand((byte[])value);
+			if (( value != null ) && isEncoded(index) ) return decode(index, value);
+			return (value == null) ? null : rs.getString(index);
 		}
 		catch ( SQLException e ) {
 			throw new OkapiIOException(e.getMessage(), e);
@@ -78,7 +157,12 @@ public class RecordSet implements IRecordSet {
 	@Override
 	public String getString (String name) {
 		try {
-			return rs.getString(name);
+			Object value = rs.getObject(name);
+			if ( value instanceof byte[] ) return CompressedValue.expand((byte[])value);
+			if (( value != null ) && ( dictionary != null ) && dictionary.isEncoded(name) ) {
+				return dictionary.getValue(name, ((Number)value).intValue());
+			}
+			return (value == null) ? null : rs.getString(name);
 		}
 		catch ( SQLException e ) {
 			throw new OkapiIOException(e.getMessage(), e);
@@ -128,7 +212,12 @@ public class RecordSet implements IRecordSet {
 	@Override
 	public Object getObject (String name) {
 		try {
-			return rs.getObject(name);
+			Object value = rs.getObject(name);
+			if ( value instanceof byte[] ) return CompressedValue.expand((byte[])value);
+			if (( value != null ) && ( dictionary != null ) && dictionary.isEncoded(name) ) {
+				return dictionary.getValue(name, ((Number)value).intValue());
+			}
+			return value;
 		}
 		catch ( SQLException e ) {
 			throw new OkapiIOException(e.getMessage(), e);
@@ -155,4 +244,25 @@ public class RecordSet implements IRecordSet {
 		}
 	}
 	
-}
\ No newline at end of file
+	private boolean isEncoded (int index)
+		throws SQLException
+	{
+		if ( dictionary == null ) return false;
+		if ( encoded == null ) {
+			ResultSetMetaData meta = rs.getMetaData();
+			encoded = new boolean[meta.getColumnCount()+1];
+			for ( int i=1; i<encoded.length; i++ ) {
+				encoded[i] = dictionary.isEncoded(meta.getColumnName(i));
+			}
+		}
+		return encoded[index];
+	}
+	
+	private String decode (int index,
+		Object value)
+		throws SQLException
+	{
+		return dictionary.getValue(rs.getMetaData().getColumnName(index), ((Number)value).intValue());
+	}
+
+}
@@ -29,8 +29,14 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import net.sf.okapi.common.Util;
@@ -38,10 +44,23 @@ import net.sf.okapi.lib.tmdb.DbUtil;
 import net.sf.okapi.lib.tmdb.IIndexAccess;
 import net.sf.okapi.lib.tmdb.IRepository;
 import net.sf.okapi.lib.tmdb.ITm;
+import net.sf.okapi.lib.tmdb.PageCache;
+import net.sf.okapi.lib.tmdb.filter.FilterCompiler;
 
 public class Repository implements IRepository {
 
 	public static final String DATAFILE_EXT = ".h2.db";
+	/**
+	 * Extension of the directory of the databases of the TMs stored in their own file.
+	 */
+	public static final String TMDIR_EXT = ".tms";
+	/**
+	 * Default maximum number of pooled connections for each database.
+	 */
+	public static final int DEFAULT_POOLSIZE = 8;
+	
+	private static final int DELETE_BATCH_SIZE = 1000;
+	private static final int POOL_STATEMENTCACHE_SIZE = 32;
 
 	private Connection  conn = null;
 	private String name;
@@ -49,6 +68,19 @@ public class Repository implements IRepository {
 	private boolean serverMode = false;
 	private IndexAccess ia = null;
 	private String idxDirectory = null;
+	private final TmCatalog catalog = new TmCatalog();
+	private final PageCache pageCache = new PageCache(PageCache.DEFAULT_MAXSIZE);
+	private PreparedStatement pstmCatalogVersion;
+	private IndexAdvisor indexAdvisor;
+	private boolean tmDatabases = false; // True to create each new TM in its own database
+	private String url; // URL of the main database (with the options)
+	private String urlOptions; // Options added to the URLs of the databases
+	private boolean mvcc; // True if the databases are in multi-version concurrency mode
+	private String tmUrlPrefix; // Prefix of the URL of the databases of the TMs (followed by the UUID)
+	private final HashMap<String, Connection> tmConnections = new HashMap<String, Connection>(); // Key: TM UUID
+	private final HashMap<String, ConnectionPool> pools = new HashMap<String, ConnectionPool>(); // Key: TM UUID, or null for the main database
+	private int poolSize = DEFAULT_POOLSIZE;
+	private final Object keyLock = new Object(); // Lock of the identity sequences of the TMs
 
 	static public void delete (String path) {
 		String pathNoExt = path;
@@ -62,6 +94,8 @@ public class Repository implements IRepository {
 		}
 		// Delete index content and directory
 		Util.deleteDirectory(pathNoExt+".idx", false);
+		// Delete the databases of the TMs stored in their own file
+		Util.deleteDirectory(pathNoExt+TMDIR_EXT, false);
 	}
 
 	/**
@@ -76,6 +110,53 @@ public class Repository implements IRepository {
 	public Repository (String path,
 		boolean serverMode)
 	{
+		this(path, serverMode, false);
+	}
+	
+	/**
+	 * Creates a new Repository object, with the option of storing each new TM in its own database.
+	 * <p>When a TM has its own database, its tables are accessed through their own connection
+	 * (with its own cache): imports and queries on different TMs do not block each other and can run
+	 * in parallel from different threads, and deleting the TM deletes its database file. The main
+	 * database only holds the list of the TMs. The databases of the TMs are stored in a directory
+	 * named after the main database (see {@link #TMDIR_EXT}).
+	 * <p>The existing TMs are used with the layout they were created with.
+	 * @param path the path of the main storage file (without extension normally),
+	 * or the host URL and database name for server mode, or null for a private in-memory repository.
+	 * @param serverMode true to use the TCP server connection mode.
+	 * @param tmDatabases true to create each new TM in its own database, false to create the new TMs
+	 * in the main database.
+	 */
+	public Repository (String path,
+		boolean serverMode,
+		boolean tmDatabases)
+	{
+		this(path, serverMode, tmDatabases, false);
+	}
+	
+	/**
+	 * Creates a new Repository object, with the options of storing each new TM in its own database
+	 * and of using the multi-version concurrency mode of H2.
+	 * <p>In multi-version mode the readers do not lock the tables and see only the committed rows:
+	 * the pages can be read while a bulk import runs on another thread. The bulk imports use their
+	 * own connection and their rows become visible when they are committed, at the end of the
+	 * import or at its checkpoints (see {@link Tm#setImportCheckpointInterval(int)}).
+	 * <p>The mode applies to the whole database: in server mode, it is set by the first connection.
+	 * @param path the path of the main storage file (without extension normally),
+	 * or the host URL and database name for server mode, or null for a private in-memory repository.
+	 * @param serverMode true to use the TCP server connection mode.
+	 * @param tmDatabases true to create each new TM in its own database, false to create the new TMs
+	 * in the main database.
+	 * @param mvcc true to open the databases in multi-version concurrency mode.
+	 */
+	public Repository (String path,
+		boolean serverMode,
+		boolean tmDatabases,
+		boolean mvcc)
+	{
+		this.tmDatabases = tmDatabases;
+		this.mvcc = mvcc;
+		urlOptions = (mvcc ? ";MVCC=TRUE" : "");
 		Statement stm = null;
 		try {
 			// Initialize the driver
@@ -85,8 +166,12 @@ public class Repository implements IRepository {
 			
 			if ( path == null ) {
 				// Open the connection, this creates the DB if none exists
-				conn = DriverManager.getConnection("jdbc:h2:mem:", "sa", "");
+				// Named (but private) database, so other connections can be opened for the scans
+				url = "jdbc:h2:mem:REPO_"+UUID.randomUUID().toString()+urlOptions;
+				conn = DriverManager.getConnection(url, "sa", "");
 				name = "In-Memory Repository";
+				// Named in-memory databases: they live as long as their connection
+				tmUrlPrefix = "jdbc:h2:mem:TM_";
 			}
 			else {
 				String pathNoExt = path;
@@ -97,8 +182,11 @@ public class Repository implements IRepository {
 			
 				// Open the connection
 				if ( serverMode ) { // server mode (assumes the database exists)
-					conn = DriverManager.getConnection("jdbc:h2:tcp://"+pathNoExt, "sa", "");
+					url = "jdbc:h2:tcp://"+pathNoExt+urlOptions;
+					conn = DriverManager.getConnection(url, "sa", "");
+					tmUrlPrefix = "jdbc:h2:tcp://"+pathNoExt+TMDIR_EXT+"/";
 					shared = true;
+					pageCache.setMaxSize(0);
 					exist = true; // Assumes it exists
 				}
 				else { // Local mode (creates the database if it does not exist)
@@ -108,7 +196,9 @@ public class Repository implements IRepository {
 						// Create the directory if needed
 						Util.createDirectories(pathNoExt);
 					}
-					conn = DriverManager.getConnection("jdbc:h2:"+pathNoExt, "sa", "");
+					url = "jdbc:h2:"+pathNoExt+urlOptions;
+					conn = DriverManager.getConnection(url, "sa", "");
+					tmUrlPrefix = "jdbc:h2:"+pathNoExt+TMDIR_EXT+"/";
 				}
 			}
 	
@@ -128,13 +218,25 @@ public class Repository implements IRepository {
 					+ "INDEXINFO VARCHAR"
 					+ ")");
 			}
+			// Version of the schema, used to detect changes done by other clients
+			// (created here too, for repositories made with older versions)
+			stm.execute("CREATE TABLE IF NOT EXISTS CATALOGVERSION (VERSION BIGINT)");
+			// List of the TMs stored in their own database (created here too, for the same reason)
+			stm.execute("CREATE TABLE IF NOT EXISTS TMFILES (UUID VARCHAR PRIMARY KEY)");
+			ResultSet rs = stm.executeQuery("SELECT COUNT(*) FROM CATALOGVERSION");
+			if ( rs.next() && ( rs.getLong(1) == 0 )) {
+				stm.execute("INSERT INTO CATALOGVERSION (VERSION) VALUES (0)");
+			}
 			// Get the work directory
-			ResultSet rs = stm.executeQuery("CALL DATABASE_PATH()");
+			rs = stm.executeQuery("CALL DATABASE_PATH()");
 			if ( rs.next() ) {
 				idxDirectory = rs.getString(1);
 				if ( idxDirectory != null ) idxDirectory += ".idx";
 			}
 			
+			indexAdvisor = new IndexAdvisor(this);
+			// In shared mode the indexes would be changed under the feet of the other clients
+			indexAdvisor.setEnabled(!shared);
 		}
 		catch ( SQLException e ) {
 			throw new RuntimeException(e);
@@ -164,6 +266,27 @@ public class Repository implements IRepository {
 	@Override
 	public void close () {
 		try {
+			if ( pstmCatalogVersion != null ) {
+				pstmCatalogVersion.close();
+				pstmCatalogVersion = null;
+			}
+			catalog.clear();
+			if ( indexAdvisor != null ) {
+				// Waits for a build in progress
+				indexAdvisor.close();
+			}
+			synchronized ( pools ) {
+				for ( ConnectionPool pool : pools.values() ) {
+					pool.close();
+				}
+				pools.clear();
+			}
+			synchronized ( tmConnections ) {
+				for ( Connection tmConn : tmConnections.values() ) {
+					tmConn.close();
+				}
+				tmConnections.clear();
+			}
 			if ( conn != null ) {
 				conn.close();
 				conn = null;
@@ -188,14 +311,224 @@ public class Repository implements IRepository {
 		return conn;
 	}
 	
+	/**
+	 * Indicates if the new TMs are created in their own database.
+	 * @return true if each new TM is created in its own database.
+	 */
+	public boolean getTmDatabases () {
+		return tmDatabases;
+	}
+	
+	/**
+	 * Indicates if the databases of this repository are in multi-version concurrency mode.
+	 * <p>In that mode the readers never wait for the locks of a transaction (they do not see
+	 * its changes before it is committed).
+	 * @return true if the databases are in multi-version concurrency mode.
+	 */
+	public boolean isMvcc () {
+		return mvcc;
+	}
+	
+	/**
+	 * Sets the maximum number of pooled connections for each database of this repository.
+	 * <p>The read-only queries of the TMs (pages, seeks, counts) borrow a pooled connection,
+	 * so this is the maximum number of such queries that run at the same time on one database.
+	 * @param poolSize the maximum number of connections of each pool (at least 1).
+	 */
+	public void setPoolSize (int poolSize) {
+		if ( poolSize < 1 ) {
+			throw new IllegalArgumentException("The pool must have at least one connection.");
+		}
+		synchronized ( pools ) {
+			this.poolSize = poolSize;
+			for ( ConnectionPool pool : pools.values() ) {
+				pool.setMaxSize(poolSize);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the maximum number of pooled connections for each database of this repository.
+	 * @return the maximum number of connections of each pool.
+	 */
+	public int getPoolSize () {
+		synchronized ( pools ) {
+			return poolSize;
+		}
+	}
+	
+	/**
+	 * Gets the pool of the connections to the database holding the tables of a given TM.
+	 * <p>The pooled connections are for the read-only queries: the changes are done on the
+	 * connection of the TM (see {@link #getConnection(String)}). While a transaction is open
+	 * on that connection, the queries must use it too (the pooled connections would wait for
+	 * the locks of the transaction), except in multi-version mode.
+	 * @param tmName the name of the TM.
+	 * @return the pool of the TM (shared with the other TMs of the main database).
+	 */
+	ConnectionPool getPool (String tmName) {
+		try {
+			TmCatalog.TmInfo info = getCatalog().get(tmName);
+			if ( info == null ) {
+				throw new RuntimeException(String.format("The TM '%s' does not exists.", tmName));
+			}
+			getConnection(info); // Makes sure the database of the TM exists
+			String key = ( info.ownDatabase ? info.uuid : null );
+			synchronized ( pools ) {
+				ConnectionPool pool = pools.get(key);
+				if ( pool == null ) {
+					pool = new ConnectionPool(getUrl(info),
+						poolSize, POOL_STATEMENTCACHE_SIZE);
+					pools.put(key, pool);
+				}
+				return pool;
+			}
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Gets the connection to the database holding the tables of a given TM.
+	 * @param tmName the name of the TM.
+	 * @return the connection of the own database of the TM, or the connection of the
+	 * main database.
+	 */
+	Connection getConnection (String tmName) {
+		try {
+			TmCatalog.TmInfo info = getCatalog().get(tmName);
+			if ( info == null ) {
+				throw new RuntimeException(String.format("The TM '%s' does not exists.", tmName));
+			}
+			return getConnection(info);
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Gets the connection to the database holding the tables of a given TM.
+	 * @param tmUuid the UUID of the TM.
+	 * @return the connection of the own database of the TM, or the connection of the
+	 * main database (also if the TM does not exist anymore).
+	 * @throws SQLException if an error occurs.
+	 */
+	Connection getConnectionByUuid (String tmUuid)
+		throws SQLException
+	{
+		TmCatalog.TmInfo info = getCatalog().getByUuid(tmUuid);
+		if ( info == null ) return conn;
+		return getConnection(info);
+	}
+	
+	/**
+	 * Opens a new connection to the database holding the tables of a given TM.
+	 * <p>This is used to read a TM from several threads at the same time.
+	 * The caller must close the connection.
+	 * @param tmName the name of the TM.
+	 * @return the new connection.
+	 * @throws SQLException if an error occurs.
+	 */
+	Connection openConnection (String tmName)
+		throws SQLException
+	{
+		TmCatalog.TmInfo info = getCatalog().get(tmName);
+		if ( info == null ) {
+			throw new RuntimeException(String.format("The TM '%s' does not exists.", tmName));
+		}
+		getConnection(info); // Makes sure the database of the TM exists
+		return DriverManager.getConnection(getUrl(info), "sa", "");
+	}
+	
+	/**
+	 * Gets the lock of the identity sequences of the TMs.
+	 * <p>The key ranges reserved for the bulk imports and the inserts using the generated keys
+	 * must be done while holding this lock, so no generated key falls in a reserved range.
+	 * @return the lock of the identity sequences.
+	 */
+	Object getKeyLock () {
+		return keyLock;
+	}
+	
+	/**
+	 * Gets the URL of the database holding the tables of a given TM.
+	 * @param info the information on the TM.
+	 * @return the URL of the database of the TM (with the options).
+	 */
+	private String getUrl (TmCatalog.TmInfo info) {
+		if ( info.ownDatabase ) return tmUrlPrefix+info.uuid+urlOptions;
+		return url;
+	}
+	
+	/**
+	 * Gets the connection to the database holding the tables of a given TM, opening it if needed.
+	 * @param info the information on the TM.
+	 * @return the connection to use for the tables of the TM.
+	 * @throws SQLException if an error occurs.
+	 */
+	private Connection getConnection (TmCatalog.TmInfo info)
+		throws SQLException
+	{
+		if ( !info.ownDatabase ) return conn;
+		synchronized ( tmConnections ) {
+			Connection tmConn = tmConnections.get(info.uuid);
+			if ( tmConn == null ) {
+				if ( !serverMode && !tmUrlPrefix.startsWith("jdbc:h2:mem:") ) {
+					// Create the directory if needed
+					Util.createDirectories(tmUrlPrefix.substring("jdbc:h2:".length())+info.uuid);
+				}
+				tmConn = DriverManager.getConnection(getUrl(info), "sa", "");
+				tmConnections.put(info.uuid, tmConn);
+			}
+			return tmConn;
+		}
+	}
+	
 	@Override
 	public void deleteTm (String name) {
 		Statement stm = null;
+		indexAdvisor.suspend();
 		try {
+			TmCatalog.TmInfo info = getCatalog().get(name);
 			stm = conn.createStatement();
-			stm.execute("DROP TABLE \""+name+"_TU\"");
-			stm.execute("DROP TABLE \""+name+"_SEG\"");
+			if (( info != null ) && info.ownDatabase ) {
+				// Delete the whole database: its files are deleted when its connection is closed
+				ConnectionPool pool;
+				synchronized ( pools ) {
+					pool = pools.remove(info.uuid);
+				}
+				if ( pool != null ) pool.close();
+				Connection tmConn = getConnection(info);
+				Statement tmStm = tmConn.createStatement();
+				try {
+					tmStm.execute("DROP ALL OBJECTS DELETE FILES");
+				}
+				finally {
+					tmStm.close();
+				}
+				synchronized ( tmConnections ) {
+					tmConnections.remove(info.uuid);
+				}
+				tmConn.close();
+				stm.executeUpdate("DELETE FROM TMFILES WHERE UUID='"+info.uuid+"'");
+			}
+			else {
+				stm.execute("DROP TABLE \""+name+"_TU\"");
+				stm.execute("DROP TABLE \""+name+"_SEG\"");
+				if ( info != null ) {
+					stm.execute("DROP TABLE IF EXISTS "+Dictionary.getTable(info.uuid));
+					stm.execute("DROP TABLE IF EXISTS "+SparseFields.getTable(info.uuid));
+				}
+			}
 			stm.executeUpdate("DELETE FROM TMLIST WHERE NAME='"+name+"'");
+			if ( info != null ) {
+				pageCache.modified(info.uuid);
+				indexAdvisor.tmDeleted(info.uuid);
+			}
+			catalog.remove(name);
+			catalogChanged();
 			// Delete indexed entries for the given TM
 			//TODO
 		}
@@ -203,6 +536,7 @@ public class Repository implements IRepository {
 			throw new RuntimeException(e);
 		}
 		finally {
+			indexAdvisor.resume();
 			try {
 				if ( stm != null ) {
 					stm.close();
@@ -216,34 +550,17 @@ public class Repository implements IRepository {
 	}
 
 	String[] getTmData (String uuid) {
-		String[] res = new String[3];
-		Statement stm = null;
 		try {
-			stm = conn.createStatement();
-			ResultSet result = stm.executeQuery("SELECT NAME, DESCRIPTION, INDEXINFO FROM TMLIST WHERE UUID='"+uuid+"'");
-			if ( !result.first() ) {
+			TmCatalog.TmInfo info = getCatalog().getByUuid(uuid);
+			if ( info == null ) {
 				// Invalid TM key
 				throw new RuntimeException(String.format("Invalid TM uuid '%s'.", uuid));
 			}
-			res[0] = result.getString(1);
-			res[1] = result.getString(2);
-			res[2] = result.getString(3);
+			return new String[]{info.name, info.description, info.indexInfo};
 		}
 		catch ( SQLException e ) {
 			throw new RuntimeException(e);
 		}
-		finally {
-			try {
-				if ( stm != null ) {
-					stm.close();
-					stm = null;
-				}
-			}
-			catch ( SQLException e ) {
-				throw new RuntimeException(e);
-			}
-		}
-		return res;
 	}
 	
 	void updateIndexInfo (String uuid,
@@ -255,6 +572,9 @@ public class Repository implements IRepository {
 			pstm.setString(1, indexInfo);
 			pstm.setString(2, uuid);
 			pstm.executeUpdate();
+			TmCatalog.TmInfo info = catalog.getByUuid(uuid);
+			if ( info != null ) info.indexInfo = indexInfo;
+			catalogChanged();
 		}
 		catch ( SQLException e ) {
 			throw new RuntimeException(e);
@@ -277,10 +597,15 @@ public class Repository implements IRepository {
 		ITm tm = null;
 		Statement stm = null;
 		try {
-			stm = conn.createStatement();
-			ResultSet result = stm.executeQuery("SELECT UUID FROM TMLIST WHERE NAME='"+name+"'");
-			if ( result.first() ) {
-				tm = new Tm(this, result.getString(1), name);
+			TmCatalog.TmInfo info = getCatalog().get(name);
+			if ( info != null ) {
+				if ( !info.indexChecked ) {
+					// TMs created with older versions may not have the index yet
+					stm = getConnection(info).createStatement();
+					ensureTuRefIndex(stm, name);
+					info.indexChecked = true;
+				}
+				tm = new Tm(this, info.uuid, name);
 			}
 			else { // TM does not exist
 				throw new InvalidParameterException(String.format("The TM '%s' does not exists.", name));
@@ -307,6 +632,15 @@ public class Repository implements IRepository {
 	public ITm createTm (String name,
 		String description,
 		String localeCode)
+	{
+		return createTm(name, description, localeCode, false);
+	}
+	
+	@Override
+	public ITm createTm (String name,
+		String description,
+		String localeCode,
+		boolean compressText)
 	{
 		String uuid = null;
 		ITm tm = null;
@@ -314,12 +648,15 @@ public class Repository implements IRepository {
 		PreparedStatement pstm = null;
 		try {
 			// Checks if the name is already used
-			stm = conn.createStatement();
-			ResultSet result = stm.executeQuery("SELECT NAME FROM TMLIST WHERE NAME='"+name+"'");
-			if ( result.first() ) {
+			if ( getCatalog().get(name) != null ) {
 				// TM exists already
 				return openTm(name);
 			}
+			uuid = UUID.randomUUID().toString();
+			TmCatalog.TmInfo info = new TmCatalog.TmInfo(uuid, name, description, null);
+			info.ownDatabase = tmDatabases;
+			Connection tmConn = getConnection(info);
+			stm = tmConn.createStatement();
 			
 			// Create the TU-level table for the new TM
 			stm.execute("CREATE TABLE \""+name+"_TU"+"\" ("
@@ -327,23 +664,43 @@ public class Repository implements IRepository {
 				+ ")");
 			
 			// Create the SEG-level table for the new TM
+			// (the type of the text columns tells if the TM is compressed)
+			String textType = (compressText ? CompressedValue.SQL_TYPE : "VARCHAR");
 			stm.execute("CREATE TABLE \"" + name + "_SEG" + "\" ("
 				+ "\"" + DbUtil.SEGKEY_NAME + "\" INTEGER IDENTITY PRIMARY KEY,"
 				+ "\"" + DbUtil.TUREF_NAME + "\" INTEGER,"
 				+ "\"" + DbUtil.FLAG_NAME + "\" BOOLEAN,"
 				// One language
-				+ "\"" + DbUtil.TEXT_PREFIX+localeCode + "\" VARCHAR,"
-				+ "\"" + DbUtil.CODES_PREFIX+localeCode + "\" VARCHAR"
+				+ "\"" + DbUtil.TEXT_PREFIX+localeCode + "\" " + textType + ","
+				+ "\"" + DbUtil.CODES_PREFIX+localeCode + "\" " + textType
 				+ ")");
+			ensureTuRefIndex(stm, name);
+			Dictionary.createTable(stm, uuid);
+			info.sparseFields = new SparseFields(tmConn, uuid);
+			info.sparseFields.createTable();
 			
 			// Update the TMLIST
+			if ( info.ownDatabase ) {
+				pstm = conn.prepareStatement("INSERT INTO TMFILES (UUID) VALUES(?)");
+				pstm.setString(1, uuid);
+				pstm.executeUpdate();
+				pstm.close();
+			}
 			pstm = conn.prepareStatement("INSERT INTO TMLIST (UUID,NAME,DESCRIPTION,INDEXINFO) VALUES(?,?,?,?)");
-			uuid = UUID.randomUUID().toString();
 			pstm.setString(1, uuid);
 			pstm.setString(2, name);
 			pstm.setString(3, description);
 			pstm.setString(4, null);
 			pstm.executeUpdate();
+			
+			info.tuColumns = new ArrayList<String>(Arrays.asList("TUKEY"));
+			info.segColumns = new ArrayList<String>(Arrays.asList(DbUtil.SEGKEY_NAME, DbUtil.TUREF_NAME,
+				DbUtil.FLAG_NAME, DbUtil.TEXT_PREFIX+localeCode, DbUtil.CODES_PREFIX+localeCode));
+			info.indexChecked = true;
+			info.compressed = compressText;
+			info.dictionary = new Dictionary(tmConn, uuid, Collections.<String>emptyList());
+			catalog.add(info);
+			catalogChanged();
 			tm = new Tm(this, uuid, name);
 		}
 		catch ( SQLException e ) {
@@ -370,38 +727,15 @@ public class Repository implements IRepository {
 	ArrayList<String> getFields (String tmName,
 		boolean segmentTable)
 	{
-		ArrayList<String> list = new ArrayList<String>();
-		Statement stm = null;
-		try {
-			stm = conn.createStatement();
-			ResultSet result = stm.executeQuery(String.format("SHOW COLUMNS FROM \"%s%s\"", tmName, (segmentTable ? "_SEG" : "_TU")));
-			result.first(); //Skip key
-			if ( segmentTable ) result.next(); // Skip FLAG
-			while ( result.next() ) {
-				list.add(result.getString(1));
-			}
-		}
-		catch ( SQLException e ) {
-			throw new RuntimeException(e);
-		}
-		finally {
-			try {
-				if ( stm != null ) {
-					stm.close();
-					stm = null;
-				}
-			}
-			catch ( SQLException e ) {
-				throw new RuntimeException(e);
-			}
-		}
-		return list;
+		// Skip the key, and the TuRef for the segment table
+		ArrayList<String> columns = getColumns(tmName, segmentTable);
+		return new ArrayList<String>(columns.subList((segmentTable ? 2 : 1), columns.size()));
 	}
 
 	void createNewFields (String tmName,
 		boolean inSegmentTable,
 		LinkedHashMap<String, String> newFields,
-		ArrayList<String> existingFields)
+		Collection<String> existingFields)
 	{
 		if ( Util.isEmpty(newFields) ) {
 			return;
@@ -414,11 +748,31 @@ public class Repository implements IRepository {
 					tmName, (inSegmentTable ? "_SEG" : "_TU"),
 					name, newFields.get(name)));
 			}
-			stm = conn.createStatement();
+			stm = getConnection(tmName).createStatement();
 			stm.execute(tmp.toString());
+			if ( inSegmentTable && newFields.containsKey(DbUtil.HASH_NAME) ) {
+				ensureHashIndex(stm, tmName);
+			}
+			// Mark the dictionary-encoded fields
+			ArrayList<String> encoded = new ArrayList<String>();
+			for ( String name : newFields.keySet() ) {
+				if ( DbUtil.isDictionaryField(name) && Dictionary.SQL_TYPE.equals(newFields.get(name)) ) {
+					stm.execute(String.format("COMMENT ON COLUMN \"%s%s\".\"%s\" IS '%s'",
+						tmName, (inSegmentTable ? "_SEG" : "_TU"), name, Dictionary.REMARK));
+					encoded.add(name);
+				}
+			}
+			if ( !encoded.isEmpty() ) {
+				TmCatalog.TmInfo info = getCatalog().get(tmName);
+				Dictionary.createTable(stm, info.uuid);
+				getDictionary(tmName).fieldsCreated(encoded);
+			}
 
 			// Update the live list of existing fields
 			existingFields.addAll(newFields.keySet());
+			TmCatalog.TmInfo info = catalog.get(tmName);
+			if ( info != null ) info.addColumns(inSegmentTable, newFields.keySet());
+			catalogChanged();
 		}
 		catch ( SQLException e ) {
 			throw new RuntimeException(e);
@@ -437,91 +791,143 @@ public class Repository implements IRepository {
 	}
 	
 	List<String> getAvailableFields (String tmName) {
-		List<String> list = new ArrayList<String>();
-		Statement stm = null;
+		// All TU fields except TUKEY
+		ArrayList<String> columns = getColumns(tmName, false);
+		List<String> list = new ArrayList<String>(columns.subList(1, columns.size()));
+		SparseFields sparse = getSparseFields(tmName);
+		list.addAll(sparse.getFields(false));
+		// TuRef and all segment fields except SegKey and Flag
+		columns = getColumns(tmName, true);
+		list.add(columns.get(1));
+		list.addAll(columns.subList(3, columns.size()));
+		list.addAll(sparse.getFields(true));
+		return list;
+	}
+
+	@Override
+	public List<String> getTmNames () {
 		try {
-			stm = conn.createStatement();
-			ResultSet result = stm.executeQuery("SHOW COLUMNS FROM \""+tmName+"_TU\"");
-			result.first(); //Skip TUKEY
-			while ( result.next() ) {
-				list.add(result.getString(1));
-			}
-			result = stm.executeQuery("SHOW COLUMNS FROM \""+tmName+"_SEG\"");
-			result.first(); //Skip SEGKEY
-			result.next(); list.add(result.getString(1)); // Include TUREF
-			result.next(); //Skip FLAG
-			while ( result.next() ) {
-				list.add(result.getString(1));
-			}
-		}		
+			return getCatalog().getNames();
+		}
 		catch ( SQLException e ) {
 			throw new RuntimeException(e);
 		}
-		finally {
-			try {
-				if ( stm != null ) {
-					stm.close();
-					stm = null;
-				}
-			}
-			catch ( SQLException e ) {
-				throw new RuntimeException(e);
-			}
-		}
-		return list;
 	}
 
 	@Override
-	public List<String> getTmNames () {
-		List<String> list = new ArrayList<String>();
-		Statement stm = null;
+	public long getTotalSegmentCount (String tmName) {
 		try {
-			stm = conn.createStatement();
-			ResultSet result = stm.executeQuery("SELECT NAME FROM TMLIST");
-			while ( result.next() ) {
-				list.add(result.getString(1));
+			// In shared mode the count may be changed by other users: always query it
+			TmCatalog.TmInfo info = ( shared ? null : getCatalog().get(tmName) );
+			if (( info != null ) && ( info.segmentCount > -1 )) {
+				return info.segmentCount;
 			}
-		}		
+			long count = executeCount(tmName, "SELECT COUNT(*) FROM \""+tmName+"_SEG\"", null); // Optimized call for H2
+			if ( info != null ) info.segmentCount = count;
+			return count;
+		}
 		catch ( SQLException e ) {
 			throw new RuntimeException(e);
 		}
-		finally {
-			try {
-				if ( stm != null ) {
-					stm.close();
-					stm = null;
-				}
-			}
-			catch ( SQLException e ) {
-				throw new RuntimeException(e);
+	}
+	
+	/**
+	 * Gets the number of segments of a given TM that match a filter.
+	 * <p>The counts are cached by query, and discarded when the modification version
+	 * of the TM in the page cache changes.
+	 * @param tmName the name of the TM.
+	 * @param uuid the UUID of the TM.
+	 * @param fromClause the FROM clause of the selection (starting with a space).
+	 * @param condition the condition of the filter.
+	 * @return the number of segments matching the filter.
+	 */
+	long getFilteredSegmentCount (String tmName,
+		String uuid,
+		String fromClause,
+		FilterCompiler.SQLCondition condition)
+	{
+		String query = "SELECT COUNT(*)"+fromClause+" WHERE "+condition.getCondition();
+		// The key includes the values of the parameters
+		String key = query+"\n"+Arrays.toString(condition.getParameters());
+		try {
+			TmCatalog.TmInfo info = ( shared ? null : getCatalog().get(tmName) );
+			long version = pageCache.getVersion(uuid);
+			if ( info != null ) {
+				Long count = info.getFilteredCount(key, version);
+				if ( count != null ) return count;
 			}
+			long count = executeCount(tmName, query, condition);
+			if ( info != null ) info.setFilteredCount(key, version, count);
+			return count;
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
 		}
-		return list;
 	}
-
-	@Override
-	public long getTotalSegmentCount (String tmName) {
-		Statement stm = null;
+	
+	/**
+	 * Updates the segment count of a given TM after segments have been added or removed.
+	 * @param tmName the name of the TM.
+	 * @param delta the number of segments added (negative for the segments removed).
+	 */
+	void adjustSegmentCount (String tmName,
+		long delta)
+	{
+		TmCatalog.TmInfo info = catalog.get(tmName);
+		if ( info != null ) info.adjustSegmentCount(delta);
+	}
+	
+	/**
+	 * Discards the segment count of a given TM, it will be queried again on next access.
+	 * @param tmName the name of the TM.
+	 */
+	void resetSegmentCount (String tmName) {
+		TmCatalog.TmInfo info = catalog.get(tmName);
+		if ( info != null ) info.segmentCount = -1;
+	}
+	
+	/**
+	 * Executes a count query on a given TM, with a pooled connection if possible.
+	 * @param tmName the name of the TM.
+	 * @param query the query.
+	 * @param condition the condition to bind to the query (can be null).
+	 * @return the count.
+	 * @throws SQLException if an error occurs.
+	 */
+	private long executeCount (String tmName,
+		String query,
+		FilterCompiler.SQLCondition condition)
+		throws SQLException
+	{
+		Connection tmConn = getConnection(tmName);
+		ConnectionPool pool = null;
+		ConnectionPool.PooledConnection pc = null;
+		if ( mvcc || tmConn.getAutoCommit() ) {
+			pool = getPool(tmName);
+			pc = pool.borrow();
+			tmConn = pc.getConnection();
+		}
+		// Else: the other connections would wait for the locks of the open transaction
+		// (in multi-version mode they do not wait, but do not see the uncommitted rows)
+		PreparedStatement pstm = null;
 		long count = 0;
 		try {
-			stm = conn.createStatement();
-			ResultSet result = stm.executeQuery("SELECT COUNT(*) FROM \""+tmName+"_SEG\""); // Optimized call for H2
-			if ( result.first() ) {
+			pstm = tmConn.prepareStatement(query);
+			if ( condition != null ) condition.bind(pstm, 1);
+			ResultSet result = pstm.executeQuery();
+			if ( result.next() ) {
 				count = result.getLong(1);
 			}
-		}		
-		catch ( SQLException e ) {
-			throw new RuntimeException(e);
 		}
 		finally {
 			try {
-				if ( stm != null ) {
-					stm.close();
-					stm = null;
+				if ( pstm != null ) {
+					pstm.close();
+					pstm = null;
 				}
 			}
-			catch ( SQLException e ) {
-				throw new RuntimeException(e);
+			finally {
+				if ( pc != null ) pool.release(pc);
 			}
 		}
 		return count;
@@ -532,25 +938,30 @@ public class Repository implements IRepository {
 	{
 		Statement stm = null;
 		PreparedStatement pstm = null;
+		indexAdvisor.suspend();
 		try {
 			// Checks if the name is already used
-			stm = conn.createStatement();
-			ResultSet result = stm.executeQuery("SELECT NAME FROM TMLIST WHERE NAME='"+newName+"'");
-			if ( result.first() ) {
+			if ( getCatalog().get(newName) != null ) {
 				// the name exists already
 				// (DB is case-sensitive, unlike Olifant)
 				return;
 			}
 			
 			// Update the TM tables
+			stm = getConnection(currentName).createStatement();
 			stm.execute("ALTER TABLE \""+currentName+"_TU\" RENAME TO \""+newName+"_TU\"; "
-				+ "ALTER TABLE \""+currentName+"_SEG\" RENAME TO \""+newName+"_SEG\";");
+				+ "ALTER TABLE \""+currentName+"_SEG\" RENAME TO \""+newName+"_SEG\"; "
+				+ "ALTER INDEX \""+currentName+"_SEG_TUREF\" RENAME TO \""+newName+"_SEG_TUREF\";");
 			
 			// Update the TMLIST
 			pstm = conn.prepareStatement("UPDATE TMLIST SET NAME=? WHERE NAME=?");
 			pstm.setString(1, newName);
 			pstm.setString(2, currentName);
 			pstm.executeUpdate();
+			catalog.rename(currentName, newName);
+			catalogChanged();
+			TmCatalog.TmInfo info = catalog.get(newName);
+			if ( info != null ) indexAdvisor.tmRenamed(info.uuid, newName);
 			
 			name = newName;
 		}
@@ -558,6 +969,7 @@ public class Repository implements IRepository {
 			throw new RuntimeException(e);
 		}
 		finally {
+			indexAdvisor.resume();
 			try {
 				if ( stm != null ) {
 					stm.close();
@@ -578,21 +990,104 @@ public class Repository implements IRepository {
 	public List<String> getTmLocales (String tmName) {
 		ArrayList<String> list = new ArrayList<String>();
 		// Look for all Text fields and extract the locale info from them.
+		for ( String fn : getColumns(tmName, true) ) {
+			if ( fn.startsWith(DbUtil.TEXT_PREFIX) ) {
+				int n = fn.lastIndexOf(DbUtil.LOC_SEP);
+				if ( n > -1 ) {
+					list.add(fn.substring(n+1));
+				}
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public boolean isShared () {
+		return shared;
+	}
+
+	@Override
+	public PageCache getPageCache () {
+		return pageCache;
+	}
+
+	/**
+	 * Gets the object that manages the secondary indexes of the TMs of this repository.
+	 * <p>The advisor is disabled in shared mode.
+	 * @return the index advisor of this repository.
+	 */
+	public IndexAdvisor getIndexAdvisor () {
+		return indexAdvisor;
+	}
+
+	/**
+	 * Deletes a list of segments, and the TU entries left without segments.
+	 * <p>The keys are loaded into a temporary table and the deletions are done with
+	 * set-based statements in a single transaction, on a connection of its own: the commit
+	 * never commits a transaction open on the connection of the TM.
+	 * @param tmName the name of the TM.
+	 * @param segKeys the keys of the segments to delete.
+	 * @return the number of segments deleted.
+	 */
+	long deleteSegments (String tmName,
+		List<Long> segKeys)
+	{
+		if ( segKeys.isEmpty() ) return 0;
+		
 		Statement stm = null;
+		PreparedStatement pstm = null;
+		long segCount = 0;
+		Connection tmConn = null;
+		// Creating an index would commit the transaction
+		indexAdvisor.suspend();
 		try {
-			stm = conn.createStatement();
-			ResultSet result = stm.executeQuery("SHOW COLUMNS FROM \""+tmName+"_SEG\"");
-			while ( result.next() ) {
-				String fn = result.getString(1);
-				if ( fn.startsWith(DbUtil.TEXT_PREFIX) ) {
-					int n = fn.lastIndexOf(DbUtil.LOC_SEP);
-					if ( n > -1 ) {
-						list.add(fn.substring(n+1));
-					}
-				}
+			tmConn = openConnection(tmName);
+			tmConn.setAutoCommit(false);
+			stm = tmConn.createStatement();
+			stm.execute("CREATE LOCAL TEMPORARY TABLE DELSEG (K INTEGER PRIMARY KEY)");
+			
+			// Load the keys (without duplicates)
+			pstm = tmConn.prepareStatement("INSERT INTO DELSEG (K) VALUES (?)");
+			int count = 0;
+			for ( long segKey : new LinkedHashSet<Long>(segKeys) ) {
+				pstm.setLong(1, segKey);
+				pstm.addBatch();
+				if ( ++count % DELETE_BATCH_SIZE == 0 ) pstm.executeBatch();
 			}
-		}		
+			pstm.executeBatch();
+			
+			// Gets the list of the TU involved
+			stm.execute(String.format("CREATE LOCAL TEMPORARY TABLE DELTU AS SELECT DISTINCT \"%s\" AS T FROM \"%s_SEG\" "
+				+ "WHERE \"%s\" IN (SELECT K FROM DELSEG)",
+				DbUtil.TUREF_NAME, tmName, DbUtil.SEGKEY_NAME));
+			
+			// Delete the segments
+			segCount = stm.executeUpdate(String.format("DELETE FROM \"%s_SEG\" WHERE \"%s\" IN (SELECT K FROM DELSEG)",
+				tmName, DbUtil.SEGKEY_NAME));
+			
+			// Delete any TU record that has no segments any more
+			stm.executeUpdate(String.format("DELETE FROM \"%s_TU\" WHERE TUKEY IN (SELECT T FROM DELTU) "
+				+ "AND NOT EXISTS (SELECT 1 FROM \"%s_SEG\" WHERE \"%s_SEG\".\"%s\"=\"%s_TU\".TUKEY)",
+				tmName, tmName, tmName, DbUtil.TUREF_NAME, tmName));
+			
+			// Delete the values of the sparse fields of the deleted entries
+			SparseFields sparse = getSparseFields(tmName);
+			if ( sparse.hasFields() ) {
+				sparse.deleteValues(stm, true, "SELECT K FROM DELSEG");
+				sparse.deleteValues(stm, false, String.format("SELECT T FROM DELTU "
+					+ "WHERE NOT EXISTS (SELECT 1 FROM \"%s_TU\" WHERE TUKEY=T)", tmName));
+			}
+			
+			tmConn.commit();
+			adjustSegmentCount(tmName, -segCount);
+		}
 		catch ( SQLException e ) {
+			try {
+				if ( tmConn != null ) tmConn.rollback();
+			}
+			catch ( SQLException e2 ) {
+				// Report the original error
+			}
 			throw new RuntimeException(e);
 		}
 		finally {
@@ -601,73 +1096,359 @@ public class Repository implements IRepository {
 					stm.close();
 					stm = null;
 				}
+				if ( pstm != null ) {
+					pstm.close();
+					pstm = null;
+				}
+				// The temporary tables go away with the connection
+				if ( tmConn != null ) tmConn.close();
 			}
 			catch ( SQLException e ) {
 				throw new RuntimeException(e);
 			}
+			finally {
+				indexAdvisor.resume();
+			}
+		}
+		return segCount;
+	}
+	
+	/**
+	 * Gets the catalog of the TMs, loading it from the database if needed.
+	 * <p>In shared mode the catalog is first checked against the schema version
+	 * stored in the database, so changes done by other clients are seen.
+	 * <p>This can be called from several threads (e.g. for TMs with their own database).
+	 * @return the catalog.
+	 * @throws SQLException if an error occurs.
+	 */
+	private TmCatalog getCatalog ()
+		throws SQLException
+	{
+		synchronized ( catalog ) {
+			if ( shared ) {
+				long version = getCatalogVersion();
+				if ( version != catalog.getVersion() ) {
+					catalog.clear();
+					catalog.setVersion(version);
+				}
+			}
+			if ( catalog.isLoaded() ) return catalog;
+			
+			Statement stm = null;
+			try {
+				stm = conn.createStatement();
+				ResultSet result = stm.executeQuery("SELECT L.UUID, L.NAME, L.DESCRIPTION, L.INDEXINFO, F.UUID "
+					+ "FROM TMLIST L LEFT JOIN TMFILES F ON L.UUID=F.UUID");
+				while ( result.next() ) {
+					TmCatalog.TmInfo info = new TmCatalog.TmInfo(result.getString(1), result.getString(2),
+						result.getString(3), result.getString(4));
+					info.ownDatabase = ( result.getString(5) != null );
+					catalog.add(info);
+				}
+				catalog.setLoaded(true);
+			}
+			finally {
+				if ( stm != null ) {
+					stm.close();
+					stm = null;
+				}
+			}
+			return catalog;
+		}
+	}
+	
+	private long getCatalogVersion ()
+		throws SQLException
+	{
+		if ( pstmCatalogVersion == null ) {
+			pstmCatalogVersion = conn.prepareStatement("SELECT VERSION FROM CATALOGVERSION");
+		}
+		ResultSet result = pstmCatalogVersion.executeQuery();
+		if ( result.next() ) return result.getLong(1);
+		return 0;
+	}
+	
+	/**
+	 * Records that this repository has changed the schema or the TMLIST.
+	 * <p>This must be called after the catalog has been updated in place.
+	 * In shared mode the version stored in the database is incremented, and the catalog is
+	 * cleared if another client has changed the schema since our last check.
+	 * @throws SQLException if an error occurs.
+	 */
+	private void catalogChanged ()
+		throws SQLException
+	{
+		if ( !shared ) return;
+		synchronized ( catalog ) {
+			Statement stm = null;
+			try {
+				stm = conn.createStatement();
+				stm.executeUpdate("UPDATE CATALOGVERSION SET VERSION=VERSION+1");
+			}
+			finally {
+				if ( stm != null ) {
+					stm.close();
+					stm = null;
+				}
+			}
+			long version = getCatalogVersion();
+			if ( version != catalog.getVersion()+1 ) {
+				catalog.clear();
+			}
+			catalog.setVersion(version);
+		}
+	}
+	
+	/**
+	 * Gets the list of all the columns of one of the tables of a given TM.
+	 * @param tmName the name of the TM.
+	 * @param segmentTable true for the segment table, false for the TU table.
+	 * @return the list of the columns (the cached list: do not modify it).
+	 */
+	private ArrayList<String> getColumns (String tmName,
+		boolean segmentTable)
+	{
+		try {
+			TmCatalog.TmInfo info = getCatalog().get(tmName);
+			if ( info == null ) {
+				throw new RuntimeException(String.format("The TM '%s' does not exists.", tmName));
+			}
+			synchronized ( info ) {
+				if ( !info.hasColumns() ) {
+					Connection tmConn = getConnection(info);
+					ArrayList<String> encoded = new ArrayList<String>();
+					ArrayList<String> tuColumns = readColumns(tmConn, tmName+"_TU", null, encoded);
+					ArrayList<String> binary = new ArrayList<String>();
+					ArrayList<String> segColumns = readColumns(tmConn, tmName+"_SEG", binary, encoded);
+					info.compressed = !binary.isEmpty();
+					info.dictionary = new Dictionary(tmConn, info.uuid, encoded);
+					info.sparseFields = new SparseFields(tmConn, info.uuid);
+					// Set last: the other threads do not wait once the columns are set
+					info.tuColumns = tuColumns;
+					info.segColumns = segColumns;
+				}
+				return info.getColumns(segmentTable);
+			}
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Reads the columns of a table.
+	 * @param tmConn the connection of the database of the table.
+	 * @param table the name of the table.
+	 * @param binaryColumns the list where to add the names of the compressed columns (can be null).
+	 * @param encodedColumns the list where to add the names of the dictionary-encoded columns.
+	 * @return the list of all the columns of the table.
+	 * @throws SQLException if an error occurs.
+	 */
+	private ArrayList<String> readColumns (Connection tmConn,
+		String table,
+		List<String> binaryColumns,
+		List<String> encodedColumns)
+		throws SQLException
+	{
+		ArrayList<String> list = new ArrayList<String>();
+		PreparedStatement pstm = tmConn.prepareStatement("SELECT COLUMN_NAME, TYPE_NAME, REMARKS "
+			+ "FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA=SCHEMA() AND TABLE_NAME=? ORDER BY ORDINAL_POSITION");
+		try {
+			pstm.setString(1, table);
+			ResultSet result = pstm.executeQuery();
+			while ( result.next() ) {
+				String column = result.getString(1);
+				String type = result.getString(2);
+				list.add(column);
+				if (( binaryColumns != null ) && type.startsWith(CompressedValue.SQL_TYPE) ) {
+					binaryColumns.add(column);
+				}
+				if ( type.equals(Dictionary.SQL_TYPE) && Dictionary.REMARK.equals(result.getString(3)) ) {
+					encodedColumns.add(column);
+				}
+			}
+		}
+		finally {
+			pstm.close();
 		}
 		return list;
 	}
-
-	@Override
-	public boolean isShared () {
-		return shared;
+	
+	/**
+	 * Gets the dictionary of the encoded fields of a given TM.
+	 * <p>The same object is shared by all the Tm objects of the TM.
+	 * @param tmName the name of the TM.
+	 * @return the dictionary of the TM.
+	 */
+	Dictionary getDictionary (String tmName) {
+		getColumns(tmName, true); // Makes sure the columns are loaded
+		try {
+			return getCatalog().get(tmName).dictionary;
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
 	}
-
-	void deleteSegments (String tmName,
-		List<Long> segKeys)
+	
+	/**
+	 * Gets the store of the sparse fields of a given TM.
+	 * <p>The same object is shared by all the Tm objects of the TM.
+	 * @param tmName the name of the TM.
+	 * @return the store of the sparse fields of the TM.
+	 */
+	SparseFields getSparseFields (String tmName) {
+		getColumns(tmName, true); // Makes sure the columns are loaded
+		try {
+			return getCatalog().get(tmName).sparseFields;
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Creates new sparse fields for a given TM. The table of the values must exist.
+	 * <p>The main tables are not changed, so this does not commit the current transaction.
+	 * @param tmName the name of the TM.
+	 * @param names the names of the new fields.
+	 */
+	void createSparseFields (String tmName,
+		Collection<String> names)
 	{
-		if ( segKeys.isEmpty() ) return;
+		try {
+			getSparseFields(tmName).fieldsCreated(names);
+			catalogChanged();
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Records that a query of a TM filters or sorts on sparse fields, and schedules the
+	 * promotion of the fields used as often as the threshold of the index advisor.
+	 * @param tmUuid the UUID of the TM.
+	 * @param sparse the store of the sparse fields of the TM.
+	 * @param fieldNames the names of the sparse fields used.
+	 */
+	void recordSparseUsage (final String tmUuid,
+		SparseFields sparse,
+		Collection<String> fieldNames)
+	{
+		if ( !indexAdvisor.isEnabled() ) return;
+		for ( final String fn : fieldNames ) {
+			if ( sparse.recordUsage(fn) != indexAdvisor.getThreshold() ) continue;
+			indexAdvisor.scheduleTask(new Runnable() {
+				@Override
+				public void run () {
+					try {
+						// The TM may have been renamed or deleted since
+						TmCatalog.TmInfo info = getCatalog().getByUuid(tmUuid);
+						if ( info != null ) promoteField(info.name, fn);
+					}
+					catch ( SQLException e ) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Moves a sparse field of a given TM to a real column of its TU or segment table.
+	 * <p>The column is created with the type it would have if the field had not been created
+	 * sparse (dictionary-encoded if {@link DbUtil#isDictionaryField(String)} is true).
+	 * This alters the table: it must not be called during an import.
+	 * @param tmName the name of the TM.
+	 * @param fieldName the name of the field to promote.
+	 * @return true if the field has been promoted, false if it is not a sparse field.
+	 */
+	boolean promoteField (String tmName,
+		String fieldName)
+	{
+		SparseFields sparse = getSparseFields(tmName);
+		if ( !sparse.isSparse(fieldName) ) return false;
+		boolean segmentTable = DbUtil.isSegmentField(fieldName);
+		String table = "\""+tmName+(segmentTable ? "_SEG" : "_TU")+"\"";
+		String keyColumn = table+"."+(segmentTable ? "\""+DbUtil.SEGKEY_NAME+"\"" : "TUKEY");
+		boolean encoded = DbUtil.isDictionaryField(fieldName);
 		
+		Statement stm = null;
 		PreparedStatement pstm = null;
-		PreparedStatement pstm2 = null;
+		boolean oldAutoCommit = true;
+		boolean added = false;
+		Connection tmConn = getConnection(tmName);
+		// Creating an index would commit the transaction
+		indexAdvisor.suspend();
 		try {
-			// Gets the list of the TU involved
-			ArrayList<Long> tuKeys = new ArrayList<Long>();
-			pstm = conn.prepareStatement("SELECT \""+DbUtil.TUREF_NAME+"\" FROM \""+tmName+"_SEG\" WHERE \""+DbUtil.SEGKEY_NAME+"\"=?");
-			for ( long segKey : segKeys ) {
-				pstm.setLong(1, segKey);
-				ResultSet rs = pstm.executeQuery();
-				if ( rs.next() ) {
-					long tuRef = rs.getLong(1);
-					if ( !tuKeys.contains(tuRef) ) tuKeys.add(tuRef);
+			TmCatalog.TmInfo info = getCatalog().get(tmName);
+			stm = tmConn.createStatement();
+			stm.execute(String.format("ALTER TABLE %s ADD \"%s\" %s",
+				table, fieldName, (encoded ? Dictionary.SQL_TYPE : "VARCHAR")));
+			added = true;
+			String value = sparse.toSQL(fieldName, keyColumn);
+			if ( encoded ) {
+				stm.execute(String.format("COMMENT ON COLUMN %s.\"%s\" IS '%s'",
+					table, fieldName, Dictionary.REMARK));
+				Dictionary.createTable(stm, info.uuid);
+				info.dictionary.fieldsCreated(Collections.singletonList(fieldName));
+				// Make sure all the values have a code
+				for ( String fv : sparse.getValues(fieldName) ) {
+					info.dictionary.getOrAddCode(fieldName, fv);
 				}
+				value = String.format("(SELECT \"Code\" FROM %s WHERE \"Field\"=%s AND \"Value\"=%s)",
+					Dictionary.getTable(info.uuid), DbUtil.toSQLString(fieldName), value);
 			}
-			pstm.close();
 			
-			// Delete the segments
-			pstm = conn.prepareStatement("DELETE FROM \""+tmName+"_SEG\" WHERE \""+DbUtil.SEGKEY_NAME+"\"=?");
-			for ( long segKey : segKeys ) {
-				pstm.setLong(1, segKey);
-				pstm.executeUpdate();
-			}
+			// Move the values in a single transaction
+			oldAutoCommit = tmConn.getAutoCommit();
+			tmConn.setAutoCommit(false);
+			pstm = tmConn.prepareStatement(String.format("UPDATE %s SET \"%s\"=%s "
+				+ "WHERE %s IN (SELECT \"Key\" FROM %s WHERE \"Field\"=?)",
+				table, fieldName, value, keyColumn, sparse.getTable()));
+			pstm.setString(1, fieldName);
+			pstm.executeUpdate();
 			pstm.close();
+			pstm = tmConn.prepareStatement("DELETE FROM "+sparse.getTable()+" WHERE \"Field\"=?");
+			pstm.setString(1, fieldName);
+			pstm.executeUpdate();
+			tmConn.commit();
 			
-			// Delete any TU record that has no segments any more
-			pstm = conn.prepareStatement("SELECT COUNT(*) FROM \""+tmName+"_SEG\" WHERE \""+DbUtil.TUREF_NAME+"\"=?");
-			pstm2 = conn.prepareStatement("DELETE FROM \""+tmName+"_TU\" WHERE TUKEY=?");
-			for ( long tuKey : tuKeys ) {
-				pstm.setLong(1, tuKey);
-				ResultSet rs = pstm.executeQuery();
-				rs.next();
-				if ( rs.getLong(1) == 0 ) {
-					pstm2.setLong(1, tuKey);
-					pstm2.executeUpdate();
-				}
-			}
+			sparse.fieldPromoted(fieldName);
+			info.addColumns(segmentTable, Collections.singletonList(fieldName));
+			pageCache.modified(info.uuid);
+			catalogChanged();
+			return true;
 		}
 		catch ( SQLException e ) {
+			try {
+				tmConn.rollback();
+				// The values are still in the sparse table: remove the new column
+				if ( added ) {
+					tmConn.setAutoCommit(oldAutoCommit);
+					stm.execute(String.format("ALTER TABLE %s DROP COLUMN \"%s\"", table, fieldName));
+					TmCatalog.TmInfo info = catalog.get(tmName);
+					if (( info != null ) && ( info.dictionary != null )) {
+						info.dictionary.fieldsDeleted(Collections.singletonList(fieldName));
+					}
+				}
+			}
+			catch ( SQLException e2 ) {
+				// Report the original error
+			}
 			throw new RuntimeException(e);
 		}
 		finally {
+			indexAdvisor.resume();
 			try {
+				tmConn.setAutoCommit(oldAutoCommit);
 				if ( pstm != null ) {
 					pstm.close();
 					pstm = null;
 				}
-				if ( pstm2 != null ) {
-					pstm2.close();
-					pstm2 = null;
+				if ( stm != null ) {
+					stm.close();
+					stm = null;
 				}
 			}
 			catch ( SQLException e ) {
@@ -675,9 +1456,129 @@ public class Repository implements IRepository {
 			}
 		}
 	}
+	
+	/**
+	 * Indicates if the text and codes fields of a given TM are compressed.
+	 * @param tmName the name of the TM.
+	 * @return true if the text and codes fields are compressed.
+	 */
+	boolean isCompressed (String tmName) {
+		getColumns(tmName, true); // Makes sure the columns are loaded
+		try {
+			return getCatalog().get(tmName).compressed;
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Updates the catalog after columns have been added to one of the tables of a TM.
+	 * @param tmName the name of the TM.
+	 * @param segmentTable true for the segment table, false for the TU table.
+	 * @param names the names of the columns added.
+	 */
+	void columnsAdded (String tmName,
+		boolean segmentTable,
+		Collection<String> names)
+	{
+		try {
+			TmCatalog.TmInfo info = catalog.get(tmName);
+			if ( info != null ) info.addColumns(segmentTable, names);
+			catalogChanged();
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Updates the catalog after columns have been removed from one of the tables of a TM.
+	 * <p>The sparse fields in the list are deleted too.
+	 * @param tmName the name of the TM.
+	 * @param segmentTable true for the segment table, false for the TU table.
+	 * @param names the names of the columns removed.
+	 */
+	void columnsDeleted (String tmName,
+		boolean segmentTable,
+		Collection<String> names)
+	{
+		try {
+			TmCatalog.TmInfo info = catalog.get(tmName);
+			if ( info != null ) {
+				info.removeColumns(segmentTable, names);
+				if ( info.dictionary != null ) info.dictionary.fieldsDeleted(names);
+				if ( info.sparseFields != null ) info.sparseFields.fieldsDeleted(names);
+			}
+			catalogChanged();
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Updates the catalog after columns of one of the tables of a TM have been renamed.
+	 * <p>The sparse fields in the map are renamed too.
+	 * @param tmName the name of the TM.
+	 * @param segmentTable true for the segment table, false for the TU table.
+	 * @param names the map of the current names and their new names.
+	 */
+	void columnsRenamed (String tmName,
+		boolean segmentTable,
+		Map<String, String> names)
+	{
+		try {
+			TmCatalog.TmInfo info = catalog.get(tmName);
+			if ( info != null ) {
+				for ( String fn : names.keySet() ) {
+					info.renameColumn(segmentTable, fn, names.get(fn));
+				}
+				if ( info.dictionary != null ) info.dictionary.fieldsRenamed(names);
+				if ( info.sparseFields != null ) info.sparseFields.fieldsRenamed(names);
+			}
+			catalogChanged();
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Creates the index on the TuRef field of the segment table of a given TM, if it does not exist yet.
+	 * @param stm the statement to use.
+	 * @param tmName the name of the TM.
+	 * @throws SQLException if an error occurs.
+	 */
+	private void ensureTuRefIndex (Statement stm,
+		String tmName)
+		throws SQLException
+	{
+		stm.execute(String.format("CREATE INDEX IF NOT EXISTS \"%s_SEG_TUREF\" ON \"%s_SEG\" (\"%s\")",
+			tmName, tmName, DbUtil.TUREF_NAME));
+	}
+
+	/**
+	 * Creates the index on the hash field of the segment table of a given TM, if it does not exist yet.
+	 * <p>The index is named after the UUID of the TM, so it does not need to be renamed with the TM.
+	 * @param stm the statement to use.
+	 * @param tmName the name of the TM.
+	 * @throws SQLException if an error occurs.
+	 */
+	private void ensureHashIndex (Statement stm,
+		String tmName)
+		throws SQLException
+	{
+		TmCatalog.TmInfo info = getCatalog().get(tmName);
+		if ( info == null ) {
+			throw new RuntimeException(String.format("The TM '%s' does not exists.", tmName));
+		}
+		stm.execute(String.format("CREATE INDEX IF NOT EXISTS \"HASHIDX_%s\" ON \"%s_SEG\" (\"%s\")",
+			info.uuid, tmName, DbUtil.HASH_NAME));
+	}
 
 	@Override
-	public IIndexAccess getIndexAccess () {
+	public synchronized IIndexAccess getIndexAccess () {
 		if ( ia == null ) {
 			ia = new IndexAccess(this);
 		}
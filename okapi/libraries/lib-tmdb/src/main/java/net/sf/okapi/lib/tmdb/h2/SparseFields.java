@@ -0,0 +1,427 @@
+/*===========================================================================
+  Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+  This library is free software; you can redistribute it and/or modify it
+  under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation; either version 2.1 of the License, or (at
+  your option) any later version.
+
+  This library is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+  General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this library; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb.h2;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.okapi.lib.tmdb.DbUtil;
+
+/**
+ * Store of the sparse fields of a TM.
+ * <p>The values of the sparse fields are not in columns of the TU or segment tables, but
+ * in a key/value table named after the UUID of the TM (so it does not need to be renamed
+ * with the TM). The key of a value is the SegKey for the segment-level fields and the TUKEY
+ * for the TU-level fields. Entries without value for a field have no row for it.
+ * <p>Creating a sparse field is just adding a row to that table: it does not alter the
+ * main tables, so it can be done in the middle of an import transaction. The fields used
+ * often in the queries can be promoted to real columns later
+ * (see {@link Repository#promoteField(String, String)}).
+ */
+class SparseFields {
+
+	/**
+	 * Key of the row declaring a field (its value is always null).
+	 */
+	static final long DECLARATION_KEY = 0;
+	
+	private final Connection conn;
+	private final String uuid;
+	private final String table;
+	private LinkedHashSet<String> fields; // Null if not loaded
+	private final HashMap<String, Integer> useCounts = new HashMap<String, Integer>();
+	private long version;
+	
+	/**
+	 * Creates the store of the sparse fields of a given TM.
+	 * @param conn the connection to use.
+	 * @param uuid the UUID of the TM.
+	 */
+	SparseFields (Connection conn,
+		String uuid)
+	{
+		this.conn = conn;
+		this.uuid = uuid;
+		this.table = getTable(uuid);
+	}
+	
+	/**
+	 * Gets the quoted name of the table of the values for a given TM.
+	 * @param uuid the UUID of the TM.
+	 * @return the quoted name of the table.
+	 */
+	static String getTable (String uuid) {
+		return "\"ATTR_"+uuid+"\"";
+	}
+	
+	/**
+	 * Gets the quoted name of the table of the values.
+	 * @return the quoted name of the table.
+	 */
+	String getTable () {
+		return table;
+	}
+	
+	/**
+	 * Creates the table of the values, if it does not exist yet.
+	 * <p>This commits the current transaction: it must be done before starting an import.
+	 * @throws SQLException if an error occurs.
+	 */
+	void createTable ()
+		throws SQLException
+	{
+		Statement stm = null;
+		try {
+			stm = conn.createStatement();
+			stm.execute("CREATE TABLE IF NOT EXISTS "+table+" ("
+				+ "\"Key\" BIGINT, \"Field\" VARCHAR, \"Value\" VARCHAR, "
+				+ "PRIMARY KEY (\"Key\", \"Field\"))");
+		}
+		finally {
+			if ( stm != null ) {
+				stm.close();
+				stm = null;
+			}
+		}
+	}
+	
+	/**
+	 * Indicates if a given field is a sparse field.
+	 * @param fieldName the name of the field.
+	 * @return true if the field is a sparse field.
+	 */
+	synchronized boolean isSparse (String fieldName) {
+		return getFields().contains(fieldName);
+	}
+	
+	/**
+	 * Indicates if this TM has at least one sparse field.
+	 * @return true if at least one field is sparse.
+	 */
+	synchronized boolean hasFields () {
+		return !getFields().isEmpty();
+	}
+	
+	/**
+	 * Gets the sparse fields of one level.
+	 * @param segmentLevel true for the segment-level fields, false for the TU-level fields.
+	 * @return the list of the field names (can be empty).
+	 */
+	synchronized List<String> getFields (boolean segmentLevel) {
+		ArrayList<String> list = new ArrayList<String>();
+		for ( String fn : getFields() ) {
+			if ( DbUtil.isSegmentField(fn) == segmentLevel ) list.add(fn);
+		}
+		return list;
+	}
+	
+	/**
+	 * Gets the modification version of the list of fields. It changes when a field
+	 * stops being sparse, is renamed or is deleted: the queries using the sparse
+	 * fields must then be re-built.
+	 * @return the modification version.
+	 */
+	synchronized long getVersion () {
+		return version;
+	}
+	
+	/**
+	 * Creates new sparse fields. The table of the values must exist.
+	 * <p>This does not commit the current transaction.
+	 * @param fieldNames the names of the new fields.
+	 * @throws SQLException if an error occurs.
+	 */
+	synchronized void fieldsCreated (Collection<String> fieldNames)
+		throws SQLException
+	{
+		PreparedStatement pstm = null;
+		try {
+			pstm = conn.prepareStatement("MERGE INTO "+table+" (\"Key\", \"Field\", \"Value\") VALUES (?, ?, NULL)");
+			for ( String fn : fieldNames ) {
+				pstm.setLong(1, DECLARATION_KEY);
+				pstm.setString(2, fn);
+				pstm.executeUpdate();
+				getFields().add(fn);
+			}
+		}
+		finally {
+			if ( pstm != null ) {
+				pstm.close();
+				pstm = null;
+			}
+		}
+	}
+	
+	/**
+	 * Prepares the statement adding values: its parameters are the field name, the key
+	 * and the value.
+	 * @param insertConn the connection where to add the values (e.g. the connection of an import).
+	 * @return the new statement.
+	 * @throws SQLException if an error occurs.
+	 */
+	PreparedStatement prepareInsert (Connection insertConn)
+		throws SQLException
+	{
+		return insertConn.prepareStatement("INSERT INTO "+table+" (\"Field\", \"Key\", \"Value\") VALUES (?, ?, ?)");
+	}
+	
+	/**
+	 * Sets or removes the value of a sparse field for a given entry.
+	 * @param fieldName the name of the field.
+	 * @param key the SegKey or the TUKEY of the entry.
+	 * @param value the new value (null to remove the value).
+	 * @throws SQLException if an error occurs.
+	 */
+	void setValue (String fieldName,
+		long key,
+		String value)
+		throws SQLException
+	{
+		PreparedStatement pstm = null;
+		try {
+			if ( value == null ) {
+				pstm = conn.prepareStatement("DELETE FROM "+table+" WHERE \"Key\"=? AND \"Field\"=?");
+			}
+			else {
+				pstm = conn.prepareStatement("MERGE INTO "+table+" (\"Key\", \"Field\", \"Value\") VALUES (?, ?, ?)");
+				pstm.setString(3, value);
+			}
+			pstm.setLong(1, key);
+			pstm.setString(2, fieldName);
+			pstm.executeUpdate();
+		}
+		finally {
+			if ( pstm != null ) {
+				pstm.close();
+				pstm = null;
+			}
+		}
+	}
+	
+	/**
+	 * Gets the SQL expression of the value of a sparse field.
+	 * @param fieldName the name of the field.
+	 * @param keyColumn the qualified and quoted column of the key of the entries
+	 * (SegKey for a segment-level field, TUKEY for a TU-level field).
+	 * @return the SQL expression giving the value for the entry (NULL if it has none).
+	 */
+	String toSQL (String fieldName,
+		String keyColumn)
+	{
+		return String.format("(SELECT \"Value\" FROM %s WHERE \"Key\"=%s AND \"Field\"=%s)",
+			table, keyColumn, DbUtil.toSQLString(fieldName));
+	}
+	
+	/**
+	 * Gets the distinct values of a sparse field.
+	 * @param fieldName the name of the field.
+	 * @return the sorted list of the values (can be empty).
+	 * @throws SQLException if an error occurs.
+	 */
+	List<String> getValues (String fieldName)
+		throws SQLException
+	{
+		ArrayList<String> list = new ArrayList<String>();
+		PreparedStatement pstm = null;
+		try {
+			pstm = conn.prepareStatement("SELECT DISTINCT \"Value\" FROM "+table
+				+" WHERE \"Field\"=? AND \"Value\" IS NOT NULL ORDER BY 1");
+			pstm.setString(1, fieldName);
+			ResultSet result = pstm.executeQuery();
+			while ( result.next() ) {
+				list.add(result.getString(1));
+			}
+		}
+		finally {
+			if ( pstm != null ) {
+				pstm.close();
+				pstm = null;
+			}
+		}
+		return list;
+	}
+	
+	/**
+	 * Deletes the values of the entries that are deleted.
+	 * @param stm the statement to use.
+	 * @param segmentLevel true for the values of the segment-level fields, false for the TU-level fields.
+	 * @param keyQuery the query selecting the keys of the deleted entries.
+	 * @throws SQLException if an error occurs.
+	 */
+	void deleteValues (Statement stm,
+		boolean segmentLevel,
+		String keyQuery)
+		throws SQLException
+	{
+		List<String> names = getFields(segmentLevel);
+		if ( names.isEmpty() ) return;
+		StringBuilder tmp = new StringBuilder();
+		for ( String fn : names ) {
+			tmp.append((tmp.length()==0 ? "'" : ", '")+fn+"'");
+		}
+		stm.executeUpdate(String.format("DELETE FROM %s WHERE \"Key\" IN (%s) AND \"Field\" IN (%s)",
+			table, keyQuery, tmp));
+	}
+	
+	/**
+	 * Records that a query filters or sorts on a given sparse field.
+	 * @param fieldName the name of the field.
+	 * @return the number of queries recorded for that field so far.
+	 */
+	synchronized int recordUsage (String fieldName) {
+		Integer count = useCounts.get(fieldName);
+		count = (count == null) ? 1 : count+1;
+		useCounts.put(fieldName, count);
+		return count;
+	}
+	
+	/**
+	 * Records that a field has been moved to a real column. Its values must have been
+	 * removed from the table.
+	 * @param fieldName the name of the field.
+	 */
+	synchronized void fieldPromoted (String fieldName) {
+		getFields().remove(fieldName);
+		useCounts.remove(fieldName);
+		version++;
+	}
+	
+	/**
+	 * Renames sparse fields.
+	 * @param names the map of the current names and their new names.
+	 * @throws SQLException if an error occurs.
+	 */
+	synchronized void fieldsRenamed (Map<String, String> names)
+		throws SQLException
+	{
+		PreparedStatement pstm = null;
+		try {
+			for ( String fn : names.keySet() ) {
+				if ( !getFields().remove(fn) ) continue;
+				getFields().add(names.get(fn));
+				useCounts.remove(fn);
+				if ( pstm == null ) {
+					pstm = conn.prepareStatement("UPDATE "+table+" SET \"Field\"=? WHERE \"Field\"=?");
+				}
+				pstm.setString(1, names.get(fn));
+				pstm.setString(2, fn);
+				pstm.executeUpdate();
+			}
+		}
+		finally {
+			version++;
+			if ( pstm != null ) {
+				pstm.close();
+				pstm = null;
+			}
+		}
+	}
+	
+	/**
+	 * Deletes sparse fields and their values.
+	 * @param names the names of the fields to delete.
+	 * @throws SQLException if an error occurs.
+	 */
+	synchronized void fieldsDeleted (Collection<String> names)
+		throws SQLException
+	{
+		PreparedStatement pstm = null;
+		try {
+			for ( String fn : names ) {
+				if ( !getFields().remove(fn) ) continue;
+				useCounts.remove(fn);
+				if ( pstm == null ) {
+					pstm = conn.prepareStatement("DELETE FROM "+table+" WHERE \"Field\"=?");
+				}
+				pstm.setString(1, fn);
+				pstm.executeUpdate();
+			}
+		}
+		finally {
+			version++;
+			if ( pstm != null ) {
+				pstm.close();
+				pstm = null;
+			}
+		}
+	}
+	
+	/**
+	 * Discards the list of fields in memory. It will be re-loaded on next access.
+	 * <p>This must be called when a transaction creating fields is rolled back.
+	 */
+	synchronized void reset () {
+		fields = null;
+	}
+	
+	/**
+	 * Gets the list of the sparse fields, loading it if needed.
+	 * @return the list of the sparse fields.
+	 */
+	private LinkedHashSet<String> getFields () {
+		if ( fields == null ) {
+			LinkedHashSet<String> tmp = new LinkedHashSet<String>();
+			PreparedStatement pstm = null;
+			try {
+				// TMs created with older versions may not have the table
+				pstm = conn.prepareStatement("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES "
+					+ "WHERE TABLE_SCHEMA=SCHEMA() AND TABLE_NAME=?");
+				pstm.setString(1, "ATTR_"+uuid);
+				ResultSet result = pstm.executeQuery();
+				if ( result.next() && ( result.getLong(1) > 0 )) {
+					pstm.close();
+					pstm = conn.prepareStatement("SELECT \"Field\" FROM "+table+" WHERE \"Key\"=? ORDER BY \"Field\"");
+					pstm.setLong(1, DECLARATION_KEY);
+					result = pstm.executeQuery();
+					while ( result.next() ) {
+						tmp.add(result.getString(1));
+					}
+				}
+				fields = tmp;
+			}
+			catch ( SQLException e ) {
+				throw new RuntimeException(e);
+			}
+			finally {
+				try {
+					if ( pstm != null ) {
+						pstm.close();
+						pstm = null;
+					}
+				}
+				catch ( SQLException e ) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+		return fields;
+	}
+
+}
@@ -0,0 +1,96 @@
+/*===========================================================================
+  Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+  This library is free software; you can redistribute it and/or modify it
+  under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation; either version 2.1 of the License, or (at
+  your option) any later version.
+
+  This library is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+  General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this library; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb.h2;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded cache of read-only prepared statements, keyed by their SQL text.
+ * <p>The least recently used statement is closed when the cache is full, so a statement
+ * obtained from the cache must be executed before the next call to {@link #get(String)}.
+ */
+class StatementCache {
+
+	private final Connection conn;
+	private final int maxSize;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+
+	StatementCache (Connection conn,
+		int maxSize)
+	{
+		this.conn = conn;
+		this.maxSize = maxSize;
+		statements = new LinkedHashMap<String, PreparedStatement>(maxSize+1, 0.75f, true); // Access order
+	}
+
+	/**
+	 * Gets the prepared statement for a given SQL query, preparing it if needed.
+	 * @param sql the query.
+	 * @return the forward-only, read-only prepared statement for the query.
+	 * @throws SQLException if an error occurs.
+	 */
+	PreparedStatement get (String sql)
+		throws SQLException
+	{
+		PreparedStatement pstm = statements.get(sql);
+		if ( pstm != null ) return pstm;
+		pstm = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		statements.put(sql, pstm);
+		if ( statements.size() > maxSize ) {
+			Iterator<PreparedStatement> iter = statements.values().iterator();
+			PreparedStatement oldest = iter.next();
+			iter.remove();
+			oldest.close();
+		}
+		return pstm;
+	}
+
+	/**
+	 * Gets the number of statements in the cache.
+	 * @return the number of statements in the cache.
+	 */
+	int size () {
+		return statements.size();
+	}
+
+	/**
+	 * Closes all the statements of the cache.
+	 * @throws SQLException if an error occurs.
+	 */
+	void close ()
+		throws SQLException
+	{
+		try {
+			for ( PreparedStatement pstm : statements.values() ) {
+				pstm.close();
+			}
+		}
+		finally {
+			statements.clear();
+		}
+	}
+
+}
@@ -20,36 +20,99 @@
 
 package net.sf.okapi.lib.tmdb.h2;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.sf.okapi.common.Util;
 import net.sf.okapi.lib.tmdb.DbUtil;
+import net.sf.okapi.lib.tmdb.IRecordConsumer;
 import net.sf.okapi.lib.tmdb.IRecordSet;
 import net.sf.okapi.lib.tmdb.IRepository;
 import net.sf.okapi.lib.tmdb.ITm;
+import net.sf.okapi.lib.tmdb.PageCache;
+import net.sf.okapi.lib.tmdb.RecordPage;
+import net.sf.okapi.lib.tmdb.TmQuery;
 import net.sf.okapi.lib.tmdb.DbUtil.PageMode;
+import net.sf.okapi.lib.tmdb.filter.FilterCompiler;
 import net.sf.okapi.lib.tmdb.filter.FilterNode;
 import net.sf.okapi.lib.tmdb.filter.OperatorNode;
 import net.sf.okapi.lib.tmdb.filter.ValueNode;
-import net.sf.okapi.lib.tmdb.filter.ValueNode.TYPE;
 
 public class Tm implements ITm {
 
+	private static final AtomicLong snapshotCounter = new AtomicLong();
+	private static final int SCAN_FETCH_SIZE = 1000;
+	
+	/**
+	 * Creates the threads of the partitioned scans (they do not prevent the application to exit).
+	 */
+	private static final ThreadFactory scanThreadFactory = new ThreadFactory() {
+		@Override
+		public Thread newThread (Runnable r) {
+			Thread thread = new Thread(r, "TM Scan");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+	private static final int STATEMENTCACHE_SIZE = 16;
+	private static final int KEYRANGE_SIZE = 10000; // Number of keys reserved at once by a bulk import
+	
+	/**
+	 * Pre-computed columns of an insert statement, with their default values.
+	 */
+	private static class RecordLayout {
+		
+		final String[] columns;
+		final Object[] defaults;
+		final boolean[] compressed;
+		final boolean[] encoded; // Dictionary-encoded columns
+		
+		RecordLayout (String[] columns,
+			Object[] defaults,
+			boolean[] compressed,
+			boolean[] encoded)
+		{
+			this.columns = columns;
+			this.defaults = defaults;
+			this.compressed = compressed;
+			this.encoded = encoded;
+		}
+	}
+
 	private final Repository store;
+	private final Connection conn; // Connection of the database of the TM
 	private final String uuid;
+	private final boolean compressed; // True if the text and codes fields are compressed
+	private Dictionary dictionary; // Dictionary of the encoded fields (shared by all Tm objects of the TM)
+	private SparseFields sparseFields; // Store of the sparse fields (shared by all Tm objects of the TM)
+	private long sparseVersion; // Version of the sparse fields when the queries were built
 	
 	private String name;
 	private String segTable;
 	private String tuTable;
-	private PreparedStatement pstmGet;
+	private final ConnectionPool pool; // Connections for the read-only queries
+	private final ConnectionPool.PooledConnection ownConnection; // Connection of the TM, for the queries run during a transaction
 	private List<String> recordFields;
 	private ArrayList<String> codesFields;
 	
@@ -64,68 +127,97 @@ public class Tm implements ITm {
 
 	private PreparedStatement pstmAddSeg;
 	private PreparedStatement pstmAddTu;
-	private ArrayList<String> existingTuFields;
-	private ArrayList<String> existingSegFields;
+	private HashSet<String> existingTuFields;
+	private HashSet<String> existingSegFields;
 	private LinkedHashMap<String, Object> fieldsToImport;
+	private RecordLayout tuLayout;
+	private RecordLayout segLayout;
+	private HashSet<Set<String>> verifiedTuSignatures; // Sets of TU-level field names already verified
+	private HashSet<Set<String>> verifiedSegSignatures; // Sets of segment-level field names already verified
+	private boolean useBulkImport = false;
+	private int importBatchSize = 1000;
+	private boolean bulkImporting = false;
+	private long nextTuKey; // Next reserved TU key
+	private long tuKeyLimit; // End (excluded) of the reserved TU keys
+	private int pendingRecords; // Records in the batches not executed yet
+	private long nextSegKey; // Next reserved SegKey
+	private long segKeyLimit; // End (excluded) of the reserved SegKeys
+	private ConnectionPool.PooledConnection importConnection; // Own connection of the bulk import, or null
+	private int checkpointInterval = 0; // Number of records between the commits of a bulk import (0 for none)
+	private long uncommittedRecords; // Records flushed since the last commit of the bulk import
+	private long uncommittedSegments; // Segments of the import connection not counted yet
+	private long firstUncommittedSegKey = -1; // Lowest SegKey of the segments not committed yet, or -1
+	private boolean useSparseFields = false;
+	private HashSet<String> importSparse; // Sparse fields of the current import
+	private PreparedStatement pstmAddSparse;
+	private boolean advisorSuspended; // True if the import suspended the index advisor outside of a bulk import
 	
 	private PreparedStatement pstmUpdSeg;
 	private ArrayList<String> updSegFields;
 
 	private PreparedStatement pstmAnchors;
 	private ArrayList<Long> anchors;
-	private String rownumSubQuery;
 	
 	private FilterNode filterRoot;
-	private String whereClause;
+	private FilterCompiler.SQLCondition filterCondition = FilterCompiler.NO_CONDITION;
+	private String whereClause; // Text of the filter condition, with its bind parameters in filterCondition
 	LinkedHashMap<String, Boolean> orderByFields;
 	private String orderByClause;
 	
-	private String toSQL (FilterNode node) {
-		String tmp = "";
-		if ( node == null ) return tmp;
-		if ( node.isOperator() ) {
-			OperatorNode on = (OperatorNode)node;
-			String sqlOp = "";
-			switch ( on.getOperator().getType() ) {
-			case EQUALS: sqlOp = "="; break;
-			case NOT: sqlOp = "NOT"; break;
-			case OR: sqlOp = "OR"; break;
-			case AND: sqlOp = "AND"; break;
-			}
-			
-			if ( on.isBinary() ) {
-				tmp = toSQL(on.getRight());
-				tmp = sqlOp + " " + tmp + ")";
-				tmp = "(" + toSQL(on.getLeft()) + " " + tmp;
-			}
-			else { // Unary operator
-				tmp = "(" + sqlOp + " ";
-				tmp = tmp + toSQL(on.getRight()) + ")"; 
-			}
-		}
-		else {
-			ValueNode vn = (ValueNode)node;
-			if ( vn.isField() ) {
-				String fn = vn.getStringValue();
-				if ( DbUtil.isSegmentField(fn) ) {
-					return segTable+".\""+fn+"\"";
-				}
-				else {
-					return tuTable+".\""+fn+"\"";
-				}
-			}
-			else { // Constant
-				if ( vn.getType() == TYPE.BOOLEAN ) {
-					return vn.getBooleanValue() ? "TRUE" : "FALSE";
-				}
-				if ( vn.getType() == TYPE.STRING ) {
-					return vn.getStringValue();
-				}
-			}
-			return "ERROR";
-		}
-		return tmp;
-	}
+	private boolean useSeekPaging = true;
+	private String selectClause; // SELECT and FROM parts of the main query
+	private ArrayList<String> sortKeys; // Qualified columns of the sort order (always ends with SegKey)
+	private ArrayList<Boolean> sortKeysAsc;
+	private int[] sortKeysIndex; // 1-based index of each sort key in the select list
+	private Object[] firstRowKeys; // Sort-key tuple of the first row of the page keysPage
+	private Object[] lastRowKeys; // Sort-key tuple of the last row of the page keysPage
+	private long keysPage = -1;
+	
+	private boolean useSnapshot = false;
+	private String fromClause; // FROM part of the main query
+	private String snapshotTable; // Name of the temporary table, null if the snapshot is not built
+	private long snapshotRows; // Number of rows in the snapshot
+	private long snapshotLastKey; // Highest SegKey when the snapshot was last updated
+	private PreparedStatement pstmSnapGet;
+	private PreparedStatement pstmSnapRow;
+	private PreparedStatement pstmSnapKey;
+	private PreparedStatement pstmSnapAdd;
+	
+	private String pageQuery; // Query of the pages of the main selection
+	private LinkedHashMap<String, Boolean> segIndexColumns; // Index serving the selection on the segment table, or null
+	private LinkedHashMap<String, Boolean> tuIndexColumns; // Index serving the selection on the TU table, or null
+	
+	/**
+	 * Provides the qualified column of each field for the filter conditions.
+	 */
+	private final FilterCompiler.IColumnMapper columnMapper = new FilterCompiler.IColumnMapper() {
+		@Override
+		public String getColumn (String fieldName) {
+			return getColumnExpression(fieldName);
+		}
+	};
+	
+	/**
+	 * Provides the codes of the dictionary-encoded fields for the filter conditions.
+	 */
+	private final FilterCompiler.IFieldEncoder fieldEncoder = new FilterCompiler.IFieldEncoder() {
+		@Override
+		public boolean isEncoded (String fieldName) {
+			return dictionary.isEncoded(fieldName);
+		}
+		@Override
+		public String getCodeColumn (String fieldName) {
+			return (DbUtil.isSegmentField(fieldName) ? segTable : tuTable)+".\""+fieldName+"\"";
+		}
+		@Override
+		public String getEqualsQuery (String fieldName) {
+			return dictionary.toEqualsSQL(fieldName);
+		}
+		@Override
+		public String getContainsQuery (String fieldName) {
+			return dictionary.toContainsSQL(fieldName);
+		}
+	};
 
 	public Tm (Repository store,
 		String uuid,
@@ -133,7 +225,153 @@ public class Tm implements ITm {
 	{
 		this.store = store;
 		this.uuid = uuid;
+		conn = store.getConnection(name);
+		pool = store.getPool(name);
+		ownConnection = new ConnectionPool.PooledConnection(conn, STATEMENTCACHE_SIZE);
+		compressed = store.isCompressed(name);
+		dictionary = store.getDictionary(name);
+		sparseFields = store.getSparseFields(name);
+		updateName(name);
+	}
+	
+	/**
+	 * Indicates if the text and codes fields of this TM are stored compressed.
+	 * @return true if the text and codes fields are compressed.
+	 */
+	public boolean isCompressed () {
+		return compressed;
+	}
+	
+	/**
+	 * Indicates if a given field is stored compressed.
+	 * @param fieldName the name of the field.
+	 * @return true if the field is compressed.
+	 */
+	private boolean isCompressedField (String fieldName) {
+		return compressed && ( fieldName.startsWith(DbUtil.TEXT_PREFIX) || fieldName.startsWith(DbUtil.CODES_PREFIX) );
+	}
+	
+	/**
+	 * Indicates if the values of a given field are stored encoded: compressed, or as codes of the dictionary.
+	 * @param fieldName the name of the field.
+	 * @return true if the column does not hold the values as they are.
+	 */
+	private boolean isEncodedField (String fieldName) {
+		return isCompressedField(fieldName) || dictionary.isEncoded(fieldName);
+	}
+	
+	/**
+	 * Gets the SQL expression of the value of a given field, for the filters and the sort orders.
+	 * @param fieldName the name of the field.
+	 * @return the qualified column, or the expression decoding it if the field is stored encoded.
+	 */
+	private String getColumnExpression (String fieldName) {
+		if ( sparseFields.isSparse(fieldName) ) {
+			return sparseFields.toSQL(fieldName, (DbUtil.isSegmentField(fieldName)
+				? segTable+".\""+DbUtil.SEGKEY_NAME+"\"" : tuTable+".TUKEY"));
+		}
+		String column = (DbUtil.isSegmentField(fieldName) ? segTable : tuTable)+".\""+fieldName+"\"";
+		if ( isCompressedField(fieldName) ) return CompressedValue.toSQL(column);
+		if ( dictionary.isEncoded(fieldName) ) return dictionary.toSQL(fieldName, column);
+		return column;
+	}
+	
+	/**
+	 * Gets the SQL expression selecting the stored value of a given field.
+	 * @param fieldName the name of the field.
+	 * @return the qualified column, or the expression reading the value (named after the field)
+	 * if the field is sparse.
+	 */
+	private String getSelectColumn (String fieldName) {
+		if ( sparseFields.isSparse(fieldName) ) return getColumnExpression(fieldName)+" AS \""+fieldName+"\"";
+		return (DbUtil.isSegmentField(fieldName) ? segTable : tuTable)+".\""+fieldName+"\"";
+	}
+	
+	/**
+	 * Sets whether the new attribute fields should be created as sparse fields.
+	 * <p>The values of the sparse fields are stored in a key/value table instead of in a column
+	 * of the TU or segment table: creating one does not alter those tables (which rewrites
+	 * them and blocks the other queries), and can be done during an import without committing
+	 * its transaction. This applies to the new string fields found by {@link #addRecord(long, Map, Map)}
+	 * and to the fields created by {@link #addField(String)}, except the text and codes fields.
+	 * <p>Reading, filtering or sorting on a sparse field is slower than on a column: the
+	 * sparse fields used often in the filters and the sort orders are promoted to real columns
+	 * in the background by the index advisor of the repository (see also {@link #promoteField(String)}).
+	 * @param useSparseFields true to create the new fields as sparse fields, false to create
+	 * them as columns (the default).
+	 */
+	public void setSparseFields (boolean useSparseFields) {
+		this.useSparseFields = useSparseFields;
+	}
+	
+	/**
+	 * Indicates if the new attribute fields are created as sparse fields.
+	 * @return true if the new fields are created as sparse fields.
+	 */
+	public boolean getSparseFields () {
+		return useSparseFields;
+	}
+	
+	/**
+	 * Moves a sparse field to a real column of the TU or segment table.
+	 * <p>This alters the table: it must not be called during an import.
+	 * @param fieldName the name of the field.
+	 * @return true if the field has been moved, false if it is not a sparse field.
+	 */
+	public boolean promoteField (String fieldName) {
+		boolean done = store.promoteField(name, fieldName);
+		checkSparseFields();
+		return done;
+	}
+	
+	/**
+	 * Re-builds the queries if some sparse fields have been promoted, renamed or deleted
+	 * since they were built.
+	 */
+	private void checkSparseFields () {
+		if ( sparseFields.getVersion() == sparseVersion ) return;
 		updateName(name);
+		needPagingRefresh = true;
+	}
+	
+	/**
+	 * Gets the distinct values of a given field.
+	 * <p>For the dictionary-encoded fields the values come from the dictionary in memory.
+	 * @param fieldName the full name of the field.
+	 * @return the sorted list of the distinct non-null values of the field (can be empty).
+	 */
+	@Override
+	public List<String> getFieldValues (String fieldName) {
+		if ( dictionary.isEncoded(fieldName) ) {
+			return dictionary.getAllValues(fieldName);
+		}
+		if ( sparseFields.isSparse(fieldName) ) {
+			try {
+				return sparseFields.getValues(fieldName);
+			}
+			catch ( SQLException e ) {
+				throw new RuntimeException(e);
+			}
+		}
+		ArrayList<String> list = new ArrayList<String>();
+		String column = getColumnExpression(fieldName);
+		ConnectionPool.PooledConnection pc = null;
+		try {
+			pc = borrowConnection();
+			PreparedStatement pstm = pc.getStatements().get(String.format("SELECT DISTINCT %s FROM %s WHERE %s IS NOT NULL ORDER BY 1",
+				column, (DbUtil.isSegmentField(fieldName) ? segTable : tuTable), column));
+			ResultSet result = pstm.executeQuery();
+			while ( result.next() ) {
+				list.add(result.getString(1));
+			}
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			if ( pc != null ) releaseConnection(pc);
+		}
+		return list;
 	}
 	
 	@Override
@@ -144,6 +382,7 @@ public class Tm implements ITm {
 
 	private void updateName (String name) {
 		this.name = name;
+		sparseVersion = sparseFields.getVersion();
 		this.segTable = "\""+name+"_SEG\"";
 		this.tuTable = "\""+name+"_TU\"";
 		
@@ -155,19 +394,19 @@ public class Tm implements ITm {
 			StringBuilder tmp = new StringBuilder();
 			for ( String fn : orderByFields.keySet() ) {
 				if ( tmp.length() > 0 ) tmp.append(", ");
-				tmp.append(
-					(DbUtil.isSegmentField(fn) ? segTable : tuTable) +
-					".\"" + fn + "\" " +
+				tmp.append(getColumnExpression(fn) + " " +
 					(orderByFields.get(fn) ? "ASC" : "DESC"));
 			}
+			// Always end with the SegKey so the order is deterministic (needed for seek paging)
+			if ( !orderByFields.containsKey(DbUtil.SEGKEY_NAME) ) {
+				tmp.append(", "+segTable+".\""+DbUtil.SEGKEY_NAME+"\" ASC");
+			}
 			orderByClause = tmp.toString();
 		}
 		
 		// Reset the filter clause
-		if ( filterRoot == null ) whereClause = "";
-		else {
-			whereClause = toSQL(filterRoot);
-		}
+		filterCondition = FilterCompiler.toSQL(filterRoot, columnMapper, fieldEncoder);
+		whereClause = filterCondition.getCondition();
 		
 		updateMainQueries();
 	}
@@ -183,6 +422,10 @@ public class Tm implements ITm {
 			pstmAddTu.close();
 			pstmAddTu = null;
 		}
+		if ( pstmAddSparse != null ) {
+			pstmAddSparse.close();
+			pstmAddSparse = null;
+		}
 	}
 	
 	private void closeUpdateStatements ()
@@ -195,14 +438,38 @@ public class Tm implements ITm {
 		}
 	}
 
+	/**
+	 * Borrows a connection for a read-only query: a connection of the pool, or the connection
+	 * of the TM while a transaction is open on it (the other connections would wait for its locks,
+	 * except in multi-version mode).
+	 * <p>The connection must be given back with {@link #releaseConnection(ConnectionPool.PooledConnection)}.
+	 * @return the connection to use, with its statement cache.
+	 * @throws SQLException if an error occurs.
+	 */
+	private ConnectionPool.PooledConnection borrowConnection ()
+		throws SQLException
+	{
+		// This TM sees the uncommitted rows of its own import
+		if ( importConnection != null ) return importConnection;
+		if ( !store.isMvcc() && !conn.getAutoCommit() ) return ownConnection;
+		return pool.borrow();
+	}
+	
+	private void releaseConnection (ConnectionPool.PooledConnection pc) {
+		if (( pc != ownConnection ) && ( pc != importConnection )) pool.release(pc);
+	}
+
 	public void close () {
 		try {
-			if ( pstmGet != null ) {
-				pstmGet.close();
-				pstmGet = null;
-			}
+			ownConnection.getStatements().close(); // Not the connection: it is shared
 			closeAddStatements();
+			if ( importConnection != null ) {
+				// Import not finished: its uncommitted rows are rolled back
+				importConnection.close();
+				importConnection = null;
+			}
 			closeUpdateStatements();
+			dropSnapshot();
 			if ( pstmAnchors != null ) {
 				pstmAnchors.close();
 				pstmAnchors = null;
@@ -270,12 +537,65 @@ public class Tm implements ITm {
 		else return recordFields;
 	}
 	
+	/**
+	 * Sets whether {@link #getNextPage()} and {@link #getPreviousPage()} should use seek paging.
+	 * <p>In seek paging the sort-key values of the first and last rows of the current page are
+	 * remembered and the adjacent page is selected with a predicate on those values instead
+	 * of an OFFSET clause. The cost of moving to the next or previous page is then the same
+	 * regardless of how deep the page is. Random access (e.g. {@link #getPage(long)}) still uses OFFSET.
+	 * @param useSeekPaging true to use seek paging (the default), false to always use OFFSET.
+	 */
+	public void setSeekPaging (boolean useSeekPaging) {
+		this.useSeekPaging = useSeekPaging;
+	}
+	
+	/**
+	 * Indicates if seek paging is used for the next and previous pages.
+	 * @return true if seek paging is used, false otherwise.
+	 */
+	public boolean getSeekPaging () {
+		return useSeekPaging;
+	}
+	
+	/**
+	 * Sets whether the pages should be read from a view snapshot.
+	 * <p>When the snapshot is used, the SegKey and row number of each entry of the current
+	 * selection (filter and sort order) are materialized into an indexed temporary table
+	 * the first time a page is requested. Any page ({@link #getPage(long)}, {@link #getLastPage()}, etc.)
+	 * and {@link #findPageForSegment(long)} are then resolved with an indexed lookup on that table.
+	 * The snapshot is re-built only when the filter or the sort order change, or when a segment is
+	 * updated through this object on a field they use: segments deleted through this object are
+	 * removed from it and new records matching the filter are added at its end.
+	 * @param useSnapshot true to use a view snapshot, false to query the tables directly (the default).
+	 */
+	public void setViewSnapshot (boolean useSnapshot) {
+		if ( this.useSnapshot == useSnapshot ) return;
+		this.useSnapshot = useSnapshot;
+		try {
+			dropSnapshot();
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+		needPagingRefresh = true;
+	}
+	
+	/**
+	 * Indicates if the pages are read from a view snapshot.
+	 * @return true if a view snapshot is used, false otherwise.
+	 */
+	public boolean getViewSnapshot () {
+		return useSnapshot;
+	}
+	
 	private void updateMainQueries () {
 		try {
-			// Create a prepared statement to use to retrieve the selection
-			if ( pstmGet != null ) {
-				pstmGet.close();
-			}
+			// The sort keys of the current page are not valid anymore
+			firstRowKeys = null;
+			lastRowKeys = null;
+			keysPage = -1;
+			// The selection changes: the snapshot will be re-built when needed
+			dropSnapshot();
 			
 			codesFields = null;
 			// Check if we have at least one field that is TU-level
@@ -296,18 +616,27 @@ public class Tm implements ITm {
 					}
 				}
 			}
+			// Sorting or filtering on a TU-level field requires the join too
+			if ( orderByFields != null ) {
+				for ( String name : orderByFields.keySet() ) {
+					if ( !DbUtil.isSegmentField(name) ) hasTUField = true;
+				}
+			}
+			if ( hasTuField(filterRoot) ) hasTUField = true;
+			// An equality on a TU-level field excludes the segments without TU anyway: with an inner
+			// join the query can start from the index on the TU table
+			boolean innerJoin = false;
+			for ( String name : FilterCompiler.getEqualityFields(filterRoot) ) {
+				if ( !DbUtil.isSegmentField(name) ) innerJoin = true;
+			}
+			updateIndexColumns();
 			
 			StringBuilder tmp;
 			if ( hasTUField ) {
 				tmp = new StringBuilder(String.format("SELECT %s.\"%s\", %s.\"%s\"", segTable, DbUtil.SEGKEY_NAME, segTable, DbUtil.FLAG_NAME));
 				if ( recordFields != null ) {
 					for ( String name : recordFields ) {
-						if ( DbUtil.isSegmentField(name) ) {
-							tmp.append(", "+segTable+".\""+name+"\"");
-						}
-						else {
-							tmp.append(", "+tuTable+".\""+name+"\"");
-						}
+						tmp.append(", "+getSelectColumn(name));
 					}
 				}
 				
@@ -316,7 +645,8 @@ public class Tm implements ITm {
 				tmp = new StringBuilder(String.format("SELECT \"%s\", \"%s\"", DbUtil.SEGKEY_NAME, DbUtil.FLAG_NAME));
 				if ( recordFields != null ) {
 					for ( String name : recordFields ) {
-						tmp.append(", \""+name+"\"");
+						if ( sparseFields.isSparse(name) ) tmp.append(", "+getSelectColumn(name));
+						else tmp.append(", \""+name+"\"");
 					}
 				}
 			}
@@ -328,13 +658,56 @@ public class Tm implements ITm {
 				}
 			}
 			
+			// Add the sort keys not already selected (they are needed for seek paging)
+			int colCount = 2 + (recordFields==null ? 0 : recordFields.size()) + (codesFields==null ? 0 : codesFields.size());
+			sortKeys = new ArrayList<String>();
+			sortKeysAsc = new ArrayList<Boolean>();
+			ArrayList<String> keyNames = new ArrayList<String>();
+			if ( !Util.isEmpty(orderByFields) ) {
+				for ( String fn : orderByFields.keySet() ) {
+					keyNames.add(fn);
+					sortKeysAsc.add(orderByFields.get(fn));
+				}
+			}
+			if ( !keyNames.contains(DbUtil.SEGKEY_NAME) ) {
+				keyNames.add(DbUtil.SEGKEY_NAME);
+				sortKeysAsc.add(true);
+			}
+			sortKeysIndex = new int[keyNames.size()];
+			for ( int i=0; i<keyNames.size(); i++ ) {
+				String fn = keyNames.get(i);
+				String column = getColumnExpression(fn);
+				sortKeys.add(column);
+				if ( fn.equals(DbUtil.SEGKEY_NAME) ) {
+					sortKeysIndex[i] = ITm.SEGKEY_FIELD;
+				}
+				else if ( isEncodedField(fn) ) {
+					// The selected field is encoded: the decoded value is needed for the seeks
+					tmp.append(", "+column);
+					sortKeysIndex[i] = ++colCount;
+				}
+				else if (( recordFields != null ) && recordFields.contains(fn) ) {
+					sortKeysIndex[i] = 3+recordFields.indexOf(fn);
+				}
+				else if (( codesFields != null ) && codesFields.contains(fn) ) {
+					sortKeysIndex[i] = 3+(recordFields==null ? 0 : recordFields.size())+codesFields.indexOf(fn);
+				}
+				else {
+					tmp.append(", "+column);
+					sortKeysIndex[i] = ++colCount;
+				}
+			}
+			
 			// Complete the query
 			if ( hasTUField ) {
-				tmp.append(" FROM "+segTable+" LEFT JOIN "+tuTable+" ON "+segTable+".\""+DbUtil.TUREF_NAME+"\"="+tuTable+".TUKEY");
+				fromClause = " FROM "+segTable+(innerJoin ? " INNER JOIN " : " LEFT JOIN ")
+					+tuTable+" ON "+segTable+".\""+DbUtil.TUREF_NAME+"\"="+tuTable+".TUKEY";
 			}
 			else {
-				tmp.append(" FROM "+segTable);
+				fromClause = " FROM "+segTable;
 			}
+			tmp.append(fromClause);
+			selectClause = tmp.toString();
 			
 			
 			if ( testMode ) {
@@ -346,10 +719,8 @@ public class Tm implements ITm {
 				tmp.append(String.format(" WHERE \"%s\">=? ORDER BY \"%s\" LIMIT ?", DbUtil.SEGKEY_NAME, DbUtil.SEGKEY_NAME));
 			}
 
-			pstmGet = store.getConnection().prepareStatement(tmp.toString(),
-				ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-			
-			rownumSubQuery = String.format("(SELECT \"%s\", ROWNUM() AS R FROM %s)", DbUtil.SEGKEY_NAME, segTable);
+			// The statement is prepared when needed (filters with the same shape share it)
+			pageQuery = tmp.toString();
 			
 			if ( usePagingType2 ) {
 				// Create statement for the anchors
@@ -361,7 +732,7 @@ public class Tm implements ITm {
 					tmp = new StringBuilder(String.format(
 						"SELECT \"%s\", R FROM (SELECT \"%s\", ROWNUM() AS R FROM %s) WHERE (R=1 OR MOD(R, (?-1))=1)", DbUtil.SEGKEY_NAME, DbUtil.SEGKEY_NAME, segTable));
 				}
-				pstmAnchors = store.getConnection().prepareStatement(tmp.toString(),
+				pstmAnchors = conn.prepareStatement(tmp.toString(),
 					ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
 			}
 			
@@ -373,6 +744,9 @@ public class Tm implements ITm {
 
 	public void moveBeforeFirstPage () {
 		currentPage = -1;
+		firstRowKeys = null;
+		lastRowKeys = null;
+		keysPage = -1;
 	}
 	
 	@Override
@@ -395,13 +769,49 @@ public class Tm implements ITm {
 			// Get the list of the original existing fields
 			// This list will be use until the end of the import
 			// It will be update with any added field from the API, not from the database
-			existingTuFields = store.getFields(name, false);
-			existingSegFields = store.getFields(name, true);
+			existingTuFields = new HashSet<String>(store.getFields(name, false));
+			existingSegFields = new HashSet<String>(store.getFields(name, true));
 			// Add the Flag field to the list, so we don't try to re-create it
 			existingSegFields.add(DbUtil.FLAG_NAME);
+			// The sparse fields exist too, but their values are stored separately
+			sparseFields = store.getSparseFields(name);
+			importSparse = new HashSet<String>(sparseFields.getFields(false));
+			importSparse.addAll(sparseFields.getFields(true));
+			existingTuFields.addAll(importSparse);
+			existingSegFields.addAll(importSparse);
+			if ( useSparseFields ) {
+				// Creating the table would commit the transaction: do it now
+				sparseFields.createTable();
+				// Promoting a field during the import would lose the values added after it
+				if ( !useBulkImport ) {
+					store.getIndexAdvisor().suspend();
+					advisorSuspended = true;
+				}
+			}
 			// Create the list of the fields to import (to use with the pre-defined statement
 			fieldsToImport = new LinkedHashMap<String, Object>();
+			verifiedTuSignatures = new HashSet<Set<String>>();
+			verifiedSegSignatures = new HashSet<Set<String>>();
 			
+			if ( useBulkImport ) {
+				// Reserve the first keys (before the transaction starts: this commits)
+				nextTuKey = reserveKeys(name+"_TU", "TUKEY");
+				tuKeyLimit = nextTuKey+KEYRANGE_SIZE;
+				nextSegKey = reserveKeys(name+"_SEG", DbUtil.SEGKEY_NAME);
+				segKeyLimit = nextSegKey+KEYRANGE_SIZE;
+				// Creating an index would commit the transaction
+				store.getIndexAdvisor().suspend();
+				// Own connection: the transaction does not hold the connection of the TM, and
+				// in multi-version mode the readers keep seeing the committed rows without waiting
+				importConnection = new ConnectionPool.PooledConnection(store.openConnection(name),
+					STATEMENTCACHE_SIZE);
+				importConnection.getConnection().setAutoCommit(false);
+				pendingRecords = 0;
+				uncommittedRecords = 0;
+				uncommittedSegments = 0;
+				firstUncommittedSegKey = -1;
+				bulkImporting = true;
+			}
 		}
 		catch ( SQLException e ) {
 			throw new RuntimeException(e);
@@ -411,10 +821,44 @@ public class Tm implements ITm {
 	@Override
 	public void finishImport () {
 		try {
+			if ( bulkImporting ) {
+				Connection ic = importConnection.getConnection();
+				try {
+					flushImport();
+					commitImport();
+				}
+				catch ( SQLException e ) {
+					ic.rollback();
+					// The segments flushed since the last commit are gone. The values added to the
+					// dictionary and the sparse fields created are committed on the connection of
+					// the TM: they stay (without entries using them), the caches are re-loaded
+					store.resetSegmentCount(name);
+					dictionary.reset();
+					sparseFields.reset();
+					throw e;
+				}
+				finally {
+					bulkImporting = false;
+					// The statements belong to the import connection
+					closeAddStatements();
+					closeUpdateStatements();
+					importConnection.close();
+					importConnection = null;
+					store.getIndexAdvisor().resume();
+					entriesModified(); // Committed or rolled back
+				}
+			}
 			closeAddStatements();
+			if ( advisorSuspended ) {
+				advisorSuspended = false;
+				store.getIndexAdvisor().resume();
+			}
 			existingTuFields = null;
 			existingSegFields = null;
+			importSparse = null;
 			fieldsToImport = null;
+			verifiedTuSignatures = null;
+			verifiedSegSignatures = null;
 		}
 		catch ( SQLException e ) {
 			throw new RuntimeException(e);
@@ -426,24 +870,46 @@ public class Tm implements ITm {
 		Map<String, Object> tuFields,
 		Map<String, Object> segFields)
 	{
-		//TODO: need to wrap this into a transaction
 		try {
+			entriesModified();
+			if ( bulkImporting ) {
+				return addRecordToBatch(tuKey, tuFields, segFields);
+			}
+			
 			verifyFieldsToImport(false, tuFields, false);
 			verifyFieldsToImport(true, segFields, false);
 		
-			fillStatement(false, tuFields, 0); // tuKey not used here
-			pstmAddTu.executeUpdate();
+			// A TU row is added only for the first record of the TU
 			if ( tuKey == -1 ) {
+				fillStatement(false, tuFields, 0, 0); // tuKey not used here
+				// No key must be generated while a bulk import reserves its keys
+				synchronized ( store.getKeyLock() ) {
+					pstmAddTu.executeUpdate();
+				}
 				ResultSet keys = pstmAddTu.getGeneratedKeys();
 				if ( keys.next() ) {
 					tuKey = keys.getLong(1);
 				}
+				addSparseValues(tuFields, tuKey);
 			}
 
 			// It's unlikely there are no segment-level fields but it could happens 
 			if ( pstmAddSeg != null ) {
-				fillStatement(true, segFields, tuKey);
-				pstmAddSeg.executeUpdate();
+				fillStatement(true, segFields, tuKey, 0);
+				int n;
+				synchronized ( store.getKeyLock() ) {
+					n = pstmAddSeg.executeUpdate();
+				}
+				store.adjustSegmentCount(name, n);
+				if ( hasSparseValues(segFields) ) {
+					ResultSet keys = pstmAddSeg.getGeneratedKeys();
+					if ( keys.next() ) {
+						addSparseValues(segFields, keys.getLong(1));
+					}
+				}
+				if ( snapshotTable != null ) {
+					appendToSnapshot(snapshotLastKey+1);
+				}
 			}
 			
 			// We changed the number of rows
@@ -454,46 +920,354 @@ public class Tm implements ITm {
 		}
 		return tuKey;
 	}
+	
+	/**
+	 * Adds a record to the current batches of a bulk import.
+	 * <p>The TU key is taken from the reserved keys, and the fields are verified only
+	 * the first time a given set of field names is seen.
+	 * @param tuKey the TU key, or -1 to create a new TU.
+	 * @param tuFields the TU-level fields (can be null).
+	 * @param segFields the segment-level fields (can be null).
+	 * @return the TU key of the added record.
+	 * @throws SQLException if an error occurs.
+	 */
+	private long addRecordToBatch (long tuKey,
+		Map<String, Object> tuFields,
+		Map<String, Object> segFields)
+		throws SQLException
+	{
+		boolean newTu = (tuKey == -1);
+		if ( newTu ) {
+			if ( nextTuKey >= tuKeyLimit ) {
+				nextTuKey = reserveKeys(name+"_TU", "TUKEY");
+				tuKeyLimit = nextTuKey+KEYRANGE_SIZE;
+			}
+			tuKey = nextTuKey++;
+		}
+		verifySignature(false, tuFields);
+		verifySignature(true, segFields);
+		
+		// A TU row is added only for the first record of the TU
+		if ( newTu ) {
+			fillStatement(false, tuFields, tuKey, 0);
+			pstmAddTu.addBatch();
+			addSparseValues(tuFields, tuKey);
+		}
+		if ( pstmAddSeg != null ) {
+			if ( nextSegKey >= segKeyLimit ) {
+				nextSegKey = reserveKeys(name+"_SEG", DbUtil.SEGKEY_NAME);
+				segKeyLimit = nextSegKey+KEYRANGE_SIZE;
+			}
+			long segKey = nextSegKey++;
+			if ( firstUncommittedSegKey == -1 ) firstUncommittedSegKey = segKey;
+			fillStatement(true, segFields, tuKey, segKey);
+			pstmAddSeg.addBatch();
+			addSparseValues(segFields, segKey);
+		}
+		if ( ++pendingRecords >= importBatchSize ) {
+			flushImport();
+		}
+		
+		// We changed the number of rows
+		needPagingRefresh = true;
+		return tuKey;
+	}
+	
+	/**
+	 * Verifies a set of fields to import, unless a set with the same field names has been verified already.
+	 * @param segmentLevel true for the segment-level fields, false for the TU-level fields.
+	 * @param fields the fields to verify (can be null).
+	 */
+	private void verifySignature (boolean segmentLevel,
+		Map<String, Object> fields)
+	{
+		HashSet<Set<String>> verified = (segmentLevel ? verifiedSegSignatures : verifiedTuSignatures);
+		Set<String> signature;
+		if ( fields == null ) signature = Collections.emptySet();
+		else signature = fields.keySet();
+		if ( verified.contains(signature) ) return;
+		
+		verifyFieldsToImport(segmentLevel, fields, false);
+		// The set of fields to import only grows during an import, so this stays valid
+		verified.add(new HashSet<String>(signature));
+	}
+	
+	/**
+	 * Gets the connection where the rows are added and updated, including during a bulk import.
+	 * @return the own connection of the bulk import during a bulk import, the connection of the TM otherwise.
+	 */
+	private Connection getImportConnection () {
+		return (importConnection == null ? conn : importConnection.getConnection());
+	}
+	
+	/**
+	 * Executes the pending batches of a bulk import.
+	 * <p>The rows are not committed until {@link #finishImport()} is called, or until the
+	 * next checkpoint (see {@link #setImportCheckpointInterval(int)}).
+	 * @throws SQLException if an error occurs.
+	 */
+	private void flushImport ()
+		throws SQLException
+	{
+		if ( pendingRecords == 0 ) return;
+		// TU rows first, so the segments always point to existing rows
+		if ( pstmAddTu != null ) pstmAddTu.executeBatch();
+		if ( pstmAddSeg != null ) {
+			for ( int n : pstmAddSeg.executeBatch() ) {
+				// Rows of the import connection: counted when they become visible
+				if ( n > 0 ) uncommittedSegments += n;
+			}
+		}
+		if ( pstmAddSparse != null ) pstmAddSparse.executeBatch();
+		uncommittedRecords += pendingRecords;
+		pendingRecords = 0;
+		if (( checkpointInterval > 0 ) && ( uncommittedRecords >= checkpointInterval )) {
+			commitImport();
+		}
+	}
+	
+	/**
+	 * Commits the rows added so far by the bulk import.
+	 * <p>The keys of the rows were reserved beforehand (see {@link #reserveKeys(String, String)}), so
+	 * the commit does not need to change the identity sequences.
+	 * <p>The committed segments are added to the snapshot of the selection, if there is one.
+	 * @throws SQLException if an error occurs.
+	 */
+	private void commitImport ()
+		throws SQLException
+	{
+		importConnection.getConnection().commit();
+		uncommittedRecords = 0;
+		if ( uncommittedSegments > 0 ) {
+			store.adjustSegmentCount(name, uncommittedSegments);
+			uncommittedSegments = 0;
+		}
+		// The new rows are now visible to the other connections
+		entriesModified();
+		if ( firstUncommittedSegKey != -1 ) {
+			// The reserved keys can be lower than the keys generated since the last update
+			if ( snapshotTable != null ) appendToSnapshot(firstUncommittedSegKey);
+			firstUncommittedSegKey = -1;
+		}
+	}
+	
+	/**
+	 * Indicates if some fields to import are sparse fields with a value.
+	 * @param fields the fields to import (can be null).
+	 * @return true if at least one field is a sparse field with a value.
+	 */
+	private boolean hasSparseValues (Map<String, Object> fields) {
+		if ( importSparse.isEmpty() || Util.isEmpty(fields) ) return false;
+		for ( Map.Entry<String, Object> entry : fields.entrySet() ) {
+			if (( entry.getValue() != null ) && importSparse.contains(entry.getKey()) ) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Adds the values of the sparse fields of a record (in the batch in bulk-import mode).
+	 * @param fields the fields to import (can be null).
+	 * @param key the SegKey of the segment for segment-level fields, the TUKEY of the TU for TU-level fields.
+	 * @throws SQLException if an error occurs.
+	 */
+	private void addSparseValues (Map<String, Object> fields,
+		long key)
+		throws SQLException
+	{
+		if ( !hasSparseValues(fields) ) return;
+		if ( pstmAddSparse == null ) {
+			pstmAddSparse = sparseFields.prepareInsert(getImportConnection());
+		}
+		for ( Map.Entry<String, Object> entry : fields.entrySet() ) {
+			if (( entry.getValue() == null ) || !importSparse.contains(entry.getKey()) ) continue;
+			pstmAddSparse.setString(1, entry.getKey());
+			pstmAddSparse.setLong(2, key);
+			pstmAddSparse.setString(3, entry.getValue().toString());
+			if ( bulkImporting ) pstmAddSparse.addBatch();
+			else pstmAddSparse.executeUpdate();
+		}
+	}
+	
+	/**
+	 * Reserves a range of {@link #KEYRANGE_SIZE} keys of an identity column for the bulk import.
+	 * <p>The identity sequence is restarted after the range, so the keys generated by the other
+	 * inserts cannot fall in it. This is done on the connection of the TM, not on the import
+	 * connection: altering the sequence commits the transaction.
+	 * @param table the name of the table (not quoted).
+	 * @param column the name of the identity column (not quoted).
+	 * @return the first reserved key.
+	 * @throws SQLException if an error occurs.
+	 */
+	private long reserveKeys (String table,
+		String column)
+		throws SQLException
+	{
+		// No key can be generated between the read and the restart of the sequence
+		synchronized ( store.getKeyLock() ) {
+			PreparedStatement pstm = null;
+			Statement stm = null;
+			try {
+				pstm = conn.prepareStatement("SELECT SEQUENCE_NAME FROM INFORMATION_SCHEMA.COLUMNS "
+					+ "WHERE TABLE_NAME=? AND COLUMN_NAME=?");
+				pstm.setString(1, table);
+				pstm.setString(2, column);
+				ResultSet rs = pstm.executeQuery();
+				if ( !rs.next() ) {
+					throw new RuntimeException(String.format("No identity sequence for '%s.%s'.", table, column));
+				}
+				String sequence = rs.getString(1);
+				stm = conn.createStatement();
+				rs = stm.executeQuery(String.format("SELECT NEXT VALUE FOR \"%s\"", sequence));
+				rs.next();
+				long first = rs.getLong(1);
+				stm.execute(String.format("ALTER TABLE \"%s\" ALTER COLUMN \"%s\" RESTART WITH %d",
+					table, column, first+KEYRANGE_SIZE));
+				return first;
+			}
+			finally {
+				if ( pstm != null ) pstm.close();
+				if ( stm != null ) stm.close();
+			}
+		}
+	}
+	
+	/**
+	 * Sets whether {@link #addRecord(long, Map, Map)} should use the bulk-import mode.
+	 * <p>In bulk-import mode the TU keys and the SegKeys are reserved by ranges in the identity sequences,
+	 * the records are sent to the database in JDBC batches of {@link #setImportBatchSize(int)} records,
+	 * and all the import is done in a single transaction on its own connection, committed by
+	 * {@link #finishImport()} (or at the checkpoints, see {@link #setImportCheckpointInterval(int)}).
+	 * The added records are not visible to the other connections before they are committed.
+	 * <p>The transaction holds its locks for the whole import, so this mode cannot be used with a
+	 * shared repository (see {@link Repository#isShared()}).
+	 * <p>The import is not atomic: a new field stored as a column requires to alter its table,
+	 * so the records added before it are committed first (the new fields created as sparse fields
+	 * do not, see {@link #setSparseFields(boolean)}). If the import fails, only the records added
+	 * since the last commit are rolled back. The reserved keys that were not used are not given back,
+	 * and the values added to the dictionary of the encoded fields stay in it.
+	 * <p>This must be set before calling {@link #startImport()}.
+	 * @param useBulkImport true to use the bulk-import mode, false to insert each record
+	 * immediately (the default).
+	 * @throws RuntimeException if the bulk-import mode is requested on a shared repository.
+	 */
+	public void setBulkImport (boolean useBulkImport) {
+		if ( useBulkImport && store.isShared() ) {
+			throw new RuntimeException("The bulk-import mode cannot be used with a shared repository.");
+		}
+		this.useBulkImport = useBulkImport;
+	}
+	
+	/**
+	 * Indicates if the bulk-import mode is used.
+	 * @return true if the bulk-import mode is used, false otherwise.
+	 */
+	public boolean getBulkImport () {
+		return useBulkImport;
+	}
+	
+	/**
+	 * Sets the number of records sent to the database in one batch in bulk-import mode.
+	 * @param size the number of records per batch (minimum 1).
+	 */
+	public void setImportBatchSize (int size) {
+		if ( size < 1 ) this.importBatchSize = 1;
+		else this.importBatchSize = size;
+	}
+	
+	/**
+	 * Gets the number of records sent to the database in one batch in bulk-import mode.
+	 * @return the number of records per batch.
+	 */
+	public int getImportBatchSize () {
+		return importBatchSize;
+	}
+	
+	/**
+	 * Sets the number of records after which a bulk import commits the records added so far.
+	 * <p>By default the records are committed only by {@link #finishImport()}. With checkpoints
+	 * they become visible to the other connections as the import goes (this is mostly useful in
+	 * multi-version mode, see {@link Repository#isMvcc()}), and a failure rolls back only the
+	 * records added since the last checkpoint. The commits are done after the batches, so the
+	 * interval is rounded up to a multiple of the batch size.
+	 * <p>This must be set before calling {@link #startImport()}.
+	 * @param interval the number of records between two commits, or 0 to commit only at the end.
+	 */
+	public void setImportCheckpointInterval (int interval) {
+		if ( interval < 0 ) this.checkpointInterval = 0;
+		else this.checkpointInterval = interval;
+	}
+	
+	/**
+	 * Gets the number of records after which a bulk import commits the records added so far.
+	 * @return the number of records between two commits, or 0 if the records are committed only at the end.
+	 */
+	public int getImportCheckpointInterval () {
+		return checkpointInterval;
+	}
+	
+	private long getMaxKey (String table,
+		String column)
+		throws SQLException
+	{
+		Statement stm = null;
+		try {
+			stm = conn.createStatement();
+			ResultSet rs = stm.executeQuery(String.format("SELECT MAX(%s) FROM %s", column, table));
+			if ( rs.next() ) return rs.getLong(1); // 0 if NULL
+			return 0;
+		}
+		finally {
+			if ( stm != null ) {
+				stm.close();
+				stm = null;
+			}
+		}
+	}
 
 	private void fillStatement (boolean segmentLevel,
 		Map<String, Object> fields,
-		long tuKey)
+		long tuKey,
+		long segKey)
 		throws SQLException
 	{
 		PreparedStatement pstm;
+		RecordLayout layout;
 		if ( segmentLevel ) {
 			pstm = pstmAddSeg;
+			layout = segLayout;
 		}
 		else {
 			pstm = pstmAddTu;
+			layout = tuLayout;
 		}
 		if ( pstm == null ) {
 			return; // Nothing to do
 		}
 		
 		int n = 1;
+		// In bulk-import mode the pre-allocated key is the first parameter
+		if ( bulkImporting ) {
+			pstm.setLong(n++, (segmentLevel ? segKey : tuKey));
+		}
 		Object value;
-		for ( String name : fieldsToImport.keySet() ) {
-			// Skip fields for the other statement
-			if ( segmentLevel ) {
-				if ( !DbUtil.isSegmentField(name) ) continue;
-			}
-			else {
-				if ( DbUtil.isSegmentField(name) ) continue;
-			}
+		for ( int i=0; i<layout.columns.length; i++ ) {
 			// Get the value from the provided map or from the defaults
 			// Empty list is treat like it's all defaults
-			if ( fields.containsKey(name) ) {
-				value = fields.get(name);
+			if (( fields != null ) && fields.containsKey(layout.columns[i]) ) {
+				value = fields.get(layout.columns[i]);
 			}
 			else {
 				// Not in the current set of fields provided
 				// Set the value to its default
-				value = fieldsToImport.get(name);
+				value = layout.defaults[i];
 			}
 
-			if ( value instanceof String ) {
-				pstm.setString(n, (String)value);
+			if ( layout.encoded[i] && ( value != null )) {
+				pstm.setInt(n, dictionary.getOrAddCode(layout.columns[i], value.toString()));
+			}
+			else if ( value instanceof String ) {
+				if ( layout.compressed[i] ) pstm.setBytes(n, CompressedValue.compress((String)value));
+				else pstm.setString(n, (String)value);
 			}
 			else if ( value instanceof Boolean ) {
 				pstm.setBoolean(n, (Boolean)value);
@@ -516,16 +1290,56 @@ public class Tm implements ITm {
 		}
 	}
 	
+	/**
+	 * Creates the layout of the insert statement for the given level from the current list of fields to import.
+	 * @param segmentLevel true for the segment table, false for the TU table.
+	 * @return the new layout.
+	 */
+	private RecordLayout createLayout (boolean segmentLevel) {
+		ArrayList<String> columns = new ArrayList<String>();
+		ArrayList<Object> defaults = new ArrayList<Object>();
+		for ( String name : fieldsToImport.keySet() ) {
+			if ( DbUtil.isSegmentField(name) != segmentLevel ) continue;
+			columns.add(name);
+			defaults.add(fieldsToImport.get(name));
+		}
+		// New fields may have been created: get the current dictionary
+		dictionary = store.getDictionary(name);
+		boolean[] comp = new boolean[columns.size()];
+		boolean[] encoded = new boolean[columns.size()];
+		for ( int i=0; i<comp.length; i++ ) {
+			comp[i] = isCompressedField(columns.get(i));
+			encoded[i] = dictionary.isEncoded(columns.get(i));
+		}
+		return new RecordLayout(columns.toArray(new String[columns.size()]), defaults.toArray(), comp, encoded);
+	}
+	
+	/**
+	 * Indicates if a new field can be created as a sparse field.
+	 * @param fieldName the name of the field.
+	 * @param value the value of the field.
+	 * @return true for the string fields, except the text and codes fields.
+	 */
+	private boolean canBeSparse (String fieldName,
+		Object value)
+	{
+		return (( value instanceof String )
+			&& !fieldName.startsWith(DbUtil.TEXT_PREFIX)
+			&& !fieldName.startsWith(DbUtil.CODES_PREFIX)
+			&& !DbUtil.isPreDefinedField(fieldName));
+	}
+	
 	private void verifyFieldsToImport (boolean segmentLevel,
 		Map<String, Object> fields,
 		boolean useValuesAsDefault)
 	{
 		try {
-			ArrayList<String> existingFields;
+			HashSet<String> existingFields;
 			if ( segmentLevel ) existingFields = existingSegFields;
 			else existingFields = existingTuFields;
 			
 			LinkedHashMap<String, String> fieldsToCreate = null;
+			ArrayList<String> sparseToCreate = null;
 			boolean hasNewFieldToImport = false;
 			
 			if ( !Util.isEmpty(fields) ) {
@@ -534,6 +1348,15 @@ public class Tm implements ITm {
 				// Go through the list of fields
 				// and add the ones that do not exist to the list of fields to create
 				for ( String name : fields.keySet() ) {
+					// The values of the sparse fields are not in the insert statements
+					if ( importSparse.contains(name) ) continue;
+					if ( useSparseFields && !existingFields.contains(name) && canBeSparse(name, fields.get(name)) ) {
+						if ( sparseToCreate == null ) {
+							sparseToCreate = new ArrayList<String>();
+						}
+						sparseToCreate.add(name);
+						continue;
+					}
 					// This is a TU-level field
 					boolean hasFieldToCreate = false;
 					if ( !existingFields.contains(name) ) {
@@ -545,14 +1368,21 @@ public class Tm implements ITm {
 	
 					if ( !fieldsToImport.containsKey(name) ) {
 						if ( name.startsWith(DbUtil.CODES_PREFIX) ) {
-							type = "VARCHAR";
+							type = (compressed ? CompressedValue.SQL_TYPE : "VARCHAR");
+							fieldsToImport.put(name, null);
+							hasNewFieldToImport = true;
+						}
+						else if ( name.equals(DbUtil.HASH_NAME) ) {
+							type = "BIGINT"; // 64-bit hash (no default: segments without hash are never duplicates)
 							fieldsToImport.put(name, null);
 							hasNewFieldToImport = true;
 						}
 						else {
 							Object value = fields.get(name);
 							if ( value instanceof String ) {
-								type = "VARCHAR";
+								if ( isCompressedField(name) ) type = CompressedValue.SQL_TYPE;
+								else if ( DbUtil.isDictionaryField(name) ) type = Dictionary.SQL_TYPE; // Stored as codes
+								else type = "VARCHAR";
 								if ( useValuesAsDefault ) fieldsToImport.put(name, value);
 								else fieldsToImport.put(name, null);
 								hasNewFieldToImport = true;
@@ -584,8 +1414,20 @@ public class Tm implements ITm {
 				}
 //TODO: detect new locale and make sure all fields for the locale are added (e.g. codes not just text)
 
+				// Create the new sparse fields (this does not commit the import)
+				if ( sparseToCreate != null ) {
+					store.createSparseFields(name, sparseToCreate);
+					importSparse.addAll(sparseToCreate);
+					existingFields.addAll(sparseToCreate);
+				}
+
 				// Create the new fields as needed, and update the lists
 				// The lists can be null or empty in this call
+				if ( !Util.isEmpty(fieldsToCreate) ) {
+					flushImport(); // Pending rows must go before the table changes
+					// The table cannot be altered while the import connection holds its locks
+					if ( importConnection != null ) commitImport();
+				}
 				store.createNewFields(name, segmentLevel, fieldsToCreate, existingFields);
 			}
 			
@@ -593,11 +1435,18 @@ public class Tm implements ITm {
 			if ( segmentLevel ) {
 				if (( pstmAddSeg == null ) || !Util.isEmpty(fieldsToCreate) ) {
 					if ( pstmAddSeg != null ) {
+						flushImport();
 						pstmAddSeg.close();
 					}
 					boolean first = true;
 					int count = 0;
 					StringBuilder tmp = new StringBuilder("INSERT INTO \""+name+"_SEG\" (");
+					if ( bulkImporting ) {
+						// The pre-allocated SegKey is the first field
+						tmp.append("\""+DbUtil.SEGKEY_NAME+"\"");
+						first = false;
+						count++;
+					}
 					for ( String name : fieldsToImport.keySet() ) {
 						if ( !DbUtil.isSegmentField(name) ) continue;  // Skip over TU level fields
 						if ( first ) {
@@ -614,17 +1463,39 @@ public class Tm implements ITm {
 						tmp.append(", ?");
 					}
 					tmp.append(");");
-					pstmAddSeg = store.getConnection().prepareStatement(tmp.toString());
+					if ( bulkImporting ) {
+						pstmAddSeg = getImportConnection().prepareStatement(tmp.toString());
+					}
+					else { // The SegKey is needed for the values of the sparse fields
+						pstmAddSeg = conn.prepareStatement(tmp.toString(), Statement.RETURN_GENERATED_KEYS);
+					}
+					segLayout = createLayout(true);
 				}
 			}
 			else {
 				// Create or re-create the statement to insert the entry
 				if (( pstmAddTu == null ) || !Util.isEmpty(fieldsToCreate) || hasNewFieldToImport ) {
 					if ( pstmAddTu != null ) {
+						flushImport();
 						pstmAddTu.close();
 					}
 					StringBuilder tmp;
-					if ( !Util.isEmpty(fieldsToImport) ) {
+					if ( bulkImporting ) {
+						// Same as below, but with the pre-allocated TUKEY as first field
+						tmp = new StringBuilder("INSERT INTO \""+name+"_TU\" (TUKEY");
+						int count = 0;
+						for ( String name : fieldsToImport.keySet() ) {
+							if ( DbUtil.isSegmentField(name) ) continue; // Skip over segment-level fields
+							tmp.append(", \""+name+"\"");
+							count++;
+						}
+						tmp.append(") VALUES (?");
+						for ( int i=0; i<count; i++ ) {
+							tmp.append(", ?");
+						}
+						tmp.append(");");
+					}
+					else if ( !Util.isEmpty(fieldsToImport) ) {
 						boolean first = true;
 						int count = 0;
 						tmp = new StringBuilder("INSERT INTO \""+name+"_TU\" (");
@@ -649,7 +1520,13 @@ public class Tm implements ITm {
 						// In that case we just pass the TUKey with NULL
 						tmp = new StringBuilder("INSERT INTO \""+name+"_TU\" (TUKEY) VALUES (NULL)");
 					}
-					pstmAddTu = store.getConnection().prepareStatement(tmp.toString(), Statement.RETURN_GENERATED_KEYS);
+					if ( bulkImporting ) {
+						pstmAddTu = getImportConnection().prepareStatement(tmp.toString());
+					}
+					else {
+						pstmAddTu = conn.prepareStatement(tmp.toString(), Statement.RETURN_GENERATED_KEYS);
+					}
+					tuLayout = createLayout(false);
 				}
 			}
 		}
@@ -670,49 +1547,640 @@ public class Tm implements ITm {
 		checkPagingVariables();
 		if ( pageCount > oldPage ) currentPage = oldPage;
 		else if ( pageCount > 0 ) currentPage = pageCount-1; 
-		return moveToPage(getFirstKeySegValueForPage(currentPage));
+		// Explicit refresh: always re-read the page
+		return cachePage(getCacheVersion(), moveToPage(getFirstKeySegValueForPage(currentPage)));
 	}
 	
 	@Override
 	public IRecordSet getFirstPage () {
 		checkPagingVariables();
 		currentPage = 0;
-		return moveToPage(getFirstKeySegValueForPage(currentPage));
+		RecordPage page = getCachedPage();
+		if ( page != null ) return page;
+		return cachePage(getCacheVersion(), moveToPage(getFirstKeySegValueForPage(currentPage)));
 	}
 
 	@Override
 	public IRecordSet getLastPage () {
 		checkPagingVariables();
 		currentPage = pageCount-1;
-		return moveToPage(getFirstKeySegValueForPage(currentPage));
+		RecordPage page = getCachedPage();
+		if ( page != null ) return page;
+		return cachePage(getCacheVersion(), moveToPage(getFirstKeySegValueForPage(currentPage)));
 	}
 
 	@Override
 	public IRecordSet getNextPage () {
 		checkPagingVariables();
 		if ( currentPage >= pageCount-1 ) return null; // Last page reached
+		boolean seek = canSeekFrom(currentPage);
 		currentPage++;
-		return moveToPage(getFirstKeySegValueForPage(currentPage));
+		RecordPage page = getCachedPage();
+		if ( page != null ) return page;
+		if ( seek ) return cachePage(getCacheVersion(), seekToPage(true));
+		return cachePage(getCacheVersion(), moveToPage(getFirstKeySegValueForPage(currentPage)));
 	}
 
 	@Override
 	public IRecordSet getPreviousPage () {
 		checkPagingVariables();
 		if ( currentPage <= 0 ) return null; // First page reached
+		boolean seek = canSeekFrom(currentPage);
 		currentPage--;
-		return moveToPage(getFirstKeySegValueForPage(currentPage));
+		RecordPage page = getCachedPage();
+		if ( page != null ) return page;
+		if ( seek ) return cachePage(getCacheVersion(), seekToPage(false));
+		return cachePage(getCacheVersion(), moveToPage(getFirstKeySegValueForPage(currentPage)));
 	}
-
-	private void checkPagingVariables () {
-		// Do we need to re-compute the paging variables
-		if ( !needPagingRefresh ) return;
-		
-		totalRows = store.getTotalSegmentCount(name);
-		if ( totalRows < 1 ) {
-			pageCount = 0;
+	
+	/**
+	 * Gets the current page from the page cache of the repository.
+	 * <p>Pages are not cached when using a view snapshot, since the snapshot
+	 * belongs to this object only, nor while a bulk import is running: the pages are then
+	 * read on the import connection, which sees the rows not committed yet.
+	 * @return a new record set for the current page, or null if it is not in the cache.
+	 */
+	private RecordPage getCachedPage () {
+		PageCache cache = store.getPageCache();
+		if ( useSnapshot || ( importConnection != null ) || !cache.isEnabled() ) return null;
+		RecordPage page = cache.get(uuid, getPageView(), currentPage);
+		// Keep the sort keys so the next move can still use seek paging
+		if ( page != null ) rememberPageKeys(page);
+		return page;
+	}
+	
+	/**
+	 * Gets the modification version of this TM in the page cache of the repository.
+	 * @return the current version of the TM.
+	 */
+	private long getCacheVersion () {
+		return store.getPageCache().getVersion(uuid);
+	}
+	
+	/**
+	 * Stores a page just read in the page cache of the repository.
+	 * <p>The version is the first argument, so the callers read it before the query of the page:
+	 * the page is not stored if the TM was modified in-between.
+	 * @param version the version of the TM read before the query of the page.
+	 * @param page the page read (can be null).
+	 * @return the record set to return to the caller.
+	 */
+	private IRecordSet cachePage (long version,
+		RecordPage page)
+	{
+		if (( page == null ) || useSnapshot || ( importConnection != null )) return page;
+		PageCache cache = store.getPageCache();
+		if ( !cache.isEnabled() ) return page;
+		cache.put(uuid, version, getPageView(), currentPage, page);
+		// The cached instance must not be moved: give a new cursor to the caller
+		return page.duplicate();
+	}
+	
+	/**
+	 * Computes the indexes that would serve the current selection.
+	 * <p>An index starts with the fields compared to a constant in the filter, and continues
+	 * with the fields of the sort order if they are all in the same table.
+	 */
+	private void updateIndexColumns () {
+		LinkedHashMap<String, Boolean> seg = new LinkedHashMap<String, Boolean>();
+		LinkedHashMap<String, Boolean> tu = new LinkedHashMap<String, Boolean>();
+		// Sorted, so filters with the same fields request the same index
+		for ( String fn : new TreeSet<String>(FilterCompiler.getEqualityFields(filterRoot)) ) {
+			// An index on a compressed column cannot serve the expanded values
+			// (the encoded fields are compared on their codes)
+			// (the sparse fields have no column)
+			if ( isCompressedField(fn) || sparseFields.isSparse(fn) ) continue;
+			(DbUtil.isSegmentField(fn) ? seg : tu).put(fn, true);
+		}
+		boolean segOnly = true;
+		boolean tuOnly = !Util.isEmpty(orderByFields);
+		if ( !Util.isEmpty(orderByFields) ) {
+			for ( String fn : orderByFields.keySet() ) {
+				if ( DbUtil.isSegmentField(fn) ) tuOnly = false;
+				else segOnly = false;
+			}
 		}
-		else {
-			if ( pageMode == PageMode.EDITOR ) {
+		if ( segOnly ) {
+			boolean fullOrder = true;
+			if ( orderByFields != null ) {
+				for ( String fn : orderByFields.keySet() ) {
+					if ( isEncodedField(fn) || sparseFields.isSparse(fn) ) {
+						fullOrder = false; // The index can only serve the keys before this one
+						break;
+					}
+					if ( !seg.containsKey(fn) ) seg.put(fn, orderByFields.get(fn));
+				}
+			}
+			// Same tie-breaker as the ORDER BY clause
+			if ( fullOrder && !seg.isEmpty() && !seg.containsKey(DbUtil.SEGKEY_NAME) ) seg.put(DbUtil.SEGKEY_NAME, true);
+		}
+		else if ( tuOnly ) {
+			for ( String fn : orderByFields.keySet() ) {
+				if ( isEncodedField(fn) || sparseFields.isSparse(fn) ) break; // Sorted on the decoded values
+				if ( !tu.containsKey(fn) ) tu.put(fn, orderByFields.get(fn));
+			}
+		}
+		// The SegKey alone is the primary key
+		if (( seg.size() == 1 ) && seg.containsKey(DbUtil.SEGKEY_NAME) ) seg.clear();
+		segIndexColumns = (seg.isEmpty() ? null : seg);
+		tuIndexColumns = (tu.isEmpty() ? null : tu);
+	}
+	
+	/**
+	 * Reports to the index advisor of the repository the indexes that would serve the query
+	 * of the current selection about to be run.
+	 */
+	private void adviseIndexes () {
+		IndexAdvisor advisor = store.getIndexAdvisor();
+		if ( segIndexColumns != null ) advisor.recordUsage(uuid, name, true, segIndexColumns);
+		if ( tuIndexColumns != null ) advisor.recordUsage(uuid, name, false, tuIndexColumns);
+		// Sparse fields used often are promoted to columns
+		if ( sparseFields.hasFields() ) {
+			TreeSet<String> used = new TreeSet<String>();
+			addSparseFields(filterRoot, used);
+			if ( orderByFields != null ) {
+				for ( String fn : orderByFields.keySet() ) {
+					if ( sparseFields.isSparse(fn) ) used.add(fn);
+				}
+			}
+			if ( !used.isEmpty() ) store.recordSparseUsage(uuid, sparseFields, used);
+		}
+	}
+	
+	/**
+	 * Collects the sparse fields used in a filter.
+	 * @param node the root of the filter (can be null).
+	 * @param fieldNames the set where to add the names of the sparse fields.
+	 */
+	private void addSparseFields (FilterNode node,
+		Set<String> fieldNames)
+	{
+		if ( node == null ) return;
+		if ( node.isOperator() ) {
+			OperatorNode on = (OperatorNode)node;
+			if ( on.isBinary() ) addSparseFields(on.getLeft(), fieldNames);
+			addSparseFields(on.getRight(), fieldNames);
+			return;
+		}
+		ValueNode vn = (ValueNode)node;
+		if ( vn.isField() && sparseFields.isSparse(vn.getStringValue()) ) {
+			fieldNames.add(vn.getStringValue());
+		}
+	}
+	
+	/**
+	 * Gets the secondary indexes managed for this TM by the index advisor of the repository.
+	 * @return the list of the managed indexes with their build status (can be empty).
+	 */
+	public List<IndexAdvisor.ManagedIndex> getManagedIndexes () {
+		return store.getIndexAdvisor().getIndexes(uuid);
+	}
+	
+	private String getPageView () {
+		return pageMode+"\n"+limit+"\n"+pageQuery+"\n"+Arrays.toString(filterCondition.getParameters());
+	}
+	
+	/**
+	 * Indicates to the page cache of the repository that the entries of this TM have changed.
+	 */
+	private void entriesModified () {
+		store.getPageCache().modified(uuid);
+	}
+	
+	/**
+	 * Indicates if the page adjacent to a given page can be reached by seek paging.
+	 * @param page the page from where we move.
+	 * @return true if we have the sort keys for that page.
+	 */
+	private boolean canSeekFrom (long page) {
+		// The snapshot gives already an indexed access to any page
+		return ( useSeekPaging && !useSnapshot && ( keysPage == page ) && ( lastRowKeys != null ));
+	}
+	
+	/**
+	 * Gets the next or previous page from the sort keys of the current page.
+	 * @param forward true to get the next page, false to get the previous one.
+	 * @return the record set for the new current page.
+	 */
+	private RecordPage seekToPage (boolean forward) {
+		Object[] keys = (forward ? lastRowKeys : firstRowKeys);
+		// In editor mode the pages overlap by one row: include the row of the keys
+		ArrayList<Object> params = new ArrayList<Object>();
+		String pred = buildSeekPredicate(keys, forward, (pageMode == PageMode.EDITOR), params);
+		
+		// Build the order clause for the direction
+		StringBuilder order = new StringBuilder();
+		StringBuilder outerOrder = new StringBuilder();
+		for ( int i=0; i<sortKeys.size(); i++ ) {
+			if ( i > 0 ) {
+				order.append(", ");
+				outerOrder.append(", ");
+			}
+			boolean asc = (sortKeysAsc.get(i) == forward);
+			order.append(sortKeys.get(i)+(asc ? " ASC" : " DESC"));
+			outerOrder.append(String.format("%d %s", sortKeysIndex[i], (sortKeysAsc.get(i) ? "ASC" : "DESC")));
+		}
+		
+		String sql = String.format("%s WHERE %s(%s) ORDER BY %s LIMIT ?", selectClause,
+			( Util.isEmpty(whereClause) ? "" : whereClause+" AND "), pred, order);
+		if ( !forward ) {
+			// Put back the rows of the previous page in the normal order
+			sql = String.format("SELECT * FROM (%s) ORDER BY %s", sql, outerOrder);
+		}
+		
+		RecordPage page = null;
+		ConnectionPool.PooledConnection pc = null;
+		try {
+			adviseIndexes();
+			pc = borrowConnection();
+			PreparedStatement pstm = pc.getStatements().get(sql);
+			// The filter condition comes first in the query
+			int n = filterCondition.bind(pstm, 1);
+			for ( Object value : params ) {
+				pstm.setObject(n++, value);
+			}
+			pstm.setLong(n, limit);
+			page = RecordSet.detach(pstm.executeQuery(), (int)limit, dictionary);
+			rememberPageKeys(page);
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			if ( pc != null ) releaseConnection(pc);
+		}
+		return page;
+	}
+	
+	/**
+	 * Builds the condition selecting the entries after (or before) a given sort-key tuple
+	 * in the current sort order.
+	 * <p>The condition is (k1 after v1) OR (k1=v1 AND k2 after v2) OR ...
+	 * NULL is the lowest value in H2 sorts, so it is handled explicitly.
+	 * @param keys the sort-key tuple of the reference entry.
+	 * @param forward true for the entries after the reference entry, false for the entries before it.
+	 * @param inclusive true to include the reference entry.
+	 * @param params the list where to add the parameters of the condition, in the order of their place-holders.
+	 * @return the text of the condition.
+	 */
+	private String buildSeekPredicate (Object[] keys,
+		boolean forward,
+		boolean inclusive,
+		List<Object> params)
+	{
+		StringBuilder pred = new StringBuilder();
+		StringBuilder equals = new StringBuilder();
+		for ( int i=0; i<sortKeys.size(); i++ ) {
+			String col = sortKeys.get(i);
+			boolean asc = (sortKeysAsc.get(i) == forward);
+			if ( pred.length() > 0 ) pred.append(" OR ");
+			pred.append("(");
+			if ( equals.length() > 0 ) pred.append(equals+" AND ");
+			if ( keys[i] == null ) {
+				pred.append(asc ? col+" IS NOT NULL" : "FALSE");
+			}
+			else {
+				pred.append(asc ? col+">?" : "("+col+"<? OR "+col+" IS NULL)");
+			}
+			pred.append(")");
+			// Update the equality prefix for the next key
+			if ( equals.length() > 0 ) equals.append(" AND ");
+			equals.append(keys[i] == null ? col+" IS NULL" : col+"=?");
+		}
+		if ( inclusive ) {
+			pred.append(" OR ("+equals+")");
+		}
+		// Collect the parameters in the same order as the place-holders
+		for ( int i=0; i<sortKeys.size(); i++ ) {
+			for ( int j=0; j<i; j++ ) {
+				if ( keys[j] != null ) params.add(keys[j]);
+			}
+			if ( keys[i] != null ) params.add(keys[i]);
+		}
+		if ( inclusive ) {
+			for ( Object value : keys ) {
+				if ( value != null ) params.add(value);
+			}
+		}
+		return pred.toString();
+	}
+	
+	/**
+	 * Stores the sort-key tuples of the first and last rows of the current page.
+	 * @param page the entries of the current page.
+	 */
+	private void rememberPageKeys (RecordPage page) {
+		firstRowKeys = lastRowKeys = null;
+		keysPage = -1;
+		if ( !useSeekPaging ) return;
+		if ( page.getSize() > 0 ) {
+			lastRowKeys = readSortKeys(page, page.getSize()-1);
+			firstRowKeys = readSortKeys(page, 0);
+			keysPage = currentPage;
+		}
+	}
+	
+	private Object[] readSortKeys (RecordPage page,
+		int row)
+	{
+		Object[] keys = new Object[sortKeysIndex.length];
+		for ( int i=0; i<sortKeysIndex.length; i++ ) {
+			keys[i] = page.getValue(row, sortKeysIndex[i]);
+		}
+		return keys;
+	}
+
+	/**
+	 * Materializes the SegKey and row number of each entry of the current selection
+	 * into an indexed temporary table.
+	 * @throws SQLException if an error occurs.
+	 */
+	private void buildSnapshot ()
+		throws SQLException
+	{
+		dropSnapshot();
+		String table = "\"TMVIEW_"+snapshotCounter.incrementAndGet()+"\"";
+		Statement stm = null;
+		PreparedStatement pstm = null;
+		try {
+			stm = conn.createStatement();
+			stm.execute("CREATE LOCAL TEMPORARY TABLE "+table+" (VROW BIGINT, VKEY BIGINT)");
+			snapshotTable = table; // So it can be dropped even if something fails below
+			adviseIndexes();
+			pstm = conn.prepareStatement(String.format(
+				"INSERT INTO %s SELECT ROWNUM(), K FROM (SELECT %s.\"%s\" AS K%s %s ORDER BY %s)",
+				table, segTable, DbUtil.SEGKEY_NAME, fromClause,
+				( Util.isEmpty(whereClause) ? "" : "WHERE "+whereClause),
+				orderByClause));
+			filterCondition.bind(pstm, 1);
+			snapshotRows = pstm.executeUpdate();
+			// Create the indexes once the table is filled
+			stm.execute("CREATE INDEX ON "+table+"(VROW)");
+			stm.execute("CREATE UNIQUE INDEX ON "+table+"(VKEY)");
+			
+			pstmSnapGet = conn.prepareStatement(String.format(
+				"%s INNER JOIN %s ON %s.VKEY=%s.\"%s\" WHERE %s.VROW>=(SELECT VROW FROM %s WHERE VKEY=?) ORDER BY %s.VROW LIMIT ?",
+				selectClause, table, table, segTable, DbUtil.SEGKEY_NAME, table, table, table),
+				ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			pstmSnapRow = conn.prepareStatement("SELECT VROW FROM "+table+" WHERE VKEY=?");
+			pstmSnapKey = conn.prepareStatement("SELECT VKEY FROM "+table+" WHERE VROW=?");
+			// New records are added at the end of the snapshot, if they match the filter
+			pstmSnapAdd = conn.prepareStatement(String.format(
+				"INSERT INTO %s SELECT ROWNUM()+?, K FROM (SELECT %s.\"%s\" AS K%s WHERE %s.\"%s\">=? "
+				+ "AND NOT EXISTS (SELECT VKEY FROM %s WHERE VKEY=%s.\"%s\")%s ORDER BY K)",
+				table, segTable, DbUtil.SEGKEY_NAME, fromClause, segTable, DbUtil.SEGKEY_NAME,
+				table, segTable, DbUtil.SEGKEY_NAME,
+				( Util.isEmpty(whereClause) ? "" : " AND "+whereClause)));
+			snapshotLastKey = getMaxKey(segTable, "\""+DbUtil.SEGKEY_NAME+"\"");
+		}
+		finally {
+			if ( stm != null ) {
+				stm.close();
+				stm = null;
+			}
+			if ( pstm != null ) {
+				pstm.close();
+				pstm = null;
+			}
+		}
+	}
+	
+	/**
+	 * Drops the snapshot of the selection, if there is one.
+	 * @throws SQLException if an error occurs.
+	 */
+	private void dropSnapshot ()
+		throws SQLException
+	{
+		if ( pstmSnapGet != null ) {
+			pstmSnapGet.close();
+			pstmSnapGet = null;
+		}
+		if ( pstmSnapRow != null ) {
+			pstmSnapRow.close();
+			pstmSnapRow = null;
+		}
+		if ( pstmSnapKey != null ) {
+			pstmSnapKey.close();
+			pstmSnapKey = null;
+		}
+		if ( pstmSnapAdd != null ) {
+			pstmSnapAdd.close();
+			pstmSnapAdd = null;
+		}
+		if ( snapshotTable == null ) return;
+		// The temporary table goes away with the connection anyway
+		if (( conn != null ) && !conn.isClosed() ) {
+			Statement stm = null;
+			try {
+				stm = conn.createStatement();
+				stm.execute("DROP TABLE IF EXISTS "+snapshotTable);
+			}
+			finally {
+				if ( stm != null ) {
+					stm.close();
+					stm = null;
+				}
+			}
+		}
+		snapshotTable = null;
+		snapshotRows = 0;
+	}
+	
+	private long getFirstRowNumberForPage (long page) {
+		return (page * (pageMode == PageMode.EDITOR ? limit-1 : limit)) + 1;
+	}
+	
+	/**
+	 * Gets the SegKey of the entry at a given row of the snapshot.
+	 * @param row the 1-based row number.
+	 * @return the SegKey of the entry, or -1 if there is no such row.
+	 */
+	private long getSnapshotKey (long row) {
+		try {
+			pstmSnapKey.setLong(1, row);
+			ResultSet rs = pstmSnapKey.executeQuery();
+			if ( rs.next() ) return rs.getLong(1);
+			return -1;
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private long findPageInSnapshot (long segKey) {
+		try {
+			pstmSnapRow.setLong(1, segKey);
+			ResultSet rs = pstmSnapRow.executeQuery();
+			if ( !rs.next() ) {
+				return -1; // Not in the selection
+			}
+			return getPageForRow(rs.getLong(1));
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Finds the page of an entry of the current selection by counting the entries
+	 * before it with the filter and the sort order of the pages.
+	 * @param segKey the SegKey of the entry.
+	 * @return the 0-based page of the entry, or -1 if it is not in the selection.
+	 */
+	private long findPageInSelection (long segKey) {
+		ConnectionPool.PooledConnection pc = null;
+		try {
+			String where = ( Util.isEmpty(whereClause) ? "" : whereClause+" AND " );
+			// Get the sort keys of the entry, if it is in the selection
+			StringBuilder tmp = new StringBuilder("SELECT ");
+			for ( int i=0; i<sortKeys.size(); i++ ) {
+				if ( i > 0 ) tmp.append(", ");
+				tmp.append(sortKeys.get(i));
+			}
+			tmp.append(String.format("%s WHERE %s%s.\"%s\"=?", fromClause, where, segTable, DbUtil.SEGKEY_NAME));
+			pc = borrowConnection();
+			PreparedStatement pstm = pc.getStatements().get(tmp.toString());
+			int n = filterCondition.bind(pstm, 1);
+			pstm.setLong(n, segKey);
+			ResultSet rs = pstm.executeQuery();
+			if ( !rs.next() ) {
+				return -1; // Not in the selection
+			}
+			Object[] keys = new Object[sortKeys.size()];
+			for ( int i=0; i<keys.length; i++ ) {
+				keys[i] = rs.getObject(i+1);
+			}
+			rs.close();
+			
+			// Count the entries before it
+			ArrayList<Object> params = new ArrayList<Object>();
+			String pred = buildSeekPredicate(keys, false, false, params);
+			pstm = pc.getStatements().get(String.format("SELECT COUNT(*)%s WHERE %s(%s)", fromClause, where, pred));
+			n = filterCondition.bind(pstm, 1);
+			for ( Object value : params ) {
+				pstm.setObject(n++, value);
+			}
+			rs = pstm.executeQuery();
+			rs.next();
+			return getPageForRow(rs.getLong(1)+1);
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			if ( pc != null ) releaseConnection(pc);
+		}
+	}
+	
+	/**
+	 * Gets the page of a given row of the selection. In editor mode the last row of a page
+	 * is also the first of the next page: the next page is returned.
+	 * @param row the 1-based row number.
+	 * @return the 0-based page of the row.
+	 */
+	private long getPageForRow (long row) {
+		long page = (row-1) / (pageMode == PageMode.EDITOR ? limit-1 : limit);
+		// In editor mode the last row of the last page is also the first of an empty page
+		if ( page >= pageCount ) page = pageCount-1;
+		return page;
+	}
+	
+	/**
+	 * Adds the new segments at the end of the snapshot, if they match the filter.
+	 * @param fromKey the lowest SegKey of the new segments: the segments from that key
+	 * that are not in the snapshot yet are added.
+	 * @throws SQLException if an error occurs.
+	 */
+	private void appendToSnapshot (long fromKey)
+		throws SQLException
+	{
+		pstmSnapAdd.setLong(1, snapshotRows);
+		pstmSnapAdd.setLong(2, fromKey);
+		filterCondition.bind(pstmSnapAdd, 3);
+		snapshotRows += pstmSnapAdd.executeUpdate();
+		snapshotLastKey = getMaxKey(segTable, "\""+DbUtil.SEGKEY_NAME+"\"");
+	}
+	
+	/**
+	 * Removes a list of segments from the snapshot, and renumbers the rows after them.
+	 * @param segKeys the list of the SegKey values of the segments to remove.
+	 */
+	private void removeFromSnapshot (List<Long> segKeys) {
+		PreparedStatement pstm = null;
+		try {
+			// Get the row numbers of the segments in the snapshot
+			ArrayList<Long> rows = new ArrayList<Long>();
+			for ( long segKey : segKeys ) {
+				pstmSnapRow.setLong(1, segKey);
+				ResultSet rs = pstmSnapRow.executeQuery();
+				if ( rs.next() ) rows.add(rs.getLong(1));
+			}
+			if ( rows.isEmpty() ) return;
+			Collections.sort(rows);
+			
+			pstm = conn.prepareStatement("DELETE FROM "+snapshotTable+" WHERE VROW=?");
+			for ( long row : rows ) {
+				pstm.setLong(1, row);
+				pstm.addBatch();
+			}
+			pstm.executeBatch();
+			pstm.close();
+			
+			// Shift each range of rows between two deleted rows by the number of rows deleted before it
+			pstm = conn.prepareStatement("UPDATE "+snapshotTable+" SET VROW=VROW-? WHERE VROW>? AND VROW<?");
+			for ( int i=0; i<rows.size(); i++ ) {
+				pstm.setLong(1, i+1);
+				pstm.setLong(2, rows.get(i));
+				pstm.setLong(3, (i+1 < rows.size()) ? rows.get(i+1) : snapshotRows+1);
+				pstm.addBatch();
+			}
+			pstm.executeBatch();
+			snapshotRows -= rows.size();
+			needPagingRefresh = true;
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			try {
+				if ( pstm != null ) {
+					pstm.close();
+					pstm = null;
+				}
+			}
+			catch ( SQLException e ) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private void checkPagingVariables () {
+		checkSparseFields();
+		// Do we need to re-compute the paging variables
+		if ( !needPagingRefresh ) return;
+		
+		if ( useSnapshot ) {
+			try {
+				if ( snapshotTable == null ) buildSnapshot();
+			}
+			catch ( SQLException e ) {
+				throw new RuntimeException(e);
+			}
+			totalRows = snapshotRows;
+		}
+		else if ( testMode && !Util.isEmpty(whereClause) ) {
+			// The pages are read through the filter
+			totalRows = store.getFilteredSegmentCount(name, uuid, fromClause, filterCondition);
+		}
+		else {
+			totalRows = store.getTotalSegmentCount(name);
+		}
+		if ( totalRows < 1 ) {
+			pageCount = 0;
+		}
+		else {
+			if ( pageMode == PageMode.EDITOR ) {
 				pageCount = (totalRows-1) / (limit-1); // -1 for overlap
 				if ( totalRows == 1 ) pageCount++;
 				else if ( (totalRows-1) % (limit-1) > 0 ) pageCount++; // Last page
@@ -724,10 +2192,13 @@ public class Tm implements ITm {
 		}
 		
 		currentPage = -1;
+		firstRowKeys = lastRowKeys = null;
+		keysPage = -1;
 		needPagingRefresh = false; // Stable until we add or delete rows or change the page-size
 		//TODO: handle sort on other fields
 
-		if ( usePagingType2 ) {
+		// In test mode the pages are read by offset: no need for the anchors
+		if ( usePagingType2 && !useSnapshot && !testMode ) {
 			try {
 				pstmAnchors.setLong(1, limit);
 				ResultSet result = pstmAnchors.executeQuery();
@@ -744,27 +2215,49 @@ public class Tm implements ITm {
 		
 	}
 	
-	private IRecordSet moveToPage (long topSegKey) {
+	private RecordPage moveToPage (long topSegKey) {
 		if ( topSegKey < 1 ) return null;
-		ResultSet result = null;
+		RecordPage page = null;
+		ConnectionPool.PooledConnection pc = null;
 		try {
+			if ( useSnapshot ) {
+				// The snapshot is a temporary table of the connection of the TM
+				pstmSnapGet.setLong(1, topSegKey);
+				pstmSnapGet.setLong(2, limit);
+				return RecordSet.detach(pstmSnapGet.executeQuery(), (int)limit, dictionary);
+			}
+			if ( testMode ) adviseIndexes(); // Only the test-mode query filters and sorts
+			pc = borrowConnection();
+			PreparedStatement pstm = pc.getStatements().get(pageQuery);
 			if ( testMode ) {
-				pstmGet.setLong(1, limit);
-				pstmGet.setLong(2, (pageMode == PageMode.EDITOR ? limit-1 : limit) * currentPage);
+				int n = filterCondition.bind(pstm, 1);
+				pstm.setLong(n, limit);
+				pstm.setLong(n+1, (pageMode == PageMode.EDITOR ? limit-1 : limit) * currentPage);
 			}
 			else {
-				pstmGet.setLong(1, topSegKey);
-				pstmGet.setLong(2, limit);
+				pstm.setLong(1, topSegKey);
+				pstm.setLong(2, limit);
 			}
-			result = pstmGet.executeQuery();
+			page = RecordSet.detach(pstm.executeQuery(), (int)limit, dictionary);
+			rememberPageKeys(page);
 		}
 		catch ( SQLException e ) {
 			throw new RuntimeException(e);
 		}
-		return new RecordSet(result);
+		finally {
+			if ( pc != null ) releaseConnection(pc);
+		}
+		return page;
 	}
 
 	private long getFirstKeySegValueForPage (long page) {
+		if ( useSnapshot ) {
+			return getSnapshotKey(getFirstRowNumberForPage(page));
+		}
+		if ( testMode ) {
+			// The page is read by offset: only the validity of the key matters
+			return (( page >= 0 ) && ( page < pageCount )) ? page+1 : -1;
+		}
 		long key = -1;
 		if ( usePagingType2 ) {
 			if ( anchors.size() > page ) {
@@ -822,13 +2315,16 @@ public class Tm implements ITm {
 		// Locale does not exists we can add it
 		Statement stm = null;
 		try {
+			String type = (compressed ? CompressedValue.SQL_TYPE : "VARCHAR");
 			StringBuilder tmp = new StringBuilder();
-			tmp.append(String.format("ALTER TABLE \"%s%s\" ADD \"%s\" VARCHAR; ",
-				name, "_SEG", DbUtil.TEXT_PREFIX+localeId));
-			tmp.append(String.format("ALTER TABLE \"%s%s\" ADD \"%s\" VARCHAR;",
-				name, "_SEG", DbUtil.CODES_PREFIX+localeId));
-			stm = store.getConnection().createStatement();
+			tmp.append(String.format("ALTER TABLE \"%s%s\" ADD \"%s\" %s; ",
+				name, "_SEG", DbUtil.TEXT_PREFIX+localeId, type));
+			tmp.append(String.format("ALTER TABLE \"%s%s\" ADD \"%s\" %s;",
+				name, "_SEG", DbUtil.CODES_PREFIX+localeId, type));
+			stm = conn.createStatement();
 			stm.execute(tmp.toString());
+			store.columnsAdded(name, true, Arrays.asList(DbUtil.TEXT_PREFIX+localeId, DbUtil.CODES_PREFIX+localeId));
+			entriesModified();
 		}
 		catch ( SQLException e ) {
 			throw new RuntimeException(e);
@@ -861,21 +2357,27 @@ public class Tm implements ITm {
 		Statement stm = null;
 		try {
 			StringBuilder tmp = new StringBuilder();
-			stm = store.getConnection().createStatement();
-			ResultSet result = stm.executeQuery("SHOW COLUMNS FROM \""+name+"_SEG\"");
-			while ( result.next() ) {
-				String fn = result.getString(1);
+			ArrayList<String> removed = new ArrayList<String>();
+			stm = conn.createStatement();
+			ArrayList<String> segFields = new ArrayList<String>(store.getFields(name, true));
+			segFields.addAll(sparseFields.getFields(true));
+			for ( String fn : segFields ) {
 				int n = fn.lastIndexOf(DbUtil.LOC_SEP);
 				if ( n > -1 ) {
 					if ( fn.substring(n+1).equals(localeId) ) {
-						// This field is to be removed
-						tmp.append(String.format("ALTER TABLE \"%s%s\" DROP COLUMN \"%s\"; ",
-							name, "_SEG", fn));
+						// This field is to be removed (sparse fields have no column)
+						if ( !sparseFields.isSparse(fn) ) {
+							tmp.append(String.format("ALTER TABLE \"%s%s\" DROP COLUMN \"%s\"; ",
+								name, "_SEG", fn));
+						}
+						removed.add(fn);
 					}
 				}
 			}
-			if ( tmp.length() > 0 ) {
-				stm.execute(tmp.toString());
+			if ( !removed.isEmpty() ) {
+				if ( tmp.length() > 0 ) stm.execute(tmp.toString());
+				store.columnsDeleted(name, true, removed);
+				entriesModified();
 			}
 		}
 		catch ( SQLException e ) {
@@ -909,22 +2411,28 @@ public class Tm implements ITm {
 		Statement stm = null;
 		try {
 			StringBuilder tmp = new StringBuilder();
-			stm = store.getConnection().createStatement();
-			ResultSet result = stm.executeQuery("SHOW COLUMNS FROM \""+name+"_SEG\"");
-			while ( result.next() ) {
-				String fn = result.getString(1);
+			LinkedHashMap<String, String> renamed = new LinkedHashMap<String, String>();
+			stm = conn.createStatement();
+			ArrayList<String> segFields = new ArrayList<String>(store.getFields(name, true));
+			segFields.addAll(sparseFields.getFields(true));
+			for ( String fn : segFields ) {
 				int n = fn.lastIndexOf(DbUtil.LOC_SEP);
 				if ( n > -1 ) {
 					if ( fn.substring(n+1).equals(currentCode) ) {
-						// This field is to be renamed
+						// This field is to be renamed (sparse fields have no column)
 						String fnRoot = fn.substring(0, n+1);
-						tmp.append(String.format("ALTER TABLE \"%s%s\" ALTER COLUMN \"%s\" RENAME TO \"%s\"; ",
-							name, "_SEG", fn, fnRoot+newCode));
+						if ( !sparseFields.isSparse(fn) ) {
+							tmp.append(String.format("ALTER TABLE \"%s%s\" ALTER COLUMN \"%s\" RENAME TO \"%s\"; ",
+								name, "_SEG", fn, fnRoot+newCode));
+						}
+						renamed.put(fn, fnRoot+newCode);
 					}
 				}
 			}
-			if ( tmp.length() > 0 ) {
-				stm.execute(tmp.toString());
+			if ( !renamed.isEmpty() ) {
+				if ( tmp.length() > 0 ) stm.execute(tmp.toString());
+				store.columnsRenamed(name, true, renamed);
+				entriesModified();
 			}
 			
 			// Check if the index needs to be updated
@@ -970,14 +2478,31 @@ public class Tm implements ITm {
 			if ( segKey < 0 ) {
 				throw new IllegalArgumentException("Illegal SegKey value.");
 			}
+			checkSnapshotFields(segFields.keySet());
 
+			// The sparse fields are updated separately
+			ArrayList<String> columns = new ArrayList<String>();
+			for ( String fn : segFields.keySet() ) {
+				if ( sparseFields.isSparse(fn) ) {
+					Object value = segFields.get(fn);
+					sparseFields.setValue(fn, segKey, (value == null) ? null : value.toString());
+				}
+				else {
+					columns.add(fn);
+				}
+			}
+			if ( columns.isEmpty() ) {
+				entriesModified();
+				return;
+			}
+			
 			boolean changed = (pstmUpdSeg == null);
 			if ( updSegFields == null ) {
-				updSegFields = new ArrayList<String>(segFields.keySet());
+				updSegFields = columns;
 			}
 			else { // Update the existing list
 				// Use brute force for now
-				updSegFields = new ArrayList<String>(segFields.keySet());
+				updSegFields = columns;
 				changed = true;
 			}
 			
@@ -993,14 +2518,23 @@ public class Tm implements ITm {
 				}
 				tmp.append(String.format(" WHERE \"%s\"=?", DbUtil.SEGKEY_NAME));
 				
-				pstmUpdSeg = store.getConnection().prepareStatement(tmp.toString());
+				// During a bulk import the segment may not be committed yet
+				pstmUpdSeg = getImportConnection().prepareStatement(tmp.toString());
 			}
 			// Fill the statement
 			int i = 1;
-			for ( String fn : segFields.keySet() ) {
+			for ( String fn : updSegFields ) {
 				if ( fn.equals(DbUtil.FLAG_NAME) ) {
 					pstmUpdSeg.setBoolean(i, (Boolean)segFields.get(fn));
 				}
+				else if ( isCompressedField(fn) ) {
+					pstmUpdSeg.setBytes(i, CompressedValue.compress((String)segFields.get(fn)));
+				}
+				else if ( dictionary.isEncoded(fn) ) {
+					Object value = segFields.get(fn);
+					if ( value == null ) pstmUpdSeg.setNull(i, Types.INTEGER);
+					else pstmUpdSeg.setInt(i, dictionary.getOrAddCode(fn, value.toString()));
+				}
 				else {
 					pstmUpdSeg.setString(i, (String)segFields.get(fn));
 				}
@@ -1009,6 +2543,7 @@ public class Tm implements ITm {
 			// Fill the SegKey value
 			pstmUpdSeg.setLong(i, segKey);
 			pstmUpdSeg.execute();
+			entriesModified();
 			
 			//TODO: Update the TM index if we have one
 			//TODO: Check if this TM is indexed
@@ -1042,10 +2577,20 @@ public class Tm implements ITm {
 
 		Statement stm = null;
 		try {
-			stm = store.getConnection().createStatement();
+			if ( useSparseFields && canBeSparse(fullName, "") ) {
+				// No change to the table
+				sparseFields = store.getSparseFields(name);
+				sparseFields.createTable();
+				store.createSparseFields(name, Collections.singletonList(fullName));
+				entriesModified();
+				return;
+			}
+			stm = conn.createStatement();
 			String tmp = String.format("ALTER TABLE \"%s%s\" ADD \"%s\" VARCHAR",
 				name, suffix, fullName);
 			stm.execute(tmp);
+			store.columnsAdded(name, (loc != null), Collections.singletonList(fullName));
+			entriesModified();
 		}
 		catch ( SQLException e ) {
 			throw new RuntimeException(e);
@@ -1074,10 +2619,14 @@ public class Tm implements ITm {
 		
 		Statement stm = null;
 		try {
-			stm = store.getConnection().createStatement();
-			String tmp = String.format("ALTER TABLE \"%s%s\" DROP COLUMN \"%s\"",
-				name, suffix, fullName);
-			stm.execute(tmp);
+			if ( !sparseFields.isSparse(fullName) ) { // Sparse fields have no column
+				stm = conn.createStatement();
+				String tmp = String.format("ALTER TABLE \"%s%s\" DROP COLUMN \"%s\"",
+					name, suffix, fullName);
+				stm.execute(tmp);
+			}
+			store.columnsDeleted(name, suffix.equals("_SEG"), Collections.singletonList(fullName));
+			entriesModified();
 		}
 		catch ( SQLException e ) {
 			throw new RuntimeException(e);
@@ -1139,11 +2688,15 @@ public class Tm implements ITm {
 		
 		Statement stm = null;
 		try {
-			stm = store.getConnection().createStatement();
-			StringBuilder tmp = new StringBuilder();
-			tmp.append(String.format("ALTER TABLE \"%s%s\" ALTER COLUMN \"%s\" RENAME TO \"%s\"; ",
-				name, suffix, currentFullName, newFullName));
-			stm.execute(tmp.toString());
+			if ( !sparseFields.isSparse(currentFullName) ) { // Sparse fields have no column
+				stm = conn.createStatement();
+				StringBuilder tmp = new StringBuilder();
+				tmp.append(String.format("ALTER TABLE \"%s%s\" ALTER COLUMN \"%s\" RENAME TO \"%s\"; ",
+					name, suffix, currentFullName, newFullName));
+				stm.execute(tmp.toString());
+			}
+			store.columnsRenamed(name, suffix.equals("_SEG"), Collections.singletonMap(currentFullName, newFullName));
+			entriesModified();
 		}
 		catch ( SQLException e ) {
 			throw new RuntimeException(e);
@@ -1187,8 +2740,19 @@ public class Tm implements ITm {
 	}
 
 	@Override
-	public void deleteSegments (List<Long> segKeys) {
-		store.deleteSegments(name, segKeys);
+	public long deleteSegments (List<Long> segKeys) {
+		// The deletion would wait for the locks of the import, or miss its uncommitted rows
+		if ( bulkImporting ) {
+			throw new RuntimeException("Segments cannot be deleted during a bulk import.");
+		}
+		long count = store.deleteSegments(name, segKeys);
+		if ( snapshotTable != null ) {
+			removeFromSnapshot(segKeys);
+		}
+		entriesModified();
+		// We changed the number of rows
+		needPagingRefresh = true;
+		return count;
 	}
 
 	@Override
@@ -1198,62 +2762,432 @@ public class Tm implements ITm {
 
 	@Override
 	public long findPageForSegment (long segKey) {
+		// The selection may have changed since the last page was read
+		checkPagingVariables();
 		if ( pageCount < 1 ) return -1;
-//TODO
-		Statement stm = null;
+		if ( useSnapshot ) {
+			return findPageInSnapshot(segKey);
+		}
+		return findPageInSelection(segKey);
+	}
+
+	@Override
+	public IRecordSet getPage (long pageIndex) {
+		checkPagingVariables();
+		if (( pageIndex < 0 ) || ( pageIndex >= pageCount )) {
+			return null;
+		}
+		currentPage = pageIndex;
+		RecordPage page = getCachedPage();
+		if ( page != null ) return page;
+		return cachePage(getCacheVersion(), moveToPage(getFirstKeySegValueForPage(currentPage)));
+	}
+
+	/**
+	 * Drops the snapshot of the selection if some updated fields are used by its sort order or
+	 * its filter: the updated segments may move, enter or leave the selection. The snapshot is
+	 * re-built by the next paging call.
+	 * @param fieldNames the names of the updated fields.
+	 * @throws SQLException if an error occurs.
+	 */
+	private void checkSnapshotFields (Set<String> fieldNames)
+		throws SQLException
+	{
+		if ( snapshotTable == null ) return;
+		boolean affected = usesField(filterRoot, fieldNames);
+		if ( !affected && ( orderByFields != null )) {
+			for ( String fn : orderByFields.keySet() ) {
+				if ( fieldNames.contains(fn) ) {
+					affected = true;
+					break;
+				}
+			}
+		}
+		if ( !affected ) return;
+		dropSnapshot();
+		needPagingRefresh = true;
+	}
+	
+	/**
+	 * Indicates if a filter uses at least one of a given set of fields.
+	 * @param node the root of the filter (can be null).
+	 * @param fieldNames the names of the fields to look for.
+	 * @return true if the filter uses one of the fields.
+	 */
+	private boolean usesField (FilterNode node,
+		Set<String> fieldNames)
+	{
+		if ( node == null ) return false;
+		if ( node.isOperator() ) {
+			OperatorNode on = (OperatorNode)node;
+			if ( on.isBinary() && usesField(on.getLeft(), fieldNames) ) return true;
+			return usesField(on.getRight(), fieldNames);
+		}
+		ValueNode vn = (ValueNode)node;
+		return ( vn.isField() && fieldNames.contains(vn.getStringValue()) );
+	}
+	
+	@Override
+	public long scan (List<String> fields,
+		FilterNode filter,
+		IRecordConsumer consumer)
+	{
+		StringBuilder tmp = new StringBuilder(buildDirectSelect(fields, filter));
+		FilterCompiler.SQLCondition condition = FilterCompiler.toSQL(filter, columnMapper, fieldEncoder);
+		if ( !condition.isEmpty() ) {
+			tmp.append(" WHERE "+condition.getCondition());
+		}
+		tmp.append(" ORDER BY "+segTable+".\""+DbUtil.SEGKEY_NAME+"\"");
+		
+		long count = 0;
+		PreparedStatement pstm = null;
 		try {
-			stm = store.getConnection().createStatement();
-			String tmp = String.format(
-				"SELECT \"%s\", R FROM %s WHERE (\"%s\" / %d)=1 AND MOD(\"%s\", %d)=0",
-				DbUtil.SEGKEY_NAME, rownumSubQuery, DbUtil.SEGKEY_NAME, segKey, DbUtil.SEGKEY_NAME, segKey);
-			
-//			tmp = String.format(
-//				"SELECT \"%s\", R FROM %s WHERE (-%s=-%d)",
-//				DbUtil.SEGKEY_NAME, rowSubQuery, DbUtil.SEGKEY_NAME, segKey);
-
-			ResultSet rs = stm.executeQuery(tmp.toString());
-			if ( rs.next() ) {
-				// Get the row number for this entry
-				long rn = rs.getLong(2);
-				// Compute which page this row number belong to (page is 0-based)
-				if ( pageMode == PageMode.ITERATOR ) {
-					long page = (rn / limit) - ((rn % limit) == 0 ? 1 : 0);
-					return page;
+			// Forward-only cursor: the rows are fetched by blocks as we go
+			// (not from the statement cache: the consumer may use the paging methods)
+			pstm = conn.prepareStatement(tmp.toString(),
+				ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			pstm.setFetchSize(SCAN_FETCH_SIZE);
+			condition.bind(pstm, 1);
+			RecordSet rs = new RecordSet(pstm.executeQuery(), dictionary);
+			while ( rs.next() ) {
+				count++;
+				if ( !consumer.consume(rs) ) break;
+			}
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			try {
+				if ( pstm != null ) {
+					pstm.close();
+					pstm = null;
 				}
-				else {
-					long page = rn / (limit-1);
-					return page;
+			}
+			catch ( SQLException e ) {
+				throw new RuntimeException(e);
+			}
+		}
+		return count;
+	}
+	
+	@Override
+	public long scan (List<String> fields,
+		FilterNode filter,
+		final IRecordConsumer consumer,
+		int partitionCount)
+	{
+		if ( partitionCount < 1 ) {
+			partitionCount = Runtime.getRuntime().availableProcessors();
+		}
+		long[] bounds;
+		try {
+			// The other connections would wait for the locks of the open transaction
+			if (( partitionCount == 1 ) || !conn.getAutoCommit()
+				|| (( importConnection != null ) && !store.isMvcc() ))
+			{
+				return scan(fields, filter, consumer);
+			}
+			bounds = getPartitionBounds(partitionCount);
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+		if ( bounds.length < 2 ) return 0; // Empty TM
+		
+		StringBuilder tmp = new StringBuilder(buildDirectSelect(fields, filter));
+		tmp.append(String.format(" WHERE %s.\"%s\">=? AND %s.\"%s\"<?",
+			segTable, DbUtil.SEGKEY_NAME, segTable, DbUtil.SEGKEY_NAME));
+		final FilterCompiler.SQLCondition condition = FilterCompiler.toSQL(filter, columnMapper, fieldEncoder);
+		if ( !condition.isEmpty() ) {
+			tmp.append(" AND ("+condition.getCondition()+")");
+		}
+		tmp.append(" ORDER BY "+segTable+".\""+DbUtil.SEGKEY_NAME+"\"");
+		final String sql = tmp.toString();
+		final String tmName = name;
+		
+		// One thread per partition, each with its own connection
+		final AtomicBoolean stopped = new AtomicBoolean(false);
+		ExecutorService executor = Executors.newFixedThreadPool(bounds.length-1, scanThreadFactory);
+		ArrayList<Future<Long>> results = new ArrayList<Future<Long>>();
+		try {
+			for ( int i=0; i<bounds.length-1; i++ ) {
+				final long from = bounds[i];
+				final long to = bounds[i+1];
+				results.add(executor.submit(new Callable<Long>() {
+					@Override
+					public Long call ()
+						throws SQLException
+					{
+						return scanPartition(tmName, sql, condition, from, to, consumer, stopped);
+					}
+				}));
+			}
+			long count = 0;
+			RuntimeException error = null;
+			for ( Future<Long> result : results ) {
+				try {
+					count += result.get();
+				}
+				catch ( ExecutionException e ) {
+					// Stop the other partitions, and report the first error
+					stopped.set(true);
+					if ( error == null ) {
+						if ( e.getCause() instanceof RuntimeException ) error = (RuntimeException)e.getCause();
+						else error = new RuntimeException(e.getCause());
+					}
 				}
 			}
+			if ( error != null ) throw error;
+			return count;
+		}
+		catch ( InterruptedException e ) {
+			stopped.set(true);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Splits the range of the SegKey values of this TM into contiguous partitions.
+	 * <p>The SegKey is the primary key of the segment table, so each partition is a
+	 * contiguous part of the table and is read through the primary index.
+	 * @param partitionCount the maximum number of partitions.
+	 * @return the bounds of the partitions: partition i goes from bounds[i] (included)
+	 * to bounds[i+1] (excluded). The array is empty if the TM has no segment.
+	 * @throws SQLException if an error occurs.
+	 */
+	private long[] getPartitionBounds (int partitionCount)
+		throws SQLException
+	{
+		long min, max;
+		Statement stm = null;
+		try {
+			stm = conn.createStatement();
+			ResultSet result = stm.executeQuery(String.format("SELECT MIN(\"%s\"), MAX(\"%s\") FROM %s",
+				DbUtil.SEGKEY_NAME, DbUtil.SEGKEY_NAME, segTable));
+			if ( !result.next() ) return new long[0];
+			min = result.getLong(1);
+			if ( result.wasNull() ) return new long[0];
+			max = result.getLong(2);
+		}
+		finally {
+			if ( stm != null ) {
+				stm.close();
+				stm = null;
+			}
+		}
+		long span = max-min+1;
+		int count = (int)Math.min(partitionCount, span);
+		long[] bounds = new long[count+1];
+		for ( int i=0; i<count; i++ ) {
+			bounds[i] = min+(span*i/count);
+		}
+		bounds[count] = max+1;
+		return bounds;
+	}
+	
+	/**
+	 * Reads one partition of a partitioned scan, on its own connection.
+	 * @param tmName the name of the TM.
+	 * @param sql the query of the partitions (the bounds are its two first parameters).
+	 * @param condition the filter condition of the query.
+	 * @param from the first SegKey of the partition.
+	 * @param to the SegKey after the last SegKey of the partition.
+	 * @param consumer the object that processes each record.
+	 * @param stopped the flag indicating that the scan has been stopped.
+	 * @return the number of records passed to the consumer.
+	 * @throws SQLException if an error occurs.
+	 */
+	private long scanPartition (String tmName,
+		String sql,
+		FilterCompiler.SQLCondition condition,
+		long from,
+		long to,
+		IRecordConsumer consumer,
+		AtomicBoolean stopped)
+		throws SQLException
+	{
+		if ( stopped.get() ) return 0;
+		long count = 0;
+		Connection partConn = store.openConnection(tmName);
+		try {
+			PreparedStatement pstm = partConn.prepareStatement(sql,
+				ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			pstm.setFetchSize(SCAN_FETCH_SIZE);
+			pstm.setLong(1, from);
+			pstm.setLong(2, to);
+			condition.bind(pstm, 3);
+			RecordSet rs = new RecordSet(pstm.executeQuery(), dictionary);
+			while ( !stopped.get() && rs.next() ) {
+				count++;
+				if ( !consumer.consume(rs) ) {
+					stopped.set(true);
+				}
+			}
+		}
+		finally {
+			partConn.close(); // Closes the statement too
+		}
+		return count;
+	}
+	
+	@Override
+	public IRecordSet getSegmentsByHash (long hash,
+		List<String> fields)
+	{
+		String sql = String.format("%s WHERE %s.\"%s\"=? ORDER BY %s.\"%s\"", buildDirectSelect(fields, null),
+			segTable, DbUtil.HASH_NAME, segTable, DbUtil.SEGKEY_NAME);
+		ConnectionPool.PooledConnection pc = null;
+		try {
+			pc = borrowConnection();
+			PreparedStatement pstm = pc.getStatements().get(sql);
+			pstm.setLong(1, hash);
+			return RecordSet.detach(pstm.executeQuery(), 4, dictionary);
+		}
+		catch ( SQLException e ) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			if ( pc != null ) releaseConnection(pc);
+		}
+	}
+	
+	@Override
+	public IRecordSet fetch (TmQuery query,
+		long pageIndex)
+	{
+		if ( pageIndex < 0 ) return null;
+		// Everything is built from the query: nothing of the current selection is used or changed
+		Map<String, Boolean> sortOrder = query.getSortOrder();
+		StringBuilder tmp = new StringBuilder(buildDirectSelect(query.getFields(), query.getFilter(), sortOrder.keySet()));
+		FilterCompiler.SQLCondition condition = FilterCompiler.toSQL(query.getFilter(), columnMapper, fieldEncoder);
+		if ( !condition.isEmpty() ) {
+			tmp.append(" WHERE "+condition.getCondition());
+		}
+		tmp.append(" ORDER BY ");
+		for ( String fn : sortOrder.keySet() ) {
+			tmp.append(getColumnExpression(fn)+(sortOrder.get(fn) ? " ASC, " : " DESC, "));
+		}
+		// Always end with the SegKey so the pages are cut the same way each time
+		tmp.append(segTable+".\""+DbUtil.SEGKEY_NAME+"\" LIMIT ? OFFSET ?");
+		String sql = tmp.toString();
+		
+		int size = (int)query.getPageSize();
+		RecordPage page;
+		ConnectionPool.PooledConnection pc = null;
+		PreparedStatement pstm = null;
+		try {
+			if ( store.isMvcc() || ( conn.getAutoCommit() && ( importConnection == null ))) {
+				// Each call has its own connection (and statement cache) for the time of the query
+				pc = pool.borrow();
+				pstm = pc.getStatements().get(sql);
+			}
 			else {
-				// Not entry with such a key
-				return -1;
+				// The other connections would wait for the locks of the open transaction:
+				// use a statement of our own on the connection holding it
+				pstm = getImportConnection().prepareStatement(sql);
 			}
+			int n = condition.bind(pstm, 1);
+			pstm.setLong(n, size);
+			pstm.setLong(n+1, query.getPageOffset(pageIndex));
+			page = RecordSet.detach(pstm.executeQuery(), size, dictionary);
 		}
 		catch ( SQLException e ) {
 			throw new RuntimeException(e);
 		}
 		finally {
 			try {
-				if ( stm != null ) {
-					stm.close();
-					stm = null;
-				}
+				if ( pc != null ) pool.release(pc);
+				else if ( pstm != null ) pstm.close();
 			}
 			catch ( SQLException e ) {
 				throw new RuntimeException(e);
 			}
 		}
+		if ( page.getSize() == 0 ) return null;
+		// In editor mode a page with only the last record of the previous page does not exist
+		if (( query.getPageMode() == PageMode.EDITOR ) && ( pageIndex > 0 ) && ( page.getSize() < 2 )) return null;
+		return page;
 	}
-
-	@Override
-	public IRecordSet getPage (long pageIndex) {
-		checkPagingVariables();
-		if (( pageIndex < 0 ) || ( pageIndex >= pageCount )) {
-			return null;
+	
+	/**
+	 * Builds the SELECT and FROM parts of a query reading the tables directly (independently
+	 * of the current selection).
+	 * <p>The codes fields are added for the text fields, and the TU table is joined if needed
+	 * by the fields or the filter.
+	 * @param fields the list of the fields to read (can be null).
+	 * @param filter the filter that will be applied (can be null).
+	 * @return the SELECT and FROM parts of the query.
+	 */
+	private String buildDirectSelect (List<String> fields,
+		FilterNode filter)
+	{
+		return buildDirectSelect(fields, filter, null);
+	}
+	
+	/**
+	 * Builds the SELECT and FROM parts of a query reading the tables directly, for a query
+	 * sorted on given fields.
+	 * @param fields the list of the fields to read (can be null).
+	 * @param filter the filter that will be applied (can be null).
+	 * @param sortFields the fields the query will be sorted on (can be null).
+	 * @return the SELECT and FROM parts of the query.
+	 */
+	private String buildDirectSelect (List<String> fields,
+		FilterNode filter,
+		Set<String> sortFields)
+	{
+		// Build the list of columns (with the codes for the text fields)
+		boolean hasTUField = hasTuField(filter);
+		if ( sortFields != null ) {
+			for ( String fn : sortFields ) {
+				if ( !DbUtil.isSegmentField(fn) ) hasTUField = true;
+			}
+		}
+		ArrayList<String> columns = new ArrayList<String>();
+		if ( fields != null ) {
+			for ( String fn : fields ) {
+				if ( !columns.contains(fn) ) columns.add(fn);
+				if ( !DbUtil.isSegmentField(fn) ) hasTUField = true;
+			}
+			for ( String fn : fields ) {
+				if ( fn.startsWith(DbUtil.TEXT_PREFIX) ) {
+					String codes = DbUtil.CODES_PREFIX+DbUtil.getFieldLocale(fn);
+					if ( !columns.contains(codes) ) columns.add(codes);
+				}
+			}
 		}
-		currentPage = pageIndex;
-		return moveToPage(getFirstKeySegValueForPage(currentPage));
+		
+		StringBuilder tmp = new StringBuilder(String.format("SELECT %s.\"%s\", %s.\"%s\"",
+			segTable, DbUtil.SEGKEY_NAME, segTable, DbUtil.FLAG_NAME));
+		for ( String fn : columns ) {
+			tmp.append(", "+getSelectColumn(fn));
+		}
+		tmp.append(" FROM "+segTable);
+		if ( hasTUField ) {
+			tmp.append(" LEFT JOIN "+tuTable+" ON "+segTable+".\""+DbUtil.TUREF_NAME+"\"="+tuTable+".TUKEY");
+		}
+		return tmp.toString();
+	}
+	
+	/**
+	 * Indicates if a filter uses at least one TU-level field.
+	 * @param node the root of the filter (can be null).
+	 * @return true if the filter uses a TU-level field.
+	 */
+	private boolean hasTuField (FilterNode node) {
+		if ( node == null ) return false;
+		if ( node.isOperator() ) {
+			OperatorNode on = (OperatorNode)node;
+			if ( on.isBinary() && hasTuField(on.getLeft()) ) return true;
+			return hasTuField(on.getRight());
+		}
+		ValueNode vn = (ValueNode)node;
+		return ( vn.isField() && !DbUtil.isSegmentField(vn.getStringValue()) );
 	}
 
 	@Override
@@ -0,0 +1,210 @@
+/*===========================================================================
+  Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+  This library is free software; you can redistribute it and/or modify it 
+  under the terms of the GNU Lesser General Public License as published by 
+  the Free Software Foundation; either version 2.1 of the License, or (at 
+  your option) any later version.
+
+  This library is distributed in the hope that it will be useful, but 
+  WITHOUT ANY WARRANTY; without even the implied warranty of 
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser 
+  General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License 
+  along with this library; if not, write to the Free Software Foundation, 
+  Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb.h2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Cache of the metadata of the TMs of a repository: TMLIST data, columns of the tables
+ * and segment counts.
+ * <p>This class does not access the database: the repository loads it and updates it
+ * each time it changes the schema or the number of segments.
+ * <p>The methods are synchronized: the TMs stored in their own database can be used from
+ * several threads at the same time.
+ */
+class TmCatalog {
+
+	/**
+	 * Maximum number of filtered counts kept for one TM.
+	 */
+	static final int MAX_FILTEREDCOUNTS = 32;
+
+	/**
+	 * Metadata for one TM.
+	 */
+	static class TmInfo {
+		
+		final String uuid;
+		String name;
+		String description;
+		String indexInfo;
+		ArrayList<String> tuColumns; // All columns of the TU table, null if not loaded yet
+		ArrayList<String> segColumns; // All columns of the SEG table, null if not loaded yet
+		boolean indexChecked; // True once the TuRef index is known to exist
+		boolean compressed; // True if the text and codes are compressed (set when the columns are loaded)
+		Dictionary dictionary; // Dictionary of the encoded fields (set when the columns are loaded)
+		SparseFields sparseFields; // Store of the sparse fields (set when the columns are loaded)
+		boolean ownDatabase; // True if the tables of the TM are in their own database
+		long segmentCount = -1; // Number of segments, -1 if not known
+		private final HashMap<String, Long> filteredCounts = new HashMap<String, Long>();
+		private long countsVersion = -1; // Modification version of the filtered counts
+		
+		TmInfo (String uuid,
+			String name,
+			String description,
+			String indexInfo)
+		{
+			this.uuid = uuid;
+			this.name = name;
+			this.description = description;
+			this.indexInfo = indexInfo;
+		}
+		
+		boolean hasColumns () {
+			return (( tuColumns != null ) && ( segColumns != null ));
+		}
+		
+		ArrayList<String> getColumns (boolean segmentTable) {
+			return (segmentTable ? segColumns : tuColumns);
+		}
+		
+		void addColumns (boolean segmentTable,
+			Collection<String> names)
+		{
+			ArrayList<String> columns = getColumns(segmentTable);
+			if ( columns == null ) return; // Will be loaded from the database
+			columns.addAll(names);
+		}
+		
+		void removeColumns (boolean segmentTable,
+			Collection<String> names)
+		{
+			ArrayList<String> columns = getColumns(segmentTable);
+			if ( columns == null ) return; // Will be loaded from the database
+			columns.removeAll(names);
+		}
+		
+		void renameColumn (boolean segmentTable,
+			String currentName,
+			String newName)
+		{
+			ArrayList<String> columns = getColumns(segmentTable);
+			if ( columns == null ) return; // Will be loaded from the database
+			int n = columns.indexOf(currentName);
+			if ( n > -1 ) columns.set(n, newName);
+		}
+		
+		/**
+		 * Adjusts the segment count, if it is known.
+		 * @param delta the number of segments added (negative for the segments removed).
+		 */
+		void adjustSegmentCount (long delta) {
+			if ( segmentCount > -1 ) segmentCount += delta;
+		}
+		
+		/**
+		 * Gets the count of the segments matching a filter.
+		 * @param query the query of the count (it identifies the filter).
+		 * @param version the current modification version of the TM.
+		 * @return the count, or null if it is not known for the given version.
+		 */
+		synchronized Long getFilteredCount (String query,
+			long version)
+		{
+			if ( version != countsVersion ) return null;
+			return filteredCounts.get(query);
+		}
+		
+		/**
+		 * Stores the count of the segments matching a filter.
+		 * The counts stored for other versions are discarded.
+		 * @param query the query of the count (it identifies the filter).
+		 * @param version the current modification version of the TM.
+		 * @param count the count to store.
+		 */
+		synchronized void setFilteredCount (String query,
+			long version,
+			long count)
+		{
+			if (( version != countsVersion ) || ( filteredCounts.size() >= MAX_FILTEREDCOUNTS )) {
+				filteredCounts.clear();
+				countsVersion = version;
+			}
+			filteredCounts.put(query, count);
+		}
+	}
+	
+	private final LinkedHashMap<String, TmInfo> byName = new LinkedHashMap<String, TmInfo>();
+	private final HashMap<String, TmInfo> byUuid = new HashMap<String, TmInfo>();
+	private boolean loaded = false;
+	private long version = -1;
+	
+	synchronized boolean isLoaded () {
+		return loaded;
+	}
+	
+	synchronized void setLoaded (boolean loaded) {
+		this.loaded = loaded;
+	}
+	
+	synchronized long getVersion () {
+		return version;
+	}
+	
+	synchronized void setVersion (long version) {
+		this.version = version;
+	}
+	
+	/**
+	 * Empties the catalog. It will be re-loaded on next access.
+	 */
+	synchronized void clear () {
+		byName.clear();
+		byUuid.clear();
+		loaded = false;
+	}
+	
+	synchronized void add (TmInfo info) {
+		byName.put(info.name, info);
+		byUuid.put(info.uuid, info);
+	}
+	
+	synchronized TmInfo get (String tmName) {
+		return byName.get(tmName);
+	}
+	
+	synchronized TmInfo getByUuid (String uuid) {
+		return byUuid.get(uuid);
+	}
+	
+	synchronized void remove (String tmName) {
+		TmInfo info = byName.remove(tmName);
+		if ( info != null ) byUuid.remove(info.uuid);
+	}
+	
+	synchronized void rename (String currentName,
+		String newName)
+	{
+		TmInfo info = byName.remove(currentName);
+		if ( info == null ) return;
+		info.name = newName;
+		byName.put(newName, info);
+	}
+	
+	synchronized List<String> getNames () {
+		return new ArrayList<String>(byName.keySet());
+	}
+
+}
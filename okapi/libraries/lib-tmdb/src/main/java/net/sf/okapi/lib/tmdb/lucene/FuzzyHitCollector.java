@@ -0,0 +1,147 @@
+/*===========================================================================
+  Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+  This library is free software; you can redistribute it and/or modify it
+  under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation; either version 2.1 of the License, or (at
+  your option) any later version.
+
+  This library is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+  General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this library; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb.lucene;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * Collects the candidates of a fuzzy query in a single pass.
+ * <p>The documents scoring under the threshold are dropped. The penalties applied to the
+ * candidates afterward lower their scores by at most a given value: once the given maximum
+ * number of distinct scores is reached, a document scoring more than that value under the
+ * lowest of them cannot be in the final hits, and is dropped too.
+ * <p>The scores are counted rather than the documents because the duplicate entries have the
+ * same text (so the same score) and are kept only once in the final hits.
+ */
+class FuzzyHitCollector extends Collector {
+
+	private static final Comparator<ScoreDoc> SCORE_ORDER = new Comparator<ScoreDoc>() {
+		@Override
+		public int compare (ScoreDoc sd1,
+			ScoreDoc sd2)
+		{
+			int comparison = Float.compare(sd1.score, sd2.score);
+			if ( comparison != 0 ) return comparison;
+			return (sd1.doc > sd2.doc ? -1 : (sd1.doc == sd2.doc ? 0 : 1));
+		}
+	};
+	
+	private final int max;
+	private final float threshold;
+	private final float maxPenalty;
+	private final PriorityQueue<ScoreDoc> queue; // Lowest candidate first
+	private final TreeSet<Float> topScores; // The max best distinct scores
+	private float minScore; // Current lowest score a new candidate must have
+	private Scorer scorer;
+	private int docBase;
+	private int totalHits;
+
+	/**
+	 * Creates a new collector.
+	 * @param max the maximum number of hits wanted after the penalties.
+	 * @param threshold the lowest score accepted.
+	 * @param maxPenalty the highest total penalty that can be applied to a candidate.
+	 */
+	public FuzzyHitCollector (int max,
+		float threshold,
+		float maxPenalty)
+	{
+		this.max = (max < 1 ? 1 : max);
+		this.threshold = threshold;
+		this.maxPenalty = maxPenalty;
+		minScore = threshold;
+		queue = new PriorityQueue<ScoreDoc>(Math.min(this.max*2, 1024), SCORE_ORDER);
+		topScores = new TreeSet<Float>();
+	}
+	
+	@Override
+	public void setScorer (Scorer scorer)
+		throws IOException
+	{
+		this.scorer = scorer;
+	}
+
+	@Override
+	public void collect (int doc)
+		throws IOException
+	{
+		float score = scorer.score();
+		if ( score < minScore ) return;
+		totalHits++;
+		queue.add(new ScoreDoc(docBase+doc, score));
+		if ( topScores.add(score) && ( topScores.size() > max )) {
+			topScores.pollFirst();
+		}
+		if ( topScores.size() < max ) return;
+		// Raise the lowest accepted score and drop the candidates under it
+		minScore = Math.max(threshold, topScores.first()-maxPenalty);
+		while ( queue.peek().score < minScore ) {
+			queue.poll();
+		}
+	}
+
+	@Override
+	public void setNextReader (IndexReader reader,
+		int docBase)
+		throws IOException
+	{
+		this.docBase = docBase;
+	}
+
+	@Override
+	public boolean acceptsDocsOutOfOrder () {
+		return true;
+	}
+	
+	/**
+	 * Gets the number of documents that were candidates when they were collected.
+	 * @return the number of documents accepted at some point.
+	 */
+	public int getTotalHits () {
+		return totalHits;
+	}
+	
+	/**
+	 * Gets the candidates kept.
+	 * @return the candidates, by descending scores (then ascending document numbers).
+	 */
+	public ScoreDoc[] getScoreDocs () {
+		ScoreDoc[] docs = queue.toArray(new ScoreDoc[queue.size()]);
+		Arrays.sort(docs, SCORE_ORDER);
+		// Reverse to have the best first
+		for ( int i=0, j=docs.length-1; i<j; i++, j-- ) {
+			ScoreDoc tmp = docs[i];
+			docs[i] = docs[j];
+			docs[j] = tmp;
+		}
+		return docs;
+	}
+
+}
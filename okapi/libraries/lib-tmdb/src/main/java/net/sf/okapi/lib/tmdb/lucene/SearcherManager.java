@@ -0,0 +1,346 @@
+/*===========================================================================
+  Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+  This library is free software; you can redistribute it and/or modify it
+  under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation; either version 2.1 of the License, or (at
+  your option) any later version.
+
+  This library is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+  General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this library; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb.lucene;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+
+/**
+ * Shares one {@link IndexSearcher} between the threads running queries, and replaces it
+ * when the index changes.
+ * <p>Each query must get the searcher with {@link #acquire()} and give it back with
+ * {@link #release(IndexSearcher)}: the reader of a searcher is reference-counted, and it is
+ * closed only when it has been replaced and the last query using it has released it.
+ * <p>The new searcher is created by re-opening the reader of the current one (only the
+ * changed segments are opened), then warmed (see {@link #setWarmer(IWarmer)}) before it
+ * replaces the current one. By default a near-real-time manager refreshes its searcher when
+ * it is acquired after a change; it can instead be refreshed in the background every given
+ * interval ({@link #setRefreshInterval(long)}) or after a given number of writes
+ * ({@link #setRefreshWrites(int)}).
+ */
+public class SearcherManager {
+
+	private static final Logger LOGGER = Logger.getLogger(SearcherManager.class.getName());
+
+	private static final ThreadFactory refreshThreadFactory = new ThreadFactory() {
+		@Override
+		public Thread newThread (Runnable r) {
+			Thread thread = new Thread(r, "TM Index Refresh");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	/**
+	 * Prepares a new searcher before it is used by the queries.
+	 */
+	public interface IWarmer {
+		
+		/**
+		 * Warms a new searcher, for example by running some typical queries.
+		 * @param searcher the searcher to warm.
+		 * @throws IOException if an error occurs.
+		 */
+		public void warm (IndexSearcher searcher)
+			throws IOException;
+	}
+	
+	private final Directory indexDir;
+	private final IndexWriter indexWriter;
+	private final Object refreshLock = new Object();
+	private final AtomicInteger pendingWrites = new AtomicInteger();
+	private final AtomicBoolean refreshQueued = new AtomicBoolean();
+	private final Runnable refreshTask = new Runnable() {
+		@Override
+		public void run () {
+			refreshQueued.set(false);
+			try {
+				maybeRefresh();
+			}
+			catch ( Throwable e ) {
+				LOGGER.log(Level.WARNING, "Exception refreshing the TM index searcher.", e); //$NON-NLS-1$
+			}
+		}
+	};
+	private IndexSearcher current; // Null until the first acquisition, and after close
+	private boolean closed;
+	private volatile IWarmer warmer;
+	private long refreshInterval; // In milliseconds, 0 for none
+	private volatile int refreshWrites; // 0 for none
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Creates a manager for the committed state of an index.
+	 * @param indexDir the directory of the index.
+	 */
+	public SearcherManager (Directory indexDir) {
+		this.indexDir = indexDir;
+		indexWriter = null;
+	}
+	
+	/**
+	 * Creates a manager for the near-real-time state of an index: the searchers see the changes
+	 * of the writer whether they are committed or not.
+	 * @param indexWriter the writer of the index.
+	 */
+	public SearcherManager (IndexWriter indexWriter) {
+		this.indexWriter = indexWriter;
+		indexDir = null;
+	}
+	
+	/**
+	 * Sets the object warming the new searchers before they are used.
+	 * @param warmer the warmer to use, or null for none.
+	 */
+	public void setWarmer (IWarmer warmer) {
+		this.warmer = warmer;
+	}
+	
+	/**
+	 * Sets the interval between two background refreshes of the searcher.
+	 * @param interval the interval in milliseconds, or 0 to stop the periodic refreshes.
+	 */
+	public synchronized void setRefreshInterval (long interval) {
+		if ( interval < 0 ) interval = 0;
+		if ( interval == refreshInterval ) return;
+		refreshInterval = interval;
+		// Re-create the executor to re-schedule the task
+		if ( executor != null ) {
+			executor.shutdown();
+			executor = null;
+		}
+		if ( refreshInterval > 0 ) {
+			getExecutor().scheduleWithFixedDelay(refreshTask, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Gets the interval between two background refreshes of the searcher.
+	 * @return the interval in milliseconds, or 0 if there is no periodic refresh.
+	 */
+	public synchronized long getRefreshInterval () {
+		return refreshInterval;
+	}
+	
+	/**
+	 * Sets the number of writes after which the searcher is refreshed in the background.
+	 * <p>The writes are counted by {@link #writeDone()}.
+	 * @param count the number of writes, or 0 to not refresh on writes.
+	 */
+	public void setRefreshWrites (int count) {
+		refreshWrites = (count < 0 ? 0 : count);
+	}
+	
+	/**
+	 * Gets the number of writes after which the searcher is refreshed in the background.
+	 * @return the number of writes, or 0 if the writes do not cause a refresh.
+	 */
+	public int getRefreshWrites () {
+		return refreshWrites;
+	}
+	
+	/**
+	 * Indicates a change made to the index (e.g. by {@link Writer}).
+	 */
+	public void writeDone () {
+		int count = pendingWrites.incrementAndGet();
+		if (( refreshWrites > 0 ) && ( count >= refreshWrites ) && refreshQueued.compareAndSet(false, true) ) {
+			synchronized ( this ) {
+				if ( closed ) return;
+				getExecutor().execute(refreshTask);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the current searcher. It must be given back with {@link #release(IndexSearcher)}
+	 * once the query is done.
+	 * @return the current searcher.
+	 * @throws IOException if the index cannot be opened.
+	 */
+	public IndexSearcher acquire ()
+		throws IOException
+	{
+		// Near-real-time without refresh policy: the queries must see all the writes
+		if (( indexWriter != null ) && ( refreshWrites == 0 ) && ( getRefreshInterval() == 0 )
+			&& ( pendingWrites.get() > 0 || !isCurrent() ))
+		{
+			maybeRefresh();
+		}
+		return acquireCurrent();
+	}
+	
+	/**
+	 * Gets the current searcher, without checking if it is up to date.
+	 * @return the current searcher, to give back with {@link #release(IndexSearcher)}.
+	 * @throws IOException if the index cannot be opened.
+	 */
+	private synchronized IndexSearcher acquireCurrent ()
+		throws IOException
+	{
+		if ( closed ) {
+			throw new IllegalStateException("The searcher manager is closed.");
+		}
+		if ( current == null ) {
+			pendingWrites.set(0); // Opened up to date
+			current = new IndexSearcher(indexWriter == null
+				? IndexReader.open(indexDir, true) : IndexReader.open(indexWriter, true));
+		}
+		// Under the lock: the reader cannot be released by a swap before this
+		current.getIndexReader().incRef();
+		return current;
+	}
+	
+	/**
+	 * Gives back a searcher obtained with {@link #acquire()}.
+	 * The searcher must not be used after this call.
+	 * @param searcher the searcher to give back (can be null).
+	 * @throws IOException if an error occurs when closing its reader.
+	 */
+	public void release (IndexSearcher searcher)
+		throws IOException
+	{
+		if ( searcher != null ) {
+			searcher.getIndexReader().decRef();
+		}
+	}
+	
+	/**
+	 * Replaces the current searcher if the index has changed since it was opened.
+	 * <p>The queries running at the same time keep using the previous searcher until they
+	 * release it.
+	 * @return true if the searcher has been replaced, false if it was up to date.
+	 * @throws IOException if an error occurs.
+	 */
+	public boolean maybeRefresh ()
+		throws IOException
+	{
+		synchronized ( refreshLock ) {
+			synchronized ( this ) {
+				if ( closed || ( current == null )) return false; // Opened up to date when needed
+			}
+			// Writes done from now on are for the next refresh
+			pendingWrites.set(0);
+			IndexSearcher searcher = acquireCurrent();
+			try {
+				// Re-opening a near-real-time reader always gives a new reader
+				if ( searcher.getIndexReader().isCurrent() ) return false;
+				IndexReader newReader = searcher.getIndexReader().reopen();
+				if ( newReader == searcher.getIndexReader() ) return false;
+				IndexSearcher newSearcher = new IndexSearcher(newReader);
+				boolean swapped = false;
+				try {
+					IWarmer tmp = warmer;
+					if ( tmp != null ) tmp.warm(newSearcher);
+					swapped = swap(newSearcher);
+				}
+				finally {
+					if ( !swapped ) newReader.decRef();
+				}
+				return swapped;
+			}
+			finally {
+				release(searcher);
+			}
+		}
+	}
+	
+	/**
+	 * Releases the current searcher and stops the background refreshes.
+	 * <p>The queries still running can finish: the reader is closed when they release it.
+	 */
+	public void close () {
+		IndexSearcher old;
+		synchronized ( this ) {
+			if ( closed ) return;
+			closed = true;
+			if ( executor != null ) {
+				executor.shutdown();
+				executor = null;
+			}
+			old = current;
+			current = null;
+		}
+		try {
+			if ( old != null ) old.getIndexReader().decRef();
+		}
+		catch ( IOException e ) {
+			LOGGER.log(Level.WARNING, "Exception closing the TM index reader.", e); //$NON-NLS-1$
+		}
+	}
+	
+	private boolean isCurrent ()
+		throws CorruptIndexException, IOException
+	{
+		IndexSearcher searcher;
+		synchronized ( this ) {
+			if ( closed || ( current == null )) return true; // Opened up to date when needed
+			searcher = acquireCurrent();
+		}
+		try {
+			return searcher.getIndexReader().isCurrent();
+		}
+		finally {
+			release(searcher);
+		}
+	}
+	
+	/**
+	 * Replaces the current searcher, and releases the reference of the manager on the
+	 * previous one.
+	 * @param newSearcher the new searcher.
+	 * @return true if the searcher was replaced, false if the manager is closed.
+	 * @throws IOException if an error occurs.
+	 */
+	private boolean swap (IndexSearcher newSearcher)
+		throws IOException
+	{
+		IndexSearcher old;
+		synchronized ( this ) {
+			if ( closed ) return false;
+			old = current;
+			current = newSearcher;
+		}
+		if ( old != null ) old.getIndexReader().decRef();
+		return true;
+	}
+	
+	private synchronized ScheduledExecutorService getExecutor () {
+		if ( executor == null ) {
+			executor = Executors.newSingleThreadScheduledExecutor(refreshThreadFactory);
+		}
+		return executor;
+	}
+
+}
@@ -23,14 +23,15 @@ package net.sf.okapi.lib.tmdb.lucene;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Map;
+import java.util.TreeMap;
 
 import net.sf.okapi.common.Util;
 import net.sf.okapi.common.exceptions.OkapiIOException;
@@ -41,40 +42,44 @@ import net.sf.okapi.lib.search.lucene.query.TmFuzzyQuery;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldSelector;
 import org.apache.lucene.document.Fieldable;
-import org.apache.lucene.index.CorruptIndexException;
-import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.document.MapFieldSelector;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.QueryWrapperFilter;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.store.Directory;
 
 public class Seeker {
 
-	private static final Logger LOGGER = Logger.getLogger(Seeker.class.getName());
-
 	private final static NgramAnalyzer defaultFuzzyAnalyzer = new NgramAnalyzer(Locale.ENGLISH, 4);
-	private final static float MAX_HITS_RATIO = 0.01f;
-	private final static int MIN_MAX_HITS = 500;
 	private static float SINGLE_CODE_DIFF_PENALTY = 0.5f;
 	private static float WHITESPACE_OR_CASE_PENALTY = 1.0f;
+	private static final int FILTERCACHE_SIZE = 64;
 
-	// maxTopDocuments = indexReader.maxDoc * MAX_HITS_CONSTANT
-	private int maxTopDocuments;
 	private Directory indexDir;
-	private IndexReader indexReader;
-	private IndexSearcher indexSearcher;
-	private IndexWriter indexWriter;
-	private boolean nrtMode;
+	private final SearcherManager searcherManager;
+	private volatile Query lastQuery; // Last fuzzy query run, for the warm-up of the new searchers
+	private volatile Filter lastFilter;
+	
+	// Filters of the last searches, by TM and attributes (in access order)
+	@SuppressWarnings("serial")
+	private final LinkedHashMap<List<Object>, Filter> filterCache
+		= new LinkedHashMap<List<Object>, Filter>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry (Map.Entry<List<Object>, Filter> eldest) {
+			return size() > FILTERCACHE_SIZE;
+		}
+	};
 
 	/**
 	 * Creates an instance of OSeeker
@@ -91,7 +96,8 @@ public class Seeker {
 			throw new IllegalArgumentException("'indexDir' cannot be null!");
 		}
 		this.indexDir = indexDir;
-		nrtMode = false;
+		searcherManager = new SearcherManager(indexDir);
+		searcherManager.setWarmer(createWarmer());
 	}
 	
 	/**
@@ -110,9 +116,31 @@ public class Seeker {
 		if ( indexWriter == null ) {
 			throw new IllegalArgumentException("'indexWriter' cannot be null!");
 		}
-		this.indexWriter = indexWriter;
-		nrtMode = true;
-	}	
+		searcherManager = new SearcherManager(indexWriter);
+		searcherManager.setWarmer(createWarmer());
+	}
+	
+	/**
+	 * Creates an instance of OSeeker in near-real-time (NRT) mode, for the index of a given writer.
+	 * The changes made with the writer are counted by the searcher manager of this object
+	 * (see {@link SearcherManager#setRefreshWrites(int)}).
+	 * 
+	 * @param writer
+	 *            The writer of the index
+	 */
+	public Seeker (Writer writer) {
+		this(writer.getIndexWriter());
+		writer.setSearcherManager(searcherManager);
+	}
+	
+	/**
+	 * Gets the object managing the searchers of this seeker, for example to set how often
+	 * the changes of the index are made visible to the queries.
+	 * @return the searcher manager of this seeker.
+	 */
+	public SearcherManager getSearcherManager () {
+		return searcherManager;
+	}
 
 	/**
 	 * Get the current Lucene {@link Directory}
@@ -122,7 +150,7 @@ public class Seeker {
 		return indexDir;
 	}
 
-	private BooleanQuery createQuery (HashMap<String, String> attributes,
+	private BooleanQuery createQuery (Map<String, String> attributes,
 		BooleanQuery prevQuery)
 	{
 		// Anything to add?
@@ -161,90 +189,119 @@ public class Seeker {
 		return fieldValue;
 	}
 
-	protected IndexSearcher createIndexSearcher ()
-		throws CorruptIndexException, IOException
-	{
-		if (indexSearcher != null) indexSearcher.close();
-		return new IndexSearcher(openIndexReader());
+	/**
+	 * Creates the warmer of the new searchers: it runs the last fuzzy query again, which loads
+	 * the data the fuzzy queries use from the new segments.
+	 * @return the new warmer.
+	 */
+	private SearcherManager.IWarmer createWarmer () {
+		return new SearcherManager.IWarmer() {
+			@Override
+			public void warm (IndexSearcher searcher)
+				throws IOException
+			{
+				Query query = lastQuery;
+				if ( query != null ) searcher.search(query, lastFilter, 1);
+			}
+		};
 	}
 
-	protected IndexSearcher getIndexSearcher ()
-		throws CorruptIndexException, IOException
+	/**
+	 * Gets the filter restricting a search to a given TM and to the entries with given attributes.
+	 * <p>The filters are cached: each one keeps its set of documents for each segment of the
+	 * index (see {@link CachingWrapperFilter}), so only the new segments are evaluated after
+	 * the index changes. The cache holds the {@link #FILTERCACHE_SIZE} last used filters.
+	 * @param tmId the TM to search, or null for all.
+	 * @param attributes the attributes the entries must have (can be null).
+	 * @return the filter to use, or null if there is no restriction.
+	 */
+	private Filter getFilter (String tmId,
+		Map<String, String> attributes)
 	{
-		if (( indexSearcher != null ) && !nrtMode ) {
-			return indexSearcher;
+		if (( tmId == null ) && Util.isEmpty(attributes) ) return null;
+		// The order of the attributes does not change the filter
+		List<Object> key = Arrays.<Object>asList(tmId, (attributes == null
+			? new TreeMap<String, String>() : new TreeMap<String, String>(attributes)));
+		synchronized ( filterCache ) {
+			Filter filter = filterCache.get(key);
+			if ( filter != null ) return filter;
 		}
-		// In NRT mode always create a new searcher
-		indexSearcher = createIndexSearcher();
-		return indexSearcher;
-	}
-
-	protected IndexReader openIndexReader ()
-		throws CorruptIndexException, IOException
-	{
-		if ( indexReader == null ) {			
-			indexReader = nrtMode ?
-				IndexReader.open(indexWriter, true) : 
-				IndexReader.open(indexDir, true);
-			maxTopDocuments = (int) ((float) indexReader.maxDoc() * MAX_HITS_RATIO);
-			if (maxTopDocuments < MIN_MAX_HITS) {
-				maxTopDocuments = MIN_MAX_HITS;
-			}
+		BooleanQuery bq = null;
+		if ( tmId != null ) {
+			bq = new BooleanQuery();
+			bq.add(new TermQuery(new Term(TmEntry.TMID_FIELDNAME, tmId)), BooleanClause.Occur.MUST);
 		}
-		else if ( nrtMode ) {
-			indexReader = indexReader.reopen();
+		bq = createQuery(attributes, bq);
+		// Deleted documents may stay in the cached sets: the fuzzy queries skip them anyway
+		Filter filter = new CachingWrapperFilter(new QueryWrapperFilter(bq));
+		synchronized ( filterCache ) {
+			Filter existing = filterCache.get(key);
+			if ( existing != null ) return existing;
+			filterCache.put(key, filter);
 		}
-		return indexReader;
+		return filter;
 	}
-
+	
+	/**
+	 * Gets the candidate hits of a fuzzy query, in a single pass over the matching documents.
+	 * <p>Only the candidates that can still be in the first <code>max</code> hits once the
+	 * penalties are applied are kept (see {@link FuzzyHitCollector}).
+	 * @param query the query to run.
+	 * @param tmId the TM to search, or null for all.
+	 * @param locale the locale of the text.
+	 * @param attributes the attributes the entries must have (can be null).
+	 * @param max the maximum number of hits wanted.
+	 * @param threshold the lowest score accepted.
+	 * @return the list of the candidate hits, without duplicates.
+	 * @throws IOException if an error occurs.
+	 */
 	private List<TmHit> getTopHits (Query query,
 		String tmId,
 		String locale,
-		HashMap<String, String> attributes)
+		Map<String, String> attributes,
+		int max,
+		float threshold)
 		throws IOException
 	{
-		IndexSearcher is = getIndexSearcher();
-		int maxHits = 0;
-		List<TmHit> tmHitCandidates = new ArrayList<TmHit>(maxTopDocuments);
-
 		String gtextFName = TmEntry.GTEXT_PREFIX+locale;
 		String codesFName = TmEntry.CODES_PREFIX+locale;
+		// Load only the stored fields used by the hits (not the other locales and the attributes)
+		FieldSelector fieldSelector = new MapFieldSelector(TmEntry.ID_FIELDNAME,
+			TmEntry.SEGKEY_FIELDNAME, gtextFName, codesFName);
 
 		// Set filter data (TM id and other fields)
-		QueryWrapperFilter filter = null;
-		BooleanQuery bq = null;
-		if ( tmId != null ) {
-			bq = new BooleanQuery();
-			bq.add(new TermQuery(new Term(TmEntry.TMID_FIELDNAME, tmId)), BooleanClause.Occur.MUST);
-		}
-		bq = createQuery(attributes, bq);
-		if ( bq != null ) {
-			filter = new QueryWrapperFilter(bq);
-		}
+		Filter filter = getFilter(tmId, attributes);
 
-		// Collect hits in increments of maxTopDocuments until we have all the possible candidate hits
-		TopScoreDocCollector topCollector;
-		do {
-			maxHits += maxTopDocuments;
-			topCollector = TopScoreDocCollector.create(maxHits, true);
-			is.search(query, filter, topCollector);
+		// Collect the possible candidate hits in one pass
+		FuzzyHitCollector collector = new FuzzyHitCollector(max, threshold,
+			WHITESPACE_OR_CASE_PENALTY+SINGLE_CODE_DIFF_PENALTY);
+		List<TmHit> tmHitCandidates;
+		IndexSearcher is = searcherManager.acquire();
+		try {
+			is.search(query, filter, collector);
+			lastQuery = query;
+			lastFilter = filter;
+
+			// Go through the candidates and create TmHits from them
+			ScoreDoc[] scoreDocs = collector.getScoreDocs();
+			tmHitCandidates = new ArrayList<TmHit>(scoreDocs.length);
+			for ( ScoreDoc scoreDoc : scoreDocs ) {
+				// Same searcher as the query (the document numbers are those of its reader)
+				Document doc = is.doc(scoreDoc.doc, fieldSelector);
+				// Build the hit
+				TmHit tmHit = new TmHit();
+				tmHit.setId(getFieldValue(doc, TmEntry.ID_FIELDNAME));
+				tmHit.setScore(scoreDoc.score);
+				tmHit.setSegKey(getFieldValue(doc, TmEntry.SEGKEY_FIELDNAME));
+				tmHit.setLocale(locale);
+				tmHit.setText(getFieldValue(doc, gtextFName));
+				tmHit.setCodes(getFieldValue(doc, codesFName));
+				// Add it to the list
+				tmHitCandidates.add(tmHit);
+			}
 		}
-		while ( topCollector.getTotalHits() >= maxHits );
-
-		// Go through the candidates and create TmHits from them
-		TopDocs topDocs = topCollector.topDocs();
-		for ( int i=0; i<topDocs.scoreDocs.length; i++ ) {
-			ScoreDoc scoreDoc = topDocs.scoreDocs[i];
-			Document doc = getIndexSearcher().doc(scoreDoc.doc);
-			// Build the hit
-			TmHit tmHit = new TmHit();
-			tmHit.setId(getFieldValue(doc, TmEntry.ID_FIELDNAME));
-			tmHit.setScore(scoreDoc.score);
-			tmHit.setSegKey(getFieldValue(doc, TmEntry.SEGKEY_FIELDNAME));
-			Variant variant = new Variant(locale, getFieldValue(doc, gtextFName), getFieldValue(doc, codesFName));
-			tmHit.setVariant(variant);
-			// Add it to the list
-			tmHitCandidates.add(tmHit);
+		finally {
+			searcherManager.release(is);
 		}
 
 		// Remove duplicate hits
@@ -258,7 +315,7 @@ public class Seeker {
 		String locale,
 		int max,
 		int threshold,
-		HashMap<String, String> attributes)
+		Map<String, String> attributes)
 	{
 		float searchThreshold = (float)threshold;
 		if ( threshold < 0 ) searchThreshold = 0.0f;
@@ -306,21 +363,19 @@ public class Seeker {
 		String locale,
 		int max,
 		float threshold,
-		HashMap<String, String> attributes)
+		Map<String, String> attributes)
 	{
 		List<TmHit> tmHitCandidates;
 		List<TmHit> tmHitsToRemove = new LinkedList<TmHit>();
 
 		try {
-			tmHitCandidates = getTopHits(query, tmId, locale, attributes);
+			tmHitCandidates = getTopHits(query, tmId, locale, attributes, max, threshold);
 			
 			for ( TmHit tmHit : tmHitCandidates ) {
 				
-				String gtextValue = tmHit.getVariant().getGenericTextField().stringValue();
-				Field codesField = tmHit.getVariant().getCodesField();
-				String codesValue;
-				if ( codesField == null ) codesValue = "";
-				else codesValue = codesField.stringValue();
+				String gtextValue = tmHit.getText();
+				String codesValue = tmHit.getCodes();
+				if ( codesValue == null ) codesValue = "";
 
 				MatchType matchType = MatchType.FUZZY;
 				Float score = tmHit.getScore();
@@ -500,17 +555,7 @@ public class Seeker {
 //	}
 	
 	public void close() {
-		try {
-			if (indexSearcher != null) {
-				indexSearcher.close();
-			}
-
-			if (indexReader != null) {
-				indexReader.close();
-			}
-		}
-		catch ( IOException e ) {
-			LOGGER.log(Level.WARNING, "Exception closing TM index.", e); //$NON-NLS-1$
-		}
+		// Searches still running keep their reader until they are done
+		searcherManager.close();
 	}
 }
@@ -23,12 +23,18 @@ package net.sf.okapi.lib.tmdb.lucene;
 import net.sf.okapi.common.HashCodeUtil;
 import net.sf.okapi.common.query.MatchType;
 
+/**
+ * Hit of a TM search: plain value object holding the few stored values of the
+ * matching entry (no Lucene objects are kept).
+ */
 public class TmHit implements Comparable<TmHit> {
 
 	private String entryId;
 	private float score;
 	private String segKey;
-	private Variant variant;
+	private String locale;
+	private String text;
+	private String codes;
 	private boolean codeMismatch;
 	private MatchType matchType;
 
@@ -77,20 +83,44 @@ public class TmHit implements Comparable<TmHit> {
 		this.matchType = matchType;
 	}
 	
-	public Variant getVariant () {
-		return variant;
+	public String getLocale () {
+		return locale;
 	}
 
-	public void setVariant (Variant variant) {
-		this.variant = variant;
+	public void setLocale (String locale) {
+		this.locale = locale;
+	}
+
+	/**
+	 * Gets the generic text of the hit (in the locale searched).
+	 * @return the generic text of the hit.
+	 */
+	public String getText () {
+		return text;
+	}
+
+	public void setText (String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Gets the codes of the hit.
+	 * @return the codes of the hit, or null if there are none.
+	 */
+	public String getCodes () {
+		return codes;
+	}
+
+	public void setCodes (String codes) {
+		this.codes = codes;
 	}
 
 	public int compareTo (TmHit other) {
         final int EQUAL = 0;
         if ( this == other ) return EQUAL;
 
-        String thisSource = this.variant.getGenericTextField().stringValue();
-        String otherSource = other.variant.getGenericTextField().stringValue();
+        String thisSource = this.text;
+        String otherSource = other.text;
         
         // Only sort by match type if this or other is some kind of exact match
         int comparison;
@@ -119,15 +149,14 @@ public class TmHit implements Comparable<TmHit> {
 	
 		TmHit otherHit = (TmHit)other;
 		return (this.matchType == otherHit.getMatchType())
-			&& (this.variant.getGenericTextField().stringValue().equals(
-				otherHit.variant.getGenericTextField().stringValue()));
+			&& (this.text.equals(otherHit.text));
 	}
 
 	@Override
 	public int hashCode() {
 		int result = HashCodeUtil.SEED;
 		result = HashCodeUtil.hash(result, matchType);
-		result = HashCodeUtil.hash(result, variant.getGenericTextField().stringValue());
+		result = HashCodeUtil.hash(result, text);
 		return result;
 	}
 
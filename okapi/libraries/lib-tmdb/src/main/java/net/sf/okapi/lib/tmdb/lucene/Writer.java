@@ -45,6 +45,7 @@ public class Writer {
 	private static final Logger LOGGER = Logger.getLogger(Writer.class.getName());
 
 	private IndexWriter indexWriter;
+	private SearcherManager searcherManager; // Manager to notify of the changes, or null
 
 	/**
 	 * Creates a OWriter object
@@ -110,12 +111,25 @@ public class Writer {
 	public IndexWriter getIndexWriter () {
 		return indexWriter;
 	}
+	
+	/**
+	 * Sets the searcher manager to notify of each change made with this writer.
+	 * @param searcherManager the manager to notify, or null for none.
+	 */
+	void setSearcherManager (SearcherManager searcherManager) {
+		this.searcherManager = searcherManager;
+	}
+	
+	private void changed () {
+		if ( searcherManager != null ) searcherManager.writeDone();
+	}
 
 	public void index (TmEntry entry) {
 		Document doc = createDocument(entry);
 		if ( doc != null ) { // Skip empty/invalid entries
 			try {
 				indexWriter.addDocument(doc);
+				changed();
 			}
 			catch ( CorruptIndexException e ) {
 				throw new OkapiIOException(
@@ -173,6 +187,7 @@ public class Writer {
 		}
 		try {
 			indexWriter.deleteDocuments(new Term(TmEntry.ID_FIELDNAME, entryId));
+			changed();
 		}
 		catch ( CorruptIndexException e ) {
 			throw new OkapiIOException("Error deleting an index entry from the TM. Corrupted index.", e);
@@ -187,6 +202,7 @@ public class Writer {
 	{
 		try {
 			indexWriter.deleteDocuments(new Term(fieldName, fieldValue));
+			changed();
 		}
 		catch ( CorruptIndexException e ) {
 			throw new OkapiIOException("Error deleting an index entry from the TM. Corrupted index.", e);
@@ -0,0 +1,97 @@
+/*===========================================================================
+  Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+  This library is free software; you can redistribute it and/or modify it
+  under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation; either version 2.1 of the License, or (at
+  your option) any later version.
+
+  This library is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+  General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with this library; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb.mongodb;
+
+import java.util.regex.Pattern;
+
+import net.sf.okapi.lib.tmdb.filter.FilterCompiler;
+import net.sf.okapi.lib.tmdb.filter.FilterNode;
+import net.sf.okapi.lib.tmdb.filter.Operator;
+import net.sf.okapi.lib.tmdb.filter.OperatorNode;
+import net.sf.okapi.lib.tmdb.filter.ValueNode;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+
+/**
+ * Compiles the expression tree of a filter into a MongoDB query object
+ * (see {@link FilterCompiler} for the SQL version).
+ */
+class MongoFilterCompiler {
+
+	/**
+	 * Compiles a filter into a MongoDB query object.
+	 * @param root the root of the filter (can be null).
+	 * @return the query object (empty if root is null).
+	 */
+	static BasicDBObject toQuery (FilterNode root) {
+		if ( root == null ) return new BasicDBObject();
+		if ( !root.isOperator() ) {
+			throw new IllegalArgumentException("A filter must start with an operator.");
+		}
+
+		OperatorNode on = (OperatorNode)root;
+		Operator.TYPE type = on.getOperator().getType();
+		if ( !on.isBinary() ) {
+			if ( type != Operator.TYPE.NOT ) {
+				throw new IllegalArgumentException(String.format("Invalid unary operator '%s'.", on.getOperator().getName()));
+			}
+			// $nor of a single expression is the negation of any expression
+			BasicDBList list = new BasicDBList();
+			list.add(toQuery(on.getRight()));
+			return new BasicDBObject("$nor", list);
+		}
+
+		switch ( type ) {
+		case AND:
+		case OR:
+			BasicDBList list = new BasicDBList();
+			list.add(toQuery(on.getLeft()));
+			list.add(toQuery(on.getRight()));
+			return new BasicDBObject((type == Operator.TYPE.AND) ? "$and" : "$or", list);
+		case EQUALS:
+		case CONTAINS:
+			ValueNode field = getValue(on.getLeft());
+			ValueNode value = getValue(on.getRight());
+			if ( !field.isField() ) { // Constant on the left
+				ValueNode tmp = field; field = value; value = tmp;
+			}
+			if ( !field.isField() || value.isField() ) {
+				throw new IllegalArgumentException("Only comparisons between a field and a constant are supported.");
+			}
+			Object constant = FilterCompiler.getConstant(value);
+			if ( type == Operator.TYPE.CONTAINS ) {
+				constant = Pattern.compile(Pattern.quote(constant.toString()));
+			}
+			return new BasicDBObject(field.getStringValue(), constant);
+		default:
+			throw new IllegalArgumentException(String.format("Invalid binary operator '%s'.", on.getOperator().getName()));
+		}
+	}
+
+	private static ValueNode getValue (FilterNode node) {
+		if ( node.isOperator() ) {
+			throw new IllegalArgumentException("A value is expected.");
+		}
+		return (ValueNode)node;
+	}
+
+}
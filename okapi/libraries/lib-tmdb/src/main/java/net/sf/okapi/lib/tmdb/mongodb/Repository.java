@@ -36,6 +36,7 @@ import net.sf.okapi.lib.tmdb.DbUtil;
 import net.sf.okapi.lib.tmdb.IIndexAccess;
 import net.sf.okapi.lib.tmdb.IRepository;
 import net.sf.okapi.lib.tmdb.ITm;
+import net.sf.okapi.lib.tmdb.PageCache;
 
 public class Repository implements IRepository {
 
@@ -53,6 +54,7 @@ public class Repository implements IRepository {
 	public static final String SEG_COL_FLAG = "Flag";
 	
 	private String name;			//Repository name
+	private final PageCache pageCache = new PageCache(0); // Disabled: always shared
 	Mongo connection = null;		//Working Connection
 	DB repository = null;			//Working Repository
 	DBCollection tm_coll= null;		//Working TM Collection
@@ -132,6 +134,16 @@ public class Repository implements IRepository {
 		}
 	}
 
+	@Override
+	public ITm createTm (String tmName,
+		String description,
+		String localeId,
+		boolean compressText)
+	{
+		// Compression is not supported
+		return createTm(tmName, description, localeId);
+	}
+	
 	@Override
 	public ITm createTm (String tmName,
 		String description,
@@ -390,5 +402,10 @@ public class Repository implements IRepository {
 		// MongoDB is always access in server mode
 		return true;
 	}
+
+	@Override
+	public PageCache getPageCache () {
+		return pageCache;
+	}
 	
 }
@@ -22,6 +22,7 @@ package net.sf.okapi.lib.tmdb.mongodb;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -31,14 +32,15 @@ import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import net.sf.okapi.lib.tmdb.DbUtil;
+import net.sf.okapi.lib.tmdb.IRecordConsumer;
 import net.sf.okapi.lib.tmdb.IRecordSet;
 import net.sf.okapi.lib.tmdb.IRepository;
 import net.sf.okapi.lib.tmdb.ITm;
+import net.sf.okapi.lib.tmdb.PageCache;
+import net.sf.okapi.lib.tmdb.RecordPage;
+import net.sf.okapi.lib.tmdb.TmQuery;
 import net.sf.okapi.lib.tmdb.DbUtil.PageMode;
 import net.sf.okapi.lib.tmdb.filter.FilterNode;
-import net.sf.okapi.lib.tmdb.filter.OperatorNode;
-import net.sf.okapi.lib.tmdb.filter.ValueNode;
-import net.sf.okapi.lib.tmdb.filter.ValueNode.TYPE;
 import net.sf.okapi.lib.tmdb.mongodb.Repository;
 
 public class Tm implements ITm {
@@ -54,6 +56,8 @@ public class Tm implements ITm {
 	private long currentPage = -1; // 0-based
 	private PageMode pageMode = PageMode.EDITOR;
 	
+	private static final int SCAN_BATCH_SIZE = 1000;
+	
 	BasicDBObject sortObject = new BasicDBObject("_id",1);
 	
 	@SuppressWarnings("unused")
@@ -69,6 +73,7 @@ public class Tm implements ITm {
 	
 	private FilterNode filterRoot;
 	private BasicDBObject filterQuery;
+	private boolean hashIndexChecked = false;
 	
 	//List<String> cachedTuFields;
 	//List<String> cachedSegFields;
@@ -178,6 +183,7 @@ public class Tm implements ITm {
 			}
 		}
 		segColl.insert(doc);
+		entriesModified();
 		return tuKey;
 	}
 	
@@ -204,17 +210,27 @@ public class Tm implements ITm {
         BasicDBObject set = new BasicDBObject("$set", doc);
         
 		segColl.update(query, set, false, false);
+		entriesModified();
 	}
 
 	@Override
-	public void deleteSegments (List<Long> segKeys) {
+	public long deleteSegments (List<Long> segKeys) {
 		//--create query--
 		BasicDBObject query = new BasicDBObject();
 	    query.put(Repository.SEG_COL_SEGKEY, new BasicDBObject("$in", segKeys));
 		
 	    //--delete--
 		DBCollection segColl = store.getDb().getCollection(name+"_SEG");
-		segColl.remove(query);
+		long count = segColl.remove(query).getN();
+		entriesModified();
+		return count;
+	}
+	
+	/**
+	 * Indicates to the page cache of the repository that the entries of this TM have changed.
+	 */
+	private void entriesModified () {
+		store.getPageCache().modified(uuid);
 	}
 	
 	/**
@@ -368,10 +384,19 @@ public class Tm implements ITm {
 	}
 	
 	/**
-	 * Return the ResultSet from the current page. Should all Close() to release the Mongo DBCursor.
-	 * @return
+	 * Gets the entries of the current page. The Mongo DBCursor is closed once they are read.
+	 * @return the detached page of entries.
 	 */
 	private IRecordSet getPage () {
+		PageCache cache = store.getPageCache();
+		long version = cache.getVersion(uuid); // Before the query: a page read during a change is not stored
+		String view = null;
+		if ( cache.isEnabled() ) {
+			view = pageMode+"\n"+limit+"\n"+recordFields+"\n"+filterQuery+"\n"+sortObject;
+			RecordPage page = cache.get(uuid, view, currentPage);
+			if ( page != null ) return page;
+		}
+		
 		DBCollection segColl = store.getDb().getCollection(name+"_SEG");
 		DBCursor cur;
 		if (pageMode == PageMode.EDITOR ) {
@@ -387,7 +412,41 @@ public class Tm implements ITm {
 			cur = segColl.find().sort(sortObject).limit(limit).skip((int)(limit*currentPage));
 		}
 
-		return new RecordSet(cur, recordFields, limit);
+		RecordPage page = detach(cur, recordFields, limit);
+		if ( view != null ) {
+			cache.put(uuid, version, view, currentPage, page);
+			return page.duplicate();
+		}
+		return page;
+	}
+	
+	/**
+	 * Copies the documents of a cursor into a detached page, and closes the cursor.
+	 * @param cur the cursor to read.
+	 * @param fields the fields to copy (the first must be the segment key and the second the flag).
+	 * @param capacity the expected number of documents.
+	 * @return the new page.
+	 */
+	private RecordPage detach (DBCursor cur,
+		List<String> fields,
+		int capacity)
+	{
+		try {
+			RecordPage page = new RecordPage(fields, capacity);
+			while ( cur.hasNext() ) {
+				DBObject obj = cur.next();
+				Object flag = obj.get(fields.get(1));
+				page.addRecord(((Number)obj.get(fields.get(0))).longValue(),
+					( flag == null ) ? false : (Boolean)flag);
+				for ( int i=2; i<fields.size(); i++ ) {
+					page.setValue(i+1, obj.get(fields.get(i)));
+				}
+			}
+			return page;
+		}
+		finally {
+			cur.close();
+		}
 	}
 
 	/**
@@ -504,7 +563,13 @@ public class Tm implements ITm {
 		// Do we need to re-compute the paging variables
 		if ( !needPagingRefresh ) return;
 		
-		totalRows = store.getTotalSegmentCount(name);
+		if (( pageMode == PageMode.EDITOR ) && ( filterQuery != null )) {
+			// The pages are read through the filter
+			totalRows = store.getDb().getCollection(name+"_SEG").count(filterQuery);
+		}
+		else {
+			totalRows = store.getTotalSegmentCount(name);
+		}
 		if ( totalRows < 1 ) {
 			pageCount = 0;
 		}
@@ -622,6 +687,7 @@ public class Tm implements ITm {
 		DBCollection segColl = store.getDb().getCollection(name+"_SEG");
 		segColl.update(new BasicDBObject(), new BasicDBObject("$rename", new BasicDBObject(DbUtil.TEXT_PREFIX+currentCode, DbUtil.TEXT_PREFIX+newCode)), false, true);
 		segColl.update(new BasicDBObject(), new BasicDBObject("$rename", new BasicDBObject(DbUtil.CODES_PREFIX+currentCode, DbUtil.CODES_PREFIX+newCode)), false, true);
+		entriesModified();
 	}
 	
 	@Override
@@ -701,6 +767,7 @@ public class Tm implements ITm {
 		//--rename the field names in ALL the rows--
 		DBCollection segColl = store.getDb().getCollection(name+"_SEG");
 		segColl.update(new BasicDBObject(), new BasicDBObject("$rename", new BasicDBObject(currentFullName, newFullName)), false, true);
+		entriesModified();
 		
 		/*boolean found = false;
 		
@@ -842,6 +909,109 @@ public class Tm implements ITm {
 		return getPage();
 	}
 
+	@Override
+	public long scan (List<String> fields,
+		FilterNode filter,
+		IRecordConsumer consumer)
+	{
+		ArrayList<String> columns = new ArrayList<String>();
+		columns.add(Repository.SEG_COL_SEGKEY);
+		columns.add(Repository.SEG_COL_FLAG);
+		if ( fields != null ) columns.addAll(fields);
+		
+		// Single cursor in natural order, fetching the documents by batches
+		DBCollection segColl = store.getDb().getCollection(name+"_SEG");
+		DBCursor cur;
+		if ( filter != null ) cur = segColl.find(MongoFilterCompiler.toQuery(filter));
+		else cur = segColl.find();
+		cur.sort(new BasicDBObject("_id", 1)).batchSize(SCAN_BATCH_SIZE);
+		
+		long count = 0;
+		try {
+			RecordSet rs = new RecordSet(cur, columns, SCAN_BATCH_SIZE);
+			while ( rs.next() ) {
+				count++;
+				if ( !consumer.consume(rs) ) break;
+			}
+		}
+		finally {
+			cur.close();
+		}
+		return count;
+	}
+
+	@Override
+	public long scan (List<String> fields,
+		FilterNode filter,
+		IRecordConsumer consumer,
+		int partitionCount)
+	{
+		// Single cursor: the documents are not split
+		return scan(fields, filter, consumer);
+	}
+
+	@Override
+	public IRecordSet getSegmentsByHash (long hash,
+		List<String> fields)
+	{
+		DBCollection segColl = store.getDb().getCollection(name+"_SEG");
+		if ( !hashIndexChecked ) {
+			segColl.ensureIndex(new BasicDBObject(DbUtil.HASH_NAME, 1));
+			hashIndexChecked = true;
+		}
+		ArrayList<String> columns = new ArrayList<String>();
+		columns.add(Repository.SEG_COL_SEGKEY);
+		columns.add(Repository.SEG_COL_FLAG);
+		if ( fields != null ) columns.addAll(fields);
+		DBCursor cur = segColl.find(new BasicDBObject(DbUtil.HASH_NAME, hash));
+		cur.sort(new BasicDBObject(Repository.SEG_COL_SEGKEY, 1));
+		return detach(cur, columns, 4);
+	}
+
+	@Override
+	public IRecordSet fetch (TmQuery query,
+		long pageIndex)
+	{
+		if ( pageIndex < 0 ) return null;
+		ArrayList<String> columns = new ArrayList<String>();
+		columns.add(Repository.SEG_COL_SEGKEY);
+		columns.add(Repository.SEG_COL_FLAG);
+		columns.addAll(query.getFields());
+		
+		// Always end with the SegKey so the pages are cut the same way each time
+		BasicDBObject sort = new BasicDBObject();
+		for ( Entry<String, Boolean> field : query.getSortOrder().entrySet() ) {
+			sort.put(field.getKey(), field.getValue() ? 1 : -1);
+		}
+		if ( !sort.containsField(Repository.SEG_COL_SEGKEY) ) {
+			sort.put(Repository.SEG_COL_SEGKEY, 1);
+		}
+		
+		// Local cursor: the collection objects of the driver are thread-safe
+		DBCollection segColl = store.getDb().getCollection(name+"_SEG");
+		DBCursor cur;
+		if ( query.getFilter() != null ) cur = segColl.find(MongoFilterCompiler.toQuery(query.getFilter()));
+		else cur = segColl.find();
+		int size = (int)query.getPageSize();
+		cur.sort(sort).skip((int)query.getPageOffset(pageIndex)).limit(size);
+		RecordPage page = detach(cur, columns, size);
+		if ( page.getSize() == 0 ) return null;
+		// In editor mode a page with only the last record of the previous page does not exist
+		if (( query.getPageMode() == PageMode.EDITOR ) && ( pageIndex > 0 ) && ( page.getSize() < 2 )) return null;
+		return page;
+	}
+
+	@Override
+	public List<String> getFieldValues (String fieldName) {
+		DBCollection segColl = store.getDb().getCollection(name+"_SEG");
+		ArrayList<String> list = new ArrayList<String>();
+		for ( Object value : segColl.distinct(fieldName) ) {
+			if ( value != null ) list.add(value.toString());
+		}
+		Collections.sort(list);
+		return list;
+	}
+
 	@Override
 	public void setFilter (FilterNode root) {
 
@@ -849,47 +1019,9 @@ public class Tm implements ITm {
 		filterRoot = root;
 
 		if(filterRoot != null){
-			filterQuery = toQuery(root);
+			filterQuery = MongoFilterCompiler.toQuery(root);
 		}
 		needPagingRefresh = true;
 	}
 
-	/**
-	 * Convert the root node to a query object
-	 * @param node
-	 * @return
-	 */
-	private BasicDBObject toQuery (FilterNode node) {
-		
-		BasicDBObject query = new BasicDBObject();
-
-		if ( node.isOperator() ) {
-			OperatorNode on = (OperatorNode)node;
-			if(on.getOperator().getType() == net.sf.okapi.lib.tmdb.filter.Operator.TYPE.EQUALS) {
-				
-				ValueNode left = (ValueNode) on.getLeft();
-				ValueNode right = (ValueNode) on.getRight();
-		
-				if ( right.getType() == TYPE.BOOLEAN ) {
-					query.put(left.getStringValue(),right.getBooleanValue());
-				}
-				if ( right.getType() == TYPE.STRING ) {
-					query.put(left.getStringValue(),right.getStringValue());
-				}
-			}/*else if(on.getOperator().getType() == net.sf.okapi.lib.tmdb.filter.Operator.TYPE.NOT) {
-				
-				ValueNode left = (ValueNode) on.getLeft();
-				ValueNode right = (ValueNode) on.getRight();
-		
-				if ( right.getType() == TYPE.BOOLEAN ) {
-					query.put(left.getStringValue(),right.getBooleanValue());
-				}
-				if ( right.getType() == TYPE.STRING ) {
-					query.put(left.getStringValue(),right.getStringValue());
-				}
-			}*/
-		}		
-		return query;
-	}
-
 }
@@ -0,0 +1,42 @@
+package net.sf.okapi.lib.tmdb;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BloomFilterTest {
+
+	@Test
+	public void testNoFalseNegatives () {
+		BloomFilter bf = new BloomFilter(10000, 0.01);
+		for ( int i=0; i<10000; i++ ) {
+			bf.add(DbUtil.computeHash("EN", "text "+i));
+		}
+		for ( int i=0; i<10000; i++ ) {
+			assertTrue(bf.mightContain(DbUtil.computeHash("EN", "text "+i)));
+		}
+	}
+
+	@Test
+	public void testFalsePositiveRate () {
+		BloomFilter bf = new BloomFilter(10000, 0.01);
+		assertTrue(bf.getHashCount() > 1);
+		for ( int i=0; i<10000; i++ ) {
+			bf.add(i);
+		}
+		int count = 0;
+		for ( int i=10000; i<110000; i++ ) {
+			if ( bf.mightContain(i) ) count++;
+		}
+		// About 1000 expected: allow a large margin
+		assertTrue(count < 2000);
+	}
+
+	@Test
+	public void testEmpty () {
+		BloomFilter bf = new BloomFilter(0, 0.5);
+		assertTrue(bf.getBitCount() >= 64);
+		assertFalse(bf.mightContain(123L));
+	}
+
+}
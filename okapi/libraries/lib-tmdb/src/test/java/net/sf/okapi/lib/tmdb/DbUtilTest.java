@@ -37,4 +37,24 @@ public class DbUtilTest {
 		assertNull(DbUtil.getFieldLocale(DbUtil.TUREF_NAME));
 	}
 	
+	@Test
+	public void testComputeHash () {
+		long hash = DbUtil.computeHash("EN", "Text", "");
+		assertEquals(hash, DbUtil.computeHash("EN", "Text", ""));
+		assertEquals(hash, DbUtil.computeHash("EN", "Text", null));
+		assertFalse(hash == DbUtil.computeHash("EN", "", "Text"));
+		assertFalse(hash == DbUtil.computeHash("FR", "Text", ""));
+		// The separator avoids collisions between different splits
+		assertFalse(DbUtil.computeHash("ab", "c") == DbUtil.computeHash("a", "bc"));
+	}
+	
+	@Test
+	public void testIsDictionaryField () {
+		assertTrue(DbUtil.isDictionaryField("creationid"));
+		assertTrue(DbUtil.isDictionaryField("x-client"));
+		assertTrue(DbUtil.isDictionaryField("x-Client~FR"));
+		assertFalse(DbUtil.isDictionaryField(DbUtil.TEXT_PREFIX+"FR"));
+		assertFalse(DbUtil.isDictionaryField("note"));
+	}
+	
 }
@@ -0,0 +1,86 @@
+package net.sf.okapi.lib.tmdb;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class PageCacheTest {
+
+	@Test
+	public void testHitAndMiss () {
+		PageCache cache = new PageCache(PageCache.DEFAULT_MAXSIZE);
+		assertNull(cache.get("tm1", "view", 0));
+		cache.put("tm1", 0, "view", 0, createPage(10));
+		
+		RecordPage page = cache.get("tm1", "view", 0);
+		assertNotNull(page);
+		assertTrue(page.next());
+		assertEquals(1, page.getSegKey());
+		// Each call gives a new cursor
+		page = cache.get("tm1", "view", 0);
+		assertTrue(page.next());
+		assertEquals(1, page.getSegKey());
+		
+		assertNull(cache.get("tm1", "view", 1));
+		assertNull(cache.get("tm1", "otherView", 0));
+		assertNull(cache.get("tm2", "view", 0));
+		assertEquals(2, cache.getHitCount());
+		assertEquals(4, cache.getMissCount());
+	}
+
+	@Test
+	public void testModified () {
+		PageCache cache = new PageCache(PageCache.DEFAULT_MAXSIZE);
+		cache.put("tm1", 0, "view", 0, createPage(10));
+		cache.put("tm2", 0, "view", 0, createPage(10));
+		cache.modified("tm1");
+		assertEquals(1, cache.getVersion("tm1"));
+		assertNull(cache.get("tm1", "view", 0));
+		assertNotNull(cache.get("tm2", "view", 0));
+	}
+
+	@Test
+	public void testModifiedDuringQuery () {
+		PageCache cache = new PageCache(PageCache.DEFAULT_MAXSIZE);
+		// The TM is modified after the version is read and before the page is stored
+		long version = cache.getVersion("tm1");
+		cache.modified("tm1");
+		cache.put("tm1", version, "view", 0, createPage(10));
+		assertEquals(0, cache.getPageCount());
+		assertNull(cache.get("tm1", "view", 0));
+		
+		cache.put("tm1", cache.getVersion("tm1"), "view", 0, createPage(10));
+		assertNotNull(cache.get("tm1", "view", 0));
+	}
+
+	@Test
+	public void testEviction () {
+		long pageSize = createPage(10).getMemorySize();
+		PageCache cache = new PageCache(pageSize*2);
+		cache.put("tm1", 0, "view", 0, createPage(10));
+		cache.put("tm1", 0, "view", 1, createPage(10));
+		assertNotNull(cache.get("tm1", "view", 0)); // Page 1 is now the oldest
+		cache.put("tm1", 0, "view", 2, createPage(10));
+		assertEquals(2, cache.getPageCount());
+		assertEquals(1, cache.getEvictionCount());
+		assertNull(cache.get("tm1", "view", 1));
+		assertNotNull(cache.get("tm1", "view", 0));
+		assertTrue(cache.getSize() <= cache.getMaxSize());
+		
+		cache.setMaxSize(0);
+		assertFalse(cache.isEnabled());
+		assertEquals(0, cache.getPageCount());
+	}
+
+	private RecordPage createPage (int count) {
+		RecordPage page = new RecordPage(Arrays.asList(DbUtil.SEGKEY_NAME, DbUtil.FLAG_NAME, "Text~EN"), count);
+		for ( int i=1; i<=count; i++ ) {
+			page.addRecord(i, false);
+			page.setValue(3, "Text of entry "+i);
+		}
+		return page;
+	}
+
+}
@@ -0,0 +1,83 @@
+package net.sf.okapi.lib.tmdb;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import net.sf.okapi.common.exceptions.OkapiIOException;
+
+import org.junit.Test;
+
+public class RecordPageTest {
+
+	@Test
+	public void testAccess () {
+		RecordPage page = createPage(1);
+		assertEquals(3, page.getSize());
+		assertEquals(5, page.getFieldCount());
+		assertEquals("Text~EN", page.getFieldName(4));
+		
+		assertTrue(page.next());
+		assertEquals(10, page.getSegKey());
+		assertEquals(1, page.getTuRef());
+		assertFalse(page.getFlag());
+		assertEquals("one", page.getString("Text~EN"));
+		assertEquals("one", page.getString(4));
+		assertEquals(1, page.getLong(3));
+		
+		assertTrue(page.next());
+		assertTrue(page.getFlag());
+		assertTrue(page.getBoolean(ITm.FLAG_FIELD));
+		assertNull(page.getString("Text~EN"));
+		assertNull(page.getObject(5));
+		
+		assertTrue(page.next());
+		assertEquals(30, page.getLong(ITm.SEGKEY_FIELD));
+		assertEquals("30", page.getString(ITm.SEGKEY_FIELD));
+		assertFalse(page.next());
+		
+		assertTrue(page.last());
+		assertEquals(30, page.getSegKey());
+	}
+
+	@Test
+	public void testDuplicate () {
+		RecordPage page = createPage(10);
+		assertTrue(page.last());
+		RecordPage copy = page.duplicate();
+		assertTrue(copy.next());
+		assertEquals(10, copy.getSegKey());
+		assertEquals(30, page.getSegKey());
+		assertEquals("three", copy.getValue(2, 4));
+	}
+
+	@Test
+	public void testEmpty () {
+		RecordPage page = new RecordPage(Arrays.asList(DbUtil.SEGKEY_NAME, DbUtil.FLAG_NAME), 5);
+		assertFalse(page.next());
+		assertFalse(page.last());
+	}
+
+	@Test(expected = OkapiIOException.class)
+	public void testUnknownField () {
+		RecordPage page = createPage(3);
+		page.next();
+		page.getString("Text~FR");
+	}
+
+	private RecordPage createPage (int capacity) {
+		RecordPage page = new RecordPage(Arrays.asList(DbUtil.SEGKEY_NAME, DbUtil.FLAG_NAME,
+			DbUtil.TUREF_NAME, "Text~EN", "Codes~EN"), capacity);
+		page.addRecord(10, false);
+		page.setValue(3, 1L);
+		page.setValue(4, "one");
+		page.setValue(5, "");
+		page.addRecord(20, true);
+		page.setValue(3, 1L);
+		page.addRecord(30, false);
+		page.setValue(3, 2L);
+		page.setValue(4, "three");
+		return page;
+	}
+
+}
@@ -0,0 +1,125 @@
+package net.sf.okapi.lib.tmdb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import net.sf.okapi.common.LocaleId;
+import net.sf.okapi.common.observer.IObserver;
+import net.sf.okapi.lib.tmdb.h2.Repository;
+
+import org.junit.Test;
+
+public class SplitterTest {
+
+	private static final String LOCCODE = DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH);
+	private static final String TEXTFIELD = DbUtil.TEXT_PREFIX+LOCCODE;
+	
+	@Test
+	public void testTusAreNotCut () {
+		Repository repo = new Repository(null, false);
+		ITm tm = repo.createTm("split", null, LOCCODE);
+		// 7 TUs of 2 segments
+		tm.startImport();
+		LinkedHashMap<String, Object> segMap = new LinkedHashMap<String, Object>();
+		for ( int i=1; i<=7; i++ ) {
+			segMap.put(TEXTFIELD, String.format("TU %d seg 1", i));
+			long tuKey = tm.addRecord(-1, null, segMap);
+			segMap.put(TEXTFIELD, String.format("TU %d seg 2", i));
+			tm.addRecord(tuKey, null, segMap);
+		}
+		tm.finishImport();
+		
+		// Parts of 5 entries would end in the middle of a TU
+		SplitterOptions options = new SplitterOptions(LOCCODE);
+		options.setEntriesPerPart(5);
+		Callback callback = new Callback();
+		new Splitter(callback, repo, "split", options).run();
+		assertEquals(Collections.emptyList(), callback.errors);
+		
+		// Each part ends with a whole TU, and the segments of each TU stay in the same TU
+		assertEquals(Arrays.asList("split", "split_1", "split_2", "split_3"), repo.getTmNames());
+		assertEquals(Arrays.asList("TU 1 seg 1|TU 1 seg 2", "TU 2 seg 1|TU 2 seg 2", "TU 3 seg 1|TU 3 seg 2"),
+			getTus(repo.openTm("split_1")));
+		assertEquals(Arrays.asList("TU 4 seg 1|TU 4 seg 2", "TU 5 seg 1|TU 5 seg 2", "TU 6 seg 1|TU 6 seg 2"),
+			getTus(repo.openTm("split_2")));
+		assertEquals(Arrays.asList("TU 7 seg 1|TU 7 seg 2"), getTus(repo.openTm("split_3")));
+		
+		repo.close();
+	}
+	
+	/**
+	 * Gets the texts of the segments of each TU of a TM.
+	 * @param tm the TM to read.
+	 * @return the list of the TUs, each with the texts of its segments separated by '|'.
+	 */
+	private List<String> getTus (ITm tm) {
+		final LinkedHashMap<Long, String> tus = new LinkedHashMap<Long, String>();
+		tm.scan(Arrays.asList(DbUtil.TUREF_NAME, TEXTFIELD), null, new IRecordConsumer() {
+			@Override
+			public boolean consume (IRecordSet rs) {
+				String text = tus.get(rs.getTuRef());
+				tus.put(rs.getTuRef(), (text == null) ? rs.getString(TEXTFIELD) : text+"|"+rs.getString(TEXTFIELD));
+				return true;
+			}
+		});
+		return new ArrayList<String>(tus.values());
+	}
+	
+	private static class Callback implements IProgressCallback {
+		
+		final ArrayList<String> errors = new ArrayList<String>();
+		
+		@Override
+		public void startProcess (String text) {
+		}
+		@Override
+		public void endProcess (long count,
+			Boolean updateRepositories)
+		{
+		}
+		@Override
+		public boolean updateProgress (long count) {
+			return true;
+		}
+		@Override
+		public boolean logMessage (int type,
+			String text)
+		{
+			if ( type == MSGTYPE_ERROR ) errors.add(text);
+			return true;
+		}
+		@Override
+		public boolean isCanceled () {
+			return false;
+		}
+		@Override
+		public void addObserver (IObserver observer) {
+		}
+		@Override
+		public int countObservers () {
+			return 0;
+		}
+		@Override
+		public List<IObserver> getObservers () {
+			return Collections.emptyList();
+		}
+		@Override
+		public void deleteObserver (IObserver observer) {
+		}
+		@Override
+		public void deleteObservers () {
+		}
+		@Override
+		public void notifyObservers () {
+		}
+		@Override
+		public void notifyObservers (Object arg) {
+		}
+	}
+	
+}
@@ -0,0 +1,100 @@
+package net.sf.okapi.lib.tmdb.filter;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FilterCompilerTest {
+
+	private final FilterCompiler.IColumnMapper mapper = new FilterCompiler.IColumnMapper() {
+		@Override
+		public String getColumn (String fieldName) {
+			return "T.\""+fieldName+"\"";
+		}
+	};
+	
+	private final FilterCompiler.IFieldEncoder encoder = new FilterCompiler.IFieldEncoder() {
+		@Override
+		public boolean isEncoded (String fieldName) {
+			return fieldName.equals("changeid");
+		}
+		@Override
+		public String getCodeColumn (String fieldName) {
+			return "T.\""+fieldName+"\"";
+		}
+		@Override
+		public String getEqualsQuery (String fieldName) {
+			return "SELECT C FROM D WHERE F='"+fieldName+"' AND V=?";
+		}
+		@Override
+		public String getContainsQuery (String fieldName) {
+			return "SELECT C FROM D WHERE F='"+fieldName+"' AND LOCATE(?, V)>0";
+		}
+	};
+	
+	@Test
+	public void testNoFilter () {
+		FilterCompiler.SQLCondition cond = FilterCompiler.toSQL(null, mapper);
+		assertTrue(cond.isEmpty());
+		assertEquals(0, cond.getParameters().length);
+	}
+	
+	@Test
+	public void testSameShape () {
+		FilterCompiler.SQLCondition cond1 = FilterCompiler.toSQL(createFilter("abc", true), mapper);
+		FilterCompiler.SQLCondition cond2 = FilterCompiler.toSQL(createFilter("x'y", false), mapper);
+		assertEquals("((T.\"Flag\" = ?) OR (NOT (T.\"Text~EN\" = ?)))", cond1.getCondition());
+		// Different values give the same SQL text
+		assertEquals(cond1.getCondition(), cond2.getCondition());
+		assertArrayEquals(new Object[] {true, "abc"}, cond1.getParameters());
+		assertArrayEquals(new Object[] {false, "x'y"}, cond2.getParameters());
+	}
+	
+	@Test
+	public void testContains () {
+		FilterNode root = new OperatorNode(Operator.OP_CONTAINS,
+			new ValueNode(true, "Text~EN"), new ValueNode(false, "a.b"));
+		FilterCompiler.SQLCondition cond = FilterCompiler.toSQL(root, mapper);
+		assertEquals("(LOCATE(?, T.\"Text~EN\")>0)", cond.getCondition());
+		assertArrayEquals(new Object[] {"a.b"}, cond.getParameters());
+	}
+	
+	@Test
+	public void testEncodedFields () {
+		// Equality: the code is looked up by a sub-query, so a value added later is found
+		FilterNode root = new OperatorNode(Operator.OP_AND,
+			new OperatorNode(Operator.OP_EQUALS, new ValueNode(true, "changeid"), new ValueNode(false, "xyz")),
+			new OperatorNode(Operator.OP_EQUALS, new ValueNode(true, "Text~EN"), new ValueNode(false, "xyz")));
+		FilterCompiler.SQLCondition cond = FilterCompiler.toSQL(root, mapper, encoder);
+		assertEquals("((T.\"changeid\" IN (SELECT C FROM D WHERE F='changeid' AND V=?)) AND (T.\"Text~EN\" = ?))",
+			cond.getCondition());
+		assertArrayEquals(new Object[] {"xyz", "xyz"}, cond.getParameters());
+		
+		// Value not yet in the dictionary
+		root = new OperatorNode(Operator.OP_EQUALS, new ValueNode(false, "zzz"), new ValueNode(true, "changeid"));
+		cond = FilterCompiler.toSQL(root, mapper, encoder);
+		assertEquals("(T.\"changeid\" IN (SELECT C FROM D WHERE F='changeid' AND V=?))", cond.getCondition());
+		assertArrayEquals(new Object[] {"zzz"}, cond.getParameters());
+		
+		// Contains: the codes are looked up by a sub-query, the same for any value
+		root = new OperatorNode(Operator.OP_CONTAINS, new ValueNode(true, "changeid"), new ValueNode(false, "ab"));
+		cond = FilterCompiler.toSQL(root, mapper, encoder);
+		assertEquals("(T.\"changeid\" IN (SELECT C FROM D WHERE F='changeid' AND LOCATE(?, V)>0))",
+			cond.getCondition());
+		assertArrayEquals(new Object[] {"ab"}, cond.getParameters());
+		root = new OperatorNode(Operator.OP_CONTAINS, new ValueNode(true, "changeid"), new ValueNode(false, "q"));
+		FilterCompiler.SQLCondition cond2 = FilterCompiler.toSQL(root, mapper, encoder);
+		assertEquals(cond.getCondition(), cond2.getCondition());
+		assertArrayEquals(new Object[] {"q"}, cond2.getParameters());
+	}
+	
+	private FilterNode createFilter (String text,
+		boolean flag)
+	{
+		return new OperatorNode(Operator.OP_OR,
+			new OperatorNode(Operator.OP_EQUALS, "Flag", flag),
+			new OperatorNode(Operator.OP_NOT,
+				new OperatorNode(Operator.OP_EQUALS, new ValueNode(true, "Text~EN"), new ValueNode(false, text))));
+	}
+	
+}
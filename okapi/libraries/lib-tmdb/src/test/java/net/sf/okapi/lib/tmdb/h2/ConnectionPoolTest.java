@@ -0,0 +1,146 @@
+package net.sf.okapi.lib.tmdb.h2;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.sf.okapi.common.LocaleId;
+import net.sf.okapi.lib.tmdb.DbUtil;
+
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+	private static final String URL = "jdbc:h2:mem:PoolTest";
+	
+	@Test
+	public void testBorrowAndRelease ()
+		throws Exception
+	{
+		Class.forName("org.h2.Driver");
+		// Keeps the named database alive
+		Connection keep = DriverManager.getConnection(URL, "sa", "");
+		ConnectionPool pool = new ConnectionPool(URL, 2, 4);
+		
+		ConnectionPool.PooledConnection pc1 = pool.borrow();
+		ConnectionPool.PooledConnection pc2 = pool.borrow();
+		assertNotSame(pc1, pc2);
+		assertEquals(2, pool.getSize());
+		
+		// The released connection is re-used, with its statements
+		pc1.getStatements().get("SELECT 1");
+		pool.release(pc1);
+		ConnectionPool.PooledConnection pc3 = pool.borrow();
+		assertSame(pc1, pc3);
+		assertEquals(1, pc3.getStatements().size());
+		
+		// A transaction left open is rolled back
+		pc3.getConnection().setAutoCommit(false);
+		pool.release(pc3);
+		assertTrue(pool.borrow().getConnection().getAutoCommit());
+		
+		pool.close();
+		try {
+			pool.borrow();
+			fail("Borrowing from a closed pool must fail.");
+		}
+		catch ( SQLException e ) {
+			// Expected
+		}
+		// Borrowed connections are closed when released
+		pool.release(pc2);
+		assertTrue(pc2.getConnection().isClosed());
+		keep.close();
+	}
+
+	@Test
+	public void testWaitForConnection ()
+		throws Exception
+	{
+		Class.forName("org.h2.Driver");
+		Connection keep = DriverManager.getConnection(URL, "sa", "");
+		final ConnectionPool pool = new ConnectionPool(URL, 1, 4);
+		final ConnectionPool.PooledConnection pc = pool.borrow();
+		final AtomicReference<ConnectionPool.PooledConnection> borrowed = new AtomicReference<ConnectionPool.PooledConnection>();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run () {
+				try {
+					borrowed.set(pool.borrow());
+				}
+				catch ( SQLException e ) {
+					// Checked below
+				}
+			}
+		});
+		thread.start();
+		thread.join(200);
+		// Still waiting: the only connection is borrowed
+		assertTrue(thread.isAlive());
+		pool.release(pc);
+		thread.join(5000);
+		assertSame(pc, borrowed.get());
+		assertEquals(1, pool.getSize());
+		
+		pool.release(borrowed.get());
+		pool.close();
+		keep.close();
+	}
+
+	@Test
+	public void testConcurrentReaders ()
+		throws Exception
+	{
+		final Repository repo = new Repository(null, false);
+		repo.setPoolSize(3);
+		String locCode = DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH);
+		final String textField = DbUtil.TEXT_PREFIX+locCode;
+		Tm tm = (Tm)repo.createTm("pool", null, locCode);
+		tm.startImport();
+		LinkedHashMap<String, Object> segMap = new LinkedHashMap<String, Object>();
+		for ( int i=1; i<=10; i++ ) {
+			segMap.put(textField, "Text "+i);
+			tm.addRecord(-1, null, segMap);
+		}
+		tm.finishImport();
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for ( int i=0; i<6; i++ ) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run () {
+					try {
+						for ( int j=0; j<20; j++ ) {
+							// One Tm object per thread (as the server does for each call)
+							Tm tm = (Tm)repo.openTm("pool");
+							assertNotNull(tm.getFirstPage());
+							assertEquals(10, tm.getFieldValues(textField).size());
+							tm.close();
+						}
+					}
+					catch ( Throwable e ) {
+						synchronized ( errors ) {
+							errors.add(e);
+						}
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for ( Thread thread : threads ) {
+			thread.join();
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertTrue(repo.getPool("pool").getSize() <= 3);
+		tm.close();
+		repo.close();
+	}
+
+}
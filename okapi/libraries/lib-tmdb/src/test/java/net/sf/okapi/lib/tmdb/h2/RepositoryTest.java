@@ -1,10 +1,35 @@
 package net.sf.okapi.lib.tmdb.h2;
 
+import static org.junit.Assert.*;
+
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
 
+import net.sf.okapi.common.LocaleId;
 import net.sf.okapi.common.Util;
+import net.sf.okapi.lib.tmdb.DbUtil;
+import net.sf.okapi.lib.tmdb.FuzzyQuerySpec;
+import net.sf.okapi.lib.tmdb.IIndexAccess;
+import net.sf.okapi.lib.tmdb.IRecordConsumer;
+import net.sf.okapi.lib.tmdb.IRecordSet;
 import net.sf.okapi.lib.tmdb.IRepository;
 import net.sf.okapi.lib.tmdb.ProcesswithAPI;
+import net.sf.okapi.lib.tmdb.TmQuery;
+import net.sf.okapi.lib.tmdb.DbUtil.PageMode;
+import net.sf.okapi.lib.tmdb.filter.Operator;
+import net.sf.okapi.lib.tmdb.filter.OperatorNode;
+import net.sf.okapi.lib.tmdb.filter.ValueNode;
+import net.sf.okapi.lib.tmdb.lucene.TmEntry;
+import net.sf.okapi.lib.tmdb.lucene.TmHit;
+import net.sf.okapi.lib.tmdb.lucene.Writer;
 
 import org.junit.Test;
 
@@ -38,5 +63,816 @@ public class RepositoryTest {
 		repo = new Repository(null, false);
 		ProcesswithAPI.runMultipleTestsStep4(repo);
 	}
+
+	@Test
+	public void testSeekPaging () {
+		Repository repo = new Repository(null, false);
+		// The pages must be read from the database each time
+		repo.getPageCache().setMaxSize(0);
+		String locCode = DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH);
+		String textField = DbUtil.TEXT_PREFIX+locCode;
+		Tm tm = (Tm)repo.createTm("seek", null, locCode);
+		tm.startImport();
+		// Every fourth record has no client: NULL sort values
+		String[] clients = {null, "ClientB", "ClientA", "ClientC"};
+		LinkedHashMap<String, Object> tuMap = new LinkedHashMap<String, Object>();
+		LinkedHashMap<String, Object> segMap = new LinkedHashMap<String, Object>();
+		for ( int i=1; i<=50; i++ ) {
+			tuMap.put("x-client", clients[i%4]);
+			segMap.put(textField, String.format("Text %02d", i));
+			tm.addRecord(-1, tuMap, segMap);
+		}
+		tm.finishImport();
+		// Reference TM object, reading each page by offset
+		Tm ref = (Tm)repo.openTm("seek");
+		ref.setSeekPaging(false);
+		assertTrue(tm.getSeekPaging());
+		
+		LinkedHashMap<String, Boolean> clientAsc = new LinkedHashMap<String, Boolean>();
+		clientAsc.put("x-client", true);
+		LinkedHashMap<String, Boolean> clientDesc = new LinkedHashMap<String, Boolean>();
+		clientDesc.put("x-client", false);
+		LinkedHashMap<String, Boolean> mixed = new LinkedHashMap<String, Boolean>();
+		mixed.put("x-client", false);
+		mixed.put(textField, false);
+		LinkedHashMap<String, Boolean> textDesc = new LinkedHashMap<String, Boolean>();
+		textDesc.put(textField, false);
+		
+		for ( PageMode mode : PageMode.values() ) {
+			for ( LinkedHashMap<String, Boolean> sort : Arrays.asList(null, clientAsc, clientDesc, mixed, textDesc) ) {
+				String view = mode+" "+sort;
+				for ( Tm t : Arrays.asList(tm, ref) ) {
+					t.setRecordFields(Collections.singletonList("x-client"));
+					t.setPageMode(mode);
+					t.setPageSize(7);
+					t.setSortOrder(sort);
+				}
+				ArrayList<List<Long>> expected = new ArrayList<List<Long>>();
+				ref.getFirstPage();
+				for ( long i=0; i<ref.getPageCount(); i++ ) {
+					expected.add(getSegKeys(ref.getPage(i)));
+				}
+				assertTrue(view, expected.size() > 2);
+				
+				// Forward
+				assertEquals(view, expected.get(0), getSegKeys(tm.getFirstPage()));
+				for ( int i=1; i<expected.size(); i++ ) {
+					assertEquals(view+" next "+i, expected.get(i), getSegKeys(tm.getNextPage()));
+				}
+				assertNull(tm.getNextPage());
+				// Backward
+				for ( int i=expected.size()-2; i>=0; i-- ) {
+					assertEquals(view+" previous "+i, expected.get(i), getSegKeys(tm.getPreviousPage()));
+				}
+				assertNull(tm.getPreviousPage());
+				// Page of each record (in editor mode the last record of a page is also the first of the next one)
+				for ( int i=0; i<expected.size(); i++ ) {
+					List<Long> keys = expected.get(i);
+					int end = (( mode == PageMode.EDITOR ) && ( i < expected.size()-1 )) ? keys.size()-1 : keys.size();
+					for ( int j=0; j<end; j++ ) {
+						assertEquals(view+" find "+keys.get(j), i, tm.findPageForSegment(keys.get(j)));
+					}
+				}
+			}
+		}
+		
+		ref.close();
+		tm.close();
+		repo.close();
+	}
+	
+	@Test
+	public void testViewSnapshot () {
+		Repository repo = new Repository(null, false);
+		String textField = DbUtil.TEXT_PREFIX+DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH);
+		Tm tm = (Tm)repo.createTm("snap", null, DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH));
+		tm.startImport();
+		LinkedHashMap<String, Object> segMap = new LinkedHashMap<String, Object>();
+		for ( int i=1; i<=10; i++ ) {
+			segMap.put(textField, String.format("Text %02d", i));
+			tm.addRecord(-1, null, segMap);
+		}
+		tm.finishImport();
+		
+		tm.setViewSnapshot(true);
+		tm.setPageMode(PageMode.ITERATOR);
+		tm.setPageSize(3);
+		LinkedHashMap<String, Boolean> sort = new LinkedHashMap<String, Boolean>();
+		sort.put(textField, false);
+		tm.setSortOrder(sort);
+		
+		// Order is 10, 9, 8, ... 1
+		IRecordSet rs = tm.getPage(1);
+		assertEquals(4, tm.getPageCount());
+		assertTrue(rs.next());
+		assertEquals(7, rs.getSegKey());
+		assertEquals(3, tm.findPageForSegment(1));
+		assertEquals(0, tm.findPageForSegment(9));
+		
+		// Delete a segment: order is 10, 8, 7, 6...
+		tm.deleteSegments(Collections.singletonList(9L));
+		rs = tm.getPage(1);
+		assertEquals(3, tm.getPageCount());
+		assertTrue(rs.next());
+		assertEquals(6, rs.getSegKey());
+		assertEquals(-1, tm.findPageForSegment(9));
+		assertEquals(2, tm.findPageForSegment(1));
+		
+		// Add a record: it goes at the end of the snapshot
+		tm.startImport();
+		segMap.put(textField, "Text 11");
+		tm.addRecord(-1, null, segMap);
+		tm.finishImport();
+		rs = tm.getLastPage();
+		assertEquals(4, tm.getPageCount());
+		assertTrue(rs.next());
+		assertEquals(11, rs.getSegKey());
+		assertEquals(3, tm.findPageForSegment(11));
+		
+		// Update a sorted field: order is 11, 8, 7, ... 1, 10
+		LinkedHashMap<String, Object> updMap = new LinkedHashMap<String, Object>();
+		updMap.put(textField, "Text 00");
+		tm.updateRecord(10, null, updMap);
+		rs = tm.getPage(0);
+		assertEquals(4, tm.getPageCount());
+		assertTrue(rs.next());
+		assertEquals(11, rs.getSegKey());
+		assertEquals(3, tm.findPageForSegment(10));
+		assertEquals(2, tm.findPageForSegment(1));
+		
+		// New filter, with and without the snapshot: order is 8, 7, ... 1, 10
+		tm.setFilter(new OperatorNode(Operator.OP_NOT, new OperatorNode(Operator.OP_EQUALS,
+			new ValueNode(true, DbUtil.SEGKEY_NAME), new ValueNode(false, "11"))));
+		assertEquals(2, tm.findPageForSegment(1));
+		assertEquals(0, tm.findPageForSegment(8));
+		assertEquals(-1, tm.findPageForSegment(11));
+		tm.setViewSnapshot(false);
+		assertEquals(2, tm.findPageForSegment(1));
+		assertEquals(0, tm.findPageForSegment(8));
+		assertEquals(-1, tm.findPageForSegment(11));
+		tm.setViewSnapshot(true);
+		tm.setFilter(null);
+		assertEquals(3, tm.findPageForSegment(10));
+		
+		// Bulk import committed only at the end: the records go at the end of the snapshot
+		tm.setBulkImport(true);
+		tm.startImport();
+		for ( int i=12; i<=13; i++ ) {
+			segMap.put(textField, String.format("Text %02d", i));
+			tm.addRecord(-1, null, segMap);
+		}
+		tm.finishImport();
+		rs = tm.getLastPage();
+		assertEquals(4, tm.getPageCount());
+		assertEquals(Arrays.asList(10L, 12L, 13L), getSegKeys(rs));
+		
+		repo.close();
+	}
+	
+	@Test
+	public void testIndexAdvisor ()
+		throws InterruptedException
+	{
+		Repository repo = new Repository(null, false);
+		String textField = DbUtil.TEXT_PREFIX+DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH);
+		Tm tm = (Tm)repo.createTm("idx", null, DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH));
+		tm.startImport();
+		LinkedHashMap<String, Object> segMap = new LinkedHashMap<String, Object>();
+		for ( int i=1; i<=10; i++ ) {
+			segMap.put(textField, String.format("Text %02d", i));
+			tm.addRecord(-1, null, segMap);
+		}
+		tm.finishImport();
+		
+		IndexAdvisor advisor = repo.getIndexAdvisor();
+		advisor.setThreshold(2);
+		tm.setPageMode(PageMode.ITERATOR);
+		tm.setPageSize(3);
+		LinkedHashMap<String, Boolean> sort = new LinkedHashMap<String, Boolean>();
+		sort.put(textField, false);
+		tm.setSortOrder(sort);
+		
+		// First request: candidate only
+		tm.getFirstPage();
+		List<IndexAdvisor.ManagedIndex> list = tm.getManagedIndexes();
+		assertEquals(1, list.size());
+		assertEquals(IndexAdvisor.Status.CANDIDATE, list.get(0).getStatus());
+		
+		// Second request: the index is built
+		IRecordSet rs = tm.getNextPage();
+		advisor.waitForBuilds();
+		list = tm.getManagedIndexes();
+		assertEquals(IndexAdvisor.Status.BUILT, list.get(0).getStatus());
+		assertEquals("["+textField+", "+DbUtil.SEGKEY_NAME+"]", list.get(0).getColumns().keySet().toString());
+		assertFalse(list.get(0).getColumns().get(textField));
+		// Same results with the index
+		assertTrue(rs.next());
+		assertEquals(7, rs.getSegKey());
+		
+		// Not used anymore
+		advisor.setUnusedDelay(0);
+		assertEquals(1, advisor.dropUnusedIndexes());
+		assertTrue(tm.getManagedIndexes().isEmpty());
+		
+		repo.close();
+	}
+	
+	@Test
+	public void testCompressedTm () {
+		Repository repo = new Repository(null, false);
+		String locCode = DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH);
+		String textField = DbUtil.TEXT_PREFIX+locCode;
+		String codesField = DbUtil.CODES_PREFIX+locCode;
+		assertFalse(((Tm)repo.createTm("plain", null, locCode)).isCompressed());
+		Tm tm = (Tm)repo.createTm("comp", null, locCode, true);
+		assertTrue(tm.isCompressed());
+		tm.startImport();
+		LinkedHashMap<String, Object> segMap = new LinkedHashMap<String, Object>();
+		for ( int i=1; i<=10; i++ ) {
+			segMap.put(textField, String.format("Text %02d \u00e9", i));
+			segMap.put(codesField, String.format("codes %d", i));
+			tm.addRecord(-1, null, segMap);
+		}
+		tm.finishImport();
+		
+		tm.setRecordFields(Collections.singletonList(textField));
+		tm.setPageMode(PageMode.ITERATOR);
+		tm.setPageSize(3);
+		LinkedHashMap<String, Boolean> sort = new LinkedHashMap<String, Boolean>();
+		sort.put(textField, false);
+		tm.setSortOrder(sort);
+		
+		// Sorted on the expanded text: 10, 9, 8, ... 1
+		IRecordSet rs = tm.getFirstPage();
+		assertTrue(rs.next());
+		assertEquals(10, rs.getSegKey());
+		assertEquals("Text 10 \u00e9", rs.getString(textField));
+		assertEquals("codes 10", rs.getString(codesField));
+		rs = tm.getNextPage();
+		assertTrue(rs.next());
+		assertEquals(7, rs.getSegKey());
+		
+		// Filter on the expanded text
+		tm.setFilter(new OperatorNode(Operator.OP_CONTAINS,
+			new ValueNode(true, textField), new ValueNode(false, "05")));
+		rs = tm.getFirstPage();
+		assertEquals(1, tm.getPageCount());
+		assertTrue(rs.next());
+		assertEquals(5, rs.getSegKey());
+		assertFalse(rs.next());
+		
+		// Updated text is compressed too
+		LinkedHashMap<String, Object> updMap = new LinkedHashMap<String, Object>();
+		updMap.put(textField, "Changed");
+		tm.updateRecord(5, null, updMap);
+		tm.setFilter(new OperatorNode(Operator.OP_EQUALS,
+			new ValueNode(true, textField), new ValueNode(false, "Changed")));
+		rs = tm.getFirstPage();
+		assertTrue(rs.next());
+		assertEquals(5, rs.getSegKey());
+		assertEquals("Changed", rs.getString(textField));
+		
+		repo.close();
+	}
+	
+	@Test
+	public void testDeleteSegments ()
+		throws SQLException
+	{
+		Repository repo = new Repository(null, false);
+		String locCode = DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH);
+		String textField = DbUtil.TEXT_PREFIX+locCode;
+		Tm tm = (Tm)repo.createTm("del", null, locCode);
+		tm.startImport();
+		LinkedHashMap<String, Object> segMap = new LinkedHashMap<String, Object>();
+		for ( int i=1; i<=4; i++ ) {
+			segMap.put(textField, "Text "+i);
+			tm.addRecord(-1, null, segMap);
+		}
+		tm.finishImport();
+		// Second segment for the first TU
+		tm.startImport();
+		segMap.put(textField, "Text 1 bis");
+		tm.addRecord(1, null, segMap);
+		tm.finishImport();
+		assertEquals(5, repo.getTotalSegmentCount("del"));
+		
+		// All the segments of the first TU, and one of the second
+		assertEquals(3, tm.deleteSegments(Arrays.asList(1L, 5L, 2L, 5L)));
+		assertEquals(2, repo.getTotalSegmentCount("del"));
+		// The TUs left without segments are gone
+		Statement stm = repo.getConnection("del").createStatement();
+		ResultSet rs = stm.executeQuery("SELECT TUKEY FROM \"del_TU\" ORDER BY TUKEY");
+		assertTrue(rs.next());
+		assertEquals(3, rs.getLong(1));
+		assertTrue(rs.next());
+		assertEquals(4, rs.getLong(1));
+		assertFalse(rs.next());
+		stm.close();
+		
+		// Not during a bulk import
+		tm.setBulkImport(true);
+		tm.startImport();
+		try {
+			tm.deleteSegments(Arrays.asList(3L));
+			fail("Deleting during a bulk import must fail.");
+		}
+		catch ( RuntimeException e ) {
+			// Expected
+		}
+		tm.finishImport();
+		assertEquals(2, repo.getTotalSegmentCount("del"));
+		
+		repo.close();
+	}
+	
+	@Test
+	public void testDictionaryFields () {
+		Repository repo = new Repository(null, false);
+		String locCode = DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH);
+		String textField = DbUtil.TEXT_PREFIX+locCode;
+		Tm tm = (Tm)repo.createTm("dict", null, locCode);
+		tm.startImport();
+		String[] clients = {"ClientC", "ClientA", "ClientB"};
+		LinkedHashMap<String, Object> tuMap = new LinkedHashMap<String, Object>();
+		LinkedHashMap<String, Object> segMap = new LinkedHashMap<String, Object>();
+		for ( int i=1; i<=9; i++ ) {
+			tuMap.put("x-client", clients[i%3]);
+			segMap.put(textField, "Text "+i);
+			tm.addRecord(-1, tuMap, segMap);
+		}
+		tm.finishImport();
+		
+		assertEquals(3, tm.getFieldValues("x-client").size());
+		assertEquals("ClientA", tm.getFieldValues("x-client").get(0));
+		
+		tm.setRecordFields(Collections.singletonList("x-client"));
+		tm.setPageMode(PageMode.ITERATOR);
+		tm.setPageSize(10);
+		
+		// Filter on the value (resolved to its code)
+		tm.setFilter(new OperatorNode(Operator.OP_EQUALS,
+			new ValueNode(true, "x-client"), new ValueNode(false, "ClientB")));
+		IRecordSet rs = tm.getFirstPage();
+		int count = 0;
+		while ( rs.next() ) {
+			assertEquals("ClientB", rs.getString("x-client"));
+			count++;
+		}
+		assertEquals(3, count);
+		
+		// Contains: the codes are looked up in the dictionary
+		tm.setFilter(new OperatorNode(Operator.OP_CONTAINS,
+			new ValueNode(true, "x-client"), new ValueNode(false, "ntA")));
+		rs = tm.getFirstPage();
+		count = 0;
+		while ( rs.next() ) {
+			assertEquals("ClientA", rs.getString("x-client"));
+			count++;
+		}
+		assertEquals(3, count);
+		tm.setFilter(new OperatorNode(Operator.OP_CONTAINS,
+			new ValueNode(true, "x-client"), new ValueNode(false, "lient")));
+		assertEquals(9, getSegKeys(tm.getFirstPage()).size());
+		
+		// The filter finds the values added after it was set
+		tm.setFilter(new OperatorNode(Operator.OP_EQUALS,
+			new ValueNode(true, "x-client"), new ValueNode(false, "ClientD")));
+		assertNull(tm.getFirstPage());
+		tm.startImport();
+		tuMap.put("x-client", "ClientD");
+		segMap.put(textField, "Text 10");
+		tm.addRecord(-1, tuMap, segMap);
+		tm.finishImport();
+		assertEquals(Arrays.asList(10L), getSegKeys(tm.getFirstPage()));
+		
+		// Sort on the values, not the codes
+		tm.setFilter(null);
+		LinkedHashMap<String, Boolean> sort = new LinkedHashMap<String, Boolean>();
+		sort.put("x-client", true);
+		tm.setSortOrder(sort);
+		rs = tm.getFirstPage();
+		assertTrue(rs.next());
+		assertEquals("ClientA", rs.getString("x-client"));
+		
+		repo.close();
+	}
+	
+	@Test
+	public void testSparseFields () {
+		Repository repo = new Repository(null, false);
+		String locCode = DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH);
+		String textField = DbUtil.TEXT_PREFIX+locCode;
+		String noteField = "note"+DbUtil.LOC_SEP+locCode;
+		Tm tm = (Tm)repo.createTm("sparse", null, locCode);
+		tm.setSparseFields(true);
+		tm.startImport();
+		LinkedHashMap<String, Object> tuMap = new LinkedHashMap<String, Object>();
+		LinkedHashMap<String, Object> segMap = new LinkedHashMap<String, Object>();
+		for ( int i=1; i<=6; i++ ) {
+			tuMap.put("x-client", (i%2==0) ? "ClientA" : "ClientB");
+			segMap.clear();
+			segMap.put(textField, "Text "+i);
+			if ( i == 3 ) segMap.put(noteField, "Note 3");
+			tm.addRecord(-1, tuMap, segMap);
+		}
+		tm.finishImport();
+		
+		// The fields exist but are not columns
+		assertTrue(tm.getAvailableFields().contains("x-client"));
+		assertTrue(tm.getAvailableFields().contains(noteField));
+		assertFalse(repo.getFields("sparse", false).contains("x-client"));
+		assertFalse(repo.getFields("sparse", true).contains(noteField));
+		assertEquals(Collections.singletonList("Note 3"), tm.getFieldValues(noteField));
+		
+		tm.setRecordFields(Arrays.asList("x-client", noteField));
+		tm.setPageMode(PageMode.ITERATOR);
+		tm.setPageSize(10);
+		tm.setFilter(new OperatorNode(Operator.OP_EQUALS,
+			new ValueNode(true, "x-client"), new ValueNode(false, "ClientB")));
+		IRecordSet rs = tm.getFirstPage();
+		int count = 0;
+		while ( rs.next() ) {
+			assertEquals("ClientB", rs.getString("x-client"));
+			if ( rs.getSegKey() == 3 ) assertEquals("Note 3", rs.getString(noteField));
+			else assertNull(rs.getString(noteField));
+			count++;
+		}
+		assertEquals(3, count);
+		
+		// Update of a sparse value
+		tm.updateRecord(5, null, Collections.<String, Object>singletonMap(noteField, "Note 5"));
+		assertEquals(Arrays.asList("Note 3", "Note 5"), tm.getFieldValues(noteField));
+		
+		// Promotion to a column: the queries still give the same results
+		assertTrue(tm.promoteField("x-client"));
+		assertFalse(tm.promoteField("x-client"));
+		assertTrue(repo.getFields("sparse", false).contains("x-client"));
+		rs = tm.getFirstPage();
+		count = 0;
+		while ( rs.next() ) {
+			assertEquals("ClientB", rs.getString("x-client"));
+			count++;
+		}
+		assertEquals(3, count);
+		
+		// Deleting a segment deletes its sparse values
+		tm.deleteSegments(Collections.singletonList(3L));
+		assertEquals(Collections.singletonList("Note 5"), tm.getFieldValues(noteField));
+		
+		// Field name with a quote, used as a value in the queries
+		tm.startImport();
+		tuMap.clear();
+		tuMap.put("x-client's", "ClientC");
+		segMap.put(textField, "Text 7");
+		tm.addRecord(-1, tuMap, segMap);
+		tm.finishImport();
+		tm.setRecordFields(Arrays.asList("x-client's"));
+		tm.setFilter(new OperatorNode(Operator.OP_EQUALS,
+			new ValueNode(true, "x-client's"), new ValueNode(false, "ClientC")));
+		assertEquals(Arrays.asList(7L), getSegKeys(tm.getFirstPage()));
+		tm.setFilter(new OperatorNode(Operator.OP_CONTAINS,
+			new ValueNode(true, "x-client's"), new ValueNode(false, "C")));
+		assertEquals(Arrays.asList(7L), getSegKeys(tm.getFirstPage()));
+		assertTrue(tm.promoteField("x-client's"));
+		rs = tm.getFirstPage();
+		assertTrue(rs.next());
+		assertEquals("ClientC", rs.getString("x-client's"));
+		
+		repo.close();
+	}
+	
+	@Test
+	public void testTmDatabases () {
+		Repository repo = new Repository(null, false, true);
+		assertTrue(repo.getTmDatabases());
+		String locCode = DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH);
+		String textField = DbUtil.TEXT_PREFIX+locCode;
+		Tm tm1 = (Tm)repo.createTm("tm1", null, locCode);
+		Tm tm2 = (Tm)repo.createTm("tm2", null, locCode);
+		// Each TM has its own connection
+		assertNotSame(repo.getConnection("tm1"), repo.getConnection("tm2"));
+		assertNotSame(repo.getConnection(), repo.getConnection("tm1"));
+		
+		LinkedHashMap<String, Object> tuMap = new LinkedHashMap<String, Object>();
+		LinkedHashMap<String, Object> segMap = new LinkedHashMap<String, Object>();
+		tm1.startImport();
+		tm2.startImport();
+		for ( int i=1; i<=4; i++ ) {
+			tuMap.put("x-client", "Client "+i);
+			segMap.put(textField, "Text "+i);
+			tm1.addRecord(-1, tuMap, segMap);
+			if ( i % 2 == 0 ) tm2.addRecord(-1, tuMap, segMap);
+		}
+		tm1.finishImport();
+		tm2.finishImport();
+		assertEquals(4, repo.getTotalSegmentCount("tm1"));
+		assertEquals(2, repo.getTotalSegmentCount("tm2"));
+		assertTrue(repo.getFields("tm2", false).contains("x-client"));
+		
+		// Deleting a TM does not affect the others
+		repo.deleteTm("tm1");
+		assertEquals(Collections.singletonList("tm2"), repo.getTmNames());
+		assertEquals(2, repo.getTotalSegmentCount("tm2"));
+		assertEquals(Arrays.asList("Client 2", "Client 4"), tm2.getFieldValues("x-client"));
+		
+		repo.close();
+	}
+	
+	@Test
+	public void testScan () {
+		Repository repo = new Repository(null, false);
+		String locCode = DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH);
+		final String textField = DbUtil.TEXT_PREFIX+locCode;
+		Tm tm = (Tm)repo.createTm("scan", null, locCode);
+		tm.startImport();
+		LinkedHashMap<String, Object> tuMap = new LinkedHashMap<String, Object>();
+		LinkedHashMap<String, Object> segMap = new LinkedHashMap<String, Object>();
+		for ( int i=1; i<=20; i++ ) {
+			tuMap.put("x-client", (i%2==0) ? "ClientA" : "ClientB");
+			segMap.put(textField, "Text "+i);
+			tm.addRecord(-1, tuMap, segMap);
+		}
+		tm.finishImport();
+		
+		// Filtered, in SegKey order, and stopped by the consumer after 5 records
+		final ArrayList<Long> keys = new ArrayList<Long>();
+		long count = tm.scan(Arrays.asList(textField, "x-client"), new OperatorNode(Operator.OP_EQUALS,
+			new ValueNode(true, "x-client"), new ValueNode(false, "ClientB")), new IRecordConsumer() {
+			@Override
+			public boolean consume (IRecordSet rs) {
+				assertEquals("ClientB", rs.getString("x-client"));
+				assertEquals("Text "+rs.getSegKey(), rs.getString(textField));
+				keys.add(rs.getSegKey());
+				return ( keys.size() < 5 );
+			}
+		});
+		assertEquals(5, count);
+		assertEquals(Arrays.asList(1L, 3L, 5L, 7L, 9L), keys);
+		
+		repo.close();
+	}
+	
+	@Test
+	public void testPartitionedScan () {
+		Repository repo = new Repository(null, false);
+		String locCode = DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH);
+		final String textField = DbUtil.TEXT_PREFIX+locCode;
+		Tm tm = (Tm)repo.createTm("scan", null, locCode);
+		tm.startImport();
+		LinkedHashMap<String, Object> tuMap = new LinkedHashMap<String, Object>();
+		LinkedHashMap<String, Object> segMap = new LinkedHashMap<String, Object>();
+		for ( int i=1; i<=100; i++ ) {
+			tuMap.put("x-client", (i%2==0) ? "ClientA" : "ClientB");
+			segMap.put(textField, "Text "+i);
+			tm.addRecord(-1, tuMap, segMap);
+		}
+		tm.finishImport();
+		
+		// All the records are read once, in SegKey order within each partition
+		final Set<Long> keys = Collections.synchronizedSet(new HashSet<Long>());
+		long count = tm.scan(Arrays.asList(textField), null, new IRecordConsumer() {
+			@Override
+			public boolean consume (IRecordSet rs) {
+				assertEquals("Text "+rs.getSegKey(), rs.getString(textField));
+				assertTrue(keys.add(rs.getSegKey()));
+				return true;
+			}
+		}, 4);
+		assertEquals(100, count);
+		assertEquals(100, keys.size());
+		
+		// With a filter
+		keys.clear();
+		count = tm.scan(Arrays.asList("x-client"), new OperatorNode(Operator.OP_EQUALS,
+			new ValueNode(true, "x-client"), new ValueNode(false, "ClientA")), new IRecordConsumer() {
+			@Override
+			public boolean consume (IRecordSet rs) {
+				assertEquals("ClientA", rs.getString("x-client"));
+				keys.add(rs.getSegKey());
+				return true;
+			}
+		}, 3);
+		assertEquals(50, count);
+		assertEquals(50, keys.size());
+		
+		// Stopped by the consumer
+		count = tm.scan(null, null, new IRecordConsumer() {
+			@Override
+			public boolean consume (IRecordSet rs) {
+				return false;
+			}
+		}, 4);
+		assertTrue(count <= 4);
+		
+		repo.close();
+	}
+	
+	@Test
+	public void testMvccImport () {
+		Repository repo = new Repository(null, false, false, true);
+		assertTrue(repo.isMvcc());
+		String locCode = DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH);
+		String textField = DbUtil.TEXT_PREFIX+locCode;
+		Tm tm = (Tm)repo.createTm("mvcc", null, locCode);
+		Tm reader = (Tm)repo.openTm("mvcc");
+		tm.setBulkImport(true);
+		tm.setImportBatchSize(10);
+		tm.setImportCheckpointInterval(20);
+		tm.startImport();
+		LinkedHashMap<String, Object> segMap = new LinkedHashMap<String, Object>();
+		for ( int i=1; i<=15; i++ ) {
+			segMap.put(textField, String.format("Text %02d", i));
+			tm.addRecord(-1, null, segMap);
+		}
+		// One batch flushed but not committed: only the importing TM sees it
+		assertEquals(10, tm.getFieldValues(textField).size());
+		assertEquals(0, reader.getFieldValues(textField).size());
+		
+		for ( int i=16; i<=30; i++ ) {
+			segMap.put(textField, String.format("Text %02d", i));
+			tm.addRecord(-1, null, segMap);
+		}
+		// Checkpoint after 20 records
+		assertEquals(20, reader.getFieldValues(textField).size());
+		// The pages read with the uncommitted batch are not shared with the other TM objects
+		for ( Tm t : Arrays.asList(tm, reader) ) {
+			t.setPageMode(PageMode.ITERATOR);
+			t.setPageSize(100);
+		}
+		assertEquals(30, getSegKeys(tm.getFirstPage()).size());
+		assertEquals(20, getSegKeys(reader.getFirstPage()).size());
+		tm.finishImport();
+		assertEquals(30, reader.getFieldValues(textField).size());
+		assertEquals(30, repo.getTotalSegmentCount("mvcc"));
+		
+		reader.close();
+		tm.close();
+		repo.close();
+	}
+	
+	@Test
+	public void testBulkImportKeys () {
+		Repository repo = new Repository(null, false, false, true);
+		String locCode = DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH);
+		String textField = DbUtil.TEXT_PREFIX+locCode;
+		Tm tm = (Tm)repo.createTm("keys", null, locCode);
+		assertFalse(tm.getBulkImport());
+		tm.setBulkImport(true);
+		tm.setImportBatchSize(10);
+		// Records with generated keys added while the bulk import runs
+		Tm other = (Tm)repo.openTm("keys");
+		other.startImport();
+		tm.startImport();
+		LinkedHashMap<String, Object> segMap = new LinkedHashMap<String, Object>();
+		for ( int i=1; i<=25; i++ ) {
+			segMap.put(textField, String.format("Bulk %02d", i));
+			tm.addRecord(-1, null, segMap);
+			segMap.put(textField, String.format("Single %02d", i));
+			other.addRecord(-1, null, segMap);
+		}
+		other.finishImport();
+		tm.finishImport();
+		assertEquals(50, repo.getTotalSegmentCount("keys"));
+		
+		// A second bulk import reserves new keys
+		tm.startImport();
+		for ( int i=26; i<=30; i++ ) {
+			segMap.put(textField, String.format("Bulk %02d", i));
+			tm.addRecord(-1, null, segMap);
+		}
+		tm.finishImport();
+		assertEquals(55, repo.getTotalSegmentCount("keys"));
+		assertEquals(55, tm.getFieldValues(textField).size());
+		
+		other.close();
+		tm.close();
+		repo.close();
+	}
+	
+	@Test
+	public void testConcurrentFetch ()
+		throws InterruptedException
+	{
+		Repository repo = new Repository(null, false);
+		String locCode = DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH);
+		final String textField = DbUtil.TEXT_PREFIX+locCode;
+		final Tm tm = (Tm)repo.createTm("fetch", null, locCode);
+		tm.startImport();
+		LinkedHashMap<String, Object> tuMap = new LinkedHashMap<String, Object>();
+		LinkedHashMap<String, Object> segMap = new LinkedHashMap<String, Object>();
+		for ( int i=1; i<=100; i++ ) {
+			tuMap.put("x-client", (i%2==0) ? "ClientA" : "ClientB");
+			segMap.put(textField, String.format("Text %03d", i));
+			tm.addRecord(-1, tuMap, segMap);
+		}
+		tm.finishImport();
+		
+		// ClientA has the even records: sorted in descending order, 5 pages of 10
+		LinkedHashMap<String, Boolean> sort = new LinkedHashMap<String, Boolean>();
+		sort.put(textField, false);
+		final TmQuery query = new TmQuery(Arrays.asList(textField), new OperatorNode(Operator.OP_EQUALS,
+			new ValueNode(true, "x-client"), new ValueNode(false, "ClientA")), sort, 10, PageMode.ITERATOR);
+		
+		// Several threads read all the pages with the same TM object
+		final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for ( int t=0; t<4; t++ ) {
+			threads.add(new Thread() {
+				@Override
+				public void run () {
+					try {
+						for ( int n=0; n<10; n++ ) {
+							for ( int p=0; p<5; p++ ) {
+								IRecordSet rs = tm.fetch(query, p);
+								int expected = 100-(p*20);
+								while ( rs.next() ) {
+									String text = rs.getString(textField);
+									if ( !text.equals(String.format("Text %03d", expected)) ) {
+										errors.add("Page "+p+": "+text);
+									}
+									expected -= 2;
+								}
+								if ( expected != 100-((p+1)*20) ) errors.add("Page "+p+" incomplete");
+							}
+							if ( tm.fetch(query, 5) != null ) errors.add("Page 5 found");
+						}
+					}
+					catch ( Throwable e ) {
+						errors.add(e.toString());
+					}
+				}
+			});
+		}
+		for ( Thread thread : threads ) thread.start();
+		for ( Thread thread : threads ) thread.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+		
+		// Editor mode: the pages overlap by one record
+		TmQuery editorQuery = new TmQuery(null, null, null, 50, PageMode.EDITOR);
+		IRecordSet rs = tm.fetch(editorQuery, 1);
+		assertTrue(rs.next());
+		assertEquals(50, rs.getSegKey());
+		assertTrue(rs.last());
+		assertEquals(99, rs.getSegKey());
+		rs = tm.fetch(editorQuery, 2);
+		assertTrue(rs.next());
+		assertEquals(99, rs.getSegKey());
+		assertNull(tm.fetch(editorQuery, 3));
+		
+		// The current selection of the TM is not changed
+		assertEquals(PageMode.EDITOR, tm.getPageMode());
+		assertEquals(500, tm.getPageSize());
+		
+		tm.close();
+		repo.close();
+	}
+	
+	@Test
+	public void testBatchSearch () {
+		Repository repo = new Repository(null, false);
+		String locCode = DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH);
+		IIndexAccess ia = repo.getIndexAccess();
+		Writer writer = ia.getWriter();
+		for ( int i=1; i<=50; i++ ) {
+			writer.index(new TmEntry(String.valueOf(i), "tm1", locCode, "Sentence number "+i+" of the test", null));
+		}
+		writer.commit();
+		
+		ArrayList<FuzzyQuerySpec> queries = new ArrayList<FuzzyQuerySpec>();
+		for ( int i=1; i<=50; i++ ) {
+			queries.add(new FuzzyQuerySpec("Sentence number "+i+" of the test", null, "tm1", locCode, 3, 60, null));
+		}
+		List<List<TmHit>> results = ia.searchBatch(queries);
+		assertEquals(50, results.size());
+		for ( int i=0; i<50; i++ ) {
+			// Same results as a single search, in the order of the queries
+			List<TmHit> hits = results.get(i);
+			assertFalse(hits.isEmpty());
+			assertEquals(String.valueOf(i+1), hits.get(0).getSegKey());
+			assertTrue(100.0==hits.get(0).getScore());
+			List<TmHit> single = ia.search(queries.get(i));
+			assertEquals(single.size(), hits.size());
+		}
+		
+		// No hit in another TM
+		assertTrue(ia.search(new FuzzyQuerySpec("Sentence number 1 of the test", null, "tm2", locCode, 3, 60, null)).isEmpty());
+		
+		repo.close();
+	}
+	
+	/**
+	 * Gets the SegKey values of the records of a page.
+	 * @param rs the page to read.
+	 * @return the list of the SegKey values, in the order of the page.
+	 */
+	private List<Long> getSegKeys (IRecordSet rs) {
+		assertNotNull(rs);
+		ArrayList<Long> list = new ArrayList<Long>();
+		while ( rs.next() ) {
+			list.add(rs.getSegKey());
+		}
+		return list;
+	}
 	
 }
@@ -0,0 +1,68 @@
+package net.sf.okapi.lib.tmdb.h2;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class TmCatalogTest {
+	
+	@Test
+	public void testRenameAndRemove () {
+		TmCatalog catalog = new TmCatalog();
+		catalog.add(new TmCatalog.TmInfo("id1", "first", "desc", null));
+		catalog.add(new TmCatalog.TmInfo("id2", "second", null, null));
+		assertEquals(Arrays.asList("first", "second"), catalog.getNames());
+
+		catalog.rename("first", "third");
+		assertNull(catalog.get("first"));
+		assertEquals("third", catalog.getByUuid("id1").name);
+		assertEquals("desc", catalog.get("third").description);
+		
+		catalog.remove("second");
+		assertNull(catalog.getByUuid("id2"));
+		assertEquals(Arrays.asList("third"), catalog.getNames());
+	}
+
+	@Test
+	public void testColumns () {
+		TmCatalog.TmInfo info = new TmCatalog.TmInfo("id1", "first", null, null);
+		// Not loaded: nothing to update
+		info.addColumns(true, Collections.singletonList("Text~FR"));
+		assertFalse(info.hasColumns());
+		
+		info.tuColumns = new ArrayList<String>(Arrays.asList("TUKEY"));
+		info.segColumns = new ArrayList<String>(Arrays.asList("SegKey", "TuRef", "Flag", "Text~EN", "Codes~EN"));
+		info.addColumns(true, Arrays.asList("Text~FR", "Codes~FR"));
+		info.renameColumn(true, "Text~FR", "Text~DE");
+		info.removeColumns(true, Collections.singletonList("Codes~EN"));
+		assertEquals(Arrays.asList("SegKey", "TuRef", "Flag", "Text~EN", "Text~DE", "Codes~FR"), info.segColumns);
+		assertEquals(Arrays.asList("TUKEY"), info.tuColumns);
+	}
+	
+	@Test
+	public void testCounts () {
+		TmCatalog.TmInfo info = new TmCatalog.TmInfo("id1", "first", null, null);
+		// Unknown count: nothing to adjust
+		info.adjustSegmentCount(5);
+		assertEquals(-1, info.segmentCount);
+		info.segmentCount = 10;
+		info.adjustSegmentCount(-3);
+		assertEquals(7, info.segmentCount);
+		
+		assertNull(info.getFilteredCount("q1", 0));
+		info.setFilteredCount("q1", 0, 4);
+		info.setFilteredCount("q2", 0, 2);
+		assertEquals(Long.valueOf(4), info.getFilteredCount("q1", 0));
+		assertEquals(Long.valueOf(2), info.getFilteredCount("q2", 0));
+		// New version: the old counts are not valid anymore
+		assertNull(info.getFilteredCount("q1", 1));
+		info.setFilteredCount("q1", 1, 5);
+		assertEquals(Long.valueOf(5), info.getFilteredCount("q1", 1));
+		assertNull(info.getFilteredCount("q2", 1));
+	}
+	
+}
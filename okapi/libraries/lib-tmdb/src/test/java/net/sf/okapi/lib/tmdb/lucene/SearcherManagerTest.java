@@ -0,0 +1,154 @@
+/*===========================================================================
+Copyright (C) 2012 by the Okapi Framework contributors
+-----------------------------------------------------------------------------
+This library is free software; you can redistribute it and/or modify it
+under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation; either version 2.1 of the License, or (at
+your option) any later version.
+
+This library is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this library; if not, write to the Free Software Foundation,
+Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+See also the full LGPL text here: http://www.gnu.org/copyleft/lesser.html
+===========================================================================*/
+
+package net.sf.okapi.lib.tmdb.lucene;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import net.sf.okapi.common.LocaleId;
+import net.sf.okapi.lib.tmdb.DbUtil;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SearcherManagerTest {
+
+	static final String locEN = DbUtil.toOlifantLocaleCode(LocaleId.ENGLISH);
+
+	Writer writer;
+	SearcherManager manager;
+	
+	@Before
+	public void setUp () throws IOException {
+		writer = new Writer(new RAMDirectory(), true);
+		manager = new SearcherManager(writer.getIndexWriter());
+		writer.setSearcherManager(manager);
+	}
+	
+	@After
+	public void tearDown () {
+		manager.close();
+		writer.close();
+	}
+	
+	@Test
+	public void testRefreshOnAcquire () throws IOException {
+		writer.index(new TmEntry("1", "tmId1_", locEN, "Text EN 1", null));
+		IndexSearcher searcher = manager.acquire();
+		assertEquals(1, count(searcher, "tmId1_1"));
+		manager.release(searcher);
+		
+		// Same searcher while nothing changes
+		searcher = manager.acquire();
+		IndexSearcher same = manager.acquire();
+		assertSame(searcher, same);
+		manager.release(same);
+		
+		// A new searcher after a change (not committed)
+		writer.index(new TmEntry("2", "tmId1_", locEN, "Text EN 2", null));
+		IndexSearcher newSearcher = manager.acquire();
+		assertNotSame(searcher, newSearcher);
+		assertEquals(1, count(newSearcher, "tmId1_2"));
+		manager.release(newSearcher);
+		
+		// The previous searcher is still usable until it is released
+		assertEquals(0, count(searcher, "tmId1_2"));
+		assertEquals(1, searcher.getIndexReader().getRefCount());
+		manager.release(searcher);
+		assertEquals(0, searcher.getIndexReader().getRefCount());
+	}
+	
+	@Test
+	public void testRefreshOnWrites () throws Exception {
+		manager.setRefreshWrites(5);
+		writer.index(new TmEntry("1", "tmId1_", locEN, "Text EN 1", null));
+		IndexSearcher searcher = manager.acquire();
+		manager.release(searcher);
+		
+		// Not refreshed before 5 writes
+		for ( int i=2; i<=5; i++ ) {
+			writer.index(new TmEntry(String.valueOf(i), "tmId1_", locEN, "Text EN "+i, null));
+		}
+		searcher = manager.acquire();
+		assertEquals(0, count(searcher, "tmId1_5"));
+		manager.release(searcher);
+		
+		// Refreshed in the background after the 5th
+		writer.index(new TmEntry("6", "tmId1_", locEN, "Text EN 6", null));
+		assertTrue(waitFor("tmId1_6"));
+	}
+	
+	@Test
+	public void testRefreshInterval () throws Exception {
+		manager.setRefreshInterval(20);
+		assertEquals(20, manager.getRefreshInterval());
+		IndexSearcher searcher = manager.acquire();
+		manager.release(searcher);
+		writer.index(new TmEntry("1", "tmId1_", locEN, "Text EN 1", null));
+		assertTrue(waitFor("tmId1_1"));
+	}
+	
+	@Test
+	public void testWarmer () throws IOException {
+		final int[] warmed = new int[1];
+		manager.setWarmer(new SearcherManager.IWarmer() {
+			@Override
+			public void warm (IndexSearcher searcher) throws IOException {
+				// The new searcher sees the change before it is used
+				assertEquals(1, count(searcher, "tmId1_1"));
+				warmed[0]++;
+			}
+		});
+		IndexSearcher searcher = manager.acquire();
+		manager.release(searcher);
+		writer.index(new TmEntry("1", "tmId1_", locEN, "Text EN 1", null));
+		assertTrue(manager.maybeRefresh());
+		assertFalse(manager.maybeRefresh());
+		assertEquals(1, warmed[0]);
+	}
+	
+	private int count (IndexSearcher searcher,
+		String entryId) throws IOException
+	{
+		return searcher.search(new TermQuery(new Term(TmEntry.ID_FIELDNAME, entryId)), null, 10).totalHits;
+	}
+	
+	private boolean waitFor (String entryId) throws Exception {
+		for ( int i=0; i<100; i++ ) {
+			IndexSearcher searcher = manager.acquire();
+			try {
+				if ( count(searcher, entryId) > 0 ) return true;
+			}
+			finally {
+				manager.release(searcher);
+			}
+			Thread.sleep(20);
+		}
+		return false;
+	}
+
+}
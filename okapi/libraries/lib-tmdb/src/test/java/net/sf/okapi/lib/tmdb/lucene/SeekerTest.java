@@ -100,7 +100,9 @@ public class SeekerTest  {
         assertEquals(1, list.size());        
         TmHit hit = list.get(0);
         assertEquals("tmId1_1", hit.getId());
-        assertEquals("Text EN 1", hit.getVariant().getGenericTextField().stringValue());
+        assertEquals("Text EN 1", hit.getText());
+        assertEquals(locEN, hit.getLocale());
+        assertNull(hit.getCodes());
         assertTrue(100.0==hit.getScore());
 
         list = seeker.searchFuzzy("Text EN 1", null, tmId2, locEN, 1, 80, null);
@@ -110,7 +112,7 @@ public class SeekerTest  {
         assertEquals(1, list.size());
         hit = list.get(0);
         assertEquals("tmId1_2", hit.getId());
-        assertEquals("Engineering & Testing", hit.getVariant().getGenericTextField().stringValue());
+        assertEquals("Engineering & Testing", hit.getText());
         assertTrue(100.0==hit.getScore());
 
         // Match with attribute
@@ -120,7 +122,7 @@ public class SeekerTest  {
         assertEquals(1, list.size());
         hit = list.get(0);
         assertEquals("tmId2_3", hit.getId());
-        assertEquals("Text in EN", hit.getVariant().getGenericTextField().stringValue());
+        assertEquals("Text in EN", hit.getText());
         assertTrue(100.0==hit.getScore());
 
         // No match because the attribute does not match
@@ -172,6 +174,80 @@ public class SeekerTest  {
 //        assertEquals("number of docs found", 1, list.size());
     }
 
+    @Test
+    public void testTopHits () throws Exception {
+    	String tmId = "tmId1_";
+    	String text = "The quick brown fox jumps over the lazy dog";
+    	// Two duplicates of the best match, then weaker and weaker matches
+    	writer.index(new TmEntry("1", tmId, locEN, text, null));
+    	writer.index(new TmEntry("2", tmId, locEN, text, null));
+    	String suffix = "";
+    	for ( int i=3; i<=40; i++ ) {
+    		suffix += " "+i;
+    		writer.index(new TmEntry(String.valueOf(i), tmId, locEN, text+suffix, null));
+    	}
+        writer.commit();
+        
+        List<TmHit> all = seeker.searchFuzzy(text, null, tmId, locEN, 100, 50, null);
+        assertTrue(all.size() > 3);
+        assertEquals(text, all.get(0).getText());
+        assertFalse(text.equals(all.get(1).getText()));
+        
+        // The bounded search gives the same first hits (the duplicate counts only once)
+        List<TmHit> list = seeker.searchFuzzy(text, null, tmId, locEN, 3, 50, null);
+        assertEquals(3, list.size());
+        for ( int i=0; i<3; i++ ) {
+        	assertEquals(all.get(i).getText(),
+        		list.get(i).getText());
+        	assertTrue(all.get(i).getScore()==list.get(i).getScore());
+        }
+        
+        // Nothing under the threshold
+        for ( TmHit hit : seeker.searchFuzzy(text, null, tmId, locEN, 100, 90, null) ) {
+        	assertTrue(hit.getScore() >= 90);
+        }
+    }
+
+    @Test
+    public void testFilters () throws Exception {
+    	TmEntry entry = new TmEntry("1", "tmId1_", locEN, "Text of the first entry", null);
+    	entry.setAttribute("attr1", "A");
+    	entry.setAttribute("attr2", "B");
+        writer.index(entry);
+        writer.index(new TmEntry("2", "tmId2_", locEN, "Text of the first entry", null));
+        writer.commit();
+        
+        HashMap<String, String> attributes = new HashMap<String, String>();
+        attributes.put("attr1", "A");
+        attributes.put("attr2", "B");
+        List<TmHit> list = seeker.searchFuzzy("Text of the first entry", null, "tmId1_", locEN, 10, 80, attributes);
+        assertEquals(1, list.size());
+        assertEquals("tmId1_1", list.get(0).getId());
+        
+        // The filters are re-used: the new entries must still be found
+        entry = new TmEntry("3", "tmId1_", locEN, "Text of the first entries", null);
+    	entry.setAttribute("attr1", "A");
+    	entry.setAttribute("attr2", "B");
+        writer.index(entry);
+        writer.commit();
+        attributes = new HashMap<String, String>();
+        attributes.put("attr2", "B");
+        attributes.put("attr1", "A");
+        list = seeker.searchFuzzy("Text of the first entry", null, "tmId1_", locEN, 10, 80, attributes);
+        assertEquals(2, list.size());
+        list = seeker.searchFuzzy("Text of the first entry", null, "tmId1_", locEN, 10, 80, null);
+        assertEquals(2, list.size());
+        list = seeker.searchFuzzy("Text of the first entry", null, "tmId2_", locEN, 10, 80, null);
+        assertEquals(1, list.size());
+        assertEquals("tmId2_2", list.get(0).getId());
+        
+        // Deleted entries are not found
+        writer.delete("tmId1_3");
+        writer.commit();
+        list = seeker.searchFuzzy("Text of the first entry", null, "tmId1_", locEN, 10, 80, null);
+        assertEquals(1, list.size());
+    }
+
 //    @Test
 //    public void penaltyDifferentSpaces () throws Exception {
 //        OWriter writer = getWriter();
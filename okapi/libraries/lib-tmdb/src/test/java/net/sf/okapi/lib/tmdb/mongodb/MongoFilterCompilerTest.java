@@ -0,0 +1,49 @@
+package net.sf.okapi.lib.tmdb.mongodb;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import net.sf.okapi.lib.tmdb.filter.FilterNode;
+import net.sf.okapi.lib.tmdb.filter.Operator;
+import net.sf.okapi.lib.tmdb.filter.OperatorNode;
+import net.sf.okapi.lib.tmdb.filter.ValueNode;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+
+public class MongoFilterCompilerTest {
+
+	@Test
+	public void testNoFilter () {
+		assertTrue(MongoFilterCompiler.toQuery(null).isEmpty());
+	}
+	
+	@Test
+	public void testContains () {
+		FilterNode root = new OperatorNode(Operator.OP_CONTAINS,
+			new ValueNode(true, "Text~EN"), new ValueNode(false, "a.b"));
+		BasicDBObject query = MongoFilterCompiler.toQuery(root);
+		Pattern pattern = (Pattern)query.get("Text~EN");
+		assertTrue(pattern.matcher("xa.by").find());
+		assertFalse(pattern.matcher("xaxby").find());
+	}
+	
+	@Test
+	public void testQuery () {
+		FilterNode root = new OperatorNode(Operator.OP_OR,
+			new OperatorNode(Operator.OP_EQUALS, "Flag", true),
+			new OperatorNode(Operator.OP_NOT,
+				new OperatorNode(Operator.OP_EQUALS, new ValueNode(true, "Text~EN"), new ValueNode(false, "abc"))));
+		BasicDBObject query = MongoFilterCompiler.toQuery(root);
+		List<?> list = (List<?>)query.get("$or");
+		assertEquals(2, list.size());
+		assertEquals(true, ((BasicDBObject)list.get(0)).get("Flag"));
+		BasicDBObject not = (BasicDBObject)list.get(1);
+		BasicDBObject equals = (BasicDBObject)((List<?>)not.get("$nor")).get(0);
+		assertEquals("abc", equals.get("Text~EN"));
+	}
+	
+}